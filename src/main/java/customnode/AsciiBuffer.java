@@ -0,0 +1,537 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A byte buffer for writing large ASCII (Latin 1) text files, such as mesh
+ * exports, without creating a String per number or line. Floats are formatted
+ * by hand.
+ *
+ * A buffer created with a channel is flushed to it whenever it is full, so that
+ * the whole file is never held in memory. A buffer created without a channel
+ * grows as needed.
+ */
+public class AsciiBuffer {
+
+	private static final int STREAM_CAPACITY = 1 << 20;
+
+	/* The size of the blocks in which parts are handed over */
+	private static final int PART_CAPACITY = 1 << 20;
+
+	/* The number of blocks of a part which may wait to be written */
+	private static final int PART_BLOCKS = 2;
+
+	private final WritableByteChannel channel;
+	private byte[] data;
+	private int size;
+	private long written;
+
+	/**
+	 * Creates a buffer which writes to the given channel whenever it is full.
+	 * Call {@link #flush()} when done.
+	 */
+	public AsciiBuffer(final WritableByteChannel channel) {
+		this(channel, STREAM_CAPACITY);
+	}
+
+	private AsciiBuffer(final WritableByteChannel channel, final int capacity) {
+		this.channel = channel;
+		data = new byte[capacity];
+	}
+
+	/** Creates a growing, in-memory buffer. */
+	public AsciiBuffer() {
+		channel = null;
+		data = new byte[1 << 12];
+	}
+
+	private void ensure(final int n) throws IOException {
+		if (size + n <= data.length) return;
+		if (channel != null) {
+			flush();
+			if (n <= data.length) return;
+		}
+		final byte[] tmp = new byte[Math.max(2 * data.length, size + n)];
+		System.arraycopy(data, 0, tmp, 0, size);
+		data = tmp;
+	}
+
+	/** Writes the contents to the channel, if any. */
+	public void flush() throws IOException {
+		if (channel == null) return;
+		final ByteBuffer b = ByteBuffer.wrap(data, 0, size);
+		while (b.hasRemaining())
+			channel.write(b);
+		written += size;
+		size = 0;
+	}
+
+	/** Returns the contents which have not been flushed yet. */
+	@Override
+	public String toString() {
+		return new String(data, 0, size, StandardCharsets.ISO_8859_1);
+	}
+
+	/** Returns the number of bytes appended so far. */
+	public long length() {
+		return written + size;
+	}
+
+	public AsciiBuffer append(final char c) throws IOException {
+		ensure(1);
+		data[size++] = (byte) c;
+		return this;
+	}
+
+	public AsciiBuffer append(final String s) throws IOException {
+		final int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++)
+			data[size++] = (byte) s.charAt(i);
+		return this;
+	}
+
+	public AsciiBuffer append(final AsciiBuffer b) throws IOException {
+		return append(b.data, 0, b.size);
+	}
+
+	/**
+	 * Appends the given bytes. If this buffer writes to a channel, large
+	 * arrays are copied in slices, so that the buffer does not grow.
+	 */
+	public AsciiBuffer append(final byte[] b, int off, int len)
+		throws IOException
+	{
+		if (channel == null) {
+			ensure(len);
+			System.arraycopy(b, off, data, size, len);
+			size += len;
+			return this;
+		}
+		while (len > 0) {
+			if (size == data.length) flush();
+			final int n = Math.min(len, data.length - size);
+			System.arraycopy(b, off, data, size, n);
+			size += n;
+			off += n;
+			len -= n;
+		}
+		return this;
+	}
+
+	public AsciiBuffer append(long l) throws IOException {
+		ensure(20);
+		if (l < 0) {
+			if (l == Long.MIN_VALUE) return append(Long.toString(l));
+			data[size++] = '-';
+			l = -l;
+		}
+		final int n = digits(l);
+		for (int i = size + n - 1; i >= size; i--) {
+			data[i] = (byte) ('0' + l % 10);
+			l /= 10;
+		}
+		size += n;
+		return this;
+	}
+
+	public AsciiBuffer append(final int i) throws IOException {
+		return append((long) i);
+	}
+
+	private static int digits(final long l) {
+		int n = 1;
+		for (long p = 10; n < 19 && l >= p; p *= 10)
+			n++;
+		return n;
+	}
+
+	private static final long[] LONG_POW10 = new long[19];
+	/** Powers of ten from 1e-70 to 1e70 */
+	private static final double[] POW10 = new double[141];
+
+	static {
+		LONG_POW10[0] = 1;
+		for (int i = 1; i < LONG_POW10.length; i++)
+			LONG_POW10[i] = 10 * LONG_POW10[i - 1];
+		for (int i = 0; i < POW10.length; i++)
+			POW10[i] = Double.parseDouble("1e" + (i - 70));
+	}
+
+	private static double pow10(final int e) {
+		return POW10[e + 70];
+	}
+
+	/** Returns the decimal exponent of the given positive, finite value. */
+	private static int exponent(final double v) {
+		// estimate from the binary exponent, then correct
+		int e = (int) Math.floor(Math.getExponent(v) * 0.30102999566398120);
+		while (pow10(e) > v)
+			e--;
+		while (pow10(e + 1) <= v)
+			e++;
+		return e;
+	}
+
+	/**
+	 * Appends the given float with the fewest significant digits which still
+	 * read back as the same float, in the notation of
+	 * {@link Float#toString(float)}.
+	 */
+	public AsciiBuffer append(float f) throws IOException {
+		if (Float.isNaN(f) || Float.isInfinite(f)) return append(Float.toString(f));
+		ensure(24);
+		if (f < 0 || (f == 0 && 1 / f < 0)) {
+			data[size++] = '-';
+			f = -f;
+		}
+		if (f == 0) return append("0.0");
+
+		final double v = f;
+		int e = exponent(v);
+		long m = 0;
+		int p;
+		// starting at 6 digits loses nothing: a shorter representation which
+		// reads back as f is within half an ulp of f, and therefore also the
+		// rounding of f to 6 digits, once trailing zeros are stripped
+		for (p = 6; p <= 9; p++) {
+			final int s = p - 1 - e;
+			m = Math.round(v * pow10(s));
+			int ep = e;
+			if (m == LONG_POW10[p]) {
+				m /= 10;
+				ep++;
+			}
+			final double back = s >= 0 ? m / pow10(s) : m * pow10(-s);
+			// 9 significant digits always suffice to tell floats apart
+			if ((float) back == f || p == 9) {
+				e = ep;
+				break;
+			}
+		}
+		// strip trailing zeros
+		while (p > 1 && m % 10 == 0) {
+			m /= 10;
+			p--;
+		}
+
+		final byte[] digits = new byte[p];
+		for (int i = p - 1; i >= 0; i--) {
+			digits[i] = (byte) ('0' + m % 10);
+			m /= 10;
+		}
+		if (e >= -3 && e < 7) {
+			if (e < 0) {
+				data[size++] = '0';
+				data[size++] = '.';
+				for (int i = -1; i > e; i--)
+					data[size++] = '0';
+				for (int i = 0; i < p; i++)
+					data[size++] = digits[i];
+			}
+			else {
+				for (int i = 0; i <= e; i++)
+					data[size++] = i < p ? digits[i] : (byte) '0';
+				data[size++] = '.';
+				if (p <= e + 1) data[size++] = '0';
+				for (int i = e + 1; i < p; i++)
+					data[size++] = digits[i];
+			}
+			return this;
+		}
+		data[size++] = digits[0];
+		data[size++] = '.';
+		if (p == 1) data[size++] = '0';
+		for (int i = 1; i < p; i++)
+			data[size++] = digits[i];
+		data[size++] = 'E';
+		return append(e);
+	}
+
+	/**
+	 * Appends the given float in the notation of <code>String.format("%E")</code>,
+	 * e.g. <code>-3.141569E+03</code>.
+	 */
+	public AsciiBuffer appendScientific(float f) throws IOException {
+		if (Float.isNaN(f) || Float.isInfinite(f)) return append(String.format(
+			"%E", f));
+		ensure(16);
+		if (f < 0 || (f == 0 && 1 / f < 0)) {
+			data[size++] = '-';
+			f = -f;
+		}
+		long m = 0;
+		int e = 0;
+		if (f != 0) {
+			final double v = f;
+			e = exponent(v);
+			m = Math.round(v * pow10(6 - e));
+			if (m >= LONG_POW10[7]) {
+				m = (m + 5) / 10;
+				e++;
+			}
+		}
+		for (int i = size + 7; i >= size; i--) {
+			if (i == size + 1) data[i] = '.';
+			else {
+				data[i] = (byte) ('0' + m % 10);
+				m /= 10;
+			}
+		}
+		size += 8;
+		data[size++] = 'E';
+		data[size++] = e < 0 ? (byte) '-' : (byte) '+';
+		if (e < 0) e = -e;
+		if (e < 10) data[size++] = '0';
+		return append(e);
+	}
+
+	/**
+	 * Returns a channel which writes bytes as Latin 1 characters to the given
+	 * <code>Writer</code>.
+	 */
+	public static WritableByteChannel newChannel(final Writer writer) {
+		return new WritableByteChannel() {
+
+			private final char[] chars = new char[8192];
+			private boolean open = true;
+
+			@Override
+			public int write(final ByteBuffer src) throws IOException {
+				final int n = src.remaining();
+				while (src.hasRemaining()) {
+					final int len = Math.min(chars.length, src.remaining());
+					for (int i = 0; i < len; i++)
+						chars[i] = (char) (src.get() & 0xff);
+					writer.write(chars, 0, len);
+				}
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return open;
+			}
+
+			@Override
+			public void close() {
+				open = false;
+			}
+		};
+	}
+
+	/**
+	 * One of a sequence of independent parts of a file, e.g. one mesh, which
+	 * can be formatted in parallel.
+	 */
+	public static abstract class Part {
+
+		/**
+		 * Prepares part <code>i</code>. Called in parallel, before
+		 * {@link #commit(int)}.
+		 */
+		public void prepare(final int i) throws IOException {}
+
+		/**
+		 * Called in order of the parts, after {@link #prepare(int)} and before
+		 * {@link #append(int, AsciiBuffer)}; e.g. to compute offsets.
+		 */
+		public void commit(final int i) throws IOException {}
+
+		/** Formats part <code>i</code>. Called in parallel. */
+		public abstract void append(int i, AsciiBuffer buffer) throws IOException;
+	}
+
+	/**
+	 * Formats <code>n</code> parts, and appends them in order. If
+	 * <code>nThreads</code> is larger than 1, the parts are formatted in
+	 * parallel, <code>nThreads</code> at a time. Each part is handed over in
+	 * blocks of bounded size, and its formatting waits while too many of its
+	 * blocks are not written yet, so that the memory used does not depend on
+	 * the size of the parts.
+	 */
+	public void appendParts(final int n, final Part part, final int nThreads)
+		throws IOException
+	{
+		if (nThreads <= 1 || n <= 1) {
+			for (int i = 0; i < n; i++) {
+				part.prepare(i);
+				part.commit(i);
+				part.append(i, this);
+			}
+			return;
+		}
+
+		final ExecutorService exec = Executors.newFixedThreadPool(nThreads);
+		try {
+			for (int start = 0; start < n; start += nThreads) {
+				final int end = Math.min(n, start + nThreads);
+				final List<Future<AsciiBuffer>> prepared =
+					new ArrayList<Future<AsciiBuffer>>();
+				for (int i = start; i < end; i++) {
+					final int index = i;
+					prepared.add(exec.submit(new Callable<AsciiBuffer>() {
+
+						@Override
+						public AsciiBuffer call() throws IOException {
+							part.prepare(index);
+							return null;
+						}
+					}));
+				}
+				waitFor(prepared);
+				for (int i = start; i < end; i++)
+					part.commit(i);
+
+				final List<Future<AsciiBuffer>> formatted =
+					new ArrayList<Future<AsciiBuffer>>();
+				final List<BlockingQueue<byte[]>> blocks =
+					new ArrayList<BlockingQueue<byte[]>>();
+				for (int i = start; i < end; i++) {
+					final int index = i;
+					final BlockingQueue<byte[]> queue =
+						new ArrayBlockingQueue<byte[]>(PART_BLOCKS);
+					blocks.add(queue);
+					formatted.add(exec.submit(new Callable<AsciiBuffer>() {
+
+						@Override
+						public AsciiBuffer call() throws IOException {
+							try {
+								final AsciiBuffer buffer =
+									new AsciiBuffer(newBlockChannel(queue), PART_CAPACITY);
+								part.append(index, buffer);
+								buffer.flush();
+							}
+							finally {
+								put(queue, END_OF_PART);
+							}
+							return null;
+						}
+					}));
+				}
+				for (final BlockingQueue<byte[]> queue : blocks) {
+					for (byte[] block = take(queue); block != END_OF_PART; block =
+						take(queue))
+						append(block, 0, block.length);
+				}
+				waitFor(formatted);
+			}
+		}
+		finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/* Marks the end of the blocks of a part */
+	private static final byte[] END_OF_PART = new byte[0];
+
+	/**
+	 * Returns a channel which puts copies of the written bytes into the given
+	 * queue, waiting while it is full.
+	 */
+	private static WritableByteChannel newBlockChannel(
+		final BlockingQueue<byte[]> queue)
+	{
+		return new WritableByteChannel() {
+
+			@Override
+			public int write(final ByteBuffer src) throws IOException {
+				final byte[] block = new byte[src.remaining()];
+				src.get(block);
+				if (block.length > 0) put(queue, block);
+				return block.length;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {}
+		};
+	}
+
+	private static void put(final BlockingQueue<byte[]> queue,
+		final byte[] block) throws IOException
+	{
+		try {
+			queue.put(block);
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted");
+		}
+	}
+
+	private static byte[] take(final BlockingQueue<byte[]> queue)
+		throws IOException
+	{
+		try {
+			return queue.take();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted");
+		}
+	}
+
+	private static List<AsciiBuffer> waitFor(
+		final List<Future<AsciiBuffer>> futures) throws IOException
+	{
+		final List<AsciiBuffer> result = new ArrayList<AsciiBuffer>();
+		for (final Future<AsciiBuffer> f : futures) {
+			try {
+				result.add(f.get());
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+			catch (final ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				throw new IOException(cause);
+			}
+		}
+		return result;
+	}
+}
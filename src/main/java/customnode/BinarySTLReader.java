@@ -0,0 +1,192 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.scijava.vecmath.Point3f;
+
+/**
+ * Reads binary STL files into primitive coordinate buffers. The file is memory
+ * mapped and decoded in chunks, on several threads for large files.
+ *
+ * A binary STL file consists of an 80 byte header, the number of triangles as
+ * little-endian int, and 50 bytes per triangle: the normal and three vertices
+ * as little-endian floats, and an unused 2 byte attribute.
+ */
+public class BinarySTLReader {
+
+	public static final int HEADER_SIZE = 84;
+	public static final int TRIANGLE_SIZE = 50;
+
+	/** Below this number of triangles per thread, files are read serially */
+	private static final int MIN_TRIANGLES_PER_THREAD = 100000;
+
+	/** Upper bound for the size of a single mapping */
+	private static final int MAX_CHUNK_TRIANGLES = (1 << 30) / TRIANGLE_SIZE;
+
+	private BinarySTLReader() {}
+
+	/**
+	 * Returns the number of triangles stated in the header of the given file,
+	 * or -1 if the file size does not match it.
+	 */
+	public static int getTriangleCount(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < HEADER_SIZE) return -1;
+			final ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			raf.getChannel().read(b, HEADER_SIZE - 4);
+			final long n = b.getInt(0) & 0xffffffffL;
+			return (raf.length() - HEADER_SIZE) / TRIANGLE_SIZE == n &&
+				n <= Integer.MAX_VALUE / 9 ? (int) n : -1;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads the vertex coordinates of the given binary STL file, as x, y, z
+	 * triples, 3 vertices per triangle. Normals are ignored.
+	 */
+	public static float[] readCoordinates(final File file) throws IOException {
+		return readCoordinates(file, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static float[] readCoordinates(final File file, final int nThreads)
+		throws IOException
+	{
+		final int nTriangles = getTriangleCount(file);
+		if (nTriangles < 0) throw new IOException(file +
+			" is not a valid binary STL file");
+		final float[] coords = new float[9 * nTriangles];
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final int nChunks =
+				Math.max(Math.max(1, Math.min(nThreads, nTriangles /
+					MIN_TRIANGLES_PER_THREAD)), (int) ((nTriangles +
+					(long) MAX_CHUNK_TRIANGLES - 1) / MAX_CHUNK_TRIANGLES));
+			final int nWorkers = Math.max(1, Math.min(nThreads, nChunks));
+			if (nWorkers == 1) {
+				for (int c = 0; c < nChunks; c++)
+					readChunk(channel, coords, chunkStart(c, nChunks, nTriangles),
+						chunkStart(c + 1, nChunks, nTriangles));
+				return coords;
+			}
+
+			final AtomicReference<IOException> exception =
+				new AtomicReference<IOException>();
+			final Thread[] threads = new Thread[nWorkers];
+			for (int i = 0; i < nWorkers; i++) {
+				final int first = i;
+				threads[i] = new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							for (int c = first; c < nChunks; c += nWorkers)
+								readChunk(channel, coords, chunkStart(c, nChunks, nTriangles),
+									chunkStart(c + 1, nChunks, nTriangles));
+						}
+						catch (final IOException e) {
+							exception.compareAndSet(null, e);
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (final Thread t : threads) {
+				try {
+					t.join();
+				}
+				catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while reading " + file);
+				}
+			}
+			if (exception.get() != null) throw exception.get();
+			return coords;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static int chunkStart(final int chunk, final int nChunks,
+		final int nTriangles)
+	{
+		return (int) ((long) chunk * nTriangles / nChunks);
+	}
+
+	private static void readChunk(final FileChannel channel,
+		final float[] coords, final int from, final int to) throws IOException
+	{
+		if (to <= from) return;
+		final MappedByteBuffer buffer =
+			channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + (long) from *
+				TRIANGLE_SIZE, (long) (to - from) * TRIANGLE_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		int o = 9 * from;
+		for (int t = 0, pos = 12; t < to - from; t++, pos += TRIANGLE_SIZE)
+			for (int i = 0; i < 9; i++)
+				coords[o++] = buffer.getFloat(pos + 4 * i);
+	}
+
+	/**
+	 * Reads the given binary STL file and merges identical vertices into an
+	 * indexed mesh.
+	 */
+	public static CustomIndexedTriangleMesh readIndexed(final File file)
+		throws IOException
+	{
+		return createIndexedMesh(readCoordinates(file));
+	}
+
+	/**
+	 * Creates an indexed mesh from x, y, z triples, 3 vertices per triangle, by
+	 * merging identical vertices.
+	 */
+	public static CustomIndexedTriangleMesh createIndexedMesh(
+		final float[] coords)
+	{
+		final VertexWelder welder = new VertexWelder(coords.length / 3 / 4);
+		final int[] faces = VertexWelder.weld(coords, welder);
+		final float[] unique = welder.getCoordinates();
+		final Point3f[] vertices = new Point3f[welder.size()];
+		for (int i = 0; i < vertices.length; i++)
+			vertices[i] =
+				new Point3f(unique[3 * i], unique[3 * i + 1], unique[3 * i + 2]);
+		return new CustomIndexedTriangleMesh(vertices, faces);
+	}
+}
@@ -22,6 +22,7 @@
 
 package customnode;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.scijava.java3d.Appearance;
@@ -37,10 +38,6 @@ import org.scijava.vecmath.Point3f;
 import org.scijava.vecmath.Vector3f;
 
 import ij.ImagePlus;
-import ij.measure.Calibration;
-import ij.plugin.Duplicator;
-import ij.process.StackConverter;
-import vib.InterpolatedImage;
 
 public class CustomIndexedTriangleMesh extends CustomMesh {
 
@@ -92,16 +89,47 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 
 	@Override
 	public void update() {
+		geometryChanged();
 		this.setGeometry(createGeometry());
 		this.setAppearance(createAppearance());
-		changed = true;
 	}
 
+	/**
+	 * Returns the triangles as a list of 3 vertices each, like
+	 * {@link CustomTriangleMesh#getMesh()}. The list refers to the vertices of
+	 * this mesh, so that moving its points in place (followed by
+	 * {@link #update()}) moves the vertices; it must not be resized.
+	 */
 	@Override
-	public List getMesh() {
+	public synchronized List<Point3f> getMesh() {
+		if (mesh == null && vertices != null) {
+			final List<Point3f> list = new ArrayList<Point3f>(nFaces);
+			for (int i = 0; i < nFaces; i++)
+				list.add(vertices[faces[i]]);
+			mesh = list;
+		}
 		return mesh;
 	}
 
+	/** Returns the vertices; the faces refer to them by index. */
+	public Point3f[] getVertices() {
+		return vertices;
+	}
+
+	public int getVertexCount() {
+		return nVertices;
+	}
+
+	/** Returns the vertex indices, 3 per triangle. */
+	public int[] getFaces() {
+		return faces;
+	}
+
+	/** Returns the colors of the vertices. */
+	public Color3f[] getVertexColors() {
+		return colors;
+	}
+
 	@Override
 	public Color3f getColor() {
 		return color;
@@ -188,14 +216,14 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 
 	@Override
 	public void setCoordinate(final int i, final Point3f p) {
-		changed = true;
+		geometryChanged();
 		vertices[i].set(p);
 		((GeometryArray) getGeometry()).setCoordinate(i, p);
 	}
 
 	@Override
 	public void setCoordinates(final int[] indices, final Point3f p) {
-		changed = true;
+		geometryChanged();
 		final GeometryArray ga = (GeometryArray) getGeometry();
 		for (int i = 0; i < indices.length; i++) {
 			ga.setCoordinate(indices[i], p);
@@ -258,26 +286,20 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 	}
 
 	@Override
-	public void loadSurfaceColorsFromImage(ImagePlus imp) {
-		if (imp.getType() != ImagePlus.COLOR_RGB) {
-			imp = new Duplicator().run(imp);
-			new StackConverter(imp).convertToRGB();
-		}
-		final InterpolatedImage ii = new InterpolatedImage(imp);
-
-		final Calibration cal = imp.getCalibration();
-		final double pw = cal.pixelWidth;
-		final double ph = cal.pixelHeight;
-		final double pd = cal.pixelDepth;
+	public void loadSurfaceColorsFromImage(final ImagePlus imp,
+		final boolean interpolate)
+	{
+		final float[] coords = new float[3 * nVertices];
 		for (int i = 0; i < nVertices; i++) {
-			final Point3f coord = vertices[i];
-			final int v =
-				(int) Math.round(ii.interpol.get(coord.x / pw, coord.y / ph, coord.z /
-					pd));
-			colors[i] =
-				new Color3f(((v & 0xff0000) >> 16) / 255f, ((v & 0xff00) >> 8) / 255f,
-					(v & 0xff) / 255f);
+			coords[3 * i] = vertices[i].x;
+			coords[3 * i + 1] = vertices[i].y;
+			coords[3 * i + 2] = vertices[i].z;
 		}
+		final SurfaceColorSampler sampler = new SurfaceColorSampler(imp);
+		sampler.setInterpolate(interpolate);
+		final float[] rgb = sampler.sample(coords, nVertices, null, 3);
+		for (int i = 0; i < nVertices; i++)
+			colors[i] = new Color3f(rgb[3 * i], rgb[3 * i + 1], rgb[3 * i + 2]);
 		final GeometryArray ga = (GeometryArray) getGeometry();
 		if (ga == null) return;
 		ga.setColors(0, colors);
@@ -38,13 +38,12 @@ import org.scijava.java3d.TransparencyAttributes;
 import org.scijava.java3d.utils.geometry.GeometryInfo;
 import org.scijava.java3d.utils.geometry.NormalGenerator;
 import org.scijava.vecmath.Color3f;
+import org.scijava.vecmath.Point3d;
 import org.scijava.vecmath.Point3f;
+import org.scijava.vecmath.Tuple3f;
 
 import ij.ImagePlus;
-import ij.measure.Calibration;
-import ij.plugin.Duplicator;
-import ij.process.StackConverter;
-import vib.InterpolatedImage;
+import isosurface.MeshProperties;
 
 public abstract class CustomMesh extends Shape3D {
 
@@ -59,6 +58,13 @@ public abstract class CustomMesh extends Shape3D {
 	protected String loadedFromFile = null;
 	protected boolean changed = false;
 
+	/** Incremented whenever the coordinates of this mesh change */
+	private int modCount = 0;
+
+	private final Point3d boundsMin = new Point3d();
+	private final Point3d boundsMax = new Point3d();
+	private int boundsModCount = -1;
+
 	protected CustomMesh() {}
 
 	protected CustomMesh(final List<Point3f> mesh) {
@@ -91,13 +97,34 @@ public abstract class CustomMesh extends Shape3D {
 		return changed;
 	}
 
+	/**
+	 * Returns a counter which is incremented whenever the coordinates of this
+	 * mesh change. It can be used to cache values derived from the geometry.
+	 */
+	public int getModificationCount() {
+		return modCount;
+	}
+
+	/**
+	 * Needs to be called whenever the coordinates of this mesh change.
+	 */
+	protected void geometryChanged() {
+		changed = true;
+		modCount++;
+	}
+
 	public void update() {
+		geometryChanged();
 		this.setGeometry(createGeometry());
 		this.setAppearance(createAppearance());
-		changed = true;
 	}
 
-	public List getMesh() {
+	/**
+	 * Returns the list of vertices. After changing them in place, call
+	 * {@link #update()}; otherwise the geometry, the cached bounding box and
+	 * the derived properties are stale.
+	 */
+	public List<Point3f> getMesh() {
 		return mesh;
 	}
 
@@ -131,28 +158,33 @@ public abstract class CustomMesh extends Shape3D {
 			return;
 		}
 
-		min.x = min.y = min.z = Float.MAX_VALUE;
-		max.x = max.y = max.z = -Float.MAX_VALUE;
-		for (int i = 0; i < mesh.size(); i++) {
-			final Point3f p = mesh.get(i);
-			if (p.x < min.x) min.x = p.x;
-			if (p.y < min.y) min.y = p.y;
-			if (p.z < min.z) min.z = p.z;
-			if (p.x > max.x) max.x = p.x;
-			if (p.y > max.y) max.y = p.y;
-			if (p.z > max.z) max.z = p.z;
+		if (boundsModCount != modCount) {
+			MeshProperties.calculateMinMaxPoint(mesh, boundsMin, boundsMax);
+			boundsModCount = modCount;
 		}
+		min.set(boundsMin);
+		max.set(boundsMax);
 		center.x = (max.x + min.x) / 2;
 		center.y = (max.y + min.y) / 2;
 		center.z = (max.z + min.z) / 2;
 	}
 
+	/**
+	 * Sets the bounding box of the current mesh, if it is already known, so
+	 * that it need not be re-computed.
+	 */
+	void setBounds(final Tuple3f min, final Tuple3f max) {
+		boundsMin.set(min);
+		boundsMax.set(max);
+		boundsModCount = modCount;
+	}
+
 	public abstract float getVolume();
 
 	private final int[] valid = new int[1];
 
 	protected void addVerticesToGeometryStripArray(final Point3f[] v) {
-		changed = true;
+		geometryChanged();
 		mesh.addAll(Arrays.asList(v));
 
 		// check maximum vertex count
@@ -180,7 +212,7 @@ public abstract class CustomMesh extends Shape3D {
 	}
 
 	protected void addVerticesToGeometryArray(final Point3f[] v) {
-		changed = true;
+		geometryChanged();
 		mesh.addAll(Arrays.asList(v));
 
 		// check maximum vertex count
@@ -218,13 +250,13 @@ public abstract class CustomMesh extends Shape3D {
 	}
 
 	public void setCoordinate(final int i, final Point3f p) {
-		changed = true;
+		geometryChanged();
 		((GeometryArray) getGeometry()).setCoordinate(i, p);
 		mesh.get(i).set(p);
 	}
 
 	public void setCoordinates(final int[] indices, final Point3f p) {
-		changed = true;
+		geometryChanged();
 		final GeometryArray ga = (GeometryArray) getGeometry();
 		for (int i = 0; i < indices.length; i++) {
 			ga.setCoordinate(indices[i], p);
@@ -249,7 +281,7 @@ public abstract class CustomMesh extends Shape3D {
 
 	protected void addVertices(final Point3f[] v) {
 		if (mesh == null) return;
-		changed = true;
+		geometryChanged();
 		final GeometryArray ga = (GeometryArray) getGeometry();
 		if (ga == null) {
 			mesh.addAll(Arrays.asList(v));
@@ -264,7 +296,7 @@ public abstract class CustomMesh extends Shape3D {
 	protected void removeVertices(final int[] indices) {
 		if (mesh == null) return;
 
-		changed = true;
+		geometryChanged();
 		for (int i = indices.length - 1; i >= 0; i--) {
 			if (indices[i] < 0 || indices[i] >= mesh.size()) continue;
 			mesh.remove(indices[i]);
@@ -306,32 +338,36 @@ public abstract class CustomMesh extends Shape3D {
 		changed = true;
 	}
 
-	public void loadSurfaceColorsFromImage(ImagePlus imp) {
+	/**
+	 * Colors the vertices with the trilinearly interpolated colors of the given
+	 * image, at the vertex positions.
+	 */
+	public void loadSurfaceColorsFromImage(final ImagePlus imp) {
+		loadSurfaceColorsFromImage(imp, true);
+	}
+
+	/**
+	 * Colors the vertices with the colors of the given image, at the vertex
+	 * positions; see {@link SurfaceColorSampler}.
+	 *
+	 * @param interpolate whether to interpolate trilinearly, or to use the
+	 *          nearest voxel.
+	 */
+	public void loadSurfaceColorsFromImage(final ImagePlus imp,
+		final boolean interpolate)
+	{
 		final GeometryArray ga = (GeometryArray) getGeometry();
 		if (ga == null) return;
 
-		if (imp.getType() != ImagePlus.COLOR_RGB) {
-			imp = new Duplicator().run(imp);
-			new StackConverter(imp).convertToRGB();
-		}
-		final InterpolatedImage ii = new InterpolatedImage(imp);
-
 		final int N = ga.getValidVertexCount();
-		final Color3f[] colors = new Color3f[N];
-		final Calibration cal = imp.getCalibration();
-		final double pw = cal.pixelWidth;
-		final double ph = cal.pixelHeight;
-		final double pd = cal.pixelDepth;
-		final Point3f coord = new Point3f();
-		for (int i = 0; i < N; i++) {
-			ga.getCoordinate(i, coord);
-			final int v =
-				(int) Math.round(ii.interpol.get(coord.x / pw, coord.y / ph, coord.z /
-					pd));
-			colors[i] =
-				new Color3f(((v & 0xff0000) >> 16) / 255f, ((v & 0xff00) >> 8) / 255f,
-					(v & 0xff) / 255f);
-		}
+		final float[] coords = new float[3 * N];
+		ga.getCoordinates(0, coords);
+		final int stride =
+			(ga.getVertexFormat() & GeometryArray.COLOR_4) == GeometryArray.COLOR_4
+				? 4 : 3;
+		final SurfaceColorSampler sampler = new SurfaceColorSampler(imp);
+		sampler.setInterpolate(interpolate);
+		final float[] colors = sampler.sample(coords, N, null, stride);
 		ga.setColors(0, colors);
 		changed = true;
 	}
@@ -406,6 +442,7 @@ public abstract class CustomMesh extends Shape3D {
 		try {
 			WavefrontExporter.save(contents, path + ".obj");
 			this.mesh = null;
+			geometryChanged();
 		}
 		catch (final IOException e) {
 			e.printStackTrace();
@@ -414,6 +451,7 @@ public abstract class CustomMesh extends Shape3D {
 
 	public void clearDisplayedData() {
 		this.mesh = null;
+		geometryChanged();
 	}
 
 	protected abstract GeometryArray createGeometry();
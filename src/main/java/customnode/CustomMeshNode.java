@@ -32,6 +32,7 @@ import ij3d.ContentNode;
 public class CustomMeshNode extends ContentNode {
 
 	private CustomMesh mesh;
+	private MeshLOD lod;
 
 	protected Point3f min, max, center;
 
@@ -40,13 +41,32 @@ public class CustomMeshNode extends ContentNode {
 	public CustomMeshNode(final CustomMesh mesh) {
 		this.mesh = mesh;
 		calculateMinMaxCenterPoint();
-		addChild(mesh);
+		// the simplified levels are plain triangle meshes, without quads or
+		// per-vertex transparency
+		if (mesh instanceof CustomTriangleMesh &&
+			!(mesh instanceof CustomTransparentTriangleMesh) &&
+			!(mesh instanceof CustomQuadMesh))
+		{
+			lod = new MeshLOD((CustomTriangleMesh) mesh);
+			addChild(lod);
+		}
+		else {
+			addChild(mesh);
+		}
 	}
 
 	public CustomMesh getMesh() {
 		return mesh;
 	}
 
+	/**
+	 * Returns the estimated memory, in bytes, used by the simplified levels of
+	 * detail of the mesh.
+	 */
+	public long getLODMemory() {
+		return lod == null ? 0 : lod.getMemorySize();
+	}
+
 	@Override
 	public void getMin(final Tuple3d min) {
 		min.set(this.min);
@@ -76,12 +96,13 @@ public class CustomMeshNode extends ContentNode {
 
 	@Override
 	public void colorUpdated(final Color3f color) {
-		mesh.setColor(color);
+		if (lod != null) lod.setColor(color);
+		else mesh.setColor(color);
 	}
 
 	@Override
 	public void eyePtChanged(final View view) {
-		// do nothing
+		if (lod != null) lod.eyePtChanged(view);
 	}
 
 	@Override
@@ -114,15 +135,18 @@ public class CustomMeshNode extends ContentNode {
 	@Override
 	public void restoreDisplayedData(final String path, final String name) {
 		mesh.restoreDisplayedData(path, name);
+		if (lod != null) lod.update();
 	}
 
 	@Override
 	public void swapDisplayedData(final String path, final String name) {
+		if (lod != null) lod.clearLevels();
 		mesh.swapDisplayedData(path, name);
 	}
 
 	@Override
 	public void clearDisplayedData() {
+		if (lod != null) lod.clearLevels();
 		mesh.clearDisplayedData();
 	}
 }
@@ -38,12 +38,16 @@ import org.scijava.vecmath.Color3f;
 import org.scijava.vecmath.Point2d;
 import org.scijava.vecmath.Point3d;
 import org.scijava.vecmath.Point3f;
+import org.scijava.vecmath.Tuple3d;
 
 import isosurface.MeshProperties;
 
 public class CustomTriangleMesh extends CustomMesh {
 
 	private double volume = 0.0;
+	private final Point3d centerOfMass = new Point3d();
+	private final double[][] inertia = new double[3][3];
+	private int propertiesModCount = -1;
 
 	public CustomTriangleMesh(final List<Point3f> mesh) {
 		this(mesh, DEFAULT_COLOR, 0);
@@ -53,11 +57,6 @@ public class CustomTriangleMesh extends CustomMesh {
 		final float trans)
 	{
 		super(mesh, col, trans);
-		if (mesh != null) {
-			final Point3d center = new Point3d();
-			final double[][] inertia = new double[3][3];
-			volume = MeshProperties.compute(mesh, center, inertia);
-		}
 	}
 
 	public void setMesh(final List<Point3f> mesh) {
@@ -65,6 +64,55 @@ public class CustomTriangleMesh extends CustomMesh {
 		update();
 	}
 
+	/**
+	 * Sets the mesh together with its precomputed normals, and optionally
+	 * vertex-wise colors, so that no normals need to be generated. Used when
+	 * restoring a mesh from a {@link MeshCache}.
+	 *
+	 * @param coords interleaved x, y, z coordinates, 3 per entry of the mesh
+	 *          list.
+	 * @param normals interleaved normals in the same layout.
+	 * @param colors interleaved r, g, b colors in the same layout, or null
+	 *          for the uniform color of this mesh.
+	 */
+	void setMesh(final List<Point3f> mesh, final float[] coords,
+		final float[] normals, final float[] colors)
+	{
+		this.mesh = mesh;
+		if (colors != null) this.color = null;
+		geometryChanged();
+		this.setGeometry(createGeometry(coords, normals, colors));
+		this.setAppearance(createAppearance());
+	}
+
+	/**
+	 * Replaces the coordinates of all vertices, in the order of the mesh list,
+	 * without re-creating the geometry.
+	 *
+	 * @param coords interleaved x, y, z coordinates, 3 per entry of the mesh
+	 *          list.
+	 * @param normals interleaved normals in the same layout; if null, the
+	 *          normals are re-computed.
+	 */
+	public void setCoordinates(final float[] coords, final float[] normals) {
+		final int n = mesh.size();
+		if (coords.length != 3 * n || normals != null && normals.length != 3 * n)
+			throw new IllegalArgumentException("arrays of length " + 3 * n +
+				" expected");
+		for (int i = 0, j = 0; i < n; i++, j += 3)
+			mesh.get(i).set(coords[j], coords[j + 1], coords[j + 2]);
+		geometryChanged();
+
+		final GeometryArray ga = (GeometryArray) getGeometry();
+		if (ga == null || ga.getValidVertexCount() != n) {
+			update();
+			return;
+		}
+		ga.setCoordinates(0, coords);
+		if (normals != null) ga.setNormals(0, normals);
+		else recalculateNormals(ga);
+	}
+
 	public void addTriangles(final Point3f[] v) {
 		if (v.length % 3 != 0) throw new IllegalArgumentException(
 			"Number must be a multiple of 3");
@@ -144,18 +192,49 @@ public class CustomTriangleMesh extends CustomMesh {
 // 		Stripifier st = new Stripifier();
 // 		st.stripify(gi);
 		final GeometryArray result = gi.getGeometryArray();
-		result.setCapability(GeometryArray.ALLOW_NORMAL_WRITE);
-		result.setCapability(GeometryArray.ALLOW_COLOR_WRITE);
-		result.setCapability(GeometryArray.ALLOW_COORDINATE_WRITE);
-		result.setCapability(GeometryArray.ALLOW_COUNT_WRITE);
-		result.setCapability(GeometryArray.ALLOW_COUNT_READ);
-		result.setCapability(GeometryArray.ALLOW_FORMAT_READ);
-		result.setCapability(Geometry.ALLOW_INTERSECT);
+		setCapabilities(result);
 		result.setValidVertexCount(nValid);
 
 		return result;
 	}
 
+	/**
+	 * Creates the geometry from precomputed per-vertex data, without
+	 * generating normals.
+	 */
+	private GeometryArray createGeometry(final float[] coords,
+		final float[] normals, final float[] colors)
+	{
+		final int nValid = coords.length / 3;
+		if (nValid < 3) return null;
+		final GeometryArray ta =
+			new TriangleArray(2 * nValid, GeometryArray.COORDINATES |
+				GeometryArray.COLOR_3 | GeometryArray.NORMALS);
+		ta.setCoordinates(0, coords);
+		ta.setNormals(0, normals);
+		if (colors != null) ta.setColors(0, colors);
+		else {
+			final Color3f[] c = new Color3f[nValid];
+			Arrays.fill(c, color);
+			ta.setColors(0, c);
+		}
+		setCapabilities(ta);
+		ta.setValidVertexCount(nValid);
+		return ta;
+	}
+
+	private static void setCapabilities(final GeometryArray ga) {
+		ga.setCapability(GeometryArray.ALLOW_NORMAL_READ);
+		ga.setCapability(GeometryArray.ALLOW_NORMAL_WRITE);
+		ga.setCapability(GeometryArray.ALLOW_COLOR_READ);
+		ga.setCapability(GeometryArray.ALLOW_COLOR_WRITE);
+		ga.setCapability(GeometryArray.ALLOW_COORDINATE_WRITE);
+		ga.setCapability(GeometryArray.ALLOW_COUNT_WRITE);
+		ga.setCapability(GeometryArray.ALLOW_COUNT_READ);
+		ga.setCapability(GeometryArray.ALLOW_FORMAT_READ);
+		ga.setCapability(Geometry.ALLOW_INTERSECT);
+	}
+
 	private final Point2d p2d = new Point2d();
 
 	private boolean roiContains(final Point3f p, final Transform3D volToIP,
@@ -195,8 +274,61 @@ public class CustomTriangleMesh extends CustomMesh {
 		update();
 	}
 
+	/**
+	 * Computes volume, center of mass and inertia tensor, unless they are
+	 * still up to date.
+	 */
+	private synchronized void computeProperties() {
+		if (propertiesModCount == getModificationCount()) return;
+		if (mesh == null || mesh.size() < 3) {
+			volume = 0;
+			centerOfMass.set(0, 0, 0);
+			for (final double[] row : inertia)
+				Arrays.fill(row, 0);
+		}
+		else {
+			volume = MeshProperties.compute(mesh, centerOfMass, inertia);
+		}
+		propertiesModCount = getModificationCount();
+	}
+
+	/**
+	 * Sets volume, center of mass and inertia tensor which are known to be
+	 * valid for the current mesh, so that they need not be re-computed.
+	 */
+	synchronized void setProperties(final double volume,
+		final Tuple3d centerOfMass, final double[][] inertia)
+	{
+		this.volume = volume;
+		this.centerOfMass.set(centerOfMass);
+		for (int i = 0; i < 3; i++)
+			System.arraycopy(inertia[i], 0, this.inertia[i], 0, 3);
+		propertiesModCount = getModificationCount();
+	}
+
 	@Override
 	public float getVolume() {
+		computeProperties();
 		return (float) volume;
 	}
+
+	/**
+	 * Stores the center of mass of the enclosed volume in the given tuple.
+	 */
+	public void getCenterOfMass(final Tuple3d ret) {
+		computeProperties();
+		ret.set(centerOfMass);
+	}
+
+	/**
+	 * Returns a copy of the inertia tensor of the enclosed volume, relative to
+	 * its center of mass.
+	 */
+	public double[][] getInertiaTensor() {
+		computeProperties();
+		final double[][] ret = new double[3][];
+		for (int i = 0; i < 3; i++)
+			ret[i] = inertia[i].clone();
+		return ret;
+	}
 }
@@ -25,7 +25,6 @@ package customnode;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
@@ -339,37 +338,22 @@ public class FullInfoMesh {
 	}
 
 	public ArrayList<ArrayList<Point3f>> getSubmeshes() {
-		final HashSet<Vertex> open = new HashSet<Vertex>();
-		open.addAll(vertices);
-		open.remove(null);
+		final int[] f = new int[faces.size()];
+		for (int i = 0; i < f.length; i++)
+			f[i] = faces.get(i);
+		final MeshComponents mc =
+			new MeshComponents(f, vertices.size(), Runtime.getRuntime()
+				.availableProcessors());
 		final ArrayList<ArrayList<Point3f>> ret =
-			new ArrayList<ArrayList<Point3f>>();
-		while (!open.isEmpty()) {
-			final HashSet<Integer> meshSet = new HashSet<Integer>();
-			final LinkedList<Integer> queue = new LinkedList<Integer>();
-
-			final Vertex start = open.iterator().next();
-			open.remove(start);
-			queue.add(vertexToIndex.get(start));
-
-			while (!queue.isEmpty()) {
-				final Integer vIdx = queue.poll();
-				meshSet.add(vIdx);
-
-				final Vertex v = getVertex(vIdx);
-				for (final Edge e : v.edges) {
-					final int nIdx = e.p1 == vIdx ? e.p2 : e.p1;
-					final Vertex n = getVertex(nIdx);
-					if (open.contains(n)) {
-						open.remove(n);
-						queue.offer(nIdx);
-					}
-				}
-			}
-
-			final ArrayList<Point3f> tris = new ArrayList<Point3f>();
-			for (final int f : faces) {
-				if (f != -1 && meshSet.contains(f)) tris.add(getVertex(f));
+			new ArrayList<ArrayList<Point3f>>(mc.getComponentCount());
+		for (int c = 0; c < mc.getComponentCount(); c++) {
+			final ArrayList<Point3f> tris =
+				new ArrayList<Point3f>(3 * mc.getTriangleCount(c));
+			for (int i = mc.getStart(c); i < mc.getEnd(c); i++) {
+				final int t = mc.getTriangle(i);
+				tris.add(getVertex(f[3 * t]));
+				tris.add(getVertex(f[3 * t + 1]));
+				tris.add(getVertex(f[3 * t + 2]));
 			}
 			ret.add(tris);
 		}
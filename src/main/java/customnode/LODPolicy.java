@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+/**
+ * Decides which level of detail of a mesh to display, given the size of the
+ * mesh on the screen. The finest level is 0; higher levels are coarser. A
+ * level is only chosen if it still provides at least one triangle per
+ * <code>pixelsPerTriangle</code> screen pixels covered by the mesh.
+ *
+ * This class does not depend on a Canvas3D, so that the selection can be
+ * exercised with synthetic view parameters.
+ */
+public class LODPolicy {
+
+	/** Default number of screen pixels one triangle may cover. */
+	public static final double DEFAULT_PIXELS_PER_TRIANGLE = 2;
+
+	/**
+	 * Relative margin which must be exceeded before switching to a coarser
+	 * level, to avoid flickering between two levels.
+	 */
+	public static final double DEFAULT_HYSTERESIS = 0.2;
+
+	private final double pixelsPerTriangle;
+	private final double hysteresis;
+
+	public LODPolicy() {
+		this(DEFAULT_PIXELS_PER_TRIANGLE, DEFAULT_HYSTERESIS);
+	}
+
+	public LODPolicy(final double pixelsPerTriangle, final double hysteresis) {
+		if (pixelsPerTriangle <= 0) throw new IllegalArgumentException(
+			"pixelsPerTriangle must be positive");
+		this.pixelsPerTriangle = pixelsPerTriangle;
+		this.hysteresis = hysteresis;
+	}
+
+	/**
+	 * Returns the index of the level to display.
+	 *
+	 * @param projectedSize the diameter of the mesh on the screen, in pixels.
+	 * @param triangles the number of triangles of each level, starting with the
+	 *          finest. Levels which are not available yet are indicated by a
+	 *          negative number.
+	 * @param current the currently displayed level.
+	 */
+	public int select(final double projectedSize, final int[] triangles,
+		final int current)
+	{
+		if (Double.isInfinite(projectedSize) || Double.isNaN(projectedSize)) return 0;
+		final double required = projectedSize * projectedSize / pixelsPerTriangle;
+		for (int i = triangles.length - 1; i > 0; i--) {
+			if (triangles[i] < 0) continue;
+			final double needed = i > current ? required * (1 + hysteresis) : required;
+			if (triangles[i] >= needed) return i;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the approximate diameter in pixels of a sphere with the given
+	 * radius, as seen from the given distance with a perspective projection.
+	 *
+	 * @param radius the radius of the bounding sphere.
+	 * @param distance the distance between the eye and the sphere center.
+	 * @param fieldOfView the horizontal field of view, in radians.
+	 * @param canvasWidth the width of the canvas, in pixels.
+	 * @return the projected size, or positive infinity if the eye is inside the
+	 *         sphere.
+	 */
+	public static double projectedSize(final double radius,
+		final double distance, final double fieldOfView, final int canvasWidth)
+	{
+		if (distance <= radius) return Double.POSITIVE_INFINITY;
+		final double halfWidth = distance * Math.tan(fieldOfView / 2);
+		return radius / halfWidth * canvasWidth;
+	}
+}
@@ -0,0 +1,726 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.scijava.java3d.CapabilityNotSetException;
+import org.scijava.java3d.GeometryArray;
+import org.scijava.vecmath.Color3f;
+import org.scijava.vecmath.Point3d;
+import org.scijava.vecmath.Point3f;
+
+/**
+ * Binary cache for the meshes of a mesh file, stored next to it, so that
+ * sessions can be re-opened without parsing the mesh file and without
+ * re-computing normals, bounds and volumes.
+ *
+ * All values are little-endian. The file starts with a 40 byte header: the
+ * magic bytes "3DVMESH\0", the version, the number of meshes, the length and
+ * modification time of the mesh file the cache was created from, and the size
+ * of the table which follows. For each mesh, the table holds the offset of
+ * its record and its name, so that single meshes can be read without touching
+ * the others.
+ *
+ * Each record consists of a fixed-size header (type, flags, block sizes,
+ * color, transparency, bounds, volume, center of mass and inertia tensor),
+ * followed by blocks of float coordinates, int indices, float normals and
+ * float colors. Each block starts at a multiple of 8 bytes and is read by
+ * memory mapping it and copying it in bulk.
+ *
+ * The same data can also be embedded in other files, see
+ * {@link #write(Map, FileChannel, long)}; the stored length and modification
+ * time are 0 then.
+ *
+ * Only {@link CustomTriangleMesh} and {@link CustomIndexedTriangleMesh} are
+ * supported. For triangle meshes, the coordinate block holds the distinct
+ * vertices and the index block refers to them, 3 indices per triangle; normals
+ * and colors are stored per index.
+ */
+public class MeshCache {
+
+	/** Appended to the path of a mesh file to obtain the path of its cache */
+	public static final String EXTENSION = ".meshcache";
+
+	private static final byte[] MAGIC =
+		{ '3', 'D', 'V', 'M', 'E', 'S', 'H', 0 };
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+	private static final int RECORD_HEADER_SIZE = 168;
+
+	private static final int TRIANGLES = 1;
+	private static final int INDEXED_TRIANGLES = 2;
+
+	private static final int SHADED = 1;
+	private static final int HAS_BOUNDS = 2;
+	private static final int HAS_PROPERTIES = 4;
+
+	/** Upper bound for the size of a single mapping */
+	private static final int MAX_CHUNK_SIZE = 1 << 30;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private MeshCache() {}
+
+	/**
+	 * Returns the cache file of the given mesh file.
+	 */
+	public static File getCacheFile(final String meshFile) {
+		return new File(meshFile + EXTENSION);
+	}
+
+	/**
+	 * Returns whether the given mesh can be stored in a cache.
+	 */
+	public static boolean isSupported(final CustomMesh cm) {
+		final Class<?> c = cm.getClass();
+		return c == CustomTriangleMesh.class ||
+			c == CustomIndexedTriangleMesh.class;
+	}
+
+	/**
+	 * Returns the names of the meshes in the cache of the given mesh file, or
+	 * null if there is no cache, or if it is out of date.
+	 */
+	public static List<String> getNames(final String meshFile)
+		throws IOException
+	{
+		final File src = new File(meshFile);
+		final File file = getCacheFile(meshFile);
+		if (!src.exists() || !file.exists()) return null;
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final Table table = readTable(raf.getChannel(), 0);
+			if (table == null || table.srcLength != src.length() ||
+				table.srcModified != src.lastModified()) return null;
+			return Arrays.asList(table.names);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the given meshes, which must have been saved to the given mesh
+	 * file before, to the cache of the mesh file.
+	 */
+	public static void save(final Map<String, CustomMesh> meshes,
+		final String meshFile) throws IOException
+	{
+		final File src = new File(meshFile);
+		if (!src.exists()) throw new IOException("No such file: " + meshFile);
+		final RandomAccessFile raf =
+			new RandomAccessFile(getCacheFile(meshFile), "rw");
+		try {
+			raf.setLength(0);
+			write(meshes, raf.getChannel(), 0, src.length(), src.lastModified());
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the given meshes in the cache format to the given channel,
+	 * starting at the given position, which must be a multiple of 8. All
+	 * offsets are relative to that position, so that the meshes can be
+	 * embedded in other files.
+	 *
+	 * @return the position after the written data.
+	 */
+	public static long write(final Map<String, CustomMesh> meshes,
+		final FileChannel channel, final long position) throws IOException
+	{
+		return write(meshes, channel, position, 0, 0);
+	}
+
+	/**
+	 * Returns a hash of the data which {@link #write(Map, FileChannel, long)}
+	 * writes for the given meshes, without writing it. Meshes with the same
+	 * hash can be assumed to be unchanged.
+	 */
+	public static long hash(final Map<String, CustomMesh> meshes)
+		throws IOException
+	{
+		final XXHash64 hash = new XXHash64();
+		final Output out = new Output(hash);
+		for (final String name : meshes.keySet()) {
+			out.putBytes(name.getBytes(UTF8));
+			out.putInt(0);
+			writeRecord(out, new Record(meshes.get(name)));
+		}
+		out.flush();
+		return hash.getValue();
+	}
+
+	private static long write(final Map<String, CustomMesh> meshes,
+		final FileChannel channel, final long base, final long srcLength,
+		final long srcModified) throws IOException
+	{
+		final String[] names = new String[meshes.size()];
+		final byte[][] nameBytes = new byte[names.length][];
+		meshes.keySet().toArray(names);
+		int tableSize = 0;
+		for (int i = 0; i < names.length; i++) {
+			nameBytes[i] = names[i].getBytes(UTF8);
+			tableSize += 12 + nameBytes[i].length;
+		}
+		final long[] offsets = new long[names.length];
+
+		// the records first, then header and table, once the offsets are known
+		final Output out =
+			new Output(channel, base + align(HEADER_SIZE + (long) tableSize));
+		for (int i = 0; i < names.length; i++) {
+			offsets[i] = out.position() - base;
+			writeRecord(out, new Record(meshes.get(names[i])));
+		}
+		out.flush();
+		final long end = out.position();
+
+		final Output head = new Output(channel, base);
+		head.putBytes(MAGIC);
+		head.putInt(VERSION);
+		head.putInt(names.length);
+		head.putLong(srcLength);
+		head.putLong(srcModified);
+		head.putInt(tableSize);
+		head.putInt(0);
+		for (int i = 0; i < names.length; i++) {
+			head.putLong(offsets[i]);
+			head.putInt(nameBytes[i].length);
+			head.putBytes(nameBytes[i]);
+		}
+		head.flush();
+		return end;
+	}
+
+	/**
+	 * Reads all meshes from the cache of the given mesh file. Returns null if
+	 * there is no cache, or if it is out of date.
+	 */
+	public static Map<String, CustomMesh> load(final String meshFile)
+		throws IOException
+	{
+		return load(meshFile, null);
+	}
+
+	/**
+	 * Reads the meshes with the given names from the cache of the given mesh
+	 * file; all meshes if <code>names</code> is null. Returns null if there is
+	 * no cache, if it is out of date, or if it does not contain all of the
+	 * requested meshes.
+	 */
+	public static Map<String, CustomMesh> load(final String meshFile,
+		final Collection<String> names) throws IOException
+	{
+		final File src = new File(meshFile);
+		final File file = getCacheFile(meshFile);
+		if (!src.exists() || !file.exists()) return null;
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final Table table = readTable(channel, 0);
+			if (table == null || table.srcLength != src.length() ||
+				table.srcModified != src.lastModified()) return null;
+			final Map<String, CustomMesh> meshes = read(channel, 0, table, names);
+			if (meshes == null) return null;
+			for (final Map.Entry<String, CustomMesh> e : meshes.entrySet()) {
+				final CustomMesh cm = e.getValue();
+				cm.loadedFromFile = meshFile;
+				cm.loadedFromName = e.getKey();
+			}
+			return meshes;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads the meshes with the given names, or all meshes if
+	 * <code>names</code> is null, from data in the cache format which starts at
+	 * the given position of the given channel. Returns null if there is no such
+	 * data, or if it does not contain all of the requested meshes.
+	 */
+	public static Map<String, CustomMesh> read(final FileChannel channel,
+		final long position, final Collection<String> names) throws IOException
+	{
+		final Table table = readTable(channel, position);
+		return table == null ? null : read(channel, position, table, names);
+	}
+
+	private static Map<String, CustomMesh> read(final FileChannel channel,
+		final long base, final Table table, final Collection<String> names)
+		throws IOException
+	{
+		if (names != null && !Arrays.asList(table.names).containsAll(names))
+			return null;
+		final Map<String, CustomMesh> meshes =
+			new LinkedHashMap<String, CustomMesh>();
+		for (int i = 0; i < table.names.length; i++) {
+			final String name = table.names[i];
+			if (names != null && !names.contains(name)) continue;
+			final CustomMesh cm = readRecord(channel, base + table.offsets[i]);
+			cm.changed = false;
+			meshes.put(name, cm);
+		}
+		return meshes;
+	}
+
+	private static class Table {
+
+		private final String[] names;
+		private final long[] offsets;
+		private long srcLength;
+		private long srcModified;
+
+		Table(final int n) {
+			names = new String[n];
+			offsets = new long[n];
+		}
+	}
+
+	private static Table readTable(final FileChannel channel, final long base)
+		throws IOException
+	{
+		if (channel.size() < base + HEADER_SIZE) return null;
+		final ByteBuffer header = read(channel, base, HEADER_SIZE);
+		for (int i = 0; i < MAGIC.length; i++)
+			if (header.get() != MAGIC[i]) return null;
+		if (header.getInt() != VERSION) return null;
+		final Table table = new Table(header.getInt());
+		table.srcLength = header.getLong();
+		table.srcModified = header.getLong();
+		final int tableSize = header.getInt();
+
+		final ByteBuffer buf = read(channel, base + HEADER_SIZE, tableSize);
+		for (int i = 0; i < table.names.length; i++) {
+			table.offsets[i] = buf.getLong();
+			final byte[] name = new byte[buf.getInt()];
+			buf.get(name);
+			table.names[i] = new String(name, UTF8);
+		}
+		return table;
+	}
+
+	/**
+	 * The data of a single mesh, as it is stored in the cache.
+	 */
+	private static class Record {
+
+		private int type;
+		private int flags;
+
+		private float[] coords;
+		private int nCoords;
+		private int[] indices;
+		private int nIndices;
+		private float[] normals;
+		private int nNormals;
+		private float[] colors;
+		private int nColors;
+
+		private Color3f color = CustomMesh.DEFAULT_COLOR;
+		private float transparency;
+
+		private final Point3f min = new Point3f();
+		private final Point3f max = new Point3f();
+
+		private double volume;
+		private final Point3d centerOfMass = new Point3d();
+		private double[][] inertia = new double[3][3];
+
+		Record() {}
+
+		Record(final CustomMesh cm) {
+			if (cm instanceof CustomIndexedTriangleMesh) fromIndexedMesh(
+				(CustomIndexedTriangleMesh) cm);
+			else if (cm instanceof CustomTriangleMesh) fromTriangleMesh(
+				(CustomTriangleMesh) cm);
+			else throw new IllegalArgumentException("Unsupported mesh type: " +
+				cm.getClass().getName());
+
+			if (cm.getColor() != null) color = cm.getColor();
+			transparency = cm.getTransparency();
+			if (cm.isShaded()) flags |= SHADED;
+			if (nCoords > 0) {
+				cm.calculateMinMaxCenterPoint(min, max, new Point3f());
+				flags |= HAS_BOUNDS;
+			}
+		}
+
+		private void fromTriangleMesh(final CustomTriangleMesh ctm) {
+			type = TRIANGLES;
+			@SuppressWarnings("unchecked")
+			final List<Point3f> mesh = ctm.getMesh();
+			nIndices = mesh == null ? 0 : mesh.size();
+
+			// meshes usually share Point3f instances between adjacent triangles
+			final IdentityHashMap<Point3f, Integer> vertexIndices =
+				new IdentityHashMap<Point3f, Integer>();
+			coords = new float[3 * nIndices];
+			indices = new int[nIndices];
+			for (int i = 0; i < nIndices; i++) {
+				final Point3f p = mesh.get(i);
+				Integer index = vertexIndices.get(p);
+				if (index == null) {
+					index = nCoords++;
+					vertexIndices.put(p, index);
+					coords[3 * index] = p.x;
+					coords[3 * index + 1] = p.y;
+					coords[3 * index + 2] = p.z;
+				}
+				indices[i] = index;
+			}
+
+			final GeometryArray ga = (GeometryArray) ctm.getGeometry();
+			if (ga != null && nIndices > 0) {
+				try {
+					if (ga.getValidVertexCount() == nIndices) {
+						normals = new float[3 * nIndices];
+						ga.getNormals(0, normals);
+						nNormals = nIndices;
+						if (ctm.getColor() == null) {
+							colors = new float[3 * nIndices];
+							ga.getColors(0, colors);
+							nColors = nIndices;
+						}
+					}
+				}
+				catch (final CapabilityNotSetException e) {
+					// normals are re-computed when loading
+					normals = colors = null;
+					nNormals = nColors = 0;
+				}
+			}
+
+			volume = ctm.getVolume();
+			ctm.getCenterOfMass(centerOfMass);
+			inertia = ctm.getInertiaTensor();
+			flags |= HAS_PROPERTIES;
+		}
+
+		private void fromIndexedMesh(final CustomIndexedTriangleMesh citm) {
+			type = INDEXED_TRIANGLES;
+			nCoords = citm.getVertexCount();
+			coords = new float[3 * nCoords];
+			final Point3f[] vertices = citm.getVertices();
+			for (int i = 0; i < nCoords; i++) {
+				coords[3 * i] = vertices[i].x;
+				coords[3 * i + 1] = vertices[i].y;
+				coords[3 * i + 2] = vertices[i].z;
+			}
+			indices = citm.getFaces();
+			nIndices = citm.nFaces;
+
+			final Color3f[] vertexColors = citm.getVertexColors();
+			if (citm.getColor() == null && vertexColors != null) {
+				nColors = nCoords;
+				colors = new float[3 * nColors];
+				for (int i = 0; i < nColors; i++) {
+					colors[3 * i] = vertexColors[i].x;
+					colors[3 * i + 1] = vertexColors[i].y;
+					colors[3 * i + 2] = vertexColors[i].z;
+				}
+			}
+		}
+	}
+
+	private static void writeRecord(final Output out, final Record r)
+		throws IOException
+	{
+		out.putInt(r.type);
+		out.putInt(r.flags);
+		out.putInt(r.nCoords);
+		out.putInt(r.nIndices);
+		out.putInt(r.nNormals);
+		out.putInt(r.nColors);
+		out.putFloat(r.color.x);
+		out.putFloat(r.color.y);
+		out.putFloat(r.color.z);
+		out.putFloat(r.transparency);
+		out.putFloat(r.min.x);
+		out.putFloat(r.min.y);
+		out.putFloat(r.min.z);
+		out.putFloat(r.max.x);
+		out.putFloat(r.max.y);
+		out.putFloat(r.max.z);
+		out.putDouble(r.volume);
+		out.putDouble(r.centerOfMass.x);
+		out.putDouble(r.centerOfMass.y);
+		out.putDouble(r.centerOfMass.z);
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 3; j++)
+				out.putDouble(r.inertia[i][j]);
+
+		out.align();
+		out.putFloats(r.coords, 3 * r.nCoords);
+		out.align();
+		out.putInts(r.indices, r.nIndices);
+		out.align();
+		out.putFloats(r.normals, 3 * r.nNormals);
+		out.align();
+		out.putFloats(r.colors, 3 * r.nColors);
+		out.align();
+	}
+
+	private static CustomMesh readRecord(final FileChannel channel,
+		final long offset) throws IOException
+	{
+		final ByteBuffer b = read(channel, offset, RECORD_HEADER_SIZE);
+		final Record r = new Record();
+		r.type = b.getInt();
+		r.flags = b.getInt();
+		r.nCoords = b.getInt();
+		r.nIndices = b.getInt();
+		r.nNormals = b.getInt();
+		r.nColors = b.getInt();
+		r.color = new Color3f(b.getFloat(), b.getFloat(), b.getFloat());
+		r.transparency = b.getFloat();
+		r.min.set(b.getFloat(), b.getFloat(), b.getFloat());
+		r.max.set(b.getFloat(), b.getFloat(), b.getFloat());
+		r.volume = b.getDouble();
+		r.centerOfMass.set(b.getDouble(), b.getDouble(), b.getDouble());
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 3; j++)
+				r.inertia[i][j] = b.getDouble();
+
+		long pos = align(offset + RECORD_HEADER_SIZE);
+		r.coords = readFloats(channel, pos, 3 * r.nCoords);
+		pos = align(pos + 12L * r.nCoords);
+		r.indices = readInts(channel, pos, r.nIndices);
+		pos = align(pos + 4L * r.nIndices);
+		r.normals = readFloats(channel, pos, 3 * r.nNormals);
+		pos = align(pos + 12L * r.nNormals);
+		r.colors = readFloats(channel, pos, 3 * r.nColors);
+
+		final Point3f[] vertices = new Point3f[r.nCoords];
+		for (int i = 0; i < r.nCoords; i++)
+			vertices[i] =
+				new Point3f(r.coords[3 * i], r.coords[3 * i + 1], r.coords[3 * i + 2]);
+		final Color3f[] colors = new Color3f[r.nColors];
+		for (int i = 0; i < r.nColors; i++)
+			colors[i] = new Color3f(r.colors[3 * i], r.colors[3 * i + 1],
+				r.colors[3 * i + 2]);
+
+		CustomMesh cm;
+		switch (r.type) {
+			case TRIANGLES:
+				cm = createTriangleMesh(r, vertices, colors);
+				break;
+			case INDEXED_TRIANGLES:
+				cm = new CustomIndexedTriangleMesh(vertices, r.indices, r.color,
+					r.transparency);
+				if (r.nColors > 0) cm.setColor(Arrays.asList(colors));
+				break;
+			default:
+				throw new IOException("Unsupported mesh type: " + r.type);
+		}
+		if ((r.flags & SHADED) == 0) cm.setShaded(false);
+		return cm;
+	}
+
+	private static CustomTriangleMesh createTriangleMesh(final Record r,
+		final Point3f[] vertices, final Color3f[] colors)
+	{
+		final List<Point3f> mesh = new ArrayList<Point3f>(r.nIndices);
+		for (int i = 0; i < r.nIndices; i++)
+			mesh.add(vertices[r.indices[i]]);
+
+		CustomTriangleMesh ctm;
+		if (r.nNormals == r.nIndices && r.nIndices > 0) {
+			final float[] coords = new float[3 * r.nIndices];
+			for (int i = 0; i < r.nIndices; i++)
+				System.arraycopy(r.coords, 3 * r.indices[i], coords, 3 * i, 3);
+			ctm = new CustomTriangleMesh(null, r.color, r.transparency);
+			ctm.setMesh(mesh, coords, r.normals, r.nColors > 0 ? r.colors : null);
+		}
+		else {
+			ctm = new CustomTriangleMesh(mesh, r.color, r.transparency);
+			if (r.nColors > 0) ctm.setColor(Arrays.asList(colors));
+		}
+
+		if ((r.flags & HAS_BOUNDS) != 0) ctm.setBounds(r.min, r.max);
+		if ((r.flags & HAS_PROPERTIES) != 0) ctm.setProperties(r.volume,
+			r.centerOfMass, r.inertia);
+		return ctm;
+	}
+
+	private static long align(final long pos) {
+		return (pos + 7) & ~7L;
+	}
+
+	private static ByteBuffer read(final FileChannel channel, final long pos,
+		final int length) throws IOException
+	{
+		final ByteBuffer b =
+			ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (b.hasRemaining())
+			if (channel.read(b, pos + b.position()) < 0) throw new IOException(
+				"Unexpected end of file");
+		b.flip();
+		return b;
+	}
+
+	private static float[] readFloats(final FileChannel channel, final long pos,
+		final int n) throws IOException
+	{
+		final float[] ret = new float[n];
+		for (int off = 0; off < n;) {
+			final int len = Math.min(n - off, MAX_CHUNK_SIZE / 4);
+			channel.map(FileChannel.MapMode.READ_ONLY, pos + 4L * off, 4L * len)
+				.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(ret, off, len);
+			off += len;
+		}
+		return ret;
+	}
+
+	private static int[] readInts(final FileChannel channel, final long pos,
+		final int n) throws IOException
+	{
+		final int[] ret = new int[n];
+		for (int off = 0; off < n;) {
+			final int len = Math.min(n - off, MAX_CHUNK_SIZE / 4);
+			channel.map(FileChannel.MapMode.READ_ONLY, pos + 4L * off, 4L * len)
+				.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(ret, off, len);
+			off += len;
+		}
+		return ret;
+	}
+
+	/**
+	 * Buffered, positional writing of little-endian values to a channel.
+	 */
+	private static class Output {
+
+		private final FileChannel channel;
+		private final XXHash64 hash;
+		private final ByteBuffer buffer =
+			ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		private long position;
+
+		Output(final FileChannel channel, final long position) {
+			this.channel = channel;
+			this.hash = null;
+			this.position = position;
+		}
+
+		/** Hashes the data instead of writing it */
+		Output(final XXHash64 hash) {
+			this.channel = null;
+			this.hash = hash;
+			this.position = 0;
+		}
+
+		long position() {
+			return position + buffer.position();
+		}
+
+		void putInt(final int v) throws IOException {
+			ensure(4);
+			buffer.putInt(v);
+		}
+
+		void putLong(final long v) throws IOException {
+			ensure(8);
+			buffer.putLong(v);
+		}
+
+		void putFloat(final float v) throws IOException {
+			ensure(4);
+			buffer.putFloat(v);
+		}
+
+		void putDouble(final double v) throws IOException {
+			ensure(8);
+			buffer.putDouble(v);
+		}
+
+		void putBytes(final byte[] b) throws IOException {
+			for (int off = 0; off < b.length;) {
+				ensure(1);
+				final int len = Math.min(b.length - off, buffer.remaining());
+				buffer.put(b, off, len);
+				off += len;
+			}
+		}
+
+		void putFloats(final float[] a, final int n) throws IOException {
+			for (int off = 0; off < n;) {
+				ensure(4);
+				final int len = Math.min(n - off, buffer.remaining() / 4);
+				buffer.asFloatBuffer().put(a, off, len);
+				buffer.position(buffer.position() + 4 * len);
+				off += len;
+			}
+		}
+
+		void putInts(final int[] a, final int n) throws IOException {
+			for (int off = 0; off < n;) {
+				ensure(4);
+				final int len = Math.min(n - off, buffer.remaining() / 4);
+				buffer.asIntBuffer().put(a, off, len);
+				buffer.position(buffer.position() + 4 * len);
+				off += len;
+			}
+		}
+
+		/** Pads with zeros up to the next multiple of 8 bytes */
+		void align() throws IOException {
+			final int pad = (int) (MeshCache.align(position()) - position());
+			ensure(pad);
+			for (int i = 0; i < pad; i++)
+				buffer.put((byte) 0);
+		}
+
+		private void ensure(final int n) throws IOException {
+			if (buffer.remaining() < n) flush();
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			if (hash != null) {
+				position += buffer.remaining();
+				hash.update(buffer);
+			}
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			buffer.clear();
+		}
+	}
+}
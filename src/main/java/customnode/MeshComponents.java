@@ -0,0 +1,365 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.scijava.vecmath.Point3f;
+
+/**
+ * Splits a triangle mesh into its connected components, using a union-find
+ * structure over welded vertex indices. Runs in near-linear time, optionally
+ * on several threads.
+ *
+ * Components are numbered in the order in which they first appear in the
+ * mesh. The triangles of each component are available as a range of
+ * triangle indices, so that no coordinates need to be copied:
+ * 
+ * <pre>
+ * for (int i = getStart(c); i &lt; getEnd(c); i++) {
+ * 	int t = getTriangle(i);
+ * 	// vertices 3 * t, 3 * t + 1 and 3 * t + 2 belong to component c
+ * }
+ * </pre>
+ */
+public class MeshComponents {
+
+	/** Meshes with fewer triangles than this are labelled on a single thread */
+	private static final int MIN_TRIANGLES_PER_THREAD = 100000;
+
+	private final int nTriangles;
+	/** For each triangle, the index of its component */
+	private final int[] componentOf;
+	/** Triangle indices, sorted by component */
+	private final int[] triangles;
+	/** Component c consists of triangles[start[c]] to triangles[start[c + 1] - 1] */
+	private final int[] start;
+
+	/**
+	 * Labels the components of a triangle soup, where each 3 consecutive points
+	 * form a triangle. Triangles are connected if they share a vertex position.
+	 */
+	public MeshComponents(final List<Point3f> mesh) {
+		this(mesh, Runtime.getRuntime().availableProcessors());
+	}
+
+	public MeshComponents(final List<Point3f> mesh, final int nThreads) {
+		this(weld(mesh), -1, nThreads);
+	}
+
+	/**
+	 * Labels the components of an indexed mesh.
+	 * 
+	 * @param faces vertex indices, where each 3 consecutive indices form a
+	 *          triangle. Triangles whose first index is negative are ignored;
+	 *          they are put into a component of their own.
+	 * @param nVertices the number of vertices, or -1 to determine it from the
+	 *          faces.
+	 * @param nThreads the maximum number of threads to use.
+	 */
+	public MeshComponents(final int[] faces, int nVertices, final int nThreads) {
+		nTriangles = faces.length / 3;
+		if (nVertices < 0) {
+			nVertices = 0;
+			for (final int f : faces)
+				nVertices = Math.max(nVertices, f + 1);
+		}
+
+		final int[] root = nThreads > 1 && nTriangles >= 2 * MIN_TRIANGLES_PER_THREAD
+			? labelParallel(faces, nVertices, Math.min(nThreads, nTriangles /
+				MIN_TRIANGLES_PER_THREAD)) : labelSerial(faces, nVertices);
+
+		// number the components in the order of their first triangle
+		final int[] componentOfRoot = new int[nVertices];
+		Arrays.fill(componentOfRoot, -1);
+		componentOf = new int[nTriangles];
+		int nComponents = 0;
+		for (int t = 0; t < nTriangles; t++) {
+			final int v = faces[3 * t];
+			if (v < 0) {
+				componentOf[t] = -1;
+				continue;
+			}
+			final int r = root[v];
+			if (componentOfRoot[r] == -1) componentOfRoot[r] = nComponents++;
+			componentOf[t] = componentOfRoot[r];
+		}
+
+		// counting sort of the triangles by component
+		start = new int[nComponents + 1];
+		for (int t = 0; t < nTriangles; t++)
+			if (componentOf[t] >= 0) start[componentOf[t] + 1]++;
+		for (int c = 0; c < nComponents; c++)
+			start[c + 1] += start[c];
+		triangles = new int[start[nComponents]];
+		final int[] fill = Arrays.copyOf(start, nComponents);
+		for (int t = 0; t < nTriangles; t++)
+			if (componentOf[t] >= 0) triangles[fill[componentOf[t]]++] = t;
+	}
+
+	private static int[] weld(final List<Point3f> mesh) {
+		return VertexWelder.weld(mesh, new VertexWelder(mesh.size() / 4));
+	}
+
+	/**
+	 * Returns for each vertex the root of its set. Roots are always the smallest
+	 * index of their set, so that the result does not depend on the order of
+	 * the unions.
+	 */
+	private static int[] labelSerial(final int[] faces, final int nVertices) {
+		final int[] parent = new int[nVertices];
+		for (int v = 0; v < nVertices; v++)
+			parent[v] = v;
+		for (int i = 0; i + 2 < faces.length; i += 3) {
+			if (faces[i] < 0) continue;
+			union(parent, faces[i], faces[i + 1]);
+			union(parent, faces[i], faces[i + 2]);
+		}
+		for (int v = 0; v < nVertices; v++)
+			parent[v] = find(parent, v);
+		return parent;
+	}
+
+	private static int find(final int[] parent, int v) {
+		while (parent[v] != v) {
+			// path halving
+			parent[v] = parent[parent[v]];
+			v = parent[v];
+		}
+		return v;
+	}
+
+	private static void union(final int[] parent, final int a, final int b) {
+		int ra = find(parent, a);
+		int rb = find(parent, b);
+		if (ra == rb) return;
+		// link the larger root below the smaller one
+		if (ra < rb) {
+			final int tmp = ra;
+			ra = rb;
+			rb = tmp;
+		}
+		parent[ra] = rb;
+	}
+
+	/**
+	 * Same as labelSerial(), but with a lock-free union-find, where roots are
+	 * linked with compare-and-set.
+	 */
+	private static int[] labelParallel(final int[] faces, final int nVertices,
+		final int nThreads)
+	{
+		final AtomicIntegerArray parent = new AtomicIntegerArray(nVertices);
+		for (int v = 0; v < nVertices; v++)
+			parent.lazySet(v, v);
+
+		final int nTri = faces.length / 3;
+		final Thread[] threads = new Thread[nThreads];
+		for (int i = 0; i < nThreads; i++) {
+			final int from = (int) ((long) i * nTri / nThreads);
+			final int to = (int) ((long) (i + 1) * nTri / nThreads);
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for (int t = from; t < to; t++) {
+						final int f = 3 * t;
+						if (faces[f] < 0) continue;
+						union(parent, faces[f], faces[f + 1]);
+						union(parent, faces[f], faces[f + 2]);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		boolean interrupted = false;
+		for (final Thread t : threads) {
+			while (t.isAlive()) {
+				try {
+					t.join();
+				}
+				catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+
+		final int[] root = new int[nVertices];
+		for (int v = 0; v < nVertices; v++)
+			root[v] = find(parent, v);
+		return root;
+	}
+
+	private static int find(final AtomicIntegerArray parent, int v) {
+		int p = parent.get(v);
+		while (p != v) {
+			final int gp = parent.get(p);
+			// path halving; it does not matter if this fails
+			if (gp != p) parent.compareAndSet(v, p, gp);
+			v = gp;
+			p = parent.get(v);
+		}
+		return v;
+	}
+
+	private static void union(final AtomicIntegerArray parent, final int a,
+		final int b)
+	{
+		int ra = a, rb = b;
+		while (true) {
+			ra = find(parent, ra);
+			rb = find(parent, rb);
+			if (ra == rb) return;
+			if (ra < rb) {
+				final int tmp = ra;
+				ra = rb;
+				rb = tmp;
+			}
+			// only succeeds if ra is still a root
+			if (parent.compareAndSet(ra, ra, rb)) return;
+		}
+	}
+
+	/**
+	 * Returns the number of components.
+	 */
+	public int getComponentCount() {
+		return start.length - 1;
+	}
+
+	/**
+	 * Returns the component of the given triangle, or -1 if the triangle was
+	 * ignored.
+	 */
+	public int getComponent(final int triangle) {
+		return componentOf[triangle];
+	}
+
+	/**
+	 * Returns the number of triangles of the given component.
+	 */
+	public int getTriangleCount(final int component) {
+		return start[component + 1] - start[component];
+	}
+
+	/**
+	 * Returns the first position of the given component in the sorted triangle
+	 * indices; see {@link #getTriangle(int)}.
+	 */
+	public int getStart(final int component) {
+		return start[component];
+	}
+
+	/**
+	 * Returns the position after the last triangle of the given component.
+	 */
+	public int getEnd(final int component) {
+		return start[component + 1];
+	}
+
+	/**
+	 * Returns the triangle index at the given position of the triangle indices
+	 * sorted by component.
+	 */
+	public int getTriangle(final int position) {
+		return triangles[position];
+	}
+
+	/**
+	 * Returns the index of the component with the most triangles, or -1 if
+	 * there are no components.
+	 */
+	public int getLargestComponent() {
+		int best = -1, max = 0;
+		for (int c = 0; c < getComponentCount(); c++) {
+			if (getTriangleCount(c) > max) {
+				max = getTriangleCount(c);
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the indices of all components with at least
+	 * <code>minTriangles</code> triangles.
+	 */
+	public int[] getComponentsWithMinTriangles(final int minTriangles) {
+		int n = 0;
+		for (int c = 0; c < getComponentCount(); c++)
+			if (getTriangleCount(c) >= minTriangles) n++;
+		final int[] ret = new int[n];
+		n = 0;
+		for (int c = 0; c < getComponentCount(); c++)
+			if (getTriangleCount(c) >= minTriangles) ret[n++] = c;
+		return ret;
+	}
+
+	/**
+	 * Returns a triangle list holding the given components of the specified
+	 * mesh, which must be the triangle soup these components were computed
+	 * from. The points are not copied.
+	 */
+	public List<Point3f> getMesh(final List<Point3f> mesh,
+		final int... components)
+	{
+		int n = 0;
+		for (final int c : components)
+			n += getTriangleCount(c);
+		final List<Point3f> ret = new ArrayList<Point3f>(3 * n);
+		for (final int c : components) {
+			for (int i = start[c]; i < start[c + 1]; i++) {
+				final int t = triangles[i];
+				ret.add(mesh.get(3 * t));
+				ret.add(mesh.get(3 * t + 1));
+				ret.add(mesh.get(3 * t + 2));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns those triangles of the given mesh which belong to components with
+	 * at least <code>minTriangles</code> triangles, in their original order.
+	 * Useful to remove speckle from noisy surfaces. The points are not copied.
+	 */
+	public static List<Point3f> removeSmallComponents(final List<Point3f> mesh,
+		final int minTriangles)
+	{
+		final MeshComponents mc = new MeshComponents(mesh);
+		final List<Point3f> ret = new ArrayList<Point3f>(mesh.size());
+		for (int t = 0; t < mc.nTriangles; t++) {
+			final int c = mc.componentOf[t];
+			if (c < 0 || mc.getTriangleCount(c) < minTriangles) continue;
+			ret.add(mesh.get(3 * t));
+			ret.add(mesh.get(3 * t + 1));
+			ret.add(mesh.get(3 * t + 2));
+		}
+		return ret;
+	}
+}
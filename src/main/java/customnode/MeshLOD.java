@@ -0,0 +1,271 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.scijava.java3d.BranchGroup;
+import org.scijava.java3d.Canvas3D;
+import org.scijava.java3d.Group;
+import org.scijava.java3d.Node;
+import org.scijava.java3d.Switch;
+import org.scijava.java3d.Transform3D;
+import org.scijava.java3d.View;
+import org.scijava.vecmath.Color3f;
+import org.scijava.vecmath.Point3d;
+import org.scijava.vecmath.Point3f;
+
+/**
+ * A Switch which holds a triangle mesh together with coarser versions of it.
+ * The coarser levels are computed in the background by
+ * {@link VertexClustering}, and the level to display is chosen by a
+ * {@link LODPolicy} whenever the view changes.
+ *
+ * Child 0 is always the original mesh; child i holds level i, which may still
+ * be empty while it is being computed.
+ */
+public class MeshLOD extends Switch {
+
+	/** The default fractions of triangles kept at each level. */
+	public static final float[] DEFAULT_FRACTIONS = { 1f, 0.25f, 0.06f };
+
+	/** Meshes with fewer triangles than this are not simplified. */
+	public static final int MIN_TRIANGLES = 50000;
+
+	/**
+	 * Estimated number of bytes per vertex of a simplified level: coordinates,
+	 * colors and normals in the geometry, plus the point list.
+	 */
+	public static final int BYTES_PER_VERTEX = 48;
+
+	private static final ExecutorService generator = Executors
+		.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "LOD generator");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+
+	private final CustomTriangleMesh mesh;
+	private final float[] fractions;
+	private final LODPolicy policy;
+
+	private final int[] triangles;
+	private final CustomTriangleMesh[] levels;
+	private int sourceModCount;
+	private final Point3f center = new Point3f();
+	private float radius;
+	private int current = 0;
+	private int generation = 0;
+
+	public MeshLOD(final CustomTriangleMesh mesh) {
+		this(mesh, DEFAULT_FRACTIONS, new LODPolicy());
+	}
+
+	public MeshLOD(final CustomTriangleMesh mesh, final float[] fractions,
+		final LODPolicy policy)
+	{
+		this.mesh = mesh;
+		this.fractions = fractions;
+		this.policy = policy;
+		this.triangles = new int[fractions.length];
+		this.levels = new CustomTriangleMesh[fractions.length];
+		setCapability(Switch.ALLOW_SWITCH_READ);
+		setCapability(Switch.ALLOW_SWITCH_WRITE);
+		setCapability(Group.ALLOW_CHILDREN_READ);
+		setCapability(Group.ALLOW_CHILDREN_WRITE);
+		setCapability(Group.ALLOW_CHILDREN_EXTEND);
+		setCapability(Node.ALLOW_LOCAL_TO_VWORLD_READ);
+		addChild(mesh);
+		setWhichChild(0);
+		update();
+	}
+
+	public CustomTriangleMesh getMesh() {
+		return mesh;
+	}
+
+	/**
+	 * Returns the number of levels which are currently available, including
+	 * the original mesh.
+	 */
+	public synchronized int getAvailableLevels() {
+		int n = 0;
+		for (final int t : triangles)
+			if (t >= 0) n++;
+		return n;
+	}
+
+	/**
+	 * Returns the currently displayed level.
+	 */
+	public synchronized int getCurrentLevel() {
+		return current;
+	}
+
+	/**
+	 * Returns the estimated memory, in bytes, used by the simplified levels.
+	 */
+	public synchronized long getMemorySize() {
+		long bytes = 0;
+		for (int i = 1; i < triangles.length; i++)
+			if (triangles[i] > 0) bytes += 3L * triangles[i] * BYTES_PER_VERTEX;
+		return bytes;
+	}
+
+	/**
+	 * Discards the simplified levels and starts re-computing them in the
+	 * background. Changes of the original mesh are also detected automatically
+	 * in eyePtChanged(), via its modification count.
+	 */
+	public synchronized void update() {
+		generation++;
+		removeLevels();
+		sourceModCount = mesh.getModificationCount();
+
+		@SuppressWarnings("unchecked")
+		final List<Point3f> list = mesh.getMesh();
+		if (list == null) return;
+		triangles[0] = list.size() / 3;
+		mesh.calculateMinMaxCenterPoint(new Point3f(), new Point3f(), center);
+		radius = 0;
+		if (triangles[0] < MIN_TRIANGLES || fractions.length < 2) return;
+
+		final float[] coords = new float[9 * triangles[0]];
+		for (int i = 0, j = 0; i < coords.length / 3; i++) {
+			final Point3f p = list.get(i);
+			coords[j++] = p.x;
+			coords[j++] = p.y;
+			coords[j++] = p.z;
+			radius = Math.max(radius, p.distance(center));
+		}
+
+		final int gen = generation;
+		generator.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				for (int l = 1; l < fractions.length; l++) {
+					if (!isCurrent(gen)) return;
+					final List<Point3f> simplified =
+						VertexClustering.simplify(coords, fractions[l]);
+					addLevel(gen, l, simplified);
+				}
+			}
+		});
+	}
+
+	private synchronized boolean isCurrent(final int gen) {
+		return gen == generation;
+	}
+
+	private synchronized void addLevel(final int gen, final int l,
+		final List<Point3f> simplified)
+	{
+		if (gen != generation) return;
+		final BranchGroup bg = new BranchGroup();
+		bg.setCapability(BranchGroup.ALLOW_DETACH);
+		if (simplified.size() >= 3) {
+			final CustomTriangleMesh level =
+				new CustomTriangleMesh(simplified, mesh.getColor(), mesh
+					.getTransparency());
+			level.setAppearance(mesh.getAppearance());
+			bg.addChild(level);
+			levels[l] = level;
+			triangles[l] = simplified.size() / 3;
+		}
+		addChild(bg);
+	}
+
+	private void removeLevels() {
+		setWhichChild(0);
+		current = 0;
+		while (numChildren() > 1)
+			removeChild(numChildren() - 1);
+		for (int l = 1; l < levels.length; l++) {
+			levels[l] = null;
+			triangles[l] = -1;
+		}
+	}
+
+	/**
+	 * Sets the color of the original mesh and of all simplified levels.
+	 */
+	public synchronized void setColor(final Color3f color) {
+		mesh.setColor(color);
+		for (int l = 1; l < levels.length; l++)
+			if (levels[l] != null) levels[l].setColor(color);
+	}
+
+	/**
+	 * Discards the simplified levels, without re-computing them.
+	 */
+	public synchronized void clearLevels() {
+		generation++;
+		removeLevels();
+	}
+
+	private final Transform3D tmp = new Transform3D();
+	private final Point3d eyePt = new Point3d();
+
+	/**
+	 * Selects the level to display, based on the projected size of the mesh in
+	 * the given view.
+	 */
+	public synchronized void eyePtChanged(final View view) {
+		if (!isLive()) return;
+		if (mesh.getModificationCount() != sourceModCount) update();
+
+		int l = 0;
+		if (mesh.getColor() != null && view.getProjectionPolicy() ==
+			View.PERSPECTIVE_PROJECTION)
+		{
+			final Canvas3D canvas = view.getCanvas3D(0);
+			canvas.getCenterEyeInImagePlate(eyePt);
+			canvas.getImagePlateToVworld(tmp);
+			tmp.transform(eyePt);
+			getLocalToVworld(tmp);
+			// the local to vworld transform might include a scale
+			final double scale = tmp.getScale();
+			tmp.invert();
+			tmp.transform(eyePt);
+			final double distance = eyePt.distance(new Point3d(center));
+			final double size =
+				LODPolicy.projectedSize(radius * scale, distance * scale, view
+					.getFieldOfView(), canvas.getWidth());
+			l = policy.select(size, triangles, current);
+		}
+		if (l != current) {
+			current = l;
+			setWhichChild(l);
+		}
+	}
+}
@@ -31,6 +31,7 @@ public class MeshLoader {
 		if (downCased.endsWith(".obj")) return loadWavefront(file);
 		if (downCased.endsWith(".dxf")) return loadDXF(file);
 		if (downCased.endsWith(".stl")) return loadSTL(file);
+		if (downCased.endsWith(".ply")) return loadPLY(file);
 		return null;
 	}
 
@@ -57,4 +58,14 @@ public class MeshLoader {
 		}
 		return null;
 	}
+
+	public static Map<String, CustomMesh> loadPLY(final String file) {
+		try {
+			return PLYLoader.load(file);
+		}
+		catch (final Exception e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
 }
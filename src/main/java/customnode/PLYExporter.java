@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import org.scijava.java3d.GeometryArray;
+import org.scijava.vecmath.Color3f;
+import org.scijava.vecmath.Point3f;
+
+/**
+ * Writes indexed triangle meshes as binary little-endian PLY files, with float
+ * x, y, z vertex coordinates, optional uchar red, green, blue vertex colors,
+ * and faces as lists of (uchar count, int indices).
+ */
+public class PLYExporter {
+
+	private PLYExporter() {}
+
+	/**
+	 * Saves the given mesh with its vertex colors.
+	 */
+	public static void save(final CustomIndexedTriangleMesh mesh,
+		final String file) throws IOException
+	{
+		final Point3f[] vertices = mesh.getVertices();
+		final int nVertices = mesh.getVertexCount();
+		final float[] coords = new float[3 * nVertices];
+		for (int i = 0; i < nVertices; i++) {
+			coords[3 * i] = vertices[i].x;
+			coords[3 * i + 1] = vertices[i].y;
+			coords[3 * i + 2] = vertices[i].z;
+		}
+		final byte[] rgb = toBytes(mesh.getVertexColors(), nVertices);
+		final int[] faces = mesh.getFaces();
+		write(new File(file), coords, nVertices, faces, faces.length, rgb);
+	}
+
+	/**
+	 * Converts the given colors to r, g, b bytes; returns null if
+	 * <code>colors</code> is null.
+	 */
+	public static byte[] toBytes(final Color3f[] colors, final int n) {
+		if (colors == null) return null;
+		final byte[] rgb = new byte[3 * n];
+		for (int i = 0; i < n; i++) {
+			final Color3f c = colors[i] == null ? CustomMesh.DEFAULT_COLOR : colors[i];
+			rgb[3 * i] = toByte(c.x);
+			rgb[3 * i + 1] = toByte(c.y);
+			rgb[3 * i + 2] = toByte(c.z);
+		}
+		return rgb;
+	}
+
+	private static byte toByte(final float f) {
+		return (byte) Math.round(Math.min(1, Math.max(0, f)) * 255);
+	}
+
+	/**
+	 * Returns the vertex colors of the given (non-indexed) mesh, as one color
+	 * per entry in its mesh list.
+	 */
+	public static Color3f[] getVertexColors(final CustomMesh mesh) {
+		final List<Point3f> points = mesh.getMesh();
+		final Color3f[] colors = new Color3f[points.size()];
+		final Color3f color = mesh.getColor();
+		final GeometryArray ga = (GeometryArray) mesh.getGeometry();
+		if (color == null && ga != null &&
+			ga.getValidVertexCount() == colors.length)
+		{
+			for (int i = 0; i < colors.length; i++)
+				colors[i] = new Color3f();
+			ga.getColors(0, colors);
+		}
+		else {
+			for (int i = 0; i < colors.length; i++)
+				colors[i] = color == null ? CustomMesh.DEFAULT_COLOR : color;
+		}
+		return colors;
+	}
+
+	/**
+	 * Writes a binary PLY file.
+	 * 
+	 * @param coords x, y, z coordinates of the vertices
+	 * @param nVertices the number of vertices
+	 * @param faces vertex indices, 3 per triangle
+	 * @param nIndices the number of valid entries in <code>faces</code>
+	 * @param rgb r, g, b colors of the vertices, or null
+	 */
+	public static void write(final WritableByteChannel out,
+		final float[] coords, final int nVertices, final int[] faces,
+		final int nIndices, final byte[] rgb) throws IOException
+	{
+		final StringBuilder header = new StringBuilder();
+		header.append("ply\n");
+		header.append("format binary_little_endian 1.0\n");
+		header.append("comment Created by ImageJ 3D Viewer\n");
+		header.append("element vertex ").append(nVertices).append('\n');
+		header.append("property float x\n");
+		header.append("property float y\n");
+		header.append("property float z\n");
+		if (rgb != null) {
+			header.append("property uchar red\n");
+			header.append("property uchar green\n");
+			header.append("property uchar blue\n");
+		}
+		header.append("element face ").append(nIndices / 3).append('\n');
+		header.append("property list uchar int vertex_indices\n");
+		header.append("end_header\n");
+
+		final ByteBuffer bb =
+			ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < header.length(); i++)
+			bb.put((byte) header.charAt(i));
+
+		for (int v = 0; v < nVertices; v++) {
+			if (bb.remaining() < 15) flush(out, bb);
+			bb.putFloat(coords[3 * v]);
+			bb.putFloat(coords[3 * v + 1]);
+			bb.putFloat(coords[3 * v + 2]);
+			if (rgb != null) bb.put(rgb, 3 * v, 3);
+		}
+		for (int f = 0; f + 2 < nIndices; f += 3) {
+			if (bb.remaining() < 13) flush(out, bb);
+			bb.put((byte) 3);
+			bb.putInt(faces[f]);
+			bb.putInt(faces[f + 1]);
+			bb.putInt(faces[f + 2]);
+		}
+		flush(out, bb);
+	}
+
+	private static void flush(final WritableByteChannel out,
+		final ByteBuffer bb) throws IOException
+	{
+		bb.flip();
+		while (bb.hasRemaining())
+			out.write(bb);
+		bb.clear();
+	}
+
+	/** Convenience method to save to a file. */
+	public static void write(final File file, final float[] coords,
+		final int nVertices, final int[] faces, final int nIndices,
+		final byte[] rgb) throws IOException
+	{
+		final FileChannel out = new FileOutputStream(file).getChannel();
+		try {
+			write(out, coords, nVertices, faces, nIndices, rgb);
+		}
+		finally {
+			out.close();
+		}
+	}
+}
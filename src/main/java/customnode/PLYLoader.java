@@ -0,0 +1,339 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.scijava.vecmath.Color3f;
+import org.scijava.vecmath.Point3f;
+
+/**
+ * Loads binary PLY files (little or big endian) as
+ * <code>CustomIndexedTriangleMesh</code>es. The x, y and z vertex properties
+ * and, if present, the red, green and blue vertex properties are read, with
+ * integer colors scaled by the range of their type; faces with more than 3
+ * vertices are split into triangle fans. All other elements and properties
+ * are skipped.
+ */
+public class PLYLoader {
+
+	/**
+	 * Load the specified ply file and returns the result as a hash map, mapping
+	 * the file name to the corresponding <code>CustomMesh</code>.
+	 */
+	public static Map<String, CustomMesh> load(final String plyfile)
+		throws IOException
+	{
+		final File f = new File(plyfile);
+		final CustomIndexedTriangleMesh cm = new PLYLoader(f).read();
+		final HashMap<String, CustomMesh> meshes =
+			new HashMap<String, CustomMesh>();
+		if (cm == null) return meshes;
+		cm.loadedFromFile = plyfile;
+		cm.loadedFromName = f.getName();
+		cm.changed = false;
+		meshes.put(f.getName(), cm);
+		return meshes;
+	}
+
+	private static final int CHAR = 0, UCHAR = 1, SHORT = 2, USHORT = 3,
+			INT = 4, UINT = 5, FLOAT = 6, DOUBLE = 7;
+	private static final int[] SIZE = { 1, 1, 2, 2, 4, 4, 4, 8 };
+	/* The value of full intensity of a color property of each type */
+	private static final double[] FULL =
+		{ 127, 255, 32767, 65535, Integer.MAX_VALUE, 4294967295.0, 1, 1 };
+
+	private static class Property {
+
+		final String name;
+		final int type;
+		/** The type of the count of a list property, or -1 */
+		final int countType;
+
+		Property(final String name, final int type, final int countType) {
+			this.name = name;
+			this.type = type;
+			this.countType = countType;
+		}
+	}
+
+	private static class Element {
+
+		final String name;
+		final int count;
+		final List<Property> properties = new ArrayList<Property>();
+
+		Element(final String name, final int count) {
+			this.name = name;
+			this.count = count;
+		}
+
+		/** Returns the size of one record, or -1 if it contains lists */
+		int getFixedSize() {
+			int size = 0;
+			for (final Property p : properties) {
+				if (p.countType >= 0) return -1;
+				size += SIZE[p.type];
+			}
+			return size;
+		}
+	}
+
+	private final File file;
+	private final ByteBuffer buffer =
+		ByteBuffer.allocateDirect(1 << 20);
+	private FileChannel channel;
+
+	private PLYLoader(final File file) {
+		this.file = file;
+	}
+
+	private CustomIndexedTriangleMesh read() throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			channel = raf.getChannel();
+			buffer.limit(0);
+			return readMesh();
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private CustomIndexedTriangleMesh readMesh() throws IOException {
+		if (!"ply".equals(readLine())) throw new IOException(file +
+			" is not a PLY file");
+
+		final List<Element> elements = new ArrayList<Element>();
+		String line;
+		while (!"end_header".equals(line = readLine())) {
+			if (line == null) throw new IOException("Unexpected end of header");
+			final String[] sp = line.trim().split("\\s+");
+			if (sp[0].equals("format")) {
+				if (sp[1].equals("binary_little_endian")) buffer
+					.order(ByteOrder.LITTLE_ENDIAN);
+				else if (sp[1].equals("binary_big_endian")) buffer
+					.order(ByteOrder.BIG_ENDIAN);
+				else throw new IOException("Unsupported PLY format: " + sp[1]);
+			}
+			else if (sp[0].equals("element")) {
+				elements.add(new Element(sp[1], Integer.parseInt(sp[2])));
+			}
+			else if (sp[0].equals("property")) {
+				if (elements.isEmpty()) throw new IOException(
+					"Property outside of element: " + line);
+				final List<Property> props =
+					elements.get(elements.size() - 1).properties;
+				if (sp[1].equals("list")) props.add(new Property(sp[4], type(sp[3]),
+					type(sp[2])));
+				else props.add(new Property(sp[2], type(sp[1]), -1));
+			}
+		}
+
+		float[] coords = null;
+		float[] rgb = null;
+		int nVertices = 0;
+		int[] faces = null;
+		int nIndices = 0;
+		for (final Element e : elements) {
+			if (e.name.equals("vertex")) {
+				nVertices = e.count;
+				coords = new float[3 * nVertices];
+				final int[] target = new int[e.properties.size()];
+				boolean hasColor = false;
+				for (int p = 0; p < target.length; p++) {
+					final String name = e.properties.get(p).name;
+					target[p] =
+						Arrays.asList("x", "y", "z", "red", "green", "blue").indexOf(name);
+					if (target[p] >= 3) hasColor = true;
+				}
+				if (hasColor) rgb = new float[3 * nVertices];
+				final int recordSize = e.getFixedSize();
+				for (int v = 0; v < nVertices; v++) {
+					if (recordSize > 0) ensure(recordSize);
+					for (int p = 0; p < target.length; p++) {
+						final Property prop = e.properties.get(p);
+						if (prop.countType >= 0) {
+							skipList(prop);
+							continue;
+						}
+						final double value =
+							recordSize > 0 ? get(prop.type) : readValue(prop.type);
+						if (target[p] < 0) continue;
+						if (target[p] < 3) coords[3 * v + target[p]] = (float) value;
+						else rgb[3 * v + target[p] - 3] =
+							(float) (value / FULL[prop.type]);
+					}
+				}
+			}
+			else if (e.name.equals("face")) {
+				faces = new int[3 * e.count];
+				for (int f = 0; f < e.count; f++) {
+					for (final Property prop : e.properties) {
+						if (prop.countType < 0) {
+							readValue(prop.type);
+							continue;
+						}
+						if (!prop.name.equals("vertex_indices") &&
+							!prop.name.equals("vertex_index"))
+						{
+							skipList(prop);
+							continue;
+						}
+						final int n = (int) readValue(prop.countType);
+						if (n == 0) continue;
+						final boolean buffered = n * SIZE[prop.type] <= buffer.capacity();
+						if (buffered) ensure(n * SIZE[prop.type]);
+						final int first = (int) read(prop.type, buffered);
+						int prev = n > 1 ? (int) read(prop.type, buffered) : first;
+						for (int i = 2; i < n; i++) {
+							final int next = (int) read(prop.type, buffered);
+							if (nIndices + 3 > faces.length) faces =
+								Arrays.copyOf(faces, 2 * faces.length + 3);
+							faces[nIndices++] = first;
+							faces[nIndices++] = prev;
+							faces[nIndices++] = next;
+							prev = next;
+						}
+					}
+				}
+			}
+			else {
+				for (int i = 0; i < e.count; i++)
+					for (final Property prop : e.properties) {
+						if (prop.countType < 0) readValue(prop.type);
+						else skipList(prop);
+					}
+			}
+		}
+
+		if (coords == null || faces == null || nIndices == 0) return null;
+		for (int i = 0; i < nIndices; i++)
+			if (faces[i] < 0 || faces[i] >= nVertices) throw new IOException(
+				"Invalid vertex index " + faces[i]);
+		if (nIndices != faces.length) faces = Arrays.copyOf(faces, nIndices);
+
+		final Point3f[] vertices = new Point3f[nVertices];
+		for (int v = 0; v < nVertices; v++)
+			vertices[v] =
+				new Point3f(coords[3 * v], coords[3 * v + 1], coords[3 * v + 2]);
+		final CustomIndexedTriangleMesh cm =
+			new CustomIndexedTriangleMesh(vertices, faces);
+		if (rgb != null) {
+			final List<Color3f> colors = new ArrayList<Color3f>(nVertices);
+			for (int v = 0; v < nVertices; v++)
+				colors.add(new Color3f(rgb[3 * v], rgb[3 * v + 1], rgb[3 * v + 2]));
+			cm.setColor(colors);
+		}
+		return cm;
+	}
+
+	private static int type(final String name) throws IOException {
+		if (name.equals("char") || name.equals("int8")) return CHAR;
+		if (name.equals("uchar") || name.equals("uint8")) return UCHAR;
+		if (name.equals("short") || name.equals("int16")) return SHORT;
+		if (name.equals("ushort") || name.equals("uint16")) return USHORT;
+		if (name.equals("int") || name.equals("int32")) return INT;
+		if (name.equals("uint") || name.equals("uint32")) return UINT;
+		if (name.equals("float") || name.equals("float32")) return FLOAT;
+		if (name.equals("double") || name.equals("float64")) return DOUBLE;
+		throw new IOException("Unknown PLY type: " + name);
+	}
+
+	/** Makes sure that at least n bytes are available in the buffer */
+	private void ensure(final int n) throws IOException {
+		if (buffer.remaining() >= n) return;
+		buffer.compact();
+		while (buffer.position() < n) {
+			if (channel.read(buffer) < 0) throw new IOException(
+				"Unexpected end of file " + file);
+		}
+		buffer.flip();
+	}
+
+	private double readValue(final int type) throws IOException {
+		ensure(SIZE[type]);
+		return get(type);
+	}
+
+	private double read(final int type, final boolean buffered)
+		throws IOException
+	{
+		return buffered ? get(type) : readValue(type);
+	}
+
+	/** Reads a value, which must be available in the buffer */
+	private double get(final int type) {
+		switch (type) {
+			case CHAR:
+				return buffer.get();
+			case UCHAR:
+				return buffer.get() & 0xff;
+			case SHORT:
+				return buffer.getShort();
+			case USHORT:
+				return buffer.getShort() & 0xffff;
+			case INT:
+				return buffer.getInt();
+			case UINT:
+				return buffer.getInt() & 0xffffffffL;
+			case FLOAT:
+				return buffer.getFloat();
+			default:
+				return buffer.getDouble();
+		}
+	}
+
+	private void skipList(final Property prop) throws IOException {
+		final int n = (int) readValue(prop.countType);
+		for (int i = 0; i < n; i++)
+			readValue(prop.type);
+	}
+
+	/** Reads a header line, which is ASCII and terminated by '\n' */
+	private String readLine() throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		while (true) {
+			if (!buffer.hasRemaining()) {
+				buffer.clear();
+				if (channel.read(buffer) < 0) return sb.length() == 0 ? null : sb
+					.toString();
+				buffer.flip();
+			}
+			final char c = (char) (buffer.get() & 0xff);
+			if (c == '\n') return sb.toString().trim();
+			sb.append(c);
+		}
+	}
+}
@@ -24,7 +24,6 @@ package customnode;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -46,8 +45,21 @@ public class STLLoader {
 	 */
 	public static Map<String, CustomMesh> load(final String stlfile)
 		throws IOException
+	{
+		return load(stlfile, false);
+	}
+
+	/**
+	 * Load the specified stl file and returns the result as a hash map, mapping
+	 * the object names to the corresponding <code>CustomMesh</code> objects. If
+	 * <code>weld</code> is true, identical vertices are merged, and the meshes
+	 * are returned as <code>CustomIndexedTriangleMesh</code>es.
+	 */
+	public static Map<String, CustomMesh> load(final String stlfile,
+		final boolean weld) throws IOException
 	{
 		final STLLoader sl = new STLLoader();
+		sl.weld = weld;
 		try {
 			sl.parse(stlfile);
 		}
@@ -62,6 +74,8 @@ public class STLLoader {
 
 	private STLLoader() {}
 
+	private boolean weld;
+
 	String line;
 	BufferedReader in;
 
@@ -72,7 +86,6 @@ public class STLLoader {
 	private final Point3f normal = new Point3f(0.0f, 0.0f, 0.0f); // to be used
 																																// for file
 																																// checking
-	private FileInputStream fis;
 	private int triangles;
 	private final DecimalFormat decimalFormat = new DecimalFormat("0.0E0");
 
@@ -86,25 +99,28 @@ public class STLLoader {
 
 		// Hypothesis 1: this is an ASCII STL
 		final BufferedReader br = new BufferedReader(new FileReader(stlfile));
-		final String line = br.readLine();
-		final String[] words = line.trim().split("\\s+");
-		if (line.indexOf('\0') < 0 && words[0].equalsIgnoreCase("solid")) {
+		final String line;
+		try {
+			line = br.readLine();
+		}
+		finally {
+			br.close();
+		}
+		final String[] words = line == null ? new String[] { "" } : line.trim()
+			.split("\\s+");
+		if (line != null && line.indexOf('\0') < 0 &&
+			words[0].equalsIgnoreCase("solid"))
+		{
 			IJ.log("Looks like an ASCII STL");
 			parseAscii(f);
 			return;
 		}
 
 		// Hypothesis 2: this is a binary STL
-		final FileInputStream fs = new FileInputStream(f);
-
 		// bytes 80, 81, 82 and 83 form a little-endian int
 		// that contains the number of triangles
-		final byte[] buffer = new byte[84];
-		fs.read(buffer, 0, 84);
-		triangles =
-			((buffer[83] & 0xff) << 24) | ((buffer[82] & 0xff) << 16) |
-				((buffer[81] & 0xff) << 8) | (buffer[80] & 0xff);
-		if (((f.length() - 84) / 50) == triangles) {
+		triangles = BinarySTLReader.getTriangleCount(f);
+		if (triangles >= 0) {
 			IJ.log("Looks like a binary STL");
 			parseBinary(f);
 			return;
@@ -149,41 +165,20 @@ public class STLLoader {
 		meshes.put(name, cm);
 	}
 
-	private void parseBinary(final File f) {
+	private void parseBinary(final File f) throws IOException {
 		meshes = new HashMap<String, CustomMesh>();
-		vertices = new ArrayList<Point3f>();
-		try {
-			fis = new FileInputStream(f);
-			for (int h = 0; h < 84; h++)
-				fis.read();// skip the header bytes
-			for (int t = 0; t < triangles; t++) {
-				final byte[] tri = new byte[50];
-				for (int tb = 0; tb < 50; tb++) {
-					tri[tb] = (byte) fis.read();
-				}
-				normal.x = leBytesToFloat(tri[0], tri[1], tri[2], tri[3]);
-				normal.y = leBytesToFloat(tri[4], tri[5], tri[6], tri[7]);
-				normal.z = leBytesToFloat(tri[8], tri[9], tri[10], tri[11]);
-				for (int i = 0; i < 3; i++) {
-					final int j = i * 12 + 12;
-					final float px =
-						leBytesToFloat(tri[j], tri[j + 1], tri[j + 2], tri[j + 3]);
-					final float py =
-						leBytesToFloat(tri[j + 4], tri[j + 5], tri[j + 6], tri[j + 7]);
-					final float pz =
-						leBytesToFloat(tri[j + 8], tri[j + 9], tri[j + 10], tri[j + 11]);
-					final Point3f p = new Point3f(px, py, pz);
-					vertices.add(p);
-				}
-			}
-			fis.close();
-		}
-		catch (final FileNotFoundException e) {
-			e.printStackTrace();
-		}
-		catch (final IOException e) {
-			e.printStackTrace();
+		final float[] coords = BinarySTLReader.readCoordinates(f);
+		if (weld) {
+			if (coords.length == 0) return;
+			final CustomMesh cm = BinarySTLReader.createIndexedMesh(coords);
+			cm.loadedFromName = name;
+			cm.changed = false;
+			meshes.put(name, cm);
+			return;
 		}
+		vertices = new ArrayList<Point3f>(coords.length / 3);
+		for (int i = 0; i < coords.length; i += 3)
+			vertices.add(new Point3f(coords[i], coords[i + 1], coords[i + 2]));
 		final CustomMesh cm = createCustomMesh();
 		meshes.put(name, cm);
 	}
@@ -196,17 +191,20 @@ public class STLLoader {
 		return decimalFormat.parse(string).floatValue();
 	}
 
-	private float leBytesToFloat(final byte b0, final byte b1, final byte b2,
-		final byte b3)
-	{
-		return Float.intBitsToFloat((((b3 & 0xff) << 24) | ((b2 & 0xff) << 16) |
-			((b1 & 0xff) << 8) | (b0 & 0xff)));
-	}
-
 	private CustomMesh createCustomMesh() {
 		if (vertices.size() == 0) return null;
 		CustomMesh cm = null;
-		cm = new CustomTriangleMesh(vertices);
+		if (weld) {
+			final float[] coords = new float[3 * vertices.size()];
+			for (int i = 0; i < vertices.size(); i++) {
+				final Point3f p = vertices.get(i);
+				coords[3 * i] = p.x;
+				coords[3 * i + 1] = p.y;
+				coords[3 * i + 2] = p.z;
+			}
+			cm = BinarySTLReader.createIndexedMesh(coords);
+		}
+		else cm = new CustomTriangleMesh(vertices);
 		cm.loadedFromName = name;
 		cm.changed = false;
 		cm.changed = false;
@@ -0,0 +1,276 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.LUT;
+
+/**
+ * Samples the colors of an image at arbitrary (calibrated) positions, as used
+ * to color mesh vertices. Works directly on the pixel arrays of the source
+ * image, whatever its type: the lookup table and display range are applied to
+ * the sampled values on the fly, instead of converting the whole image to RGB
+ * first.
+ *
+ * Positions are divided by the pixel size, so that voxel centers are at
+ * integer coordinates. Positions outside the image are black.
+ */
+public class SurfaceColorSampler {
+
+	/** Below this number of vertices per thread, sampling is not parallelized */
+	private static final int MIN_VERTICES_PER_THREAD = 20000;
+
+	private final int w, h, d, type;
+	private final double pw, ph, pd;
+	/** For each channel, the pixel arrays of its slices */
+	private final Object[][] pixels;
+	/** For each channel, its lookup table as packed RGB, and display range */
+	private final int[][] lut;
+	private final double[] min, scale;
+
+	private boolean interpolate = true;
+	private int nThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Creates a sampler for the current frame of the given image. Composite
+	 * images in composite mode are sampled as the sum of their active channels;
+	 * otherwise, only the current channel is sampled.
+	 */
+	public SurfaceColorSampler(final ImagePlus imp) {
+		w = imp.getWidth();
+		h = imp.getHeight();
+		d = imp.getNSlices();
+		type = imp.getType();
+		final Calibration cal = imp.getCalibration();
+		pw = cal.pixelWidth;
+		ph = cal.pixelHeight;
+		pd = cal.pixelDepth;
+
+		int[] channels = new int[] { imp.getChannel() };
+		if (imp.isComposite() &&
+			((CompositeImage) imp).getMode() == CompositeImage.COMPOSITE)
+		{
+			final boolean[] active = ((CompositeImage) imp).getActiveChannels();
+			int n = 0;
+			for (int c = 0; c < imp.getNChannels(); c++)
+				if (active[c]) n++;
+			channels = new int[n];
+			n = 0;
+			for (int c = 0; c < imp.getNChannels(); c++)
+				if (active[c]) channels[n++] = c + 1;
+		}
+
+		final ImageStack stack = imp.getStack();
+		final int nc = channels.length;
+		pixels = new Object[nc][d];
+		lut = new int[nc][];
+		min = new double[nc];
+		scale = new double[nc];
+		for (int i = 0; i < nc; i++) {
+			final int c = channels[i];
+			for (int z = 0; z < d; z++)
+				pixels[i][z] =
+					stack.getPixels(imp.getStackIndex(c, z + 1, imp.getFrame()));
+			if (type == ImagePlus.COLOR_RGB) continue;
+
+			final LUT l =
+				imp.isComposite() ? ((CompositeImage) imp).getChannelLut(c) : imp
+					.getProcessor().getLut();
+			lut[i] = new int[256];
+			for (int v = 0; v < 256; v++)
+				lut[i][v] = l.getRGB(v);
+			min[i] = l.min;
+			// same scaling as ImageJ's conversion to 8-bit
+			if (type == ImagePlus.GRAY32) scale[i] =
+				l.max > l.min ? 255.0 / (l.max - l.min) : 1;
+			else scale[i] = 256.0 / (l.max - l.min + 1);
+		}
+	}
+
+	/**
+	 * Whether to interpolate trilinearly (the default), or to use the nearest
+	 * voxel.
+	 */
+	public void setInterpolate(final boolean interpolate) {
+		this.interpolate = interpolate;
+	}
+
+	public void setThreads(final int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Returns the color at the given calibrated position, as packed RGB.
+	 */
+	public int getRGB(final double x, final double y, final double z) {
+		final double vx = x / pw, vy = y / ph, vz = z / pd;
+		if (vx < -0.5 || vy < -0.5 || vz < -0.5 || vx > w - 0.5 || vy > h - 0.5 ||
+			vz > d - 0.5) return 0;
+
+		if (type == ImagePlus.COLOR_RGB) {
+			int rgb = 0;
+			for (int shift = 0; shift < 24; shift += 8)
+				rgb |= clamp(sample(0, shift, vx, vy, vz)) << shift;
+			return rgb;
+		}
+
+		int r = 0, g = 0, b = 0;
+		for (int c = 0; c < pixels.length; c++) {
+			final double v = (sample(c, 0, vx, vy, vz) - min[c]) * scale[c];
+			final int rgb = lut[c][clamp(v)];
+			r += (rgb >> 16) & 0xff;
+			g += (rgb >> 8) & 0xff;
+			b += rgb & 0xff;
+		}
+		return (Math.min(r, 255) << 16) | (Math.min(g, 255) << 8) |
+			Math.min(b, 255);
+	}
+
+	/**
+	 * Samples the colors at the given interleaved x, y, z coordinates, and
+	 * stores them as r, g, b (and, if <code>stride</code> is 4, an alpha of 1)
+	 * values between 0 and 1 into <code>colors</code>, which may be null.
+	 *
+	 * @return the color array.
+	 */
+	public float[] sample(final float[] coords, final int nVertices,
+		float[] colors, final int stride)
+	{
+		if (colors == null) colors = new float[stride * nVertices];
+		final float[] result = colors;
+
+		final int n = Math.max(1, Math.min(nThreads, nVertices /
+			MIN_VERTICES_PER_THREAD));
+		if (n == 1) {
+			sample(coords, 0, nVertices, result, stride);
+			return result;
+		}
+
+		final Thread[] threads = new Thread[n - 1];
+		for (int i = 0; i < threads.length; i++) {
+			final int from = (int) ((long) (i + 1) * nVertices / n);
+			final int to = (int) ((long) (i + 2) * nVertices / n);
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					sample(coords, from, to, result, stride);
+				}
+			};
+			threads[i].start();
+		}
+		sample(coords, 0, nVertices / n, result, stride);
+
+		boolean interrupted = false;
+		for (final Thread t : threads) {
+			while (t.isAlive()) {
+				try {
+					t.join();
+				}
+				catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		return result;
+	}
+
+	private void sample(final float[] coords, final int from, final int to,
+		final float[] colors, final int stride)
+	{
+		for (int i = from; i < to; i++) {
+			final int rgb =
+				getRGB(coords[3 * i], coords[3 * i + 1], coords[3 * i + 2]);
+			final int o = stride * i;
+			colors[o] = ((rgb >> 16) & 0xff) / 255f;
+			colors[o + 1] = ((rgb >> 8) & 0xff) / 255f;
+			colors[o + 2] = (rgb & 0xff) / 255f;
+			if (stride == 4) colors[o + 3] = 1;
+		}
+	}
+
+	private static int clamp(final double v) {
+		final int i = (int) (v + 0.5);
+		return i < 0 ? 0 : i > 255 ? 255 : i;
+	}
+
+	/**
+	 * Returns the (interpolated) value of channel c at voxel position vx, vy, vz,
+	 * which must be inside the image. For RGB images, <code>shift</code>
+	 * selects the color component.
+	 */
+	private double sample(final int c, final int shift, final double vx,
+		final double vy, final double vz)
+	{
+		if (!interpolate) return get(c, shift, clampIndex(Math.round(vx), w),
+			clampIndex(Math.round(vy), h), clampIndex(Math.round(vz), d));
+
+		final double fx = Math.min(Math.max(vx, 0), w - 1);
+		final double fy = Math.min(Math.max(vy, 0), h - 1);
+		final double fz = Math.min(Math.max(vz, 0), d - 1);
+		final int x0 = Math.min((int) fx, Math.max(w - 2, 0));
+		final int y0 = Math.min((int) fy, Math.max(h - 2, 0));
+		final int z0 = Math.min((int) fz, Math.max(d - 2, 0));
+		final int x1 = Math.min(x0 + 1, w - 1);
+		final int y1 = Math.min(y0 + 1, h - 1);
+		final int z1 = Math.min(z0 + 1, d - 1);
+		final double dx = fx - x0, dy = fy - y0, dz = fz - z0;
+
+		final double v00 =
+			get(c, shift, x0, y0, z0) * (1 - dx) + get(c, shift, x1, y0, z0) * dx;
+		final double v10 =
+			get(c, shift, x0, y1, z0) * (1 - dx) + get(c, shift, x1, y1, z0) * dx;
+		final double v01 =
+			get(c, shift, x0, y0, z1) * (1 - dx) + get(c, shift, x1, y0, z1) * dx;
+		final double v11 =
+			get(c, shift, x0, y1, z1) * (1 - dx) + get(c, shift, x1, y1, z1) * dx;
+		return (v00 * (1 - dy) + v10 * dy) * (1 - dz) + (v01 * (1 - dy) + v11 * dy) *
+			dz;
+	}
+
+	private static int clampIndex(final long i, final int size) {
+		return (int) Math.min(Math.max(i, 0), size - 1);
+	}
+
+	private double get(final int c, final int shift, final int x, final int y,
+		final int z)
+	{
+		final int i = y * w + x;
+		switch (type) {
+			case ImagePlus.GRAY8:
+			case ImagePlus.COLOR_256:
+				return ((byte[]) pixels[c][z])[i] & 0xff;
+			case ImagePlus.GRAY16:
+				return ((short[]) pixels[c][z])[i] & 0xffff;
+			case ImagePlus.GRAY32:
+				return ((float[]) pixels[c][z])[i];
+			default:
+				return (((int[]) pixels[c][z])[i] >> shift) & 0xff;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.scijava.vecmath.Point3f;
+
+/**
+ * Simplifies a triangle soup by vertex clustering: all vertices which fall
+ * into the same cell of a regular grid are replaced by their average, and
+ * triangles which collapse to an edge or a point are dropped. This is much
+ * cheaper than edge contraction (see {@link EdgeContraction}) and runs in
+ * linear time, which makes it suitable for creating coarse levels of detail
+ * of large meshes.
+ */
+public class VertexClustering {
+
+	private VertexClustering() {}
+
+	/**
+	 * Returns a simplified version of the given triangle list which has
+	 * approximately <code>fraction</code> times the number of triangles. The
+	 * returned list shares its <code>Point3f</code> objects between adjacent
+	 * triangles.
+	 *
+	 * @param mesh a list of points, where each 3 consecutive points form a
+	 *          triangle.
+	 * @param fraction the fraction of triangles to keep, in (0, 1].
+	 */
+	public static List<Point3f> simplify(final List<Point3f> mesh,
+		final float fraction)
+	{
+		if (fraction <= 0 || fraction > 1) throw new IllegalArgumentException(
+			"fraction must be in (0, 1]");
+		final int nVertices = mesh.size() - mesh.size() % 3;
+		final float[] coords = new float[3 * nVertices];
+		for (int i = 0, j = 0; i < nVertices; i++) {
+			final Point3f p = mesh.get(i);
+			coords[j++] = p.x;
+			coords[j++] = p.y;
+			coords[j++] = p.z;
+		}
+		return simplify(coords, fraction);
+	}
+
+	/**
+	 * Same as {@link #simplify(List, float)}, but operates on the
+	 * interleaved x, y, z coordinates of a triangle soup.
+	 */
+	public static List<Point3f> simplify(final float[] coords,
+		final float fraction)
+	{
+		final int nTriangles = coords.length / 9;
+		if (nTriangles == 0 || fraction == 1) return toList(coords);
+
+		// The number of triangles of a surface scales roughly with
+		// the inverse square of the cell size.
+		final float targetTriangles = fraction * nTriangles;
+		float cell = meanEdgeLength(coords) / (float) Math.sqrt(fraction);
+		Clusters c = cluster(coords, cell);
+		if (c.nTriangles > 0) {
+			final float ratio = c.nTriangles / targetTriangles;
+			if (ratio > 1.5f || ratio < 0.66f) {
+				cell *= (float) Math.sqrt(ratio);
+				c = cluster(coords, cell);
+			}
+		}
+		return c.toList();
+	}
+
+	private static List<Point3f> toList(final float[] coords) {
+		final List<Point3f> ret = new ArrayList<Point3f>(coords.length / 3);
+		for (int i = 0; i + 2 < coords.length; i += 3)
+			ret.add(new Point3f(coords[i], coords[i + 1], coords[i + 2]));
+		return ret;
+	}
+
+	private static float meanEdgeLength(final float[] coords) {
+		double sum = 0;
+		for (int t = 0; t + 8 < coords.length; t += 9) {
+			sum += dist(coords, t, t + 3);
+			sum += dist(coords, t + 3, t + 6);
+			sum += dist(coords, t + 6, t);
+		}
+		final float l = (float) (sum / (coords.length / 3));
+		return l > 0 ? l : 1;
+	}
+
+	private static double dist(final float[] c, final int i, final int j) {
+		final double dx = c[i] - c[j];
+		final double dy = c[i + 1] - c[j + 1];
+		final double dz = c[i + 2] - c[j + 2];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	private static Clusters cluster(final float[] coords, final float cell) {
+		float minx = Float.MAX_VALUE, miny = Float.MAX_VALUE,
+				minz = Float.MAX_VALUE;
+		for (int i = 0; i + 2 < coords.length; i += 3) {
+			if (coords[i] < minx) minx = coords[i];
+			if (coords[i + 1] < miny) miny = coords[i + 1];
+			if (coords[i + 2] < minz) minz = coords[i + 2];
+		}
+
+		final int nVertices = coords.length / 3;
+		final int[] clusterOf = new int[nVertices];
+		final CellMap map = new CellMap();
+		for (int v = 0, i = 0; v < nVertices; v++, i += 3) {
+			final long cx = (long) ((coords[i] - minx) / cell);
+			final long cy = (long) ((coords[i + 1] - miny) / cell);
+			final long cz = (long) ((coords[i + 2] - minz) / cell);
+			final long key = (cx & 0x1fffff) << 42 | (cy & 0x1fffff) << 21 |
+				(cz & 0x1fffff);
+			clusterOf[v] = map.getOrAdd(key);
+		}
+
+		final int nClusters = map.size;
+		final double[] sums = new double[3 * nClusters];
+		final int[] counts = new int[nClusters];
+		for (int v = 0, i = 0; v < nVertices; v++, i += 3) {
+			final int k = clusterOf[v];
+			sums[3 * k] += coords[i];
+			sums[3 * k + 1] += coords[i + 1];
+			sums[3 * k + 2] += coords[i + 2];
+			counts[k]++;
+		}
+
+		final Clusters c = new Clusters();
+		c.points = new Point3f[nClusters];
+		for (int k = 0; k < nClusters; k++) {
+			final double n = counts[k];
+			c.points[k] =
+				new Point3f((float) (sums[3 * k] / n), (float) (sums[3 * k + 1] / n),
+					(float) (sums[3 * k + 2] / n));
+		}
+
+		// keep only those triangles whose corners fall into
+		// three different cells
+		c.faces = new int[nVertices];
+		int nFaces = 0;
+		for (int v = 0; v + 2 < nVertices; v += 3) {
+			final int c1 = clusterOf[v];
+			final int c2 = clusterOf[v + 1];
+			final int c3 = clusterOf[v + 2];
+			if (c1 == c2 || c2 == c3 || c3 == c1) continue;
+			c.faces[nFaces++] = c1;
+			c.faces[nFaces++] = c2;
+			c.faces[nFaces++] = c3;
+		}
+		c.nTriangles = nFaces / 3;
+		return c;
+	}
+
+	private static final class Clusters {
+
+		Point3f[] points;
+		int[] faces;
+		int nTriangles;
+
+		List<Point3f> toList() {
+			final List<Point3f> ret = new ArrayList<Point3f>(3 * nTriangles);
+			for (int i = 0; i < 3 * nTriangles; i++)
+				ret.add(points[faces[i]]);
+			return ret;
+		}
+	}
+
+	/**
+	 * Open addressing hash map from packed cell coordinates to consecutive
+	 * cluster indices.
+	 */
+	private static final class CellMap {
+
+		private long[] keys = new long[1 << 12];
+		private int[] values = new int[1 << 12];
+		private boolean[] used = new boolean[1 << 12];
+		int size = 0;
+
+		int getOrAdd(final long key) {
+			int mask = keys.length - 1;
+			int i = hash(key) & mask;
+			while (used[i]) {
+				if (keys[i] == key) return values[i];
+				i = (i + 1) & mask;
+			}
+			if (2 * (size + 1) > keys.length) {
+				grow();
+				mask = keys.length - 1;
+				i = hash(key) & mask;
+				while (used[i])
+					i = (i + 1) & mask;
+			}
+			used[i] = true;
+			keys[i] = key;
+			values[i] = size;
+			return size++;
+		}
+
+		private void grow() {
+			final long[] oldKeys = keys;
+			final int[] oldValues = values;
+			final boolean[] oldUsed = used;
+			final int n = 2 * oldKeys.length;
+			keys = new long[n];
+			values = new int[n];
+			used = new boolean[n];
+			final int mask = n - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (!oldUsed[j]) continue;
+				int i = hash(oldKeys[j]) & mask;
+				while (used[i])
+					i = (i + 1) & mask;
+				used[i] = true;
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+
+		private static int hash(final long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			h ^= h >>> 32;
+			return (int) (h ^ (h >>> 16));
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.scijava.vecmath.Point3f;
+
+/**
+ * Assigns consecutive indices to unique vertex positions, so that a triangle
+ * soup (where each vertex is repeated for every triangle it belongs to) can
+ * be turned into an indexed mesh. Two positions are considered equal under
+ * the same conditions as in <code>Point3f.equals()</code>.
+ *
+ * Coordinates are stored in a primitive array and looked up through an open
+ * addressing hash table, so no objects are created per vertex.
+ */
+public class VertexWelder {
+
+	private float[] coords;
+	private int[] table;
+	private int size = 0;
+
+	public VertexWelder() {
+		this(1024);
+	}
+
+	/**
+	 * @param expectedVertices the expected number of unique vertices.
+	 */
+	public VertexWelder(final int expectedVertices) {
+		final int n = Math.max(16, expectedVertices);
+		coords = new float[3 * n];
+		table = new int[tableSize(n)];
+		Arrays.fill(table, -1);
+	}
+
+	private static int tableSize(final int n) {
+		int s = 16;
+		while (s < 2 * n)
+			s <<= 1;
+		return s;
+	}
+
+	/**
+	 * Returns the index of the vertex at the given position, adding it if it
+	 * was not seen before.
+	 */
+	public int add(final float x, final float y, final float z) {
+		int mask = table.length - 1;
+		int i = hash(x, y, z) & mask;
+		for (int v = table[i]; v != -1; v = table[i]) {
+			final int o = 3 * v;
+			if (coords[o] == x && coords[o + 1] == y && coords[o + 2] == z) return v;
+			i = (i + 1) & mask;
+		}
+		if (2 * (size + 1) > table.length) {
+			rehash(2 * table.length);
+			mask = table.length - 1;
+			i = hash(x, y, z) & mask;
+			while (table[i] != -1)
+				i = (i + 1) & mask;
+		}
+		if (3 * size + 3 > coords.length) coords =
+			Arrays.copyOf(coords, Math.max(3 * size + 3, 2 * coords.length));
+		final int o = 3 * size;
+		coords[o] = x;
+		coords[o + 1] = y;
+		coords[o + 2] = z;
+		table[i] = size;
+		return size++;
+	}
+
+	public int add(final Point3f p) {
+		return add(p.x, p.y, p.z);
+	}
+
+	/**
+	 * Returns the number of unique vertices.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the interleaved x, y, z coordinates of the unique vertices. The
+	 * returned array has exactly 3 * size() elements.
+	 */
+	public float[] getCoordinates() {
+		return coords.length == 3 * size ? coords : Arrays.copyOf(coords,
+			3 * size);
+	}
+
+	private void rehash(final int n) {
+		table = new int[n];
+		Arrays.fill(table, -1);
+		final int mask = n - 1;
+		for (int v = 0; v < size; v++) {
+			final int o = 3 * v;
+			int i = hash(coords[o], coords[o + 1], coords[o + 2]) & mask;
+			while (table[i] != -1)
+				i = (i + 1) & mask;
+			table[i] = v;
+		}
+	}
+
+	private static int hash(final float x, final float y, final float z) {
+		// +0.0f and -0.0f are equal, but have different bit patterns
+		int h = x == 0 ? 0 : Float.floatToIntBits(x);
+		h = 31 * h + (y == 0 ? 0 : Float.floatToIntBits(y));
+		h = 31 * h + (z == 0 ? 0 : Float.floatToIntBits(z));
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * Welds the given triangle soup and returns, for each entry of the list, the
+	 * index of its unique vertex.
+	 */
+	public static int[] weld(final List<Point3f> mesh, final VertexWelder welder)
+	{
+		final int n = mesh.size();
+		final int[] indices = new int[n];
+		for (int i = 0; i < n; i++)
+			indices[i] = welder.add(mesh.get(i));
+		return indices;
+	}
+
+	/**
+	 * Welds the given interleaved x, y, z coordinates and returns, for each
+	 * vertex, the index of its unique vertex.
+	 */
+	public static int[] weld(final float[] coords, final VertexWelder welder) {
+		final int n = coords.length / 3;
+		final int[] indices = new int[n];
+		for (int i = 0; i < n; i++)
+			indices[i] =
+				welder.add(coords[3 * i], coords[3 * i + 1], coords[3 * i + 2]);
+		return indices;
+	}
+}
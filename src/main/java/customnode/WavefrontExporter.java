@@ -28,6 +28,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -49,17 +52,13 @@ public class WavefrontExporter {
 			mtlname.substring(0, mtlname.length() - 4);
 		mtlname += ".mtl";
 
-		OutputStreamWriter dos_obj = null, dos_mtl = null;
+		FileChannel objChannel = null, mtlChannel = null;
 		try {
-			dos_obj =
-				new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(
-					objF)), "8859_1");
-			dos_mtl =
-				new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(
-					new File(objF.getParent(), mtlname))), "8859_1");
-			save(meshes, mtlname, dos_obj, dos_mtl);
-			dos_obj.flush();
-			dos_obj.flush();
+			objChannel = new FileOutputStream(objF).getChannel();
+			mtlChannel =
+				new FileOutputStream(new File(objF.getParent(), mtlname)).getChannel();
+			save(meshes, mtlname, objChannel, mtlChannel, Runtime.getRuntime()
+				.availableProcessors());
 			for (final String n : meshes.keySet()) {
 				final CustomMesh m = meshes.get(n);
 				m.loadedFromFile = objFile;
@@ -72,11 +71,11 @@ public class WavefrontExporter {
 		}
 		finally {
 			try {
-				if (null != dos_obj) dos_obj.close();
+				if (null != objChannel) objChannel.close();
 			}
 			catch (final Exception e) {}
 			try {
-				if (null != dos_mtl) dos_mtl.close();
+				if (null != mtlChannel) mtlChannel.close();
 			}
 			catch (final Exception e) {}
 		}
@@ -96,156 +95,178 @@ public class WavefrontExporter {
 		final String mtlFileName, final Writer objWriter, final Writer mtlWriter)
 		throws IOException
 	{
+		save(meshes, mtlFileName, AsciiBuffer.newChannel(objWriter), AsciiBuffer
+			.newChannel(mtlWriter), 1);
+	}
 
-		objWriter.write("# OBJ File\n");
-		objWriter.write("mtllib ");
-		objWriter.write(mtlFileName);
-		objWriter.write('\n');
+	/**
+	 * Write the given collection of <code>CustomMesh</code>es, streaming them
+	 * mesh by mesh.
+	 * 
+	 * @param meshes maps a name to a <code>CustomMesh</code>. The name is used to
+	 *          set the group name ('g') in the obj file.
+	 * @param mtlFileName name of the material file, which is used to store in the
+	 *          obj-file.
+	 * @param objChannel channel for the obj file
+	 * @param mtlChannel channel for the material file.
+	 * @param nThreads the number of meshes to format in parallel.
+	 */
+	public static void save(final Map<String, CustomMesh> meshes,
+		final String mtlFileName, final WritableByteChannel objChannel,
+		final WritableByteChannel mtlChannel, final int nThreads)
+		throws IOException
+	{
+		final AsciiBuffer obj = new AsciiBuffer(objChannel);
+		obj.append("# OBJ File\n");
+		obj.append("mtllib ");
+		obj.append(mtlFileName);
+		obj.append('\n');
 
 		final HashMap<Mtl, Mtl> ht_mat = new HashMap<Mtl, Mtl>();
 
-		// Vert indices in .obj files are global, not reset for every
-		// object. Starting at '1' because vert indices start at one.
-		int j = 1;
+		final List<String> names = new ArrayList<String>(meshes.keySet());
+		final int n = names.size();
+		final Mtl[] materials = new Mtl[n];
+		// for each mesh, its welded vertex coordinates, and for each of its
+		// vertices, the index of its welded vertex
+		final float[][] coords = new float[n][];
+		final int[][] indices = new int[n][];
+		final int[] offsets = new int[n];
 
-		final StringBuffer tmp = new StringBuffer(100);
+		obj.appendParts(n, new AsciiBuffer.Part() {
 
-		for (final String name : meshes.keySet()) {
-			final CustomMesh cmesh = meshes.get(name);
+			// Vert indices in .obj files are global, not reset for every
+			// object. Starting at '1' because vert indices start at one.
+			private int j = 1;
 
-			final List<Point3f> vertices = cmesh.getMesh();
-			// make material, and see whether it exists already
-			Color3f color = cmesh.getColor();
-			if (null == color) {
-				// happens when independent colors
-				// have been set for each vertex.
-				color = CustomMesh.DEFAULT_COLOR;
+			@Override
+			public void prepare(final int i) {
+				final List<Point3f> vertices = meshes.get(names.get(i)).getMesh();
+				final VertexWelder welder = new VertexWelder(vertices.size() / 4);
+				indices[i] = VertexWelder.weld(vertices, welder);
+				coords[i] = welder.getCoordinates();
 			}
-			Mtl mat = new Mtl(1 - cmesh.getTransparency(), color);
-			if (ht_mat.containsKey(mat)) mat = ht_mat.get(mat);
-			else ht_mat.put(mat, mat);
-
-			// make list of vertices
-			final String title = name.replaceAll(" ", "_").replaceAll("#", "--");
-			final HashMap<Point3f, Integer> ht_points =
-				new HashMap<Point3f, Integer>();
-			objWriter.write("g ");
-			objWriter.write(title);
-			objWriter.write('\n');
-			final int len = vertices.size();
-			final int[] index = new int[len];
-
-			// index over index array, to make faces later
-			int k = 0;
-			for (final Point3f p : vertices) {
-				// check if point already exists
-				if (ht_points.containsKey(p)) {
-					index[k] = ht_points.get(p);
-				}
-				else {
-					// new point
-					index[k] = j;
-					// record
-					ht_points.put(p, j);
-					// append vertex
-					tmp.append('v').append(' ').append(p.x).append(' ').append(p.y)
-						.append(' ').append(p.z).append('\n');
-					objWriter.write(tmp.toString());
-					tmp.setLength(0);
-					j++;
+
+			@Override
+			public void commit(final int i) {
+				final CustomMesh cmesh = meshes.get(names.get(i));
+				// make material, and see whether it exists already
+				Color3f color = cmesh.getColor();
+				if (null == color) {
+					// happens when independent colors
+					// have been set for each vertex.
+					color = CustomMesh.DEFAULT_COLOR;
 				}
-				k++;
+				Mtl mat = new Mtl(1 - cmesh.getTransparency(), color);
+				if (ht_mat.containsKey(mat)) mat = ht_mat.get(mat);
+				else ht_mat.put(mat, mat);
+				materials[i] = mat;
+
+				offsets[i] = j;
+				j += coords[i].length / 3;
 			}
-			objWriter.write("usemtl ");
-			objWriter.write(mat.name);
-			objWriter.write('\n');
-			// print faces
-			if (cmesh.getClass() == CustomTriangleMesh.class) writeTriangleFaces(
-				index, objWriter, name);
-			else if (cmesh.getClass() == CustomQuadMesh.class) writeQuadFaces(index,
-				objWriter, name);
-			else if (cmesh.getClass() == CustomPointMesh.class) writePointFaces(
-				index, objWriter, name);
-			else if (cmesh.getClass() == CustomLineMesh.class) {
-				final CustomLineMesh clm = (CustomLineMesh) cmesh;
-				switch (clm.getMode()) {
-					case CustomLineMesh.PAIRWISE:
-						writePairwiseLineFaces(index, objWriter, name);
-						break;
-					case CustomLineMesh.CONTINUOUS:
-						writeContinuousLineFaces(index, objWriter, name);
-						break;
-					default:
-						throw new IllegalArgumentException("Unknown line mesh mode");
+
+			@Override
+			public void append(final int i, final AsciiBuffer buf)
+				throws IOException
+			{
+				final String name = names.get(i);
+				final CustomMesh cmesh = meshes.get(name);
+				final String title = name.replaceAll(" ", "_").replaceAll("#", "--");
+				buf.append("g ").append(title).append('\n');
+				final float[] c = coords[i];
+				for (int k = 0; k < c.length; k += 3)
+					buf.append('v').append(' ').append(c[k]).append(' ').append(c[k + 1])
+						.append(' ').append(c[k + 2]).append('\n');
+				buf.append("usemtl ").append(materials[i].name).append('\n');
+
+				final int[] index = indices[i];
+				final int offset = offsets[i];
+				for (int k = 0; k < index.length; k++)
+					index[k] += offset;
+				// print faces
+				if (cmesh.getClass() == CustomTriangleMesh.class ||
+					cmesh.getClass() == CustomIndexedTriangleMesh.class) writeTriangleFaces(
+					index, buf, name);
+				else if (cmesh.getClass() == CustomQuadMesh.class) writeQuadFaces(
+					index, buf, name);
+				else if (cmesh.getClass() == CustomPointMesh.class) writePointFaces(
+					index, buf, name);
+				else if (cmesh.getClass() == CustomLineMesh.class) {
+					final CustomLineMesh clm = (CustomLineMesh) cmesh;
+					switch (clm.getMode()) {
+						case CustomLineMesh.PAIRWISE:
+							writePairwiseLineFaces(index, buf, name);
+							break;
+						case CustomLineMesh.CONTINUOUS:
+							writeContinuousLineFaces(index, buf, name);
+							break;
+						default:
+							throw new IllegalArgumentException("Unknown line mesh mode");
+					}
 				}
+				else {
+					throw new IllegalArgumentException("Unknown custom mesh class: " +
+						cmesh.getClass());
+				}
+				coords[i] = null;
+				indices[i] = null;
 			}
-			else {
-				throw new IllegalArgumentException("Unknown custom mesh class: " +
-					cmesh.getClass());
-			}
-		}
+		}, nThreads);
+		obj.flush();
+
 		// make mtl file
-		mtlWriter.write("# MTL File\n");
-		for (final Mtl mat : ht_mat.keySet()) {
-			final StringBuffer sb = new StringBuffer(150);
-			mat.fill(sb);
-			mtlWriter.write(sb.toString());
-		}
+		final AsciiBuffer mtl = new AsciiBuffer(mtlChannel);
+		mtl.append("# MTL File\n");
+		for (final Mtl mat : ht_mat.keySet())
+			mat.fill(mtl);
+		mtl.flush();
 	}
 
 	/**
 	 * Write faces for triangle meshes.
 	 */
-	static void writeTriangleFaces(final int[] indices, final Writer objWriter,
+	static void writeTriangleFaces(final int[] indices, final AsciiBuffer buf,
 		final String name) throws IOException
 	{
 		if (indices.length % 3 != 0) throw new IllegalArgumentException(
 			"list of triangles not multiple of 3: " + name);
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
+		buf.append("s 1\n");
 		for (int i = 0; i < indices.length; i += 3) {
 			buf.append('f').append(' ').append(indices[i]).append(' ').append(
 				indices[i + 1]).append(' ').append(indices[i + 2]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
 		}
-		objWriter.write('\n');
+		buf.append('\n');
 	}
 
 	/**
 	 * Write faces for point meshes.
 	 */
-	static void writePointFaces(final int[] indices, final Writer objWriter,
+	static void writePointFaces(final int[] indices, final AsciiBuffer buf,
 		final String name) throws IOException
 	{
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
+		buf.append("s 1\n");
 		for (int i = 0; i < indices.length; i++) {
 			buf.append('f').append(' ').append(indices[i]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
 		}
-		objWriter.write('\n');
+		buf.append('\n');
 	}
 
 	/**
 	 * Write faces for quad meshes.
 	 */
-	static void writeQuadFaces(final int[] indices, final Writer objWriter,
+	static void writeQuadFaces(final int[] indices, final AsciiBuffer buf,
 		final String name) throws IOException
 	{
 		if (indices.length % 4 != 0) throw new IllegalArgumentException(
 			"list of quads not multiple of 4: " + name);
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
+		buf.append("s 1\n");
 		for (int i = 0; i < indices.length; i += 4) {
 			buf.append('f').append(' ').append(indices[i]).append(' ').append(
 				indices[i + 1]).append(' ').append(indices[i + 2]).append(' ').append(
 				indices[i + 3]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
 		}
-		objWriter.write('\n');
+		buf.append('\n');
 	}
 
 	/**
@@ -253,19 +274,16 @@ public class WavefrontExporter {
 	 * indices array are arranged in pairs each specifying one line segment.
 	 */
 	static void writePairwiseLineFaces(final int[] indices,
-		final Writer objWriter, final String name) throws IOException
+		final AsciiBuffer buf, final String name) throws IOException
 	{
 		if (indices.length % 2 != 0) throw new IllegalArgumentException(
 			"list of lines not multiple of 2: " + name);
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
+		buf.append("s 1\n");
 		for (int i = 0; i < indices.length; i += 2) {
 			buf.append('f').append(' ').append(indices[i]).append(' ').append(
 				indices[i + 1]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
 		}
-		objWriter.write('\n');
+		buf.append('\n');
 	}
 
 	/**
@@ -273,17 +291,14 @@ public class WavefrontExporter {
 	 * indices array represent a continuous line.
 	 */
 	static void writeContinuousLineFaces(final int[] indices,
-		final Writer objWriter, final String name) throws IOException
+		final AsciiBuffer buf, final String name) throws IOException
 	{
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
+		buf.append("s 1\n");
 		for (int i = 0; i < indices.length - 1; i++) {
 			buf.append('f').append(' ').append(indices[i]).append(' ').append(
 				indices[i + 1]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
 		}
-		objWriter.write('\n');
+		buf.append('\n');
 	}
 
 	/** A Material, but avoiding name colisions. Not thread-safe. */
@@ -319,7 +334,7 @@ public class WavefrontExporter {
 			return col.hashCode();
 		}
 
-		void fill(final StringBuffer sb) {
+		void fill(final AsciiBuffer sb) throws IOException {
 			sb.append("\nnewmtl ").append(name).append('\n').append("Ns 96.078431\n")
 				.append("Ka 0.0 0.0 0.0\n").append("Kd ").append(col.x)
 				.append(' ')
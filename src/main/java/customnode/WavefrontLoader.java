@@ -26,13 +26,24 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.scijava.vecmath.Color3f;
 import org.scijava.vecmath.Color4f;
 import org.scijava.vecmath.Point3f;
 
+/**
+ * Loads Wavefront OBJ files. The file is memory mapped and split into chunks at
+ * line boundaries, which are tokenized in parallel without creating a String
+ * per line. The parsed chunks are then assembled into meshes in file order.
+ */
 public class WavefrontLoader {
 
 	/**
@@ -53,15 +64,18 @@ public class WavefrontLoader {
 		return wl.meshes;
 	}
 
+	/** Files smaller than this many bytes per thread are parsed serially */
+	private static final long MIN_BYTES_PER_THREAD = 4 << 20;
+
+	/** Upper bound for the size of a single mapping */
+	private static final long MAX_CHUNK_SIZE = 1 << 30;
+
 	private HashMap<String, CustomMesh> meshes;
 
 	private WavefrontLoader() {}
 
-	private BufferedReader in;
-	private String line;
-
 	// attributes of the currently read mesh
-	private final ArrayList<Point3f> vertices = new ArrayList<Point3f>();
+	private Point3f[] vertices;
 	private ArrayList<Point3f> indices = new ArrayList<Point3f>();
 	private String name = null;
 	private Color4f material = null;
@@ -71,41 +85,46 @@ public class WavefrontLoader {
 	private void parse(final String objfile) throws IOException {
 		this.objfile = objfile;
 		final File f = new File(objfile);
+		final Chunk[] chunks = readChunks(f);
 
-		in = new BufferedReader(new FileReader(objfile));
-		HashMap<String, Color4f> materials = null;
+		int nVertices = 0;
+		for (final Chunk c : chunks)
+			nVertices += c.vertices.size / 3;
+		vertices = new Point3f[nVertices];
+		int v = 0;
+		for (final Chunk c : chunks) {
+			final float[] coords = c.vertices.data;
+			for (int i = 0; i < c.vertices.size; i += 3)
+				vertices[v++] = new Point3f(coords[i], coords[i + 1], coords[i + 2]);
+		}
 
+		HashMap<String, Color4f> materials = null;
 		meshes = new HashMap<String, CustomMesh>();
 
-		while ((line = in.readLine()) != null) {
-			if (line.startsWith("mtllib")) {
-				final String mtlName = line.split("\\s+")[1].trim();
-				materials = readMaterials(f, mtlName);
-			}
-			else if (line.startsWith("g ")) {
-				if (name != null) {
-					final CustomMesh cm = createCustomMesh();
-					if (cm != null) meshes.put(name, cm);
-					indices = new ArrayList<Point3f>();
-					material = null;
+		for (final Chunk c : chunks) {
+			int face = 0;
+			for (final Directive d : c.directives) {
+				addFaces(c.faces, face, d.facePosition);
+				face = d.facePosition;
+				switch (d.keyword) {
+					case Directive.MTLLIB:
+						materials = readMaterials(f, d.argument);
+						break;
+					case Directive.GROUP:
+						if (name != null) {
+							final CustomMesh cm = createCustomMesh();
+							if (cm != null) meshes.put(name, cm);
+							indices = new ArrayList<Point3f>();
+							material = null;
+						}
+						name = d.argument;
+						break;
+					case Directive.USEMTL:
+						if (materials != null) material = materials.get(d.argument);
+						break;
 				}
-				name = line.split("\\s+")[1].trim();
-			}
-			else if (line.startsWith("usemtl ")) {
-				if (materials != null) material = materials.get(line.split("\\s+")[1]);
-			}
-			else if (line.startsWith("v ")) {
-				readVertex();
-			}
-			else if (line.startsWith("f ")) {
-				readFace();
-			}
-			else if (line.startsWith("l ")) {
-				readFace();
-			}
-			else if (line.startsWith("p ")) {
-				readFace();
 			}
+			addFaces(c.faces, face, c.faces.size);
 		}
 		if (name != null && indices.size() > 0) {
 			final CustomMesh cm = createCustomMesh();
@@ -115,6 +134,24 @@ public class WavefrontLoader {
 		}
 	}
 
+	/**
+	 * Adds the faces stored in <code>faces</code> between the given positions
+	 * to the current mesh. Each face is stored as its number of vertices,
+	 * followed by its 0-based vertex indices.
+	 */
+	private void addFaces(final IntList faces, int from, final int to) {
+		final int[] data = faces.data;
+		while (from < to) {
+			type = data[from++];
+			for (int i = 0; i < type; i++) {
+				final int idx = data[from++];
+				if (idx < 0 || idx >= vertices.length) throw new RuntimeException(
+					"Error parsing faces: " + name);
+				indices.add(vertices[idx]);
+			}
+		}
+	}
+
 	private CustomMesh createCustomMesh() {
 		if (indices.size() == 0) return null;
 		CustomMesh cm = null;
@@ -144,30 +181,321 @@ public class WavefrontLoader {
 		return cm;
 	}
 
-	private void readFace() {
-		final String[] sp = line.split("\\s+");
-		type = sp.length - 1;
-		for (int i = 1; i < sp.length; i++) {
-			int idx = -1;
-			try {
-				idx = Integer.parseInt(sp[i]) - 1;
-			}
-			catch (final NumberFormatException e) {
-				final int l = sp[i].indexOf('/');
-				if (l != -1) {
-					sp[i] = sp[i].substring(0, l);
-					idx = Integer.parseInt(sp[i]) - 1;
+	/**
+	 * Splits the given file into chunks at line boundaries, and tokenizes them
+	 * in parallel.
+	 */
+	private static Chunk[] readChunks(final File f) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long length = channel.size();
+			final int nThreads =
+				(int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+					length / MIN_BYTES_PER_THREAD));
+			final int nChunks =
+				(int) Math.max(nThreads, (length + MAX_CHUNK_SIZE - 1) /
+					MAX_CHUNK_SIZE);
+
+			final long[] start = new long[nChunks + 1];
+			start[nChunks] = length;
+			for (int i = 1; i < nChunks; i++)
+				start[i] =
+					Math.max(start[i - 1], nextLine(channel, length * i / nChunks));
+
+			final Chunk[] chunks = new Chunk[nChunks];
+			for (int i = 0; i < nChunks; i++)
+				chunks[i] = new Chunk(channel, start[i], start[i + 1]);
+			if (nThreads == 1) {
+				for (final Chunk c : chunks)
+					c.parse();
+				return chunks;
+			}
+
+			final AtomicReference<IOException> exception =
+				new AtomicReference<IOException>();
+			final Thread[] threads = new Thread[nThreads];
+			for (int i = 0; i < nThreads; i++) {
+				final int first = i;
+				threads[i] = new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							for (int c = first; c < nChunks; c += nThreads)
+								chunks[c].parse();
+						}
+						catch (final IOException e) {
+							exception.compareAndSet(null, e);
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (final Thread t : threads) {
+				try {
+					t.join();
+				}
+				catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while reading " + f);
 				}
 			}
-			if (idx == -1) throw new RuntimeException("Error parsing faces: " + name);
-			indices.add(vertices.get(idx));
+			if (exception.get() != null) throw exception.get();
+			return chunks;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the position after the first line break at or after
+	 * <code>pos</code>, or the end of the file.
+	 */
+	private static long nextLine(final FileChannel channel, long pos)
+		throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (true) {
+			buffer.clear();
+			final int n = channel.read(buffer, pos);
+			if (n <= 0) return channel.size();
+			for (int i = 0; i < n; i++)
+				if (buffer.get(i) == '\n') return pos + i + 1;
+			pos += n;
+		}
+	}
+
+	/**
+	 * A mtllib, g or usemtl line, and the position in the face list at which
+	 * it occurred.
+	 */
+	private static class Directive {
+
+		static final int MTLLIB = 0, GROUP = 1, USEMTL = 2;
+
+		final int keyword;
+		final String argument;
+		final int facePosition;
+
+		Directive(final int keyword, final String argument,
+			final int facePosition)
+		{
+			this.keyword = keyword;
+			this.argument = argument;
+			this.facePosition = facePosition;
 		}
 	}
 
-	private void readVertex() {
-		final String[] sp = line.split("\\s+");
-		vertices.add(new Point3f(Float.parseFloat(sp[1]), Float.parseFloat(sp[2]),
-			Float.parseFloat(sp[3])));
+	/**
+	 * The tokenized contents of a range of lines.
+	 */
+	private static class Chunk {
+
+		private final FileChannel channel;
+		private final long start, end;
+
+		final FloatList vertices = new FloatList();
+		final IntList faces = new IntList();
+		final List<Directive> directives = new ArrayList<Directive>();
+
+		private ByteBuffer buffer;
+		private int pos, limit;
+
+		Chunk(final FileChannel channel, final long start, final long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		void parse() throws IOException {
+			if (end <= start) return;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			limit = buffer.limit();
+			pos = 0;
+			while (pos < limit) {
+				parseLine();
+				// skip to the next line
+				while (pos < limit && buffer.get(pos++) != '\n') {}
+			}
+			buffer = null;
+		}
+
+		private void parseLine() {
+			if (matches("v ")) {
+				pos += 2;
+				for (int i = 0; i < 3; i++)
+					vertices.add(parseFloat());
+			}
+			else if (matches("f ") || matches("l ") || matches("p ")) {
+				pos += 2;
+				final int countPosition = faces.size;
+				faces.add(0);
+				int count = 0;
+				while (skipSpace()) {
+					faces.add(parseIndex() - 1);
+					count++;
+				}
+				faces.data[countPosition] = count;
+			}
+			else if (matches("g ")) addDirective(Directive.GROUP);
+			else if (matches("usemtl ")) addDirective(Directive.USEMTL);
+			else if (matches("mtllib")) addDirective(Directive.MTLLIB);
+		}
+
+		private boolean matches(final String keyword) {
+			if (pos + keyword.length() > limit) return false;
+			for (int i = 0; i < keyword.length(); i++)
+				if (buffer.get(pos + i) != keyword.charAt(i)) return false;
+			return true;
+		}
+
+		/** Stores the second whitespace-separated token of the line */
+		private void addDirective(final int keyword) {
+			while (pos < limit && !isSpace(buffer.get(pos)))
+				pos++;
+			skipSpace();
+			final int tokenStart = pos;
+			while (pos < limit && !isSpace(buffer.get(pos)))
+				pos++;
+			final byte[] token = new byte[pos - tokenStart];
+			for (int i = 0; i < token.length; i++)
+				token[i] = buffer.get(tokenStart + i);
+			directives.add(new Directive(keyword, new String(token), faces.size));
+		}
+
+		private static boolean isSpace(final byte b) {
+			return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f';
+		}
+
+		/**
+		 * Skips spaces and tabs, and returns whether another token follows on
+		 * this line.
+		 */
+		private boolean skipSpace() {
+			while (pos < limit) {
+				final byte b = buffer.get(pos);
+				if (b == '\n') return false;
+				if (!isSpace(b)) return true;
+				pos++;
+			}
+			return false;
+		}
+
+		/**
+		 * Parses the vertex index of a v, v/vt, v//vn or v/vt/vn token, and skips
+		 * the rest of the token.
+		 */
+		private int parseIndex() {
+			boolean negative = false;
+			if (buffer.get(pos) == '-') {
+				negative = true;
+				pos++;
+			}
+			int value = 0;
+			boolean digits = false;
+			while (pos < limit) {
+				final int c = buffer.get(pos) - '0';
+				if (c < 0 || c > 9) break;
+				value = 10 * value + c;
+				digits = true;
+				pos++;
+			}
+			while (pos < limit && !isSpace(buffer.get(pos)))
+				pos++;
+			// relative indices are not supported
+			return digits && !negative ? value : 0;
+		}
+
+		/** Powers of ten that are exactly representable as float */
+		private static final float[] POW10 =
+			{ 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+		/**
+		 * Parses a decimal floating point number. Numbers whose digits fit into
+		 * 24 bits and with a small exponent, i.e. most numbers found in OBJ files,
+		 * are converted with a single correctly rounded float operation; all
+		 * others are handed to {@link Float#parseFloat(String)}.
+		 */
+		private float parseFloat() {
+			skipSpace();
+			final int tokenStart = pos;
+			boolean negative = false;
+			if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+				negative = buffer.get(pos) == '-';
+				pos++;
+			}
+			long mantissa = 0;
+			int exponent = 0;
+			boolean point = false, valid = true;
+			while (pos < limit) {
+				final byte b = buffer.get(pos);
+				if (b >= '0' && b <= '9') {
+					if (mantissa < 100000000000000000L) {
+						mantissa = 10 * mantissa + (b - '0');
+						if (point) exponent--;
+					}
+					else if (!point) exponent++;
+				}
+				else if (b == '.' && !point) point = true;
+				else break;
+				pos++;
+			}
+			if (pos < limit && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')) {
+				pos++;
+				boolean negativeExponent = false;
+				if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+'))
+				{
+					negativeExponent = buffer.get(pos) == '-';
+					pos++;
+				}
+				int e = 0;
+				while (pos < limit && buffer.get(pos) >= '0' && buffer.get(pos) <= '9')
+				{
+					if (e < 100000) e = 10 * e + (buffer.get(pos) - '0');
+					pos++;
+				}
+				exponent += negativeExponent ? -e : e;
+			}
+			if (pos < limit && !isSpace(buffer.get(pos))) valid = false;
+
+			if (valid && mantissa < (1 << 24) && exponent >= -10 && exponent <= 10) {
+				float value = mantissa;
+				if (exponent < 0) value /= POW10[-exponent];
+				else value *= POW10[exponent];
+				return negative ? -value : value;
+			}
+
+			while (pos < limit && !isSpace(buffer.get(pos)))
+				pos++;
+			final byte[] token = new byte[pos - tokenStart];
+			for (int i = 0; i < token.length; i++)
+				token[i] = buffer.get(tokenStart + i);
+			return Float.parseFloat(new String(token));
+		}
+	}
+
+	private static class FloatList {
+
+		float[] data = new float[1024];
+		int size;
+
+		void add(final float f) {
+			if (size == data.length) data = Arrays.copyOf(data, 2 * size);
+			data[size++] = f;
+		}
+	}
+
+	private static class IntList {
+
+		int[] data = new int[1024];
+		int size;
+
+		void add(final int i) {
+			if (size == data.length) data = Arrays.copyOf(data, 2 * size);
+			data[size++] = i;
+		}
 	}
 
 	private HashMap<String, Color4f> readMaterials(final File objfile,
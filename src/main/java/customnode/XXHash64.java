@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package customnode;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming implementation of the 64 bit xxHash algorithm, used to detect
+ * whether data has changed since it was last saved. Data passed in different
+ * chunks hashes to the same value as when passed at once.
+ */
+public final class XXHash64 {
+
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	private final long seed;
+	private long v1, v2, v3, v4;
+	private long length = 0;
+
+	/* Input which does not fill a stripe of 32 bytes yet */
+	private final ByteBuffer pending =
+		ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+	public XXHash64() {
+		this(0);
+	}
+
+	public XXHash64(final long seed) {
+		this.seed = seed;
+		v1 = seed + P1 + P2;
+		v2 = seed + P2;
+		v3 = seed;
+		v4 = seed - P1;
+	}
+
+	public void update(final byte[] b, final int off, final int len) {
+		update(ByteBuffer.wrap(b, off, len));
+	}
+
+	/**
+	 * Hashes the remaining bytes of the given buffer, and advances its position
+	 * to its limit.
+	 */
+	public void update(final ByteBuffer data) {
+		final ByteBuffer in = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		length += in.remaining();
+		if (pending.position() > 0) {
+			while (pending.hasRemaining() && in.hasRemaining())
+				pending.put(in.get());
+			if (pending.hasRemaining()) {
+				data.position(data.limit());
+				return;
+			}
+			pending.flip();
+			stripe(pending);
+			pending.clear();
+		}
+		while (in.remaining() >= 32)
+			stripe(in);
+		pending.put(in);
+		data.position(data.limit());
+	}
+
+	private void stripe(final ByteBuffer in) {
+		v1 = round(v1, in.getLong());
+		v2 = round(v2, in.getLong());
+		v3 = round(v3, in.getLong());
+		v4 = round(v4, in.getLong());
+	}
+
+	/**
+	 * Returns the hash of all data passed so far.
+	 */
+	public long getValue() {
+		long h;
+		if (length >= 32) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) +
+				Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		}
+		else {
+			h = seed + P5;
+		}
+		h += length;
+
+		final ByteBuffer tail = (ByteBuffer) pending.duplicate().flip();
+		tail.order(ByteOrder.LITTLE_ENDIAN);
+		while (tail.remaining() >= 8) {
+			h ^= round(0, tail.getLong());
+			h = Long.rotateLeft(h, 27) * P1 + P4;
+		}
+		if (tail.remaining() >= 4) {
+			h ^= (tail.getInt() & 0xffffffffL) * P1;
+			h = Long.rotateLeft(h, 23) * P2 + P3;
+		}
+		while (tail.hasRemaining()) {
+			h ^= (tail.get() & 0xff) * P5;
+			h = Long.rotateLeft(h, 11) * P1;
+		}
+
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round(long acc, final long input) {
+		acc += input * P2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * P1;
+	}
+
+	private static long merge(long acc, final long v) {
+		acc ^= round(0, v);
+		return acc * P1 + P4;
+	}
+}
@@ -26,6 +26,7 @@ import static java.lang.Float.floatToRawIntBits;
 
 import java.awt.Color;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 
 /// <summary>BitStreamWrite.cs
 /// BitStreamWrite is the implementation of IBitStreamWrite.
@@ -55,9 +56,9 @@ public class BitStreamWrite {
 	private long[] data; // the data section of the datablock to write.
 	private int dataPosition; // the position currently to write in the
 	// datablock specified in 32 bit increments.
-	private long dataLocal; // the local value of the data corresponding
-	// to dataposition
-	private long dataLocalNext; // the 32 bits in data after dataLocal
+	private long dataLocal; // accumulates the bits of the 32 bit word at
+	// dataPosition; up to 32 more bits may be
+	// written before it is stored in data.
 	private int dataBitOffset; // the offset into dataLocal that the next
 	// write will occur
 	private final int DataSizeIncrement = 0x000023F8;
@@ -90,8 +91,7 @@ public class BitStreamWrite {
 	}
 
 	public void WriteU8(final short uValue) {
-		final long symbol = SwapBits8(uValue);
-		WriteSymbol(Constants.Context8, symbol);
+		WriteByte(uValue & 0xff);
 	}
 
 	public void WriteU16(final int uValue) {
@@ -100,8 +100,10 @@ public class BitStreamWrite {
 	}
 
 	public void WriteU32(final long uValue) {
-		WriteU16((int) (0x0000FFFF & uValue));
-		WriteU16((int) (0x0000FFFF & (uValue >> 16)));
+		WriteByte((int) (0xFF & uValue));
+		WriteByte((int) (0xFF & (uValue >> 8)));
+		WriteByte((int) (0xFF & (uValue >> 16)));
+		WriteByte((int) (0xFF & (uValue >> 24)));
 	}
 
 	public void WriteU64(final long uValue) {
@@ -121,10 +123,39 @@ public class BitStreamWrite {
 		WriteU32(floatToRawIntBits(fValue));
 	}
 
+	/*
+	 * WriteF32
+	 * Writes length values of the given array, starting at offset; the
+	 * same as calling WriteF32 for each of them.
+	 */
+	public void WriteF32(final float[] values, final int offset,
+		final int length)
+	{
+		for (int i = offset; i < offset + length; i++)
+			WriteU32(floatToRawIntBits(values[i]));
+	}
+
+	/*
+	 * WriteCompressedU32
+	 * Writes length values of the given array, starting at offset, in the
+	 * given context; the same as calling WriteCompressedU32 for each of them.
+	 */
+	public void WriteCompressedU32(final long context, final int[] values,
+		final int offset, final int length)
+	{
+		for (int i = offset; i < offset + length; i++)
+			WriteCompressedU32(context, values[i] & 0xFFFFFFFFL);
+	}
+
 	public void WriteCompressedU32(final long context, final long uValue) {
 		compressed = true;
 		boolean escape = false;
-		if ((context != 0) && (context < Constants.MaxRange)) {
+		if (context >= Constants.StaticFull && context < Constants.MaxRange) {
+			// static contexts: the cumulative frequency of a value is the value
+			// itself, its frequency is 1, and there are no escapes.
+			Encode(uValue, 1, context - Constants.StaticFull);
+		}
+		else if ((context != 0) && (context < Constants.MaxRange)) {
 			escape = WriteSymbol(context, uValue);
 			if (escape == true) {
 				WriteU32(uValue);
@@ -244,27 +275,53 @@ public class BitStreamWrite {
 		if (0 == symbol) { // the symbol is the escape symbol.
 			rEscape = true;
 		}
+		this.contextManager.AddSymbol(context, symbol);
+		Encode(symbolCumFreq, symbolFreq, totalCumFreq);
+		return rEscape;
+	}
+
+	/*
+	 * WriteByte
+	 * Writes the given 8 bit value in the static context Context8, in
+	 * which each value has the frequency 1 and the cumulative frequency
+	 * of its bit-reversed value.
+	 */
+	private void WriteByte(final int uValue) {
+		Encode(SwapBits8(uValue), 1, 256);
+	}
+
+	/*
+	 * Encode
+	 * Narrows the interval [low, high] to the part of the given symbol
+	 * frequencies, and writes the leading bits which low and high have in
+	 * common.
+	 */
+	private void Encode(final long symbolCumFreq, final long symbolFreq,
+		final long totalCumFreq)
+	{
 		final long range = this.high + 1 - this.low;
 		this.high =
 			this.low - 1 + range * (symbolCumFreq + symbolFreq) / totalCumFreq;
 		this.low = this.low + range * symbolCumFreq / totalCumFreq;
-		this.contextManager.AddSymbol(context, symbol);
-		// write bits
-		long bit = this.low >> 15;
-		// long highmask = this.high & Constants.HalfMask;
-		// long lowmask = this.low & Constants.HalfMask;
-		while ((this.high & Constants.HalfMask) == (this.low & Constants.HalfMask))
-		{
-			this.high &= ~Constants.HalfMask;
-			this.high += this.high + 1;
-			WriteBit(bit);
-			while (this.underflow > 0) {
-				this.underflow--;
-				WriteBit((~bit) & 1);
+		// The common leading bits of high and low are shifted out all at
+		// once. They are written most significant bit first, so the bits of
+		// low are reversed before writing them. Pending underflow bits go
+		// after the first of them, inverted.
+		final int n =
+			Integer.numberOfLeadingZeros((int) ((this.high ^ this.low) & 0xFFFF)) - 16;
+		if (n > 0) {
+			final int bits = Integer.reverse((int) this.low << 16);
+			if (this.underflow > 0) {
+				WriteBits(bits, 1);
+				WriteRun(~bits & 1, this.underflow);
+				this.underflow = 0;
+				WriteBits(bits >>> 1, n - 1);
 			}
-			this.low &= ~Constants.HalfMask;
-			this.low += this.low;
-			bit = this.low >> 15;
+			else {
+				WriteBits(bits, n);
+			}
+			this.high = ((this.high << n) | ((1 << n) - 1)) & 0xFFFF;
+			this.low = (this.low << n) & 0xFFFF;
 		}
 		// check for underflow
 		// Underflow occurs when the values in this.low and this.high
@@ -284,7 +341,6 @@ public class BitStreamWrite {
 			this.low &= ~Constants.HalfMask;
 			this.underflow++;
 		}
-		return rEscape;
 	}
 
 	/*
@@ -298,46 +354,42 @@ public class BitStreamWrite {
 	}
 
 	/*
-	 * WriteBit
-	 * Write the given bit to the datablock.
+	 * WriteBits
+	 * Write the count (at most 32) lowest bits of the given value to the
+	 * datablock, least significant bit first.
 	 */
-	private void WriteBit(long bit) {
-		final long mask = 1;
-		bit &= mask;
-		this.dataLocal &= ~(mask << this.dataBitOffset);
-		this.dataLocal |= (bit << this.dataBitOffset);
-		this.dataBitOffset += 1;
+	private void WriteBits(final long bits, final int count) {
+		this.dataLocal |= (bits & ((1L << count) - 1)) << this.dataBitOffset;
+		this.dataBitOffset += count;
 		if (this.dataBitOffset >= 32) {
 			this.dataBitOffset -= 32;
 			IncrementPosition();
 		}
 	}
 
+	/*
+	 * WriteRun
+	 * Write the given bit count times to the datablock.
+	 */
+	private void WriteRun(final long bit, long count) {
+		final long bits = bit == 0 ? 0 : 0xFFFFFFFFL;
+		for (; count > 32; count -= 32)
+			WriteBits(bits, 32);
+		WriteBits(bits, (int) count);
+	}
+
 	/*
 	 * IncrementPosition
-	 * Updates the values of the datablock stored in dataLocal and
-	dataLocalNext
-	 * to the next values in the datablock.
+	 * Stores the completed 32 bit word of the datablock and moves the
+	 * bits which were written beyond it to dataLocal.
 	 */
 	private void IncrementPosition() {
 		this.dataPosition++;
 		CheckPosition();
-		this.data[this.dataPosition - 1] = this.dataLocal;
-		this.dataLocal = this.dataLocalNext;
-		this.dataLocalNext = this.data[this.dataPosition + 1];
+		this.data[this.dataPosition - 1] = this.dataLocal & 0xFFFFFFFFL;
+		this.dataLocal >>>= 32;
 	}
 
-	/*
-	 * GetLocal
-	 * store the initial 64 bits of the datablock in dataLocal and
-	 * dataLocalNext
-	 */
-	// private void GetLocal()
-	// {
-	// CheckPosition();
-	// this.dataLocal = this.data[this.dataPosition];
-	// this.dataLocalNext = this.data[this.dataPosition+1];
-	// }
 	/*
 	 * PutLocal
 	 * stores the local values of the data to the data array
@@ -345,7 +397,7 @@ public class BitStreamWrite {
 	 */
 	private void PutLocal() {
 		this.data[this.dataPosition] = dataLocal;
-		this.data[this.dataPosition + 1] = dataLocalNext;
+		this.data[this.dataPosition + 1] = 0;
 	}
 
 	/*
@@ -355,7 +407,10 @@ public class BitStreamWrite {
 	 */
 	private void CheckPosition() {
 		if (this.dataPosition + 2 > this.data.length) {
-			AllocateDataBuffer(this.dataPosition + 2 + DataSizeIncrement);
+			// grow geometrically, so that large blocks are not copied over and
+			// over again
+			AllocateDataBuffer(Math.max(this.dataPosition + 2 + DataSizeIncrement,
+				2 * this.data.length));
 		}
 	}
 
@@ -367,11 +422,7 @@ public class BitStreamWrite {
 	private void AllocateDataBuffer(final int size) {
 		// Store an old buffer if it exists
 		if (null != this.data) {
-			final long[] oldData = this.data;
-			this.data = new long[size];
-			for (int i = 0; i < oldData.length; i++) {
-				this.data[i] = oldData[i];
-			}
+			this.data = Arrays.copyOf(this.data, size);
 		}
 		else {
 			this.data = new long[size];
@@ -33,6 +33,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.scijava.java3d.TriangleArray;
 import org.scijava.vecmath.Color3f;
@@ -40,8 +45,11 @@ import org.scijava.vecmath.Color4f;
 import org.scijava.vecmath.Point3f;
 import org.scijava.vecmath.Vector3f;
 
+import customnode.CustomIndexedTriangleMesh;
+import customnode.CustomMesh;
 import customnode.CustomMeshNode;
 import customnode.CustomTriangleMesh;
+import ij.IJ;
 import ij3d.Content;
 import ij3d.ContentNode;
 import ij3d.Image3DUniverse;
@@ -96,6 +104,18 @@ public class U3DExporter {
 			"\\end{document}";
 	}
 
+	/** Returns the colors of the vertices of each triangle, 3 per triangle. */
+	private static List<Color3f> getTriangleColors(
+		final CustomIndexedTriangleMesh mesh)
+	{
+		final Color3f[] colors = mesh.getVertexColors();
+		final int[] faces = mesh.getFaces();
+		final List<Color3f> ret = new ArrayList<Color3f>(faces.length);
+		for (final int f : faces)
+			ret.add(colors[f]);
+		return ret;
+	}
+
 	public static void export(final Image3DUniverse univ, final String path)
 		throws IOException
 	{
@@ -113,7 +133,18 @@ public class U3DExporter {
 			final ContentNode cn = ((Content) content).getContent();
 			CustomTriangleMesh ctm = null;
 			if (cn instanceof CustomMeshNode) {
-				ctm = (CustomTriangleMesh) ((CustomMeshNode) cn).getMesh();
+				final CustomMesh cm = ((CustomMeshNode) cn).getMesh();
+				if (cm instanceof CustomTriangleMesh) ctm = (CustomTriangleMesh) cm;
+				// indexed meshes are exported as plain triangles
+				else if (cm instanceof CustomIndexedTriangleMesh) {
+					ctm = new CustomTriangleMesh(cm.getMesh(), cm.getColor(), cm
+						.getTransparency());
+					// keep vertex-wise colors, e.g. of PLY files
+					if (cm.getColor() == null) ctm.setColor(getTriangleColors(
+						(CustomIndexedTriangleMesh) cm));
+				}
+				else IJ.log("Cannot export " + ((Content) content).getName() +
+					" of class " + cm.getClass() + " as U3D");
 			}
 			else if (cn instanceof MeshGroup) {
 				if (((MeshGroup) cn).getMesh() instanceof CustomTriangleMesh) ctm =
@@ -144,40 +175,34 @@ public class U3DExporter {
 		b = getViewModifierChain("DefaultView", "SceneViewResource");
 		ds += writeDataBlock(b, oDecl, buffer);
 
-		for (final Mesh mesh : meshes) {
-			final String n = mesh.name;
-			mesh.normalizeCoords(min, max);
-
-			final float[] matrix =
-				new float[] { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1 };
-			final String nodeModifierChainName = n; // "Box01";
-			final String modelNodeName = n; // "Box01";
-			final String modelResourceName = n; // "LightBoxModel";
-			final String shadingName = n; // "Box01";
-			final String shaderName = n; // "Box010";
-
-			b =
-				getNodeModifierChain(nodeModifierChainName, modelNodeName,
-					modelResourceName, shadingName, shaderName, matrix);
-			ds += writeDataBlock(b, oDecl, buffer);
-
-			final String modelModifierChainName = n; // "LightBoxModel";
-			final String meshname = n; // "LightBoxModel";
-
-			b = getModelResourceModifierChain(modelModifierChainName, mesh, meshname);
-			ds += writeDataBlock(b, oDecl, buffer);
-
-			final String materialName = n; // "Box010";
-			b = getLitTextureShaderBlock(shaderName, materialName);
-			ds += writeDataBlock(b, oDecl, buffer);
-
-			b =
-				getMaterialResourceBlock(materialName, mesh.color.x, mesh.color.y,
-					mesh.color.z, mesh.color.w);
-			ds += writeDataBlock(b, oDecl, buffer);
-
-			b = getMeshContinuationBlock(mesh, meshname);
-			cs += writeDataBlock(b, oCont, buffer);
+		// The blocks of the meshes are independent of each other; encode them
+		// in parallel, and write them in the original order.
+		final int nThreads =
+			Math.max(1, Math.min(meshes.size(), Runtime.getRuntime()
+				.availableProcessors()));
+		final ExecutorService exec = Executors.newFixedThreadPool(nThreads);
+		try {
+			final List<Future<DataBlock[]>> encoded =
+				new ArrayList<Future<DataBlock[]>>();
+			for (final Mesh mesh : meshes) {
+				encoded.add(exec.submit(new Callable<DataBlock[]>() {
+
+					@Override
+					public DataBlock[] call() {
+						mesh.normalizeCoords(min, max);
+						return getMeshBlocks(mesh);
+					}
+				}));
+			}
+			for (final Future<DataBlock[]> f : encoded) {
+				final DataBlock[] blocks = waitFor(f);
+				for (int i = 0; i < blocks.length - 1; i++)
+					ds += writeDataBlock(blocks[i], oDecl, buffer);
+				cs += writeDataBlock(blocks[blocks.length - 1], oCont, buffer);
+			}
+		}
+		finally {
+			exec.shutdownNow();
 		}
 
 		final String lightModifierChainName = "Omni01";
@@ -200,6 +225,51 @@ public class U3DExporter {
 		out.close();
 	}
 
+	/**
+	 * Encodes the declaration blocks of the given mesh, followed by its
+	 * continuation block.
+	 */
+	private static DataBlock[] getMeshBlocks(final Mesh mesh) {
+		final String n = mesh.name;
+		final float[] matrix =
+			new float[] { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1 };
+		final String nodeModifierChainName = n; // "Box01";
+		final String modelNodeName = n; // "Box01";
+		final String modelResourceName = n; // "LightBoxModel";
+		final String shadingName = n; // "Box01";
+		final String shaderName = n; // "Box010";
+		final String modelModifierChainName = n; // "LightBoxModel";
+		final String meshname = n; // "LightBoxModel";
+		final String materialName = n; // "Box010";
+
+		return new DataBlock[] {
+			getNodeModifierChain(nodeModifierChainName, modelNodeName,
+				modelResourceName, shadingName, shaderName, matrix),
+			getModelResourceModifierChain(modelModifierChainName, mesh, meshname),
+			getLitTextureShaderBlock(shaderName, materialName),
+			getMaterialResourceBlock(materialName, mesh.color.x, mesh.color.y,
+				mesh.color.z, mesh.color.w),
+			getMeshContinuationBlock(mesh, meshname) };
+	}
+
+	private static DataBlock[] waitFor(final Future<DataBlock[]> f)
+		throws IOException
+	{
+		try {
+			return f.get();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
 	private static int writeDataBlock(final DataBlock b,
 		final WritableByteChannel o, ByteBuffer buffer) throws IOException
 	{
@@ -568,16 +638,19 @@ public class U3DExporter {
 		w.WriteU32(0); // base specular color count
 		w.WriteU32(0); // base texture coord count
 
+		final float[] xyz = new float[3 * Math.max(coords.length, normals.length)];
 		for (int i = 0; i < coords.length; i++) {
-			w.WriteF32(coords[i].x); // base position x
-			w.WriteF32(coords[i].y); // base position y
-			w.WriteF32(coords[i].z); // base position z
+			xyz[3 * i] = coords[i].x;
+			xyz[3 * i + 1] = coords[i].y;
+			xyz[3 * i + 2] = coords[i].z;
 		}
+		w.WriteF32(xyz, 0, 3 * coords.length); // base positions x, y, z
 		for (int i = 0; i < normals.length; i++) {
-			w.WriteF32(normals[i].x); // base normal x
-			w.WriteF32(normals[i].y); // base normal y
-			w.WriteF32(normals[i].z); // base normal z
+			xyz[3 * i] = normals[i].x;
+			xyz[3 * i + 1] = normals[i].y;
+			xyz[3 * i + 2] = normals[i].z;
 		}
+		w.WriteF32(xyz, 0, 3 * normals.length); // base normals x, y, z
 		/*
 				for(int i = 0; i < colors.length; i++) {
 					w.WriteF32(colors[i].x);     // base colors red
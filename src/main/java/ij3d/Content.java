@@ -174,6 +174,10 @@ public class Content extends BranchGroup implements UniverseListener,
 			getCurrent().showPointList(false);
 		}
 		currentTimePoint = tp;
+		final ContentInstant shown = getCurrent();
+		if (shown != null && shown.getContent() instanceof ContentPlaceholder) {
+			((ContentPlaceholder) shown.getContent()).loadInBackground();
+		}
 		if (showAllTimepoints) return;
 		final ContentInstant next = getCurrent();
 		if (next != null && swapTimelapseData) next.restoreDisplayedData();
@@ -630,7 +634,14 @@ public class Content extends BranchGroup implements UniverseListener,
 		return getCurrent().getType();
 	}
 
+	/**
+	 * Returns the node of the current time point. If its data was not loaded
+	 * yet, it is loaded first.
+	 */
 	public ContentNode getContent() {
+		final ContentNode cn = getCurrent().getContent();
+		if (!(cn instanceof ContentPlaceholder)) return cn;
+		((ContentPlaceholder) cn).load();
 		return getCurrent().getContent();
 	}
 
@@ -37,4 +37,6 @@ public interface ContentConstants {
 	public static final int SURFACE_PLOT2D = 3;
 	public static final int MULTIORTHO = 4;
 	public static final int CUSTOM = 5;
+	/** A ContentPlaceholder, whose data is not loaded yet */
+	public static final int PLACEHOLDER = 6;
 }
@@ -259,7 +259,7 @@ public class ContentInstant extends BranchGroup implements UniverseListener,
 		setSwitch(PL, showPL);
 
 		// update type
-		this.type = CUSTOM;
+		this.type = node instanceof ContentPlaceholder ? PLACEHOLDER : CUSTOM;
 	}
 
 	private void setSwitch(final int which, final boolean on) {
@@ -607,7 +607,8 @@ public class ContentInstant extends BranchGroup implements UniverseListener,
 				mesh = ((MeshGroup) contentNode).getMesh();
 				break;
 			case CUSTOM:
-				mesh = ((CustomMeshNode) contentNode).getMesh();
+				if (contentNode instanceof CustomMeshNode) mesh =
+					((CustomMeshNode) contentNode).getMesh();
 				break;
 		}
 		if (mesh == null) return;
@@ -622,6 +623,20 @@ public class ContentInstant extends BranchGroup implements UniverseListener,
 		if (contentNode != null) contentNode.colorUpdated(this.color);
 	}
 
+	/**
+	 * Hands the current color, transparency, threshold and shading to the
+	 * content node, e.g. after it replaced a placeholder, which ignores them.
+	 * The threshold of surfaces is not handed over, since they are created
+	 * with the current threshold already.
+	 */
+	void attributesUpdated() {
+		if (contentNode == null) return;
+		if (color != null) contentNode.colorUpdated(color);
+		contentNode.transparencyUpdated(transparency);
+		if (type != SURFACE) contentNode.thresholdUpdated(threshold);
+		contentNode.shadeUpdated(shaded);
+	}
+
 	public synchronized void setTransparency(float transparency) {
 		transparency = transparency < 0 ? 0 : transparency;
 		transparency = transparency > 1 ? 1 : transparency;
@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package ij3d;
+
+import java.util.Collection;
+
+import org.scijava.java3d.View;
+import org.scijava.vecmath.Color3f;
+import org.scijava.vecmath.Point3d;
+import org.scijava.vecmath.Tuple3d;
+
+import ij.IJ;
+import ij3d.shapes.BoundingBox;
+
+/**
+ * A lightweight stand-in for a ContentNode whose data has not been loaded
+ * yet. It only knows the bounds of the final node, and displays them as a
+ * box. Calling {@link #load()} loads the data, which replaces this node in its
+ * ContentInstant. This happens on first access through
+ * {@link Content#getContent()}, e.g. when the content is exported, and in the
+ * background when the content is selected or its time point is shown.
+ */
+public class ContentPlaceholder extends ContentNode {
+
+	private final Point3d min, max;
+	private final Runnable loader;
+	private boolean loaded = false;
+
+	/**
+	 * @param loader loads the data and displays it in place of this node.
+	 */
+	public ContentPlaceholder(final Point3d min, final Point3d max,
+		final Runnable loader)
+	{
+		this.min = new Point3d(min);
+		this.max = new Point3d(max);
+		this.loader = loader;
+		final BoundingBox bb = new BoundingBox(min, max, new Color3f(0.5f, 0.5f,
+			0.5f));
+		// pickable, so that clicking the box selects, and thus loads, the content
+		addChild(bb);
+	}
+
+	/**
+	 * Loads the data of this placeholder, unless this was done before. Blocks
+	 * until loading has finished.
+	 */
+	public synchronized void load() {
+		if (loaded) return;
+		loaded = true;
+		try {
+			loader.run();
+		}
+		catch (final Exception e) {
+			e.printStackTrace();
+			IJ.log("Could not load content: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Loads the data of this placeholder in a separate thread, unless this
+	 * was done before.
+	 */
+	public void loadInBackground() {
+		loadInBackground(null);
+	}
+
+	/**
+	 * Loads the data of this placeholder in a separate thread, unless this
+	 * was done before, and runs <code>whenLoaded</code>, if not null, in that
+	 * thread once the data is attached.
+	 */
+	public void loadInBackground(final Runnable whenLoaded) {
+		if (isLoaded()) return;
+		final Thread t = new Thread("Content loader") {
+
+			@Override
+			public void run() {
+				load();
+				if (whenLoaded != null) whenLoaded.run();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Loads the data of all placeholders in the given contents.
+	 */
+	public static void loadAll(final Collection<Content> contents) {
+		for (final Content content : contents) {
+			for (final ContentInstant ci : content.getInstants().values()) {
+				final ContentNode cn = ci.getContent();
+				if (cn instanceof ContentPlaceholder) ((ContentPlaceholder) cn).load();
+			}
+		}
+	}
+
+	@Override
+	public float getVolume() {
+		return 0;
+	}
+
+	@Override
+	public void getMin(final Tuple3d min) {
+		min.set(this.min);
+	}
+
+	@Override
+	public void getMax(final Tuple3d max) {
+		max.set(this.max);
+	}
+
+	@Override
+	public void getCenter(final Tuple3d center) {
+		center.interpolate(min, max, 0.5);
+	}
+
+	@Override
+	public void channelsUpdated(final boolean[] channels) {
+		// do nothing
+	}
+
+	@Override
+	public void lutUpdated(final int[] r, final int[] g, final int[] b,
+		final int[] a)
+	{
+		// do nothing
+	}
+
+	@Override
+	public void thresholdUpdated(final int threshold) {
+		// do nothing
+	}
+
+	@Override
+	public void colorUpdated(final Color3f color) {
+		// do nothing
+	}
+
+	@Override
+	public void transparencyUpdated(final float transparency) {
+		// do nothing
+	}
+
+	@Override
+	public void shadeUpdated(final boolean shaded) {
+		// do nothing
+	}
+
+	@Override
+	public void eyePtChanged(final View view) {
+		// do nothing
+	}
+
+	@Override
+	public void swapDisplayedData(final String path, final String name) {
+		// do nothing
+	}
+
+	@Override
+	public void clearDisplayedData() {
+		// do nothing
+	}
+
+	@Override
+	public void restoreDisplayedData(final String path, final String name) {
+		// do nothing
+	}
+}
@@ -44,6 +44,7 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -62,10 +63,12 @@ import org.scijava.vecmath.Point3d;
 import org.scijava.vecmath.Point3f;
 import org.scijava.vecmath.Vector3f;
 
+import customnode.CustomIndexedTriangleMesh;
 import customnode.CustomMesh;
 import customnode.CustomMeshNode;
 import customnode.CustomMultiMesh;
 import customnode.CustomTriangleMesh;
+import customnode.MeshComponents;
 import customnode.u3d.U3DExporter;
 import ij.IJ;
 import ij.ImagePlus;
@@ -285,6 +288,10 @@ public class Executer {
 		importFile("Select .stl file", ".stl", "STL");
 	}
 
+	public void importPLY() {
+		importFile("Select .ply file", ".ply", "PLY");
+	}
+
 	public void saveAsDXF() {
 		final File dxf_file = promptForFile("Save as DXF", "untitled", ".dxf");
 		if (dxf_file == null) return;
@@ -315,6 +322,14 @@ public class Executer {
 		record(EXPORT, "STL Binary", stl_file.getAbsolutePath());
 	}
 
+	public void saveAsPLY() {
+		final File ply_file =
+			promptForFile("Save as PLY (binary)", "untitled", ".ply");
+		if (ply_file == null) return;
+		MeshExporter.saveAsPLY(univ.getContents(), ply_file);
+		record(EXPORT, "PLY", ply_file.getAbsolutePath());
+	}
+
 	public static File promptForFile(final String title, final String suggestion,
 		final String ending)
 	{
@@ -422,6 +437,20 @@ public class Executer {
 		}
 	}
 
+	public void saveSessionContainer() {
+		final SaveDialog sd =
+			new SaveDialog("Save session...", "session", SessionContainer.EXTENSION);
+		final String dir = sd.getDirectory();
+		final String name = sd.getFileName();
+		if (dir == null || name == null) return;
+		try {
+			SessionContainer.save(univ, dir + name);
+		}
+		catch (final Exception e) {
+			IJ.error(e.getMessage());
+		}
+	}
+
 	public void close() {
 		univ.close();
 		record(CLOSE);
@@ -621,22 +650,25 @@ public class Executer {
 		// Check multi first; it extends CustomMeshNode
 		if (cn instanceof CustomMultiMesh) {
 			final CustomMultiMesh multi = (CustomMultiMesh) cn;
-			for (int i = 0; i < multi.size(); i++) {
-				final CustomMesh m = multi.getMesh(i);
-				if (m instanceof CustomTriangleMesh) MeshEditor.smooth2(
-					(CustomTriangleMesh) m, 1);
-			}
+			for (int i = 0; i < multi.size(); i++)
+				smoothMesh(multi.getMesh(i), c.getName() + " [" + (i + 1) + "]");
 		}
 		else if (cn instanceof CustomMeshNode) {
-			final CustomMesh mesh = ((CustomMeshNode) cn).getMesh();
-			if (mesh instanceof CustomTriangleMesh) MeshEditor.smooth2(
-				(CustomTriangleMesh) mesh, 1); // 0.25f);
+			smoothMesh(((CustomMeshNode) cn).getMesh(), c.getName());
 		}
 	}
 
+	private static void smoothMesh(final CustomMesh mesh, final String name) {
+		if (mesh instanceof CustomTriangleMesh) MeshEditor.smooth2(
+			(CustomTriangleMesh) mesh, 1); // 0.25f);
+		else if (mesh instanceof CustomIndexedTriangleMesh) MeshEditor.smooth2(
+			(CustomIndexedTriangleMesh) mesh, 1);
+		else IJ.log("Cannot smooth " + name + " of class " + mesh.getClass());
+	}
+
 	public void smoothAllMeshes() {
 		// process each Mesh in a separate thread
-		final Collection all = univ.getContents();
+		final Collection<Content> all = univ.getContents();
 		final Content[] c = new Content[all.size()];
 		all.toArray(c);
 		final AtomicInteger ai = new AtomicInteger(0);
@@ -691,6 +723,38 @@ public class Executer {
 		new InteractiveMeshDecimation().run(ctm);
 	}
 
+	/** Removes connected components with fewer than a given number of triangles. */
+	public void removeSmallComponents(final Content c) {
+		if (!checkSel(c)) return;
+		CustomTriangleMesh ctm;
+		final ContentNode n = c.getContent();
+		if (n instanceof CustomMeshNode) {
+			if (((CustomMeshNode) n).getMesh() instanceof CustomTriangleMesh) ctm =
+				(CustomTriangleMesh) ((CustomMeshNode) n).getMesh();
+			else return;
+		}
+		else if (n instanceof MeshGroup) {
+			ctm = ((MeshGroup) n).getMesh();
+		}
+		else {
+			return;
+		}
+		final GenericDialog gd =
+			new GenericDialog("Remove small components", univ.getWindow());
+		gd.addNumericField("Minimum triangles per component", 100, 0);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		final int minTriangles = (int) gd.getNextNumber();
+
+		final List<Point3f> mesh = ctm.getMesh();
+		final List<Point3f> filtered =
+			MeshComponents.removeSmallComponents(mesh, minTriangles);
+		IJ.showStatus("Removed " + (mesh.size() - filtered.size()) / 3 +
+			" of " + mesh.size() / 3 + " triangles");
+		ctm.setMesh(filtered);
+		univ.fireContentChanged(c);
+	}
+
 	/* ----------------------------------------------------------
 	 * Display As submenu
 	 * --------------------------------------------------------*/
@@ -50,9 +50,11 @@ public class Image3DMenubar extends JMenuBar implements ActionListener,
 	private JMenuItem saveView;
 	private JMenuItem loadView;
 	private JMenuItem saveSession;
+	private JMenuItem saveSessionContainer;
 	private JMenuItem loadSession;
 	private JMenuItem importObj;
 	private JMenuItem importStl;
+	private JMenuItem importPly;
 	private JMenuItem color;
 	private JMenuItem bgColor;
 	private JCheckBoxMenuItem fullscreen;
@@ -83,6 +85,7 @@ public class Image3DMenubar extends JMenuBar implements ActionListener,
 	private JMenuItem exportDXF;
 	private JMenuItem exportAsciiSTL;
 	private JMenuItem exportBinarySTL;
+	private JMenuItem exportPLY;
 	private JMenuItem exportU3D;
 	private JMenuItem scalebar;
 	private JMenuItem displayAsVolume;
@@ -166,6 +169,10 @@ public class Image3DMenubar extends JMenuBar implements ActionListener,
 		importStl.addActionListener(this);
 		importt.add(importStl);
 
+		importPly = new JMenuItem("PLY");
+		importPly.addActionListener(this);
+		importt.add(importPly);
+
 		file.add(importt);
 
 		final JMenu subMenu = new JMenu("Export surfaces");
@@ -186,6 +193,10 @@ public class Image3DMenubar extends JMenuBar implements ActionListener,
 		exportBinarySTL.addActionListener(this);
 		subMenu.add(exportBinarySTL);
 
+		exportPLY = new JMenuItem("PLY (binary)");
+		exportPLY.addActionListener(this);
+		subMenu.add(exportPLY);
+
 		exportU3D = new JMenuItem("U3D");
 		exportU3D.addActionListener(this);
 		subMenu.add(exportU3D);
@@ -206,6 +217,10 @@ public class Image3DMenubar extends JMenuBar implements ActionListener,
 		saveSession.addActionListener(this);
 		file.add(saveSession);
 
+		saveSessionContainer = new JMenuItem("Save Session as Single File");
+		saveSessionContainer.addActionListener(this);
+		file.add(saveSessionContainer);
+
 		loadSession = new JMenuItem("Load Session");
 		loadSession.addActionListener(this);
 		file.add(loadSession);
@@ -618,14 +633,17 @@ public class Image3DMenubar extends JMenuBar implements ActionListener,
 		else if (src == saveView) executer.saveView();
 		else if (src == loadView) executer.loadView();
 		else if (src == saveSession) executer.saveSession();
+		else if (src == saveSessionContainer) executer.saveSessionContainer();
 		else if (src == loadSession) executer.loadSession();
 		else if (src == importObj) executer.importWaveFront();
 		else if (src == importStl) executer.importSTL();
+		else if (src == importPly) executer.importPLY();
 		else if (src == exportDXF) executer.saveAsDXF();
 		else if (src == exportObj) executer.saveAsWaveFront();
 		else if (src == exportU3D) executer.saveAsU3D();
 		else if (src == exportAsciiSTL) executer.saveAsAsciiSTL();
 		else if (src == exportBinarySTL) executer.saveAsBinarySTL();
+		else if (src == exportPLY) executer.saveAsPLY();
 		else if (src == light) executer.adjustLight();
 		else if (src == viewPreferences) executer.viewPreferences();
 		else if (src == shortcuts) executer.editShortcuts();
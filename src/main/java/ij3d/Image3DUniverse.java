@@ -580,6 +580,20 @@ public class Image3DUniverse extends DefaultAnimatableUniverse {
 
 		fireContentSelected(selected);
 
+		// load the data of a content from a session in the background, and
+		// announce the selection again once it is there
+		final ContentNode cn = selected != null ? selected.getCurrent()
+			.getContent() : null;
+		if (cn instanceof ContentPlaceholder) {
+			((ContentPlaceholder) cn).loadInBackground(new Runnable() {
+
+				@Override
+				public void run() {
+					if (selected == c) fireContentSelected(c);
+				}
+			});
+		}
+
 		if (c != null && ij.plugin.frame.Recorder.record) Executer.record("select",
 			c.getName());
 	}
@@ -757,43 +771,82 @@ public class Image3DUniverse extends DefaultAnimatableUniverse {
 	}
 
 	/**
+	 * The octrees of this universe, by name. Several octrees can be displayed
+	 * at the same time; they share the loader threads and the memory budget
+	 * for their bricks.
+	 * 
 	 * @deprecated The octree methods will be outsourced into a different plugin.
 	 */
 	@Deprecated
-	private VolumeOctree octree = null;
+	private final Hashtable<String, VolumeOctree> octrees =
+		new Hashtable<String, VolumeOctree>();
 
 	/**
+	 * Removes all octrees.
+	 * 
 	 * @deprecated The octree methods will be outsourced into a different plugin.
 	 */
 	@Deprecated
 	public void removeOctree() {
+		for (final String name : new ArrayList<String>(octrees.keySet()))
+			removeOctree(name);
+	}
+
+	/**
+	 * Removes the octree with the specified name and releases its bricks.
+	 * 
+	 * @deprecated The octree methods will be outsourced into a different plugin.
+	 */
+	@Deprecated
+	public void removeOctree(final String name) {
+		final VolumeOctree octree = octrees.remove(name);
 		if (octree != null) {
 			this.removeUniverseListener(octree);
 			scene.removeChild(octree.getRootBranchGroup());
-			octree = null;
+			octree.close();
 		}
 	}
 
 	/**
+	 * Returns the octree with the specified name, or null.
+	 * 
+	 * @deprecated The octree methods will be outsourced into a different plugin.
+	 */
+	@Deprecated
+	public VolumeOctree getOctree(final String name) {
+		return octrees.get(name);
+	}
+
+	/**
+	 * Returns the octrees of this universe.
+	 * 
+	 * @deprecated The octree methods will be outsourced into a different plugin.
+	 */
+	@Deprecated
+	public Collection<VolumeOctree> getOctrees() {
+		return octrees.values();
+	}
+
+	/**
+	 * Adds the octree stored in the specified directory. Its name must differ
+	 * from the names of the other octrees and contents.
+	 * 
 	 * @deprecated The octree methods will be outsourced into a different plugin.
 	 */
 	@Deprecated
 	public VolumeOctree addOctree(final String imageDir, final String name) {
-		if (octree != null) {
-			IJ.error("Only one large volume can be displayed a time.\n"
-				+ "Please remove previously displayed volumes first.");
-			return null;
-		}
-		if (contents.containsKey(name)) {
+		if (contents.containsKey(name) || octrees.containsKey(name)) {
 			IJ.error("Name exists already");
 			return null;
 		}
+		VolumeOctree octree = null;
 		try {
 			octree = new VolumeOctree(imageDir, canvas);
 			octree.displayInitial();
 			octree.getRootBranchGroup().compile();
 			scene.addChild(octree.getRootBranchGroup());
 			ensureScale(octree.realWorldXDim());
+			octrees.put(name, octree);
 			this.addUniverseListener(octree);
 		}
 		catch (final Exception e) {
@@ -1392,7 +1445,7 @@ public class Image3DUniverse extends DefaultAnimatableUniverse {
 	 * 
 	 * @return
 	 */
-	public Collection getContents() {
+	public Collection<Content> getContents() {
 		if (contents == null) return null;
 		return contents.values();
 	}
@@ -472,6 +472,8 @@ public class ImageJ3DViewer implements PlugIn {
 				else MeshExporter.saveAsSTL(univ.getContents(), new File(path),
 					MeshExporter.BINARY);
 			}
+			else if (format.equals("ply")) MeshExporter.saveAsPLY(univ
+				.getContents(), new File(path));
 			else if (format.equals("u3d")) try {
 				U3DExporter.export(univ, path);
 			}
@@ -34,12 +34,22 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.scijava.java3d.Transform3D;
 import org.scijava.vecmath.Color3f;
@@ -47,9 +57,11 @@ import org.scijava.vecmath.Color3f;
 import customnode.CustomMesh;
 import customnode.CustomMeshNode;
 import customnode.CustomMultiMesh;
+import customnode.MeshCache;
 import customnode.MeshLoader;
 import customnode.WavefrontExporter;
 import ij.IJ;
+import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.io.FileInfo;
 import ij.io.SaveDialog;
@@ -80,6 +92,11 @@ public class SaveSession {
 	public static void saveScene(final Image3DUniverse univ, final String path)
 		throws IOException
 	{
+		if (path.endsWith(SessionContainer.EXTENSION)) {
+			SessionContainer.save(univ, path);
+			return;
+		}
+		ContentPlaceholder.loadAll(univ.getContents());
 		final SaveSession sase = new SaveSession();
 		if (!sase.ensureAllSaved(univ.getContents())) {
 			IJ.error("Could not save session");
@@ -90,26 +107,134 @@ public class SaveSession {
 		for (final Object c : univ.getContents())
 			sase.saveContent(out, (Content) c);
 		out.close();
+		sase.saveMeshCaches(univ.getContents());
 	}
 
 	public static void loadScene(final Image3DUniverse univ, final String path)
 		throws IOException
 	{
+		loadScene(univ, path, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Loads a session, building its contents concurrently with the given
+	 * number of threads. The contents are added to the universe in the order
+	 * in which they appear in the session. Contents whose images or meshes
+	 * would together exceed the free memory are not built at the same time.
+	 */
+	public static void loadScene(final Image3DUniverse univ, final String path,
+		final int nThreads) throws IOException
+	{
+		if (SessionContainer.isContainer(path)) {
+			SessionContainer.load(univ, path);
+			return;
+		}
 		final BufferedReader in = new BufferedReader(new FileReader(path));
 		final SaveSession sase = new SaveSession();
 		univ.removeAllContents();
-		final HashMap<String, String> view = sase.readView(in, univ);
-		final boolean b = univ.getAutoAdjustView();
-		Content c = null;
-		while ((c = sase.readContent(in)) != null) {
-			// TODO
-			c.setPointListDialog(univ.getPointListDialog());
-			univ.addContent(c);
+		final HashMap<String, String> view;
+		final ArrayList<ContentProperties> contents =
+			new ArrayList<ContentProperties>();
+		try {
+			view = sase.readView(in, univ);
+			ContentProperties cp = null;
+			while ((cp = sase.readContentProperties(in)) != null)
+				contents.add(cp);
 		}
-		in.close();
+		finally {
+			in.close();
+		}
+		sase.loadContents(univ, contents, nThreads);
 		sase.apply(view, univ);
 	}
 
+	/**
+	 * Builds the given contents on a pool of <code>nThreads</code> threads and
+	 * adds them to the universe in their original order, as soon as they are
+	 * available.
+	 */
+	void loadContents(final Image3DUniverse univ,
+		final List<ContentProperties> contents, final int nThreads)
+		throws IOException
+	{
+		final int n = contents.size();
+		if (n == 0) return;
+
+		// the memory budget, in MB
+		final Runtime rt = Runtime.getRuntime();
+		final long free = rt.maxMemory() - rt.totalMemory() + rt.freeMemory();
+		final int budget = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+			(free / 2) >> 20));
+		final Semaphore memory = new Semaphore(budget, true);
+
+		final ExecutorService exec =
+			Executors.newFixedThreadPool(Math.max(1, Math.min(n, nThreads)));
+		final ArrayList<Future<Content>> futures = new ArrayList<Future<Content>>();
+		for (final ContentProperties cp : contents) {
+			final int permits = (int) Math.max(1, Math.min(budget,
+				(estimateMemory(cp) >> 20) + 1));
+			futures.add(exec.submit(new Callable<Content>() {
+
+				@Override
+				public Content call() throws Exception {
+					memory.acquire(permits);
+					try {
+						return buildContent(cp);
+					}
+					finally {
+						memory.release(permits);
+					}
+				}
+			}));
+		}
+		exec.shutdown();
+
+		try {
+			for (int i = 0; i < n; i++) {
+				final Content c = futures.get(i).get();
+				c.setPointListDialog(univ.getPointListDialog());
+				univ.addContent(c);
+				IJ.showProgress(i + 1, n);
+			}
+		}
+		catch (final InterruptedException e) {
+			exec.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Loading session interrupted");
+		}
+		catch (final ExecutionException e) {
+			exec.shutdownNow();
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+		finally {
+			IJ.showProgress(1.0);
+		}
+	}
+
+	/**
+	 * Estimates the number of bytes needed to build the given content, from
+	 * the sizes of the image and mesh files it refers to.
+	 */
+	static long estimateMemory(final ContentProperties cp) {
+		final HashSet<String> files = new HashSet<String>();
+		for (final HashMap<String, String> props : cp.instants) {
+			String tmp;
+			if ((tmp = props.get("imgfile")) != null) files.add(tmp);
+			if ((tmp = props.get("surffiles")) != null) {
+				final String[] sp = tmp.split("%%%");
+				for (int i = 0; i < sp.length; i += 2)
+					files.add(sp[i]);
+			}
+		}
+		long bytes = 0;
+		for (final String file : files)
+			bytes += new File(file).length();
+		return bytes;
+	}
+
 	private class CMesh {
 
 		private final CustomMesh mesh;
@@ -134,6 +259,7 @@ public class SaveSession {
 			for (final ContentInstant c : content.getInstants().values()) {
 				final int t = c.getType();
 				if (t != ContentConstants.CUSTOM) {
+					if (!needsImageFile(c)) continue;
 					final FileInfo fi = c.getImage().getOriginalFileInfo();
 					if (fi == null || c.image.changes) unsavedImages.add(c.image
 						.getTitle());
@@ -144,6 +270,7 @@ public class SaveSession {
 				int i = -1;
 				for (final CustomMesh cm : meshes) {
 					i++;
+					if (!needsMeshFile(cm)) continue;
 					final String file = cm.getFile();
 					final boolean changed = file == null || cm.hasChanged();
 					if (!changed) continue;
@@ -208,6 +335,117 @@ public class SaveSession {
 		return true;
 	}
 
+	/**
+	 * Returns whether the image of the given ContentInstant needs to be saved
+	 * to a file before the session can be saved.
+	 */
+	protected boolean needsImageFile(final ContentInstant c) {
+		return true;
+	}
+
+	/**
+	 * Returns whether the given mesh needs to be saved to a file before the
+	 * session can be saved.
+	 */
+	protected boolean needsMeshFile(final CustomMesh cm) {
+		return true;
+	}
+
+	/**
+	 * Returns the reference to the image of the given ContentInstant which is
+	 * stored in the session, and passed to {@link #openImage(String)} when it
+	 * is loaded.
+	 */
+	protected String getImageReference(final ContentInstant c)
+		throws IOException
+	{
+		return getImageFile(c);
+	}
+
+	/**
+	 * Returns the reference to the meshes of the given ContentInstant which is
+	 * stored in the session: pairs of file and mesh name, separated by "%%%".
+	 */
+	protected String getMeshReference(final ContentInstant c)
+		throws IOException
+	{
+		return getMeshString(c);
+	}
+
+	/**
+	 * Called after the properties of the given ContentInstant are written;
+	 * allows to store additional properties.
+	 */
+	protected void saveExtraProperties(final PrintWriter out,
+		final ContentInstant c) throws IOException
+	{}
+
+	/**
+	 * Opens the image with the given reference, as returned by
+	 * {@link #getImageReference(ContentInstant)}.
+	 */
+	protected ImagePlus openImage(final String reference) throws IOException {
+		return IJ.openImage(reference);
+	}
+
+	/**
+	 * Writes a {@link MeshCache} for each mesh file referred to by the given
+	 * contents, unless an up-to-date one exists already, so that the session
+	 * can be re-opened without parsing the mesh files. Failing to do so is not
+	 * fatal, since the mesh files are used as a fallback.
+	 */
+	void saveMeshCaches(final Collection<Content> contents) {
+		final HashMap<String, HashMap<String, CustomMesh>> file2meshes =
+			new HashMap<String, HashMap<String, CustomMesh>>();
+		final HashSet<String> unsupported = new HashSet<String>();
+		for (final Content content : contents) {
+			for (final ContentInstant c : content.getInstants().values()) {
+				if (c.getType() != ContentConstants.CUSTOM) continue;
+				for (final CustomMesh cm : getMeshes((CustomMeshNode) c
+					.getContent()))
+				{
+					final String file = cm.getFile();
+					if (file == null) continue;
+					if (!MeshCache.isSupported(cm)) unsupported.add(file);
+					if (!file2meshes.containsKey(file)) file2meshes.put(file,
+						new HashMap<String, CustomMesh>());
+					file2meshes.get(file).put(getMeshName(cm, c), cm);
+				}
+			}
+		}
+
+		for (final String file : file2meshes.keySet()) {
+			if (unsupported.contains(file)) continue;
+			final HashMap<String, CustomMesh> meshes = file2meshes.get(file);
+			try {
+				final List<String> cached = MeshCache.getNames(file);
+				if (cached != null && cached.containsAll(meshes.keySet())) continue;
+				MeshCache.save(meshes, file);
+			}
+			catch (final IOException e) {
+				e.printStackTrace();
+				MeshCache.getCacheFile(file).delete();
+			}
+		}
+	}
+
+	/**
+	 * Loads the meshes with the given names from their cache if possible, and
+	 * from the mesh file otherwise.
+	 */
+	protected Map<String, CustomMesh> loadMeshes(final String file,
+		final Collection<String> names)
+	{
+		try {
+			final Map<String, CustomMesh> meshes = MeshCache.load(file, names);
+			if (meshes != null) return meshes;
+		}
+		catch (final IOException e) {
+			e.printStackTrace();
+		}
+		return MeshLoader.load(file);
+	}
+
 	static boolean updateObj(final ArrayList<CMesh> meshes, final String path)
 		throws IOException
 	{
@@ -336,7 +574,7 @@ public class SaveSession {
 		univ.getViewPlatformTransformer().updateFrontBackClip();
 	}
 
-	void saveContent(final PrintWriter out, final Content c) {
+	void saveContent(final PrintWriter out, final Content c) throws IOException {
 		out.println("BeginContent");
 		out.println("name = " + c.getName());
 		for (final ContentInstant ci : c.getInstants().values())
@@ -344,7 +582,9 @@ public class SaveSession {
 		out.println("EndContent");
 	}
 
-	void saveContentInstant(final PrintWriter out, final ContentInstant c) {
+	void saveContentInstant(final PrintWriter out, final ContentInstant c)
+		throws IOException
+	{
 		// color string
 		final String col =
 			c.color == null ? null : Integer.toString(c.color.get().getRGB());
@@ -374,7 +614,7 @@ public class SaveSession {
 		out.println("plVisible = " + c.isPLVisible());
 		out.println("rotation = " + rot);
 		out.println("translation = " + trans);
-		if (c.image != null) out.println("imgfile = " + getImageFile(c));
+		if (c.image != null) out.println("imgfile = " + getImageReference(c));
 
 		final int type = c.getType();
 		final ContentNode cn = c.getContent();
@@ -385,12 +625,39 @@ public class SaveSession {
 			out.println("ortho = " + getOrthoString(cn));
 		}
 		else if (type == ContentConstants.CUSTOM) {
-			out.println("surffiles = " + getMeshString(c));
+			out.println("surffiles = " + getMeshReference(c));
 		}
+		saveExtraProperties(out, c);
 		out.println("EndContentInstant");
 	}
 
 	public Content readContent(final BufferedReader in) throws IOException {
+		final ContentProperties cp = readContentProperties(in);
+		return cp == null ? null : buildContent(cp);
+	}
+
+	/**
+	 * The name and the properties of the instants of a Content, as read from
+	 * a session file.
+	 */
+	static class ContentProperties {
+
+		final String name;
+		final List<HashMap<String, String>> instants =
+			new ArrayList<HashMap<String, String>>();
+
+		ContentProperties(final String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Reads the properties of the next Content, without loading any data, or
+	 * returns null if there is none.
+	 */
+	ContentProperties readContentProperties(final BufferedReader in)
+		throws IOException
+	{
 		String name = null;
 		String line;
 		boolean foundNext = false;
@@ -407,17 +674,53 @@ public class SaveSession {
 				break;
 			}
 		}
+		if (name == null) throw new RuntimeException("no name for content");
+		final ContentProperties cp = new ContentProperties(name);
+		HashMap<String, String> props = null;
+		while ((props = readProperties(in)) != null)
+			cp.instants.add(props);
+		return cp;
+	}
+
+	/**
+	 * Creates the Content with the given properties, loading its data.
+	 */
+	Content buildContent(final ContentProperties cp) throws IOException {
 		final TreeMap<Integer, ContentInstant> cis =
 			new TreeMap<Integer, ContentInstant>();
-		ContentInstant ci = null;
-		while ((ci = readContentInstant(in)) != null)
+		for (final HashMap<String, String> props : cp.instants) {
+			final ContentInstant ci = buildContentInstant(props);
 			cis.put(ci.timepoint, ci);
-		if (name == null) throw new RuntimeException("no name for content");
-		return new Content(name, cis);
+		}
+		return new Content(cp.name, cis);
 	}
 
 	public ContentInstant readContentInstant(final BufferedReader in)
 		throws IOException
+	{
+		final HashMap<String, String> props = readProperties(in);
+		return props == null ? null : buildContentInstant(props);
+	}
+
+	/**
+	 * Creates the ContentInstant with the given properties and displays it.
+	 */
+	ContentInstant buildContentInstant(final HashMap<String, String> props)
+		throws IOException
+	{
+		final ContentInstant c = createContentInstant(props);
+		displayContentInstant(c, props);
+		applyAttributes(c, props);
+		applyVisibility(c, props);
+		return c;
+	}
+
+	/**
+	 * Reads the properties of the next ContentInstant, or returns null if there
+	 * is none in the current Content.
+	 */
+	HashMap<String, String> readProperties(final BufferedReader in)
+		throws IOException
 	{
 		String line;
 		boolean foundNext = false;
@@ -437,6 +740,14 @@ public class SaveSession {
 			final String[] keyval = line.split("=");
 			props.put(keyval[0].trim(), keyval[1].trim());
 		}
+		return props;
+	}
+
+	/**
+	 * Creates a ContentInstant with the channels, time point, resampling
+	 * factor and transformation from the given properties, without data.
+	 */
+	ContentInstant createContentInstant(final HashMap<String, String> props) {
 		String tmp;
 		String[] sp;
 
@@ -452,9 +763,20 @@ public class SaveSession {
 			t(tmp));
 		if ((tmp = props.get("translation")) != null) c.getLocalTranslate()
 			.setTransform(t(tmp));
+		return c;
+	}
+
+	/**
+	 * Loads the image or meshes of the given ContentInstant and displays them.
+	 */
+	void displayContentInstant(final ContentInstant c,
+		final HashMap<String, String> props) throws IOException
+	{
+		String tmp;
+		String[] sp;
 		final int type = i(props.get("type"));
 		if (type != ContentConstants.CUSTOM) {
-			c.image = IJ.openImage(props.get("imgfile"));
+			c.image = openImage(props.get("imgfile"));
 			if (c.image == null) throw new RuntimeException("Cannot load image: " +
 				props.get("imgfile"));
 			c.displayAs(type);
@@ -487,25 +809,42 @@ public class SaveSession {
 			tmp = props.get("surffiles");
 			c.display(createCustomNode(tmp));
 		}
+	}
 
+	/**
+	 * Applies color, transparency, threshold and shading from the given
+	 * properties; these are handed to the ContentNode.
+	 */
+	void applyAttributes(final ContentInstant c,
+		final HashMap<String, String> props)
+	{
+		String tmp;
 		if ((tmp = props.get("color")) != null) c.setColor(new Color3f(new Color(
 			i(tmp))));
 		if ((tmp = props.get("transparency")) != null) c.setTransparency(f(tmp));
 		if ((tmp = props.get("threshold")) != null) c.setThreshold(i(tmp));
 		if ((tmp = props.get("shaded")) != null) c.setShaded(b(tmp));
+	}
+
+	/**
+	 * Applies the visibility flags from the given properties.
+	 */
+	void applyVisibility(final ContentInstant c,
+		final HashMap<String, String> props)
+	{
+		String tmp;
 		if ((tmp = props.get("visible")) != null) c.setVisible(b(tmp));
 		if ((tmp = props.get("coordVisible")) != null) c
 			.showCoordinateSystem(b(tmp));
 		if ((tmp = props.get("plVisible")) != null) c.showPointList(b(tmp));
 		if ((tmp = props.get("locked")) != null) c.setLocked(b(tmp));
-
-		return c;
 	}
 
-	private CustomMeshNode createCustomNode(final String s) {
+	CustomMeshNode createCustomNode(final String s) {
 		final String[] sp = s.split("%%%");
 		if (sp.length == 2) {
-			final Map<String, CustomMesh> meshes = MeshLoader.load(sp[0]);
+			final Map<String, CustomMesh> meshes =
+				loadMeshes(sp[0], Collections.singleton(sp[1]));
 			if (meshes == null) {
 				IJ.error("Could not load " + sp[0]);
 				return null;
@@ -524,7 +863,7 @@ public class SaveSession {
 		final ArrayList<CustomMesh> cms = new ArrayList<CustomMesh>();
 		for (final String file : file2name.keySet()) {
 			final ArrayList<String> names = file2name.get(file);
-			final Map<String, CustomMesh> meshes = MeshLoader.load(file);
+			final Map<String, CustomMesh> meshes = loadMeshes(file, names);
 			if (meshes == null) {
 				IJ.error("Could not load " + file);
 				continue;
@@ -564,7 +903,7 @@ public class SaveSession {
 		return ret;
 	}
 
-	private static ArrayList<CustomMesh> getMeshes(final CustomMeshNode cn) {
+	static ArrayList<CustomMesh> getMeshes(final CustomMeshNode cn) {
 		final ArrayList<CustomMesh> meshes = new ArrayList<CustomMesh>();
 		if (cn instanceof CustomMultiMesh) {
 			final CustomMultiMesh cmm = (CustomMultiMesh) cn;
@@ -581,15 +920,19 @@ public class SaveSession {
 		final ArrayList<CustomMesh> meshes =
 			getMeshes((CustomMeshNode) c.getContent());
 		String ret = "";
-		for (final CustomMesh cm : meshes) {
-			String name = cm.getName();
-			if (name == null) name = c.getName();
-			name = name.replaceAll(" ", "_").replaceAll("#", "--");
-			ret += "%%%" + cm.getFile() + "%%%" + name;
-		}
+		for (final CustomMesh cm : meshes)
+			ret += "%%%" + cm.getFile() + "%%%" + getMeshName(cm, c);
 		return ret.substring(3, ret.length());
 	}
 
+	static final String getMeshName(final CustomMesh cm,
+		final ContentInstant c)
+	{
+		String name = cm.getName();
+		if (name == null) name = c.getName();
+		return name.replaceAll(" ", "_").replaceAll("#", "--");
+	}
+
 	private static final String getOrthoString(final ContentNode c) {
 		final OrthoGroup og = (OrthoGroup) c;
 		final int xSlide =
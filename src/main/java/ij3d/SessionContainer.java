@@ -0,0 +1,885 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package ij3d;
+
+import java.awt.image.IndexColorModel;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.vecmath.Point3d;
+
+import customnode.CustomMesh;
+import customnode.CustomMeshNode;
+import customnode.MeshCache;
+import customnode.XXHash64;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import vib.PointList;
+
+/**
+ * Saves a session with all of its images and meshes into a single file, and
+ * loads it back. The session description is the same as for the text based
+ * sessions of {@link SaveSession}, but images and meshes are stored as
+ * entries of the container instead of referring to external files.
+ * <p>
+ * Images are stored as raw, page aligned slices and meshes in the
+ * {@link MeshCache} format, so that both can be memory-mapped when loading.
+ * When a session is loaded, each ContentInstant is first displayed as a
+ * {@link ContentPlaceholder} showing its bounding box, and the actual data is
+ * loaded in the background, visible contents of the current time point first.
+ * <p>
+ * Image, mesh and point list entries are named after an {@link XXHash64} of
+ * their data. When saving to an existing container, entries whose data did
+ * not change are kept where they are, and only new data is appended; the file
+ * is compacted once most of it is unreferenced.
+ * <p>
+ * The file starts with a header of {@link #HEADER_SIZE} bytes: magic, version,
+ * a reserved int, and offset and length of the index. The index is written
+ * after all entries and lists name, offset and length of each entry. All
+ * numbers are little endian. The header is updated last, so that an
+ * interrupted save leaves the previous session intact.
+ */
+public class SessionContainer extends SaveSession {
+
+	public static final String EXTENSION = ".3dsession";
+
+	private static final byte[] MAGIC = { '3', 'D', 'V', 'S', 'E', 'S', 'S', 0 };
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String SESSION_ENTRY = "session";
+
+	/* Pixel types of stored images */
+	private static final int BYTE = 0, SHORT = 1, FLOAT = 2, RGB = 3;
+	private static final int[] BYTES_PER_PIXEL = { 1, 2, 4, 4 };
+
+	/**
+	 * Unreferenced bytes tolerated in a container, in addition to as many as
+	 * are referenced, before it is compacted.
+	 */
+	private static final long COMPACTION_SLACK = 64L << 20;
+
+	/** Maximum number of bytes mapped at once when reading slices. */
+	private static final long MAX_MAP_SIZE = 1L << 30;
+
+	private FileChannel channel;
+	private final LinkedHashMap<String, long[]> entries =
+		new LinkedHashMap<String, long[]>();
+	private long position = HEADER_SIZE;
+
+	/* Used when saving: each image is only hashed once. */
+	private final IdentityHashMap<ImagePlus, String> imageEntries =
+		new IdentityHashMap<ImagePlus, String>();
+	/* The entries of the container which is updated, if any. */
+	private final HashMap<String, long[]> previous = new HashMap<String, long[]>();
+
+	/* Used when loading. */
+	private Image3DUniverse univ;
+	private final List<Pending> pending = new ArrayList<Pending>();
+
+	/**
+	 * Returns whether the given file is a session container.
+	 */
+	public static boolean isContainer(final String path) {
+		final File file = new File(path);
+		if (!file.isFile() || file.length() < HEADER_SIZE) return false;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			final byte[] magic = new byte[MAGIC.length];
+			raf.readFully(magic);
+			return Arrays.equals(magic, MAGIC);
+		}
+		catch (final IOException e) {
+			return false;
+		}
+		finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				}
+				catch (final IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Saves the view and all contents of the given universe, including image
+	 * and mesh data, to a single file. If the file is a container already,
+	 * only data which changed since it was saved is written.
+	 */
+	public static void save(final Image3DUniverse univ, final String path)
+		throws IOException
+	{
+		ContentPlaceholder.loadAll(univ.getContents());
+		final SessionContainer sc = new SessionContainer();
+		if (!sc.ensureAllSaved(univ.getContents())) {
+			IJ.error("Could not save session");
+			return;
+		}
+
+		boolean update = isContainer(path);
+		final RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		boolean success = false;
+		long garbage = 0;
+		try {
+			sc.channel = raf.getChannel();
+			if (update) update = sc.readPrevious();
+			if (!update) raf.setLength(0);
+
+			final StringWriter session = new StringWriter();
+			final PrintWriter out = new PrintWriter(session);
+			sc.saveView(out, univ);
+			for (final Object c : univ.getContents())
+				sc.saveContent(out, (Content) c);
+			out.close();
+			sc.writeEntry(SESSION_ENTRY, session.toString().getBytes(UTF8));
+			sc.writeIndex();
+			garbage = sc.channel.size() - sc.referencedSize();
+			success = true;
+		}
+		finally {
+			raf.close();
+			if (!success && !update) new File(path).delete();
+		}
+		if (garbage > sc.referencedSize() + COMPACTION_SLACK) compact(path);
+	}
+
+	/**
+	 * Rewrites the given container without unreferenced data.
+	 */
+	public static void compact(final String path) throws IOException {
+		final File file = new File(path);
+		final File tmp = new File(path + ".tmp");
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		final RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		boolean success = false;
+		try {
+			final SessionContainer src = new SessionContainer();
+			src.channel = in.getChannel();
+			src.readIndex();
+			out.setLength(0);
+			final SessionContainer dst = new SessionContainer();
+			dst.channel = out.getChannel();
+			for (final Map.Entry<String, long[]> e : src.entries.entrySet()) {
+				final long offset = e.getValue()[0], length = e.getValue()[1];
+				final long start = dst.position;
+				dst.channel.position(start);
+				for (long done = 0; done < length;) {
+					final long n = src.channel.transferTo(offset + done,
+						length - done, dst.channel);
+					if (n <= 0) throw new IOException("Could not copy " + e.getKey());
+					done += n;
+				}
+				dst.addEntry(e.getKey(), start, length);
+			}
+			dst.writeIndex();
+			success = true;
+		}
+		finally {
+			in.close();
+			out.close();
+			if (!success) tmp.delete();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Loads a session from the given container into the given universe. The
+	 * contents are added right away, displaying their bounding boxes, while
+	 * their data is loaded in the background.
+	 */
+	public static void load(final Image3DUniverse univ, final String path)
+		throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile(path, "r");
+		boolean scheduled = false;
+		try {
+			final SessionContainer sc = new SessionContainer();
+			sc.channel = raf.getChannel();
+			sc.univ = univ;
+			sc.readIndex();
+			final BufferedReader in = new BufferedReader(new StringReader(
+				new String(sc.readEntry(SESSION_ENTRY), UTF8)));
+
+			univ.removeAllContents();
+			final HashMap<String, String> view = sc.readView(in, univ);
+			final List<Content> contents = new ArrayList<Content>();
+			Content c = null;
+			while ((c = sc.readContent(in)) != null)
+				contents.add(c);
+			in.close();
+
+			for (final Future<Content> f : univ.addContentLater(contents)) {
+				try {
+					f.get();
+				}
+				catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				catch (final Exception e) {
+					e.printStackTrace();
+				}
+			}
+			if (view != null) sc.apply(view, univ);
+
+			sc.loadInBackground(raf);
+			scheduled = true;
+		}
+		finally {
+			if (!scheduled) raf.close();
+		}
+	}
+
+	/* Saving */
+
+	@Override
+	protected boolean needsImageFile(final ContentInstant c) {
+		return false;
+	}
+
+	@Override
+	protected boolean needsMeshFile(final CustomMesh cm) {
+		return !MeshCache.isSupported(cm);
+	}
+
+	@Override
+	protected String getImageReference(final ContentInstant c)
+		throws IOException
+	{
+		String name = imageEntries.get(c.image);
+		if (name == null) {
+			name = "image/" + Long.toHexString(hashImage(c.image));
+			if (!reuse(name)) writeImage(name, c.image);
+			imageEntries.put(c.image, name);
+		}
+		return name;
+	}
+
+	@Override
+	protected String getMeshReference(final ContentInstant c)
+		throws IOException
+	{
+		final ArrayList<CustomMesh> meshes =
+			getMeshes((CustomMeshNode) c.getContent());
+		final LinkedHashMap<String, CustomMesh> embedded =
+			new LinkedHashMap<String, CustomMesh>();
+		final String[] names = new String[meshes.size()];
+		for (int i = 0; i < names.length; i++) {
+			final CustomMesh cm = meshes.get(i);
+			final String name = getMeshName(cm, c);
+			if (!MeshCache.isSupported(cm)) {
+				names[i] = name;
+				continue;
+			}
+			String unique = name;
+			for (int k = 1; embedded.containsKey(unique); k++)
+				unique = name + "-" + k;
+			embedded.put(unique, cm);
+			names[i] = unique;
+		}
+
+		String entry = null;
+		if (!embedded.isEmpty()) {
+			entry = "meshes/" + Long.toHexString(MeshCache.hash(embedded));
+			if (!reuse(entry)) {
+				final long start = position;
+				final long end = MeshCache.write(embedded, channel, start);
+				addEntry(entry, start, end - start);
+			}
+		}
+
+		final StringBuilder ref = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			final CustomMesh cm = meshes.get(i);
+			if (i > 0) ref.append("%%%");
+			ref.append(MeshCache.isSupported(cm) ? entry : cm.getFile());
+			ref.append("%%%").append(names[i]);
+		}
+		return ref.toString();
+	}
+
+	@Override
+	protected void saveExtraProperties(final PrintWriter out,
+		final ContentInstant c) throws IOException
+	{
+		final Point3d min = new Point3d(), max = new Point3d();
+		c.getContent().getMin(min);
+		c.getContent().getMax(max);
+		out.println("bounds = " + min.x + " " + min.y + " " + min.z + " " +
+			max.x + " " + max.y + " " + max.z);
+
+		final PointList points = c.getPointList();
+		if (points != null && points.size() > 0) {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final PrintStream ps = new PrintStream(bytes, false, "UTF-8");
+			c.savePointList(ps);
+			ps.close();
+			final byte[] data = bytes.toByteArray();
+			final XXHash64 hash = new XXHash64();
+			hash.update(data, 0, data.length);
+			final String name = "points/" + Long.toHexString(hash.getValue());
+			if (!reuse(name)) writeEntry(name, data);
+			out.println("points = " + name);
+		}
+	}
+
+	/* Loading */
+
+	/**
+	 * Creates the ContentInstant with the given properties and displays a
+	 * placeholder for it; its data is loaded later by
+	 * {@link #loadInBackground(RandomAccessFile)}.
+	 */
+	@Override
+	ContentInstant buildContentInstant(final HashMap<String, String> props)
+		throws IOException
+	{
+		final ContentInstant c = createContentInstant(props);
+
+		final Point3d min = new Point3d(), max = new Point3d();
+		final String bounds = props.get("bounds");
+		if (bounds != null) {
+			final String[] sp = bounds.split(" ");
+			min.set(Double.parseDouble(sp[0]), Double.parseDouble(sp[1]), Double
+				.parseDouble(sp[2]));
+			max.set(Double.parseDouble(sp[3]), Double.parseDouble(sp[4]), Double
+				.parseDouble(sp[5]));
+		}
+		final ContentPlaceholder placeholder =
+			new ContentPlaceholder(min, max, new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						displayContentInstant(c, props);
+					}
+					catch (final IOException e) {
+						throw new RuntimeException(e);
+					}
+					// the attributes may have been changed while loading
+					c.attributesUpdated();
+				}
+			});
+		c.display(placeholder);
+		// the placeholder ignores the attributes; they are kept for the node
+		applyAttributes(c, props);
+		applyVisibility(c, props);
+
+		final String points = props.get("points");
+		if (points != null) {
+			final PointList pl =
+				PointList.parseString(new String(readEntry(points), UTF8));
+			if (pl != null) c.setPointList(pl);
+		}
+
+		int priority = 2;
+		if (c.isVisible()) priority =
+			c.timepoint == univ.getCurrentTimepoint() ? 0 : 1;
+		pending.add(new Pending(placeholder, priority));
+		return c;
+	}
+
+	@Override
+	protected ImagePlus openImage(final String reference) throws IOException {
+		if (!entries.containsKey(reference)) return super.openImage(reference);
+		return readImage(reference);
+	}
+
+	@Override
+	protected Map<String, CustomMesh> loadMeshes(final String file,
+		final Collection<String> names)
+	{
+		if (!entries.containsKey(file)) return super.loadMeshes(file, names);
+		try {
+			return MeshCache.read(channel, entries.get(file)[0], names);
+		}
+		catch (final IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Loads the data of all placeholders, using one thread per processor, and
+	 * closes the given file afterwards.
+	 */
+	private void loadInBackground(final RandomAccessFile raf) {
+		Collections.sort(pending);
+		final int total = pending.size();
+		final int nThreads = Math.max(1, Math.min(total, Runtime.getRuntime()
+			.availableProcessors()));
+		final ExecutorService exec = Executors.newFixedThreadPool(nThreads);
+		final AtomicInteger done = new AtomicInteger();
+		for (final Pending p : pending) {
+			exec.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					p.placeholder.load();
+					IJ.showProgress(done.incrementAndGet(), total);
+				}
+			});
+		}
+		exec.shutdown();
+		pending.clear();
+
+		new Thread("Session loader") {
+
+			@Override
+			public void run() {
+				try {
+					exec.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+				}
+				catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finally {
+					try {
+						raf.close();
+					}
+					catch (final IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}.start();
+	}
+
+	private static class Pending implements Comparable<Pending> {
+
+		private final ContentPlaceholder placeholder;
+		private final int priority;
+
+		Pending(final ContentPlaceholder placeholder, final int priority) {
+			this.placeholder = placeholder;
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo(final Pending o) {
+			return priority - o.priority;
+		}
+	}
+
+	/* Images */
+
+	/**
+	 * Receives the encoded data of an image, at offsets relative to the start
+	 * of its entry.
+	 */
+	private interface Sink {
+
+		void write(ByteBuffer data, long offset) throws IOException;
+	}
+
+	private void writeImage(final String name, final ImagePlus imp)
+		throws IOException
+	{
+		final long start = position;
+		final long length = encodeImage(imp, new Sink() {
+
+			@Override
+			public void write(final ByteBuffer data, final long offset)
+				throws IOException
+			{
+				writeFully(data, start + offset);
+			}
+		});
+		addEntry(name, start, length);
+	}
+
+	private static long hashImage(final ImagePlus imp) throws IOException {
+		final XXHash64 hash = new XXHash64();
+		encodeImage(imp, new Sink() {
+
+			@Override
+			public void write(final ByteBuffer data, final long offset) {
+				hash.update(data);
+			}
+		});
+		return hash.getValue();
+	}
+
+	/**
+	 * Passes header and slices of the given image to the given sink, and
+	 * returns the length of the encoded data.
+	 */
+	private static long encodeImage(final ImagePlus imp, final Sink sink)
+		throws IOException
+	{
+		final ImageStack stack = imp.getStack();
+		final Calibration cal = imp.getCalibration();
+		final byte[] unit = cal.getUnit().getBytes(UTF8);
+		final byte[] title = imp.getTitle().getBytes(UTF8);
+
+		byte[] lut = null;
+		if (stack.getPixels(1) instanceof byte[] &&
+			imp.getProcessor().getColorModel() instanceof IndexColorModel)
+		{
+			final IndexColorModel cm =
+				(IndexColorModel) imp.getProcessor().getColorModel();
+			if (cm.getMapSize() == 256) {
+				lut = new byte[768];
+				final byte[] tmp = new byte[256];
+				cm.getReds(tmp);
+				System.arraycopy(tmp, 0, lut, 0, 256);
+				cm.getGreens(tmp);
+				System.arraycopy(tmp, 0, lut, 256, 256);
+				cm.getBlues(tmp);
+				System.arraycopy(tmp, 0, lut, 512, 256);
+			}
+		}
+
+		final int headerSize =
+			4 + 6 * 4 + 6 * 8 + 4 + (lut == null ? 0 : lut.length) + 4 +
+				unit.length + 4 + title.length;
+		final ByteBuffer header =
+			ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(headerSize);
+		header.putInt(pixelType(stack.getPixels(1)));
+		header.putInt(imp.getWidth());
+		header.putInt(imp.getHeight());
+		header.putInt(imp.getNChannels());
+		header.putInt(imp.getNSlices());
+		header.putInt(imp.getNFrames());
+		header.putDouble(cal.pixelWidth);
+		header.putDouble(cal.pixelHeight);
+		header.putDouble(cal.pixelDepth);
+		header.putDouble(cal.xOrigin);
+		header.putDouble(cal.yOrigin);
+		header.putDouble(cal.zOrigin);
+		header.putInt(lut == null ? 0 : 1);
+		if (lut != null) header.put(lut);
+		header.putInt(unit.length);
+		header.put(unit);
+		header.putInt(title.length);
+		header.put(title);
+		header.flip();
+
+		sink.write(header, 0);
+		long pos = align(headerSize);
+		final int n = stack.getSize();
+		final int wh = imp.getWidth() * imp.getHeight();
+		ByteBuffer buffer = null;
+		for (int z = 1; z <= n; z++) {
+			final Object pixels = stack.getPixels(z);
+			final int size = BYTES_PER_PIXEL[pixelType(pixels)] * wh;
+			if (buffer == null || buffer.capacity() < size) buffer =
+				ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.clear();
+			if (pixels instanceof byte[]) buffer.put((byte[]) pixels);
+			else if (pixels instanceof short[]) buffer.asShortBuffer().put(
+				(short[]) pixels);
+			else if (pixels instanceof float[]) buffer.asFloatBuffer().put(
+				(float[]) pixels);
+			else buffer.asIntBuffer().put((int[]) pixels);
+			buffer.position(0);
+			buffer.limit(size);
+			sink.write(buffer, pos);
+			pos += size;
+		}
+		return pos;
+	}
+
+	private ImagePlus readImage(final String name) throws IOException {
+		final long start = entries.get(name)[0];
+		final ByteBuffer size = read(start, 4);
+		final int headerSize = size.getInt();
+		final ByteBuffer header = read(start, headerSize);
+		header.getInt();
+		final int pixelType = header.getInt();
+		if (pixelType < 0 || pixelType >= BYTES_PER_PIXEL.length) throw new IOException(
+			"Unknown pixel type in " + name);
+		final int bpp = BYTES_PER_PIXEL[pixelType];
+		final int w = header.getInt();
+		final int h = header.getInt();
+		final int nChannels = header.getInt();
+		final int nSlices = header.getInt();
+		final int nFrames = header.getInt();
+		final Calibration cal = new Calibration();
+		cal.pixelWidth = header.getDouble();
+		cal.pixelHeight = header.getDouble();
+		cal.pixelDepth = header.getDouble();
+		cal.xOrigin = header.getDouble();
+		cal.yOrigin = header.getDouble();
+		cal.zOrigin = header.getDouble();
+		byte[] lut = null;
+		if (header.getInt() != 0) {
+			lut = new byte[768];
+			header.get(lut);
+		}
+		final byte[] unit = new byte[header.getInt()];
+		header.get(unit);
+		cal.setUnit(new String(unit, UTF8));
+		final byte[] title = new byte[header.getInt()];
+		header.get(title);
+
+		final int n = nChannels * nSlices * nFrames;
+		final int wh = w * h;
+		final long sliceSize = (long) bpp * wh;
+		final ImageStack stack = new ImageStack(w, h);
+		final int slicesPerMap = (int) Math.max(1, MAX_MAP_SIZE / sliceSize);
+		long pos = align(start + headerSize);
+		for (int z = 0; z < n; z += slicesPerMap) {
+			final int m = Math.min(slicesPerMap, n - z);
+			final MappedByteBuffer map =
+				channel.map(FileChannel.MapMode.READ_ONLY, pos, m * sliceSize);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < m; i++) {
+				map.position((int) (i * sliceSize));
+				switch (pixelType) {
+					case BYTE: {
+						final byte[] pixels = new byte[wh];
+						map.get(pixels);
+						stack.addSlice(null, pixels);
+						break;
+					}
+					case SHORT: {
+						final short[] pixels = new short[wh];
+						map.asShortBuffer().get(pixels);
+						stack.addSlice(null, pixels);
+						break;
+					}
+					case FLOAT: {
+						final float[] pixels = new float[wh];
+						map.asFloatBuffer().get(pixels);
+						stack.addSlice(null, pixels);
+						break;
+					}
+					default: {
+						final int[] pixels = new int[wh];
+						map.asIntBuffer().get(pixels);
+						stack.addSlice(null, pixels);
+					}
+				}
+			}
+			pos += m * sliceSize;
+		}
+
+		if (lut != null) {
+			final byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+			System.arraycopy(lut, 0, r, 0, 256);
+			System.arraycopy(lut, 256, g, 0, 256);
+			System.arraycopy(lut, 512, b, 0, 256);
+			stack.setColorModel(new IndexColorModel(8, 256, r, g, b));
+		}
+		final ImagePlus imp = new ImagePlus(new String(title, UTF8), stack);
+		if (n == imp.getStackSize()) imp.setDimensions(nChannels, nSlices,
+			nFrames);
+		imp.setCalibration(cal);
+		return imp;
+	}
+
+	private static int pixelType(final Object pixels) {
+		if (pixels instanceof byte[]) return BYTE;
+		if (pixels instanceof short[]) return SHORT;
+		if (pixels instanceof float[]) return FLOAT;
+		return RGB;
+	}
+
+	/* Entries */
+
+	/**
+	 * Reads the index of the container which is updated, and makes new data
+	 * go after its end. Returns false if the index cannot be read.
+	 */
+	private boolean readPrevious() {
+		try {
+			readIndex();
+			position = align(Math.max(HEADER_SIZE, channel.size()));
+		}
+		catch (final IOException e) {
+			entries.clear();
+			return false;
+		}
+		previous.putAll(entries);
+		entries.clear();
+		return true;
+	}
+
+	/**
+	 * Refers to the entry with the given name from the updated container, if
+	 * there is one. Returns false if the entry needs to be written.
+	 */
+	private boolean reuse(final String name) {
+		if (entries.containsKey(name)) return true;
+		final long[] entry = previous.get(name);
+		if (entry == null) return false;
+		entries.put(name, entry);
+		return true;
+	}
+
+	private long referencedSize() {
+		long size = HEADER_SIZE;
+		for (final long[] entry : entries.values())
+			size += entry[1];
+		return size;
+	}
+
+	private void writeEntry(final String name, final byte[] data)
+		throws IOException
+	{
+		final long start = position;
+		writeFully(ByteBuffer.wrap(data), start);
+		addEntry(name, start, data.length);
+	}
+
+	private void addEntry(final String name, final long offset,
+		final long length)
+	{
+		entries.put(name, new long[] { offset, length });
+		position = align(offset + length);
+	}
+
+	private byte[] readEntry(final String name) throws IOException {
+		final long[] entry = entries.get(name);
+		if (entry == null) throw new IOException("No entry '" + name +
+			"' in session");
+		if (entry[1] > Integer.MAX_VALUE) throw new IOException("Entry '" + name +
+			"' too large");
+		return read(entry[0], (int) entry[1]).array();
+	}
+
+	private void writeIndex() throws IOException {
+		int size = 4;
+		final ArrayList<byte[]> names = new ArrayList<byte[]>();
+		for (final String name : entries.keySet()) {
+			final byte[] bytes = name.getBytes(UTF8);
+			names.add(bytes);
+			size += 4 + bytes.length + 16;
+		}
+		final ByteBuffer index =
+			ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		index.putInt(entries.size());
+		int i = 0;
+		for (final long[] entry : entries.values()) {
+			final byte[] name = names.get(i++);
+			index.putInt(name.length);
+			index.put(name);
+			index.putLong(entry[0]);
+			index.putLong(entry[1]);
+		}
+		index.flip();
+		final long indexOffset = position;
+		writeFully(index, indexOffset);
+		channel.force(false);
+
+		final ByteBuffer header =
+			ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(0);
+		header.putLong(indexOffset);
+		header.putLong(size);
+		header.flip();
+		writeFully(header, 0);
+	}
+
+	private void readIndex() throws IOException {
+		final ByteBuffer header = read(0, HEADER_SIZE);
+		final byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) throw new IOException(
+			"Not a session file");
+		final int version = header.getInt();
+		if (version != VERSION) throw new IOException(
+			"Unsupported session version: " + version);
+		header.getInt();
+		final long indexOffset = header.getLong();
+		final long indexLength = header.getLong();
+		if (indexOffset < HEADER_SIZE || indexLength > Integer.MAX_VALUE ||
+			indexOffset + indexLength > channel.size()) throw new IOException(
+				"Corrupt session file");
+
+		final ByteBuffer index = read(indexOffset, (int) indexLength);
+		final int n = index.getInt();
+		for (int i = 0; i < n; i++) {
+			final byte[] name = new byte[index.getInt()];
+			index.get(name);
+			entries.put(new String(name, UTF8), new long[] { index.getLong(),
+				index.getLong() });
+		}
+	}
+
+	private ByteBuffer read(final long offset, final int length)
+		throws IOException
+	{
+		final ByteBuffer buffer =
+			ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) throw new IOException(
+				"Unexpected end of session file");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private void writeFully(final ByteBuffer buffer, final long offset)
+		throws IOException
+	{
+		long pos = offset;
+		while (buffer.hasRemaining())
+			pos += channel.write(buffer, pos);
+	}
+
+	private static long align(final long pos) {
+		return (pos + 7) & ~7L;
+	}
+}
@@ -23,6 +23,7 @@
 package ij3d;
 
 import java.awt.image.IndexColorModel;
+import java.util.Arrays;
 
 import org.scijava.vecmath.Point3d;
 
@@ -424,6 +425,28 @@ public class Volume {
 		}
 	}
 
+	/**
+	 * Sets the voxels of the specified row from x0 (inclusive) to x1
+	 * (exclusive) to the given value, without checking the bounds. As for
+	 * setNoCheck(), only the image data is changed.
+	 * 
+	 * @param x0
+	 * @param x1
+	 * @param y
+	 * @param z
+	 * @param v
+	 */
+	public void fillRowNoCheck(final int x0, final int x1, final int y,
+		final int z, final int v)
+	{
+		try {
+			image.fill(x0, x1, y, z, v);
+		}
+		catch (final NullPointerException e) {
+			throw new RuntimeException("No image. Maybe it is swapped");
+		}
+	}
+
 	/**
 	 * Load the value at the specified position
 	 * 
@@ -501,6 +524,8 @@ public class Volume {
 		public byte getAverage(int x, int y, int z);
 
 		public void set(int x, int y, int z, int v);
+
+		public void fill(int x0, int x1, int y, int z, int v);
 	}
 
 	protected final class ByteImage implements InputImage {
@@ -537,6 +562,13 @@ public class Volume {
 		public void set(final int x, final int y, final int z, final int v) {
 			fData[z][y * w + x] = (byte) v;
 		}
+
+		@Override
+		public void fill(final int x0, final int x1, final int y, final int z,
+			final int v)
+		{
+			Arrays.fill(fData[z], y * w + x0, y * w + x1, (byte) v);
+		}
 	}
 
 	protected final class IntImage implements InputImage {
@@ -579,6 +611,13 @@ public class Volume {
 		public void set(final int x, final int y, final int z, final int v) {
 			fData[z][y * w + x] = v;
 		}
+
+		@Override
+		public void fill(final int x0, final int x1, final int y, final int z,
+			final int v)
+		{
+			Arrays.fill(fData[z], y * w + x0, y * w + x1, v);
+		}
 	}
 
 	protected class IntLoader implements Loader {
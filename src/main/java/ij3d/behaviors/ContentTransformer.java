@@ -203,7 +203,7 @@ public class ContentTransformer {
 			ipToVWorldInverse.invert(ipToVWorld);
 
 			// calculate the canvas position in world coords
-			c.getContent().getCenter(centerInVWorld);
+			c.getCurrent().getContent().getCenter(centerInVWorld);
 			localToVWorld.transform(centerInVWorld);
 			ipToVWorldInverse.transform(centerInVWorld, centerInIp);
 
@@ -220,7 +220,7 @@ public class ContentTransformer {
 				r = (float) pickPtInVWorld.distance(centerInVWorld);
 			}
 			else {
-				c.getContent().getMin(p1);
+				c.getCurrent().getContent().getMin(p1);
 				localToVWorld.transform(p1);
 				r = (float) p1.distance(centerInVWorld);
 				vec.sub(centerInVWorld, eyePtInVWorld);
@@ -261,7 +261,7 @@ public class ContentTransformer {
 
 			rotateTG = c.getLocalRotate();
 			translateTG = c.getLocalTranslate();
-			c.getContent().getCenter(vec);
+			c.getCurrent().getContent().getCenter(vec);
 			transl_inv.set(vec);
 			vec.set(-vec.x, -vec.y, -vec.z);
 			transl.set(vec);
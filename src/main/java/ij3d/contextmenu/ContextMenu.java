@@ -50,7 +50,7 @@ public class ContextMenu implements ActionListener, ItemListener,
 	private Content content;
 
 	private final JMenuItem slices, updateVol, fill, smoothMesh, smoothAllMeshes,
-			smoothDialog, colorSurface, decimateMesh;
+			smoothDialog, colorSurface, decimateMesh, removeSmallComponents;
 	private final JCheckBoxMenuItem shaded, saturated;
 
 	public ContextMenu(final Image3DUniverse univ) {
@@ -85,6 +85,10 @@ public class ContextMenu implements ActionListener, ItemListener,
 		decimateMesh.addActionListener(this);
 		popup.add(decimateMesh);
 
+		removeSmallComponents = new JMenuItem("Remove small components");
+		removeSmallComponents.addActionListener(this);
+		popup.add(removeSmallComponents);
+
 		smoothDialog = new JMenuItem("Smooth control");
 		smoothDialog.addActionListener(this);
 		smooth.add(smoothDialog);
@@ -133,6 +137,8 @@ public class ContextMenu implements ActionListener, ItemListener,
 		else if (src == smoothAllMeshes) executer.smoothAllMeshes();
 		else if (src == smoothDialog) executer.smoothControl();
 		else if (src == decimateMesh) executer.decimateMesh();
+		else if (src == removeSmallComponents) executer
+			.removeSmallComponents(content);
 		else if (src == colorSurface) executer.applySurfaceColors(content);
 	}
 }
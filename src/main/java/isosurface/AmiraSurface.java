@@ -22,19 +22,21 @@
 
 package isosurface;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.scijava.vecmath.Color3f;
 import org.scijava.vecmath.Point3f;
 
 import amira.AmiraParameters;
+import customnode.CustomIndexedTriangleMesh;
+import customnode.CustomMesh;
 import ij.IJ;
 import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
@@ -64,81 +66,260 @@ public class AmiraSurface implements PlugIn {
 	public static void addMeshes(final Image3DUniverse universe,
 		final String fileName) throws IOException
 	{
-		final FileInputStream f = new FileInputStream(fileName);
-		final DataInputStream input = new DataInputStream(f);
-
-		if (!input.readLine().startsWith("# HyperSurface 0.1 BINARY")) throw new RuntimeException(
-			"No Amira surface");
-
-		String header = "";
-		String line;
-		while ((line = input.readLine()) != null && !line.startsWith("Vertices"))
-			header += line + "\n";
-		final AmiraParameters params = new AmiraParameters(header);
-
-		final int vertexCount = Integer.parseInt(line.substring(9));
-		final Point3f[] vertices = new Point3f[vertexCount];
-		for (int i = 0; i < vertexCount; i++) {
-			final float x = input.readFloat();
-			final float y = input.readFloat();
-			final float z = input.readFloat();
-			vertices[i] = new Point3f(x, y, z);
-		}
-
-		while ((line = input.readLine()) != null &&
-			!line.trim().startsWith("Patches"));
-
-		final Map meshes = new HashMap();
-
-		final int patchCount = Integer.parseInt(line.substring(8));
-		for (int p = 0; p < patchCount; p++) {
-			List mesh = null, opposite = null;
-			while ((line = input.readLine()) != null &&
-				!line.trim().startsWith("Triangles"))
-				if (line.startsWith("InnerRegion")) mesh =
-					getMesh(meshes, line.substring(12));
-				else if (line.startsWith("OuterRegion")) opposite =
-					getMesh(meshes, line.substring(12));
-
-			if (mesh == null) {
-				IJ.error("Funny mesh encountered");
-				mesh = new ArrayList();
+		final Map<String, CustomMesh> meshes = load(fileName);
+		for (final Map.Entry<String, CustomMesh> entry : meshes.entrySet())
+			universe.addCustomMesh(entry.getValue(), entry.getKey());
+	}
+
+	/**
+	 * Loads the surfaces of the given HyperSurface file, which may be binary
+	 * (big or little endian) or ASCII. Returns one indexed mesh per region,
+	 * except for the exterior, colored with the material of the region. The
+	 * meshes of regions which share a patch share the Point3f instances of its
+	 * vertices.
+	 */
+	public static Map<String, CustomMesh> load(final String fileName)
+		throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+		try {
+			return new Reader(raf.getChannel()).read();
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/** Maximum number of bytes mapped at once */
+	private static final int MAX_MAP_SIZE = 1 << 30;
+
+	private static class Reader {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		/* The file position of the start of the buffer */
+		private long bufferStart = 0;
+		private boolean ascii;
+		private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+		Reader(final FileChannel channel) {
+			this.channel = channel;
+			buffer.limit(0);
+		}
+
+		Map<String, CustomMesh> read() throws IOException {
+			final String first = readLine();
+			if (first == null || !first.startsWith("# HyperSurface")) throw new IOException(
+				"No Amira surface");
+			if (first.contains("ASCII")) ascii = true;
+			else if (first.contains("BINARY")) {
+				if (first.contains("LITTLE-ENDIAN")) order = ByteOrder.LITTLE_ENDIAN;
+			}
+			else throw new IOException("Unsupported HyperSurface format: " + first);
+
+			final StringBuilder header = new StringBuilder();
+			String line;
+			while ((line = readLine()) != null && !line.trim().startsWith("Vertices"))
+				header.append(line).append("\n");
+			if (line == null) throw new IOException("No vertices found");
+			final AmiraParameters params = new AmiraParameters(header.toString());
+
+			final int vertexCount = count(line);
+			final float[] coords = readFloats(3 * vertexCount);
+
+			while ((line = readLine()) != null && !line.trim().startsWith("Patches"));
+			if (line == null) throw new IOException("No patches found");
+
+			final LinkedHashMap<String, IntArray> regions =
+				new LinkedHashMap<String, IntArray>();
+			final int patchCount = count(line);
+			for (int p = 0; p < patchCount; p++) {
+				IntArray inner = null, outer = null;
+				while ((line = readLine()) != null &&
+					!line.trim().startsWith("Triangles"))
+				{
+					line = line.trim();
+					if (line.startsWith("InnerRegion")) inner =
+						getRegion(regions, line.substring(11).trim());
+					else if (line.startsWith("OuterRegion")) outer =
+						getRegion(regions, line.substring(11).trim());
+				}
+				if (line == null) throw new IOException("No triangles in patch " + p);
+
+				final int[] triangles = readInts(3 * count(line));
+				for (int i = 0; i < triangles.length; i++) {
+					// indices are 1-based
+					if (--triangles[i] < 0 || triangles[i] >= vertexCount) throw new IOException(
+						"Invalid vertex index in patch " + p + ": " + (triangles[i] + 1));
+				}
+				if (inner != null) inner.addAll(triangles, false);
+				if (outer != null) outer.addAll(triangles, true);
 			}
 
-			final int triangleCount = Integer.parseInt(line.trim().substring(10));
-			for (int i = 0; i < triangleCount; i++) {
-				final Point3f point1 = vertices[input.readInt() - 1];
-				final Point3f point2 = vertices[input.readInt() - 1];
-				final Point3f point3 = vertices[input.readInt() - 1];
-				mesh.add(point1);
-				mesh.add(point2);
-				mesh.add(point3);
-				if (opposite != null) {
-					opposite.add(point3);
-					opposite.add(point2);
-					opposite.add(point1);
+			final Point3f[] vertices = new Point3f[vertexCount];
+			final int[] local = new int[vertexCount];
+			final int[] global = new int[vertexCount];
+			Arrays.fill(local, -1);
+			final Color3f lightGray = new Color3f(.5f, .5f, .5f);
+			final Map<String, CustomMesh> meshes =
+				new LinkedHashMap<String, CustomMesh>();
+			for (final Map.Entry<String, IntArray> entry : regions.entrySet()) {
+				final IntArray faces = entry.getValue();
+				if (faces.size == 0) continue;
+
+				// only keep the vertices which are used by this region
+				final int[] f = new int[faces.size];
+				int n = 0;
+				for (int i = 0; i < f.length; i++) {
+					final int v = faces.data[i];
+					if (local[v] < 0) {
+						global[n] = v;
+						local[v] = n++;
+					}
+					f[i] = local[v];
+				}
+				final Point3f[] verts = new Point3f[n];
+				for (int i = 0; i < n; i++) {
+					final int v = global[i];
+					if (vertices[v] == null) vertices[v] =
+						new Point3f(coords[3 * v], coords[3 * v + 1], coords[3 * v + 2]);
+					verts[i] = vertices[v];
+					// reset only the entries this region used
+					local[v] = -1;
 				}
+
+				final String name = entry.getKey();
+				final int m = params.getMaterialID(name);
+				final double[] c = params.getMaterialColor(m);
+				final Color3f color =
+					(c[0] == 0 && c[1] == 0 && c[2] == 0 ? lightGray : new Color3f(
+						(float) c[0], (float) c[1], (float) c[2]));
+				meshes.put(name, new CustomIndexedTriangleMesh(verts, f, color, 0));
+			}
+			return meshes;
+		}
+
+		private static IntArray getRegion(final Map<String, IntArray> regions,
+			final String name)
+		{
+			if (name.equals("Exterior")) return null;
+			IntArray region = regions.get(name);
+			if (region == null) {
+				region = new IntArray();
+				regions.put(name, region);
+			}
+			return region;
+		}
+
+		private static int count(final String line) throws IOException {
+			final String[] sp = line.trim().split("\\s+");
+			try {
+				return Integer.parseInt(sp[1]);
+			}
+			catch (final RuntimeException e) {
+				throw new IOException("Invalid line: " + line);
+			}
+		}
+
+		private float[] readFloats(final int n) throws IOException {
+			final float[] result = new float[n];
+			if (ascii) {
+				for (int i = 0; i < n; i++)
+					result[i] = Float.parseFloat(nextToken());
+				return result;
+			}
+			final long start = position();
+			for (int off = 0; off < n;) {
+				final int len = Math.min(n - off, MAX_MAP_SIZE / 4);
+				map(start + 4L * off, 4L * len).asFloatBuffer().get(result, off, len);
+				off += len;
+			}
+			seek(start + 4L * n);
+			return result;
+		}
+
+		private int[] readInts(final int n) throws IOException {
+			final int[] result = new int[n];
+			if (ascii) {
+				for (int i = 0; i < n; i++)
+					result[i] = Integer.parseInt(nextToken());
+				return result;
+			}
+			final long start = position();
+			for (int off = 0; off < n;) {
+				final int len = Math.min(n - off, MAX_MAP_SIZE / 4);
+				map(start + 4L * off, 4L * len).asIntBuffer().get(result, off, len);
+				off += len;
+			}
+			seek(start + 4L * n);
+			return result;
+		}
+
+		private ByteBuffer map(final long pos, final long size) throws IOException {
+			if (pos + size > channel.size()) throw new IOException(
+				"Unexpected end of file");
+			return channel.map(FileChannel.MapMode.READ_ONLY, pos, size).order(
+				order);
+		}
+
+		private long position() {
+			return bufferStart + buffer.position();
+		}
+
+		private void seek(final long pos) {
+			bufferStart = pos;
+			buffer.limit(0);
+		}
+
+		private boolean fill() throws IOException {
+			bufferStart += buffer.limit();
+			buffer.clear();
+			final int n = channel.read(buffer, bufferStart);
+			buffer.flip();
+			return n > 0;
+		}
+
+		private String readLine() throws IOException {
+			final StringBuilder line = new StringBuilder();
+			while (buffer.hasRemaining() || fill()) {
+				final byte b = buffer.get();
+				if (b == '\n') return line.toString();
+				if (b != '\r') line.append((char) (b & 0xff));
 			}
+			return line.length() == 0 ? null : line.toString();
 		}
 
-		final Color3f lightGray = new Color3f(.5f, .5f, .5f);
-		final Iterator iter = meshes.keySet().iterator();
-		while (iter.hasNext()) {
-			final String name = (String) iter.next();
-			final int m = params.getMaterialID(name);
-			final double[] c = params.getMaterialColor(m);
-			final Color3f color =
-				(c[0] == 0 && c[1] == 0 && c[2] == 0 ? lightGray : new Color3f(
-					(float) c[0], (float) c[1], (float) c[2]));
-			final List list = (List) meshes.get(name);
-			if (list.size() == 0) continue;
-			universe.addMesh(list, color, name, 0);
+		private String nextToken() throws IOException {
+			final StringBuilder token = new StringBuilder();
+			while (buffer.hasRemaining() || fill()) {
+				final byte b = buffer.get();
+				if (b > ' ') token.append((char) b);
+				else if (token.length() > 0) return token.toString();
+			}
+			if (token.length() == 0) throw new IOException("Unexpected end of file");
+			return token.toString();
 		}
 	}
 
-	private static List getMesh(final Map map, final String name) {
-		if (name.equals("Exterior")) return null;
-		if (!map.containsKey(name)) map.put(name, new ArrayList());
-		return (List) map.get(name);
+	/** A growable array of triangle vertex indices */
+	private static class IntArray {
+
+		private int[] data = new int[3 * 1024];
+		private int size = 0;
+
+		void addAll(final int[] triangles, final boolean reverse) {
+			if (size + triangles.length > data.length) data =
+				Arrays.copyOf(data, Math.max(2 * data.length, size + triangles.length));
+			if (!reverse) {
+				System.arraycopy(triangles, 0, data, size, triangles.length);
+				size += triangles.length;
+				return;
+			}
+			for (int i = 0; i < triangles.length; i += 3) {
+				data[size++] = triangles[i + 2];
+				data[size++] = triangles[i + 1];
+				data[size++] = triangles[i];
+			}
+		}
 	}
 }
@@ -24,7 +24,6 @@
 package isosurface;
 
 import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -33,6 +32,8 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -42,11 +43,15 @@ import java.util.List;
 import org.scijava.vecmath.Color3f;
 import org.scijava.vecmath.Point3f;
 
+import customnode.AsciiBuffer;
+import customnode.CustomIndexedTriangleMesh;
 import customnode.CustomMesh;
 import customnode.CustomMeshNode;
 import customnode.CustomMultiMesh;
 import customnode.CustomQuadMesh;
 import customnode.CustomTriangleMesh;
+import customnode.PLYExporter;
+import customnode.VertexWelder;
 import customnode.WavefrontExporter;
 import ij.IJ;
 import ij3d.Content;
@@ -57,6 +62,9 @@ public class MeshExporter {
 
 	public static final int ASCII = 0, BINARY = 1; // output filetype flag
 
+	/** Number of triangles written at once to binary STL files */
+	private static final int STL_BLOCK_SIZE = 1 << 16;
+
 	private MeshExporter() {}
 
 	static private Collection<Content> filterMeshes(final Collection contents) {
@@ -75,6 +83,81 @@ public class MeshExporter {
 		return meshes;
 	}
 
+	/**
+	 * Maps the names of the given contents to their meshes; the meshes of a
+	 * <code>CustomMultiMesh</code> are numbered.
+	 */
+	static private HashMap<String, CustomMesh> collectMeshes(
+		final Collection contents)
+	{
+		final HashMap<String, CustomMesh> meshes =
+			new HashMap<String, CustomMesh>();
+		for (final Iterator it = contents.iterator(); it.hasNext();) {
+			final Content mob = (Content) it.next();
+
+			final ContentNode node = mob.getContent();
+			// First CustomMultiMesh, which is also a CustomMeshNode:
+			if (node instanceof CustomMultiMesh) {
+				final CustomMultiMesh multi = (CustomMultiMesh) node;
+				for (int i = 0; i < multi.size(); i++) {
+					meshes.put(mob.getName() + " [" + (i + 1) + "]", multi.getMesh(i));
+				}
+				// Then CustomMeshNode (all custom meshes):
+			}
+			else if (node instanceof CustomMeshNode) {
+				meshes.put(mob.getName(), ((CustomMeshNode) node).getMesh());
+				// An image volume rendered as isosurface:
+			}
+			else if (node instanceof MeshGroup) {
+				meshes.put(mob.getName(), ((MeshGroup) node).getMesh());
+			}
+			else {
+				IJ.log("Ignoring " + mob.getName() + " with node of class " +
+					node.getClass());
+				continue;
+			}
+		}
+		return meshes;
+	}
+
+	/**
+	 * Returns the names of those of the given meshes which can be saved as STL,
+	 * i.e. the triangle meshes.
+	 */
+	static private List<String> filterSTL(final HashMap<String, CustomMesh> meshes)
+	{
+		final List<String> names = new ArrayList<String>();
+		for (final String name : meshes.keySet()) {
+			final CustomMesh cmesh = meshes.get(name);
+			if (cmesh.getClass() == CustomQuadMesh.class) {
+				IJ.log("Quad meshes are unsupported, can't save " + name + " as STL");
+				continue;
+			}
+			else if (cmesh.getClass() != CustomTriangleMesh.class &&
+				cmesh.getClass() != CustomIndexedTriangleMesh.class)
+			{
+				IJ.log("Unsupported content type, can't save " + name + " as STL");
+				continue;
+			}
+			names.add(name);
+		}
+		return names;
+	}
+
+	static private int nThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/** Logs the size of the written file(s) and the throughput. */
+	static private void reportThroughput(final String name, final long bytes,
+		final long startNanos)
+	{
+		final double seconds = (System.nanoTime() - startNanos) / 1e9;
+		final double mb = bytes / (1024.0 * 1024.0);
+		IJ.log(String.format("Saved %s: %.1f MB in %.2f s (%.1f MB/s)", name, mb,
+			seconds, seconds > 0 ? mb / seconds : 0));
+	}
+
 	@Deprecated
 	static public void saveAsWaveFront(final Collection contents_) {
 		final File obj_file =
@@ -100,19 +183,14 @@ public class MeshExporter {
 
 		final File mtl_file = new File(obj_file.getParentFile(), mtl_filename);
 
-		OutputStreamWriter dos_obj = null, dos_mtl = null;
+		final long start = System.nanoTime();
+		FileChannel obj = null, mtl = null;
 		try {
-			dos_obj =
-				new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(
-					obj_file)), "8859_1"); // encoding in Latin 1 (for macosx not to mess
-																	// around
-			dos_mtl =
-				new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(
-					mtl_file)), "8859_1"); // encoding in Latin 1 (for macosx not to mess
-																	// around
-			writeAsWaveFront(contents, mtl_filename, dos_obj, dos_mtl);
-			dos_obj.flush();
-			dos_obj.flush();
+			obj = new FileOutputStream(obj_file).getChannel();
+			mtl = new FileOutputStream(mtl_file).getChannel();
+			WavefrontExporter.save(collectMeshes(contents), mtl_filename, obj, mtl,
+				nThreads());
+			reportThroughput(obj_filename, obj.position() + mtl.position(), start);
 		}
 		catch (final IOException e) {
 			IJ.log("Some error ocurred while saving to wavefront:\n" + e);
@@ -120,11 +198,11 @@ public class MeshExporter {
 		}
 		finally {
 			try {
-				if (null != dos_obj) dos_obj.close();
+				if (null != obj) obj.close();
 			}
 			catch (final Exception e) {}
 			try {
-				if (null != dos_mtl) dos_mtl.close();
+				if (null != mtl) mtl.close();
 			}
 			catch (final Exception e) {}
 		}
@@ -146,21 +224,19 @@ public class MeshExporter {
 			return;
 		}
 
-		OutputStreamWriter dos = null;
+		final long start = System.nanoTime();
+		FileChannel out = null;
 		try {
-			dos =
-				new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(
-					dxf_file)), "8859_1"); // encoding in Latin 1 (for macosx not to mess
-																	// around
-			writeDXF(meshgroups, dos);
-			dos.flush();
+			out = new FileOutputStream(dxf_file).getChannel();
+			writeDXF(meshgroups, out, nThreads());
+			reportThroughput(dxf_file.getName(), out.position(), start);
 		}
 		catch (final IOException ioe) {
 			ioe.printStackTrace();
 		}
 		finally {
 			try {
-				if (null != dos) dos.close();
+				if (null != out) out.close();
 			}
 			catch (final Exception e) {}
 		}
@@ -169,7 +245,19 @@ public class MeshExporter {
 	static public void writeDXF(final Collection contents, final Writer w)
 		throws IOException
 	{
-		w.write("0\nSECTION\n2\nENTITIES\n"); // header of file
+		writeDXF(contents, AsciiBuffer.newChannel(w), 1);
+	}
+
+	/**
+	 * Writes the meshes of the given contents as DXF, formatting up to
+	 * <code>nThreads</code> meshes in parallel.
+	 */
+	static public void writeDXF(final Collection contents,
+		final WritableByteChannel out, final int nThreads) throws IOException
+	{
+		final List<CustomMesh> meshes = new ArrayList<CustomMesh>();
+		final List<String> titles = new ArrayList<String>();
+		final List<String> colors = new ArrayList<String>();
 		for (final Iterator it = contents.iterator(); it.hasNext();) {
 			final Content ob = (Content) it.next();
 
@@ -185,14 +273,28 @@ public class MeshExporter {
 			}
 			else continue;
 
-			final List triangles = cmesh.getMesh();
-
-			final String title =
-				ob.getName().replaceAll(" ", "_").replaceAll("#", "--");
-			final Mtl mat = new Mtl(1 - ob.getTransparency(), cmesh.getColor());
-			writeTrianglesDXF(w, triangles, title, "" + mat.getAsSingle());
+			meshes.add(cmesh);
+			titles.add(ob.getName().replaceAll(" ", "_").replaceAll("#", "--"));
+			// the color is null when colors are vertex-wise
+			final Color3f color = cmesh.getColor();
+			final Mtl mat =
+				new Mtl(1 - ob.getTransparency(), color != null ? color
+					: CustomMesh.DEFAULT_COLOR);
+			colors.add("" + mat.getAsSingle());
 		}
-		w.append("0\nENDSEC\n0\nEOF\n"); // TRAILER of the file
+
+		final AsciiBuffer buf = new AsciiBuffer(out);
+		buf.append("0\nSECTION\n2\nENTITIES\n"); // header of file
+		buf.appendParts(meshes.size(), new AsciiBuffer.Part() {
+
+			@Override
+			public void append(final int i, final AsciiBuffer b) throws IOException {
+				writeTrianglesDXF(b, meshes.get(i).getMesh(), titles.get(i), colors
+					.get(i));
+			}
+		}, nThreads);
+		buf.append("0\nENDSEC\n0\nEOF\n"); // TRAILER of the file
+		buf.flush();
 	}
 
 	@Deprecated
@@ -214,224 +316,240 @@ public class MeshExporter {
 			return;
 		}
 
-		OutputStreamWriter dos = null;
-		DataOutputStream out = null;
+		final long start = System.nanoTime();
+		FileChannel out = null;
 		try {
-			if (filetype == ASCII) {
-				dos =
-					new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(
-						stl_file)), "8859_1");
-				writeAsciiSTL(meshgroups, dos, stl_file.getName());
-				dos.flush();
-			}
-			else {
-				out =
-					new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
-						stl_file)));
-				writeBinarySTL(meshgroups, out);
-				out.flush();
-			}
+			out = new FileOutputStream(stl_file).getChannel();
+			if (filetype == ASCII) writeAsciiSTL(meshgroups, out, stl_file
+				.getName(), nThreads());
+			else writeBinarySTL(meshgroups, out);
+			reportThroughput(stl_file.getName(), out.position(), start);
 		}
 		catch (final IOException ioe) {
 			ioe.printStackTrace();
 		}
 		finally {
 			try {
-				if (null != dos) dos.close();
 				if (null != out) out.close();
 			}
 			catch (final Exception e) {}
 		}
 	}
 
-	private static void writeBinarySTL(final Collection meshgroups,
-		final DataOutputStream out)
-	{
-
-		// get all the meshes and sort them into a hash
-		final HashMap<String, CustomMesh> meshes =
-			new HashMap<String, CustomMesh>();
-		for (final Iterator<Content> it = meshgroups.iterator(); it.hasNext();) {
-			final Content mob = it.next();
+	/**
+	 * Saves all triangle meshes of the given contents into a single binary PLY
+	 * file, with per-vertex colors. Identical vertices of non-indexed meshes
+	 * are merged.
+	 */
+	public static void saveAsPLY(Collection meshgroups, final File ply_file) {
+		if (null == meshgroups || 0 == meshgroups.size()) return;
+		meshgroups = filterMeshes(meshgroups);
+		if (0 == meshgroups.size()) {
+			IJ.log("No meshes to export!");
+			return;
+		}
 
-			final ContentNode node = mob.getContent();
-			// First CustomMultiMesh, which is also a CustomMeshNode:
-			if (node instanceof CustomMultiMesh) {
-				final CustomMultiMesh multi = (CustomMultiMesh) node;
-				for (int i = 0; i < multi.size(); i++) {
-					meshes.put(mob.getName() + " [" + (i + 1) + "]", multi.getMesh(i));
+		final HashMap<String, CustomMesh> meshes = collectMeshes(meshgroups);
+		final List<float[]> allCoords = new ArrayList<float[]>();
+		final List<byte[]> allColors = new ArrayList<byte[]>();
+		final List<int[]> allFaces = new ArrayList<int[]>();
+		int nVertices = 0, nIndices = 0;
+		for (final String name : meshes.keySet()) {
+			final CustomMesh cmesh = meshes.get(name);
+			float[] c;
+			byte[] col;
+			int[] f;
+			if (cmesh instanceof CustomIndexedTriangleMesh) {
+				final CustomIndexedTriangleMesh itm = (CustomIndexedTriangleMesh) cmesh;
+				final Point3f[] vertices = itm.getVertices();
+				c = new float[3 * itm.getVertexCount()];
+				for (int i = 0; i < itm.getVertexCount(); i++) {
+					c[3 * i] = vertices[i].x;
+					c[3 * i + 1] = vertices[i].y;
+					c[3 * i + 2] = vertices[i].z;
 				}
-				// Then CustomMeshNode (all custom meshes):
-			}
-			else if (node instanceof CustomMeshNode) {
-				meshes.put(mob.getName(), ((CustomMeshNode) node).getMesh());
-				// An image volume rendered as isosurface:
+				col = PLYExporter.toBytes(itm.getVertexColors(), itm.getVertexCount());
+				f = itm.getFaces();
 			}
-			else if (node instanceof MeshGroup) {
-				meshes.put(mob.getName(), ((MeshGroup) node).getMesh());
+			else if (cmesh instanceof CustomTriangleMesh) {
+				final List<Point3f> vertices = cmesh.getMesh();
+				final VertexWelder welder = new VertexWelder(vertices.size() / 4);
+				f = VertexWelder.weld(vertices, welder);
+				c = welder.getCoordinates();
+				// each welded vertex gets the color of its first occurrence
+				final Color3f[] all = PLYExporter.getVertexColors(cmesh);
+				final Color3f[] colors = new Color3f[welder.size()];
+				for (int i = f.length - 1; i >= 0; i--)
+					colors[f[i]] = all[i];
+				col = PLYExporter.toBytes(colors, colors.length);
 			}
 			else {
-				IJ.log("Ignoring " + mob.getName() + " with node of class " +
-					node.getClass());
+				IJ.log("Unsupported content type, can't save " + name + " as PLY");
 				continue;
 			}
+			if (col == null) col = new byte[c.length];
+			allCoords.add(c);
+			allColors.add(col);
+			allFaces.add(f);
+			nVertices += c.length / 3;
+			nIndices += f.length;
+		}
+
+		// merge into one indexed mesh
+		final float[] coords = new float[3 * nVertices];
+		final byte[] rgb = new byte[3 * nVertices];
+		final int[] faces = new int[nIndices];
+		int v = 0, idx = 0;
+		for (int m = 0; m < allCoords.size(); m++) {
+			final float[] c = allCoords.get(m);
+			System.arraycopy(c, 0, coords, 3 * v, c.length);
+			System.arraycopy(allColors.get(m), 0, rgb, 3 * v, c.length);
+			for (final int f : allFaces.get(m))
+				faces[idx++] = f + v;
+			v += c.length / 3;
+		}
+
+		final long start = System.nanoTime();
+		try {
+			PLYExporter.write(ply_file, coords, nVertices, faces, nIndices, rgb);
+			reportThroughput(ply_file.getName(), ply_file.length(), start);
 		}
-		// count all the triangles and add them to a list
+		catch (final IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	private static void writeBinarySTL(final Collection meshgroups,
+		final WritableByteChannel out) throws IOException
+	{
+		// get all the meshes and count their triangles
+		final HashMap<String, CustomMesh> meshes = collectMeshes(meshgroups);
+		final List<List<Point3f>> surfaces = new ArrayList<List<Point3f>>();
 		int triangles = 0;
-		final ArrayList<List<Point3f>> surfaces = new ArrayList<List<Point3f>>();
-		for (final String name : meshes.keySet()) {
-			final CustomMesh cmesh = meshes.get(name);
-			if (cmesh.getClass() == CustomQuadMesh.class) {
-				IJ.log("Quad meshes are unsupported, can't save " + name + " as STL");
-				continue;
-			}
-			else if (cmesh.getClass() != CustomTriangleMesh.class) {
-				IJ.log("Unsupported content type, can't save " + name + " as STL");
-				continue;
-			}
-			final List<Point3f> vertices = cmesh.getMesh();
+		for (final String name : filterSTL(meshes)) {
+			final List<Point3f> vertices = meshes.get(name).getMesh();
 			triangles += vertices.size() / 3;
 			surfaces.add(vertices);
 		}
 
+		final ByteBuffer bb =
+			ByteBuffer.allocateDirect(50 * STL_BLOCK_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
 		String header = "Binary STL created by ImageJ 3D Viewer.";
 		for (int i = header.length(); i < 80; i++) {
 			header = header + ".";
 		}
-		try {
-			out.writeBytes(header);
-			out.writeByte(triangles & 0xFF);
-			out.writeByte((triangles >> 8) & 0xFF);
-			out.writeByte((triangles >> 16) & 0xFF);
-			out.writeByte((triangles >> 24) & 0xFF);
-			for (final List<Point3f> vertices : surfaces) {
-				for (int i = 0; i < vertices.size(); i += 3) {
-					final Point3f p0 = vertices.get(i);
-					final Point3f p1 = vertices.get(i + 1);
-					final Point3f p2 = vertices.get(i + 2);
-					final Point3f n = unitNormal(p0, p1, p2);
-					final ByteBuffer bb = ByteBuffer.allocate(50);
-					bb.order(ByteOrder.LITTLE_ENDIAN);
-					bb.putFloat(n.x);
-					bb.putFloat(n.y);
-					bb.putFloat(n.z);
-					bb.putFloat(p0.x);
-					bb.putFloat(p0.y);
-					bb.putFloat(p0.z);
-					bb.putFloat(p1.x);
-					bb.putFloat(p1.y);
-					bb.putFloat(p1.z);
-					bb.putFloat(p2.x);
-					bb.putFloat(p2.y);
-					bb.putFloat(p2.z);
-					bb.putShort((short) 0);
-					out.write(bb.array());
+		for (int i = 0; i < 80; i++)
+			bb.put((byte) header.charAt(i));
+		bb.putInt(triangles);
+		bb.flip();
+		writeFully(out, bb);
+
+		final float[] n = new float[3];
+		for (final List<Point3f> vertices : surfaces) {
+			bb.clear();
+			for (int i = 0; i < vertices.size(); i += 3) {
+				if (!bb.hasRemaining()) {
+					bb.flip();
+					writeFully(out, bb);
+					bb.clear();
 				}
+				final Point3f p0 = vertices.get(i);
+				final Point3f p1 = vertices.get(i + 1);
+				final Point3f p2 = vertices.get(i + 2);
+				unitNormal(p0, p1, p2, n);
+				bb.putFloat(n[0]);
+				bb.putFloat(n[1]);
+				bb.putFloat(n[2]);
+				bb.putFloat(p0.x);
+				bb.putFloat(p0.y);
+				bb.putFloat(p0.z);
+				bb.putFloat(p1.x);
+				bb.putFloat(p1.y);
+				bb.putFloat(p1.z);
+				bb.putFloat(p2.x);
+				bb.putFloat(p2.y);
+				bb.putFloat(p2.z);
+				bb.putShort((short) 0);
 			}
+			bb.flip();
+			writeFully(out, bb);
 		}
-		catch (final IOException e) {
-			e.printStackTrace();
-		}
-
 	}
 
-	private static Point3f unitNormal(final Point3f p0, final Point3f p1,
-		final Point3f p2)
+	private static void writeFully(final WritableByteChannel out,
+		final ByteBuffer bb) throws IOException
 	{
-		float nx = (p1.y - p0.y) * (p2.z - p0.z) - (p1.z - p0.z) * (p2.y - p0.y);
-		float ny = (p1.z - p0.z) * (p2.x - p0.x) - (p1.x - p0.x) * (p2.z - p0.z);
-		float nz = (p1.x - p0.x) * (p2.y - p0.y) - (p1.y - p0.y) * (p2.x - p0.x);
-
-		final float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
-		nx /= length;
-		ny /= length;
-		nz /= length;
-		return new Point3f(nx, ny, nz);
+		while (bb.hasRemaining())
+			out.write(bb);
 	}
 
 	private static void writeAsciiSTL(final Collection<Content> meshgroups,
-		final OutputStreamWriter dos, final String stl_filename)
+		final WritableByteChannel out, final String stl_filename,
+		final int nThreads) throws IOException
 	{
-		try {
-			dos.write(" solid ");
-			dos.write(stl_filename);
-
-			// get all the meshes and sort them into a hash
-			final HashMap<String, CustomMesh> meshes =
-				new HashMap<String, CustomMesh>();
-			for (final Iterator<Content> it = meshgroups.iterator(); it.hasNext();) {
-				final Content mob = it.next();
-
-				final ContentNode node = mob.getContent();
-				// First CustomMultiMesh, which is also a CustomMeshNode:
-				if (node instanceof CustomMultiMesh) {
-					final CustomMultiMesh multi = (CustomMultiMesh) node;
-					for (int i = 0; i < multi.size(); i++) {
-						meshes.put(mob.getName() + " [" + (i + 1) + "]", multi.getMesh(i));
-					}
-					// Then CustomMeshNode (all custom meshes):
-				}
-				else if (node instanceof CustomMeshNode) {
-					meshes.put(mob.getName(), ((CustomMeshNode) node).getMesh());
-					// An image volume rendered as isosurface:
-				}
-				else if (node instanceof MeshGroup) {
-					meshes.put(mob.getName(), ((MeshGroup) node).getMesh());
-				}
-				else {
-					IJ.log("Ignoring " + mob.getName() + " with node of class " +
-						node.getClass());
-					continue;
-				}
-			}
-
-			// go through all meshes and add them to STL file
-			for (final String name : meshes.keySet()) {
-				final CustomMesh cmesh = meshes.get(name);
-				if (cmesh.getClass() == CustomQuadMesh.class) {
-					IJ.log("Quad meshes are unsupported, can't save " + name + " as STL");
-					continue;
-				}
-				else if (cmesh.getClass() != CustomTriangleMesh.class) {
-					IJ.log("Unsupported content type, can't save " + name + " as STL");
-					continue;
-				}
-				final List<Point3f> vertices = cmesh.getMesh();
+		final AsciiBuffer buf = new AsciiBuffer(out);
+		buf.append(" solid ");
+		buf.append(stl_filename);
+
+		// get all the meshes and add them to STL file
+		final HashMap<String, CustomMesh> meshes = collectMeshes(meshgroups);
+		final List<String> names = filterSTL(meshes);
+		buf.appendParts(names.size(), new AsciiBuffer.Part() {
+
+			@Override
+			public void append(final int i, final AsciiBuffer b) throws IOException {
+				final List<Point3f> vertices = meshes.get(names.get(i)).getMesh();
 				final int nPoints = vertices.size();
+				final float[] n = new float[3];
 				for (int p = 0; p < nPoints; p += 3) {
 					final Point3f p0 = vertices.get(p);
 					final Point3f p1 = vertices.get(p + 1);
 					final Point3f p2 = vertices.get(p + 2);
-					final Point3f n = unitNormal(p0, p1, p2);
-
-					final String e = "%E"; // Scientific format -3.141569E+03
-					dos.write("\nfacet normal ");
-					dos.write(String.format(e, n.x) + " ");
-					dos.write(String.format(e, n.y) + " ");
-					dos.write(String.format(e, n.z) + "\n");
-					dos.write(" outer loop\n");
-					dos.write("  vertex ");
-					dos.write(String.format(e, p0.x) + " ");
-					dos.write(String.format(e, p0.y) + " ");
-					dos.write(String.format(e, p0.z) + "\n");
-					dos.write("  vertex ");
-					dos.write(String.format(e, p1.x) + " ");
-					dos.write(String.format(e, p1.y) + " ");
-					dos.write(String.format(e, p1.z) + "\n");
-					dos.write("  vertex ");
-					dos.write(String.format(e, p2.x) + " ");
-					dos.write(String.format(e, p2.y) + " ");
-					dos.write(String.format(e, p2.z) + "\n");
-					dos.write(" endloop\n");
-					dos.write("endfacet");
+					unitNormal(p0, p1, p2, n);
+
+					// Scientific format -3.141569E+03
+					b.append("\nfacet normal ");
+					b.appendScientific(n[0]).append(' ');
+					b.appendScientific(n[1]).append(' ');
+					b.appendScientific(n[2]).append('\n');
+					b.append(" outer loop\n");
+					appendVertex(b, p0);
+					appendVertex(b, p1);
+					appendVertex(b, p2);
+					b.append(" endloop\n");
+					b.append("endfacet");
 				}
 			}
-			dos.write("\n endsolid ");
-			dos.write(stl_filename);
-		}
-		catch (final IOException e) {
-			e.printStackTrace();
-		}
+		}, nThreads);
+		buf.append("\n endsolid ");
+		buf.append(stl_filename);
+		buf.flush();
+	}
+
+	private static void appendVertex(final AsciiBuffer b, final Point3f p)
+		throws IOException
+	{
+		b.append("  vertex ");
+		b.appendScientific(p.x).append(' ');
+		b.appendScientific(p.y).append(' ');
+		b.appendScientific(p.z).append('\n');
+	}
+
+	private static void unitNormal(final Point3f p0, final Point3f p1,
+		final Point3f p2, final float[] n)
+	{
+		final float nx =
+			(p1.y - p0.y) * (p2.z - p0.z) - (p1.z - p0.z) * (p2.y - p0.y);
+		final float ny =
+			(p1.z - p0.z) * (p2.x - p0.x) - (p1.x - p0.x) * (p2.z - p0.z);
+		final float nz =
+			(p1.x - p0.x) * (p2.y - p0.y) - (p1.y - p0.y) * (p2.x - p0.x);
+
+		final float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		n[0] = nx / length;
+		n[1] = ny / length;
+		n[2] = nz / length;
 	}
 
 	@Deprecated
@@ -449,17 +567,18 @@ public class MeshExporter {
 		final List triangles, final String the_group, final String the_color)
 	{
 		try {
-			final StringWriter sw = new StringWriter();
-			writeTrianglesDXF(sw, triangles, the_group, the_color);
-			sb.append(sw.getBuffer());
+			final AsciiBuffer buf = new AsciiBuffer();
+			writeTrianglesDXF(buf, triangles, the_group, the_color);
+			sb.append(buf.toString());
 		}
 		catch (final IOException ioe) {
 			ioe.printStackTrace();
 		}
 	}
 
-	static private void writeTrianglesDXF(final Writer w, final List triangles,
-		final String the_group, final String the_color) throws IOException
+	static private void writeTrianglesDXF(final AsciiBuffer w,
+		final List triangles, final String the_group, final String the_color)
+		throws IOException
 	{
 
 		final char L = '\n';
@@ -482,13 +601,11 @@ public class MeshExporter {
 		final Point3f[] vert = new Point3f[len];
 		triangles.toArray(vert);
 
-		final StringBuffer sb = new StringBuffer(150);
-
 		for (int i = 0; i < len; i += 3) {
 
-			w.write(triangle_header);
+			w.append(triangle_header);
 
-			sb.append(s10).append(vert[i].x).append(L).append(s20).append(vert[i].y)
+			w.append(s10).append(vert[i].x).append(L).append(s20).append(vert[i].y)
 				.append(L).append(s30).append(vert[i].z).append(L)
 
 				.append(s11).append(vert[i + 1].x).append(L).append(s21).append(
@@ -500,9 +617,6 @@ public class MeshExporter {
 				.append(s13).append(vert[i + 2].x).append(L) // repeated point
 				.append(s23).append(vert[i + 2].y).append(L).append(s33).append(
 					vert[i + 2].z).append(L);
-
-			w.write(sb.toString());
-			sb.setLength(0);
 		}
 	}
 
@@ -531,36 +645,7 @@ public class MeshExporter {
 		final String mtl_filename, final Writer w_obj, final Writer w_mtl)
 		throws IOException
 	{
-		final HashMap<String, CustomMesh> meshes =
-			new HashMap<String, CustomMesh>();
-
-		for (final Iterator it = contents.iterator(); it.hasNext();) {
-			final Content mob = (Content) it.next();
-
-			final ContentNode node = mob.getContent();
-
-			// First CustomMultiMesh, which is also a CustomMeshNode:
-			if (node instanceof CustomMultiMesh) {
-				final CustomMultiMesh multi = (CustomMultiMesh) node;
-				for (int i = 0; i < multi.size(); i++) {
-					meshes.put(mob.getName() + " [" + (i + 1) + "]", multi.getMesh(i));
-				}
-				// Then CustomMeshNode (all custom meshes):
-			}
-			else if (node instanceof CustomMeshNode) {
-				meshes.put(mob.getName(), ((CustomMeshNode) node).getMesh());
-				// An image volume rendered as isosurface:
-			}
-			else if (node instanceof MeshGroup) {
-				meshes.put(mob.getName(), ((MeshGroup) node).getMesh());
-			}
-			else {
-				IJ.log("Ignoring " + mob.getName() + " with node of class " +
-					node.getClass());
-				continue;
-			}
-		}
-		WavefrontExporter.save(meshes, mtl_filename, w_obj, w_mtl);
+		WavefrontExporter.save(collectMeshes(contents), mtl_filename, w_obj, w_mtl);
 	}
 
 	/** A Material, but avoiding name colisions. Not thread-safe. */
@@ -31,6 +31,7 @@ import org.scijava.vecmath.Point3f;
 import org.scijava.vecmath.Tuple3d;
 
 import customnode.CustomTriangleMesh;
+import customnode.MeshLOD;
 import ij.IJ;
 import ij3d.Content;
 import ij3d.ContentInstant;
@@ -40,6 +41,7 @@ import marchingcubes.MCTriangulator;
 public class MeshGroup extends ContentNode {
 
 	private final CustomTriangleMesh mesh;
+	private final MeshLOD lod;
 	private final Triangulator triangulator = new MCTriangulator();
 	private final ContentInstant c;
 	private Point3f min, max, center;
@@ -62,13 +64,22 @@ public class MeshGroup extends ContentNode {
 		}
 		mesh = new CustomTriangleMesh(tri, color, c.getTransparency());
 		calculateMinMaxCenterPoint();
-		addChild(mesh);
+		lod = new MeshLOD(mesh);
+		addChild(lod);
 	}
 
 	public CustomTriangleMesh getMesh() {
 		return mesh;
 	}
 
+	/**
+	 * Returns the estimated memory, in bytes, used by the simplified levels of
+	 * detail of the mesh.
+	 */
+	public long getLODMemory() {
+		return lod.getMemorySize();
+	}
+
 	@Override
 	public void getMin(final Tuple3d min) {
 		min.set(this.min);
@@ -86,7 +97,7 @@ public class MeshGroup extends ContentNode {
 
 	@Override
 	public void eyePtChanged(final View view) {
-		// do nothing
+		lod.eyePtChanged(view);
 	}
 
 	@Override
@@ -100,6 +111,7 @@ public class MeshGroup extends ContentNode {
 			triangulator.getTriangles(c.getImage(), c.getThreshold(),
 				c.getChannels(), c.getResamplingFactor());
 		mesh.setMesh(tri);
+		lod.update();
 	}
 
 	@Override
@@ -120,6 +132,7 @@ public class MeshGroup extends ContentNode {
 			triangulator.getTriangles(c.getImage(), c.getThreshold(),
 				c.getChannels(), c.getResamplingFactor());
 		mesh.setMesh(tri);
+		lod.update();
 	}
 
 	public void calculateMinMaxCenterPoint() {
@@ -149,7 +162,7 @@ public class MeshGroup extends ContentNode {
 				c.getImage().getProcessor().getColorModel().getRGB(c.getThreshold());
 			newColor = new Color3f(new Color(val));
 		}
-		mesh.setColor(newColor);
+		lod.setColor(newColor);
 	}
 
 	@Override
@@ -160,15 +173,18 @@ public class MeshGroup extends ContentNode {
 	@Override
 	public void restoreDisplayedData(final String path, final String name) {
 		mesh.restoreDisplayedData(path, name);
+		lod.update();
 	}
 
 	@Override
 	public void clearDisplayedData() {
+		lod.clearLevels();
 		mesh.clearDisplayedData();
 	}
 
 	@Override
 	public void swapDisplayedData(final String path, final String name) {
+		lod.clearLevels();
 		mesh.swapDisplayedData(path, name);
 	}
 }
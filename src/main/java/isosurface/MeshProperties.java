@@ -34,6 +34,12 @@ import org.scijava.vecmath.Point3f;
  */
 public class MeshProperties {
 
+	/** Meshes with fewer triangles than this are processed on a single thread */
+	private static final int MIN_TRIANGLES_PER_THREAD = 50000;
+
+	private static final double[] mult = { 1d / 6, 1d / 24, 1d / 24, 1d / 24,
+		1d / 60, 1d / 60, 1d / 60, 1d / 120, 1d / 120, 1d / 120 };
+
 	/**
 	 * Returns the mass.
 	 * 
@@ -44,61 +50,185 @@ public class MeshProperties {
 	public static double compute(final List p, final Point3d cm,
 		final double[][] inertia)
 	{
+		final double[] intg = reduce(p.size() / 3, new Integrator() {
+
+			@Override
+			public void integrate(final int from, final int to, final double[] intg) {
+				final double[] fg = new double[6];
+				for (int t = from; t < to; t++) {
+					// get vertices of triangle t
+					final Point3f p0 = (Point3f) p.get(3 * t);
+					final Point3f p1 = (Point3f) p.get(3 * t + 1);
+					final Point3f p2 = (Point3f) p.get(3 * t + 2);
+					addTriangle(p0.x, p0.y, p0.z, p1.x, p1.y, p1.z, p2.x, p2.y, p2.z,
+						intg, fg);
+				}
+			}
+		});
+		return finish(intg, cm, inertia);
+	}
+
+	/**
+	 * Returns the mass.
+	 * 
+	 * @param coords interleaved x, y, z coordinates, where each 9 consecutive
+	 *          values form a triangle.
+	 * @param cm contains the center of gravity after the calculation
+	 * @param inertia contains the inertia matrix after the calculation.
+	 */
+	public static double compute(final float[] coords, final Point3d cm,
+		final double[][] inertia)
+	{
+		final double[] intg = reduce(coords.length / 9, new Integrator() {
+
+			@Override
+			public void integrate(final int from, final int to, final double[] intg) {
+				final double[] fg = new double[6];
+				for (int t = from, i = 9 * from; t < to; t++, i += 9) {
+					addTriangle(coords[i], coords[i + 1], coords[i + 2], coords[i + 3],
+						coords[i + 4], coords[i + 5], coords[i + 6], coords[i + 7],
+						coords[i + 8], intg, fg);
+				}
+			}
+		});
+		return finish(intg, cm, inertia);
+	}
+
+	/**
+	 * Returns the mass of an indexed mesh.
+	 * 
+	 * @param vertices interleaved x, y, z vertex coordinates.
+	 * @param faces vertex indices, where each 3 consecutive indices form a
+	 *          triangle.
+	 * @param nFaces the number of valid entries in <code>faces</code>.
+	 * @param cm contains the center of gravity after the calculation
+	 * @param inertia contains the inertia matrix after the calculation.
+	 */
+	public static double compute(final float[] vertices, final int[] faces,
+		final int nFaces, final Point3d cm, final double[][] inertia)
+	{
+		final double[] intg = reduce(nFaces / 3, new Integrator() {
+
+			@Override
+			public void integrate(final int from, final int to, final double[] intg) {
+				final double[] fg = new double[6];
+				for (int t = from; t < to; t++) {
+					final int i0 = 3 * faces[3 * t];
+					final int i1 = 3 * faces[3 * t + 1];
+					final int i2 = 3 * faces[3 * t + 2];
+					addTriangle(vertices[i0], vertices[i0 + 1], vertices[i0 + 2],
+						vertices[i1], vertices[i1 + 1], vertices[i1 + 2], vertices[i2],
+						vertices[i2 + 1], vertices[i2 + 2], intg, fg);
+				}
+			}
+		});
+		return finish(intg, cm, inertia);
+	}
+
+	/**
+	 * Integrates a range of triangles into a partial result.
+	 */
+	private static interface Integrator {
 
-		final int tmax = p.size() / 3;
-		final double[] mult =
-			{ 1d / 6, 1d / 24, 1d / 24, 1d / 24, 1d / 60, 1d / 60, 1d / 60, 1d / 120,
-				1d / 120, 1d / 120 };
+		void integrate(int from, int to, double[] intg);
+	}
+
+	/**
+	 * Splits the triangles into one contiguous range per thread, integrates the
+	 * ranges in parallel and sums up the partial integrals. The partial results
+	 * are merged in a fixed order, so that the result does not depend on thread
+	 * scheduling.
+	 */
+	private static double[] reduce(final int nTriangles,
+		final Integrator integrator)
+	{
+		final int nThreads =
+			Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+				nTriangles / MIN_TRIANGLES_PER_THREAD));
 		// order: 1, x, y, z, x^2, y^2, z^2, xy, yz, zx
-		final double[] intg = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-
-		final double[] fg = new double[6];
-
-		for (int t = 0; t < tmax; t++) {
-			// get vertices of triangle t
-			final int i0 = 3 * t, i1 = 3 * t + 1, i2 = 3 * t + 2;
-
-			final double x0 = ((Point3f) p.get(i0)).x;
-			final double y0 = ((Point3f) p.get(i0)).y;
-			final double z0 = ((Point3f) p.get(i0)).z;
-			final double x1 = ((Point3f) p.get(i1)).x;
-			final double y1 = ((Point3f) p.get(i1)).y;
-			final double z1 = ((Point3f) p.get(i1)).z;
-			final double x2 = ((Point3f) p.get(i2)).x;
-			final double y2 = ((Point3f) p.get(i2)).y;
-			final double z2 = ((Point3f) p.get(i2)).z;
-
-			// get edges and cross product of edges
-			final double a1 = x1 - x0, b1 = y1 - y0, c1 = z1 - z0;
-			final double a2 = x2 - x0, b2 = y2 - y0, c2 = z2 - z0;
-			final double d0 = b1 * c2 - b2 * c1;
-			final double d1 = a2 * c1 - a1 * c2;
-			final double d2 = a1 * b2 - a2 * b1;
-
-			// compute integral terms
-			subexpr(x0, x1, x2, fg);
-			final double f1x = fg[0], f2x = fg[1], f3x = fg[2];
-			final double g0x = fg[3], g1x = fg[4], g2x = fg[5];
-			subexpr(y0, y1, y2, fg);
-			final double f1y = fg[0], f2y = fg[1], f3y = fg[2];
-			final double g0y = fg[3], g1y = fg[4], g2y = fg[5];
-			subexpr(z0, z1, z2, fg);
-			final double f1z = fg[0], f2z = fg[1], f3z = fg[2];
-			final double g0z = fg[3], g1z = fg[4], g2z = fg[5];
-
-			// update integrals
-			intg[0] += d0 * f1x;
-			intg[1] += d0 * f2x;
-			intg[2] += d1 * f2y;
-			intg[3] += d2 * f2z;
-			intg[4] += d0 * f3x;
-			intg[5] += d1 * f3y;
-			intg[6] += d2 * f3z;
-			intg[7] += d0 * (y0 * g0x + y1 * g1x + y2 * g2x);
-			intg[8] += d1 * (z0 * g0y + z1 * g1y + z2 * g2y);
-			intg[9] += d2 * (x0 * g0z + x1 * g1z + x2 * g2z);
+		final double[][] partial = new double[nThreads][10];
+		if (nThreads == 1) {
+			integrator.integrate(0, nTriangles, partial[0]);
+			return partial[0];
 		}
 
+		final Thread[] threads = new Thread[nThreads];
+		for (int i = 0; i < nThreads; i++) {
+			final int from = (int) ((long) i * nTriangles / nThreads);
+			final int to = (int) ((long) (i + 1) * nTriangles / nThreads);
+			final double[] intg = partial[i];
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					integrator.integrate(from, to, intg);
+				}
+			};
+			threads[i].start();
+		}
+		join(threads);
+
+		final double[] intg = partial[0];
+		for (int i = 1; i < nThreads; i++)
+			for (int k = 0; k < 10; k++)
+				intg[k] += partial[i][k];
+		return intg;
+	}
+
+	private static void join(final Thread[] threads) {
+		boolean interrupted = false;
+		for (final Thread t : threads) {
+			while (t.isAlive()) {
+				try {
+					t.join();
+				}
+				catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private static void addTriangle(final double x0, final double y0,
+		final double z0, final double x1, final double y1, final double z1,
+		final double x2, final double y2, final double z2, final double[] intg,
+		final double[] fg)
+	{
+		// get edges and cross product of edges
+		final double a1 = x1 - x0, b1 = y1 - y0, c1 = z1 - z0;
+		final double a2 = x2 - x0, b2 = y2 - y0, c2 = z2 - z0;
+		final double d0 = b1 * c2 - b2 * c1;
+		final double d1 = a2 * c1 - a1 * c2;
+		final double d2 = a1 * b2 - a2 * b1;
+
+		// compute integral terms
+		subexpr(x0, x1, x2, fg);
+		final double f1x = fg[0], f2x = fg[1], f3x = fg[2];
+		final double g0x = fg[3], g1x = fg[4], g2x = fg[5];
+		subexpr(y0, y1, y2, fg);
+		final double f2y = fg[1], f3y = fg[2];
+		final double g0y = fg[3], g1y = fg[4], g2y = fg[5];
+		subexpr(z0, z1, z2, fg);
+		final double f2z = fg[1], f3z = fg[2];
+		final double g0z = fg[3], g1z = fg[4], g2z = fg[5];
+
+		// update integrals
+		intg[0] += d0 * f1x;
+		intg[1] += d0 * f2x;
+		intg[2] += d1 * f2y;
+		intg[3] += d2 * f2z;
+		intg[4] += d0 * f3x;
+		intg[5] += d1 * f3y;
+		intg[6] += d2 * f3z;
+		intg[7] += d0 * (y0 * g0x + y1 * g1x + y2 * g2x);
+		intg[8] += d1 * (z0 * g0y + z1 * g1y + z2 * g2y);
+		intg[9] += d2 * (x0 * g0z + x1 * g1z + x2 * g2z);
+	}
+
+	private static double finish(final double[] intg, final Point3d cm,
+		final double[][] inertia)
+	{
 		for (int i = 0; i < 10; i++)
 			intg[i] *= mult[i];
 
@@ -140,16 +270,99 @@ public class MeshProperties {
 
 		if (mesh == null) return;
 
-		min.x = min.y = min.z = Double.MAX_VALUE;
-		max.x = max.y = max.z = -Double.MAX_VALUE;
-		for (int i = 0; i < mesh.size(); i++) {
-			final Point3f p = (Point3f) mesh.get(i);
-			if (p.x < min.x) min.x = p.x;
-			if (p.y < min.y) min.y = p.y;
-			if (p.z < min.z) min.z = p.z;
-			if (p.x > max.x) max.x = p.x;
-			if (p.y > max.y) max.y = p.y;
-			if (p.z > max.z) max.z = p.z;
+		final double[] bounds = reduceBounds(mesh.size(), new BoundsCollector() {
+
+			@Override
+			public void collect(final int from, final int to, final double[] b) {
+				for (int i = from; i < to; i++) {
+					final Point3f p = (Point3f) mesh.get(i);
+					add(p.x, p.y, p.z, b);
+				}
+			}
+		});
+		min.set(bounds[0], bounds[1], bounds[2]);
+		max.set(bounds[3], bounds[4], bounds[5]);
+	}
+
+	/**
+	 * Calculates the bounding box of the given interleaved x, y, z coordinates.
+	 */
+	public static void calculateMinMaxPoint(final float[] coords,
+		final Point3d min, final Point3d max)
+	{
+		final double[] bounds =
+			reduceBounds(coords.length / 3, new BoundsCollector() {
+
+				@Override
+				public void collect(final int from, final int to, final double[] b) {
+					for (int i = 3 * from; i < 3 * to; i += 3)
+						add(coords[i], coords[i + 1], coords[i + 2], b);
+				}
+			});
+		min.set(bounds[0], bounds[1], bounds[2]);
+		max.set(bounds[3], bounds[4], bounds[5]);
+	}
+
+	private static interface BoundsCollector {
+
+		void collect(int from, int to, double[] bounds);
+	}
+
+	private static void add(final float x, final float y, final float z,
+		final double[] b)
+	{
+		if (x < b[0]) b[0] = x;
+		if (y < b[1]) b[1] = y;
+		if (z < b[2]) b[2] = z;
+		if (x > b[3]) b[3] = x;
+		if (y > b[4]) b[4] = y;
+		if (z > b[5]) b[5] = z;
+	}
+
+	/**
+	 * Computes min x, y, z and max x, y, z of nPoints points, in parallel for
+	 * large point sets. The bounds of no points are all 0.
+	 */
+	private static double[] reduceBounds(final int nPoints,
+		final BoundsCollector collector)
+	{
+		if (nPoints == 0) return new double[6];
+		final int nThreads =
+			Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+				nPoints / (3 * MIN_TRIANGLES_PER_THREAD)));
+		final double[][] partial = new double[nThreads][];
+		for (int i = 0; i < nThreads; i++)
+			partial[i] =
+				new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE,
+					-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+		if (nThreads == 1) {
+			collector.collect(0, nPoints, partial[0]);
+			return partial[0];
+		}
+
+		final Thread[] threads = new Thread[nThreads];
+		for (int i = 0; i < nThreads; i++) {
+			final int from = (int) ((long) i * nPoints / nThreads);
+			final int to = (int) ((long) (i + 1) * nPoints / nThreads);
+			final double[] b = partial[i];
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					collector.collect(from, to, b);
+				}
+			};
+			threads[i].start();
+		}
+		join(threads);
+
+		final double[] b = partial[0];
+		for (int i = 1; i < nThreads; i++) {
+			for (int k = 0; k < 3; k++) {
+				b[k] = Math.min(b[k], partial[i][k]);
+				b[k + 3] = Math.max(b[k + 3], partial[i][k + 3]);
+			}
 		}
+		return b;
 	}
 }
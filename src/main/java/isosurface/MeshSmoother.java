@@ -0,0 +1,339 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package isosurface;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+import org.scijava.vecmath.Point3f;
+
+import customnode.CustomTriangleMesh;
+import customnode.VertexWelder;
+
+/**
+ * Laplacian and Taubin smoothing of triangle meshes. The vertex adjacency is
+ * computed once, in compressed sparse row form, when the smoother is created;
+ * afterwards each iteration only reads one float array and writes another, and
+ * is split across all available cores.
+ *
+ * The smoother keeps a copy of the original coordinates, so that a mesh can be
+ * smoothed repeatedly with different parameters by calling {@link #reset()}
+ * in between.
+ */
+public class MeshSmoother {
+
+	/** Meshes with fewer vertices than this are smoothed on a single thread. */
+	private static final int MIN_VERTICES_PER_THREAD = 10000;
+
+	private final int nThreads;
+	private final int nVertices;
+	/** For each entry of the triangle list, the index of its unique vertex */
+	private final int[] vertexOf;
+	/** neighbors[offsets[v]] to neighbors[offsets[v + 1] - 1] are v's neighbors */
+	private final int[] offsets;
+	private final int[] neighbors;
+
+	private final float[] original;
+	private float[] coords;
+	private float[] buffer;
+
+	private float[] listCoords, listNormals;
+
+	public MeshSmoother(final List<Point3f> triangles) {
+		this(triangles, Runtime.getRuntime().availableProcessors());
+	}
+
+	public MeshSmoother(final List<Point3f> triangles, final int nThreads) {
+		if (0 != triangles.size() % 3) throw new IllegalArgumentException(
+			"Need a list of points multiple of 3");
+		final VertexWelder welder = new VertexWelder(triangles.size() / 4);
+		this.vertexOf = VertexWelder.weld(triangles, welder);
+		this.nVertices = welder.size();
+		this.original = welder.getCoordinates();
+		this.coords = original.clone();
+		this.buffer = new float[coords.length];
+		this.nThreads =
+			Math.max(1, Math.min(nThreads, nVertices / MIN_VERTICES_PER_THREAD));
+
+		// count the (possibly duplicate) neighbors of each vertex
+		final int[] count = new int[nVertices + 1];
+		for (int i = 0; i < vertexOf.length; i += 3) {
+			final int a = vertexOf[i], b = vertexOf[i + 1], c = vertexOf[i + 2];
+			if (a != b) { count[a]++; count[b]++; }
+			if (b != c) { count[b]++; count[c]++; }
+			if (c != a) { count[c]++; count[a]++; }
+		}
+		final int[] start = new int[nVertices + 1];
+		for (int v = 0; v < nVertices; v++)
+			start[v + 1] = start[v] + count[v];
+
+		final int[] all = new int[start[nVertices]];
+		final int[] fill = Arrays.copyOf(start, nVertices);
+		for (int i = 0; i < vertexOf.length; i += 3) {
+			final int a = vertexOf[i], b = vertexOf[i + 1], c = vertexOf[i + 2];
+			if (a != b) { all[fill[a]++] = b; all[fill[b]++] = a; }
+			if (b != c) { all[fill[b]++] = c; all[fill[c]++] = b; }
+			if (c != a) { all[fill[c]++] = a; all[fill[a]++] = c; }
+		}
+
+		// remove duplicates, since each edge is shared by two triangles
+		offsets = new int[nVertices + 1];
+		int n = 0;
+		for (int v = 0; v < nVertices; v++) {
+			offsets[v] = n;
+			Arrays.sort(all, start[v], start[v + 1]);
+			for (int k = start[v]; k < start[v + 1]; k++)
+				if (k == start[v] || all[k] != all[k - 1]) all[n++] = all[k];
+		}
+		offsets[nVertices] = n;
+		neighbors = Arrays.copyOf(all, n);
+	}
+
+	/**
+	 * Returns the number of unique vertices.
+	 */
+	public int getVertexCount() {
+		return nVertices;
+	}
+
+	/**
+	 * Returns the current coordinates of the unique vertices, as interleaved x,
+	 * y, z values.
+	 */
+	public float[] getCoordinates() {
+		return coords;
+	}
+
+	/**
+	 * Restores the original coordinates.
+	 */
+	public void reset() {
+		System.arraycopy(original, 0, coords, 0, original.length);
+	}
+
+	/**
+	 * Moves each vertex by <code>lambda</code> times the vector to the centroid
+	 * of its neighbors, <code>iterations</code> times. A lambda of 0.25
+	 * corresponds to {@link MeshEditor#smooth2(CustomTriangleMesh, int)}.
+	 */
+	public void laplacian(final float lambda, final int iterations) {
+		iterate(lambda, lambda, iterations);
+	}
+
+	/**
+	 * Taubin's lambda/mu smoothing, which smooths without shrinking the mesh:
+	 * each iteration consists of a Laplacian step with a positive
+	 * <code>lambda</code>, followed by one with a negative <code>mu</code>,
+	 * where usually |mu| is slightly larger than lambda (e.g. 0.5 and -0.53).
+	 */
+	public void taubin(final float lambda, final float mu, final int iterations) {
+		iterate(lambda, mu, 2 * iterations);
+	}
+
+	/**
+	 * Runs the given number of steps, using lambda for even and mu for odd
+	 * steps. Stops early if the calling thread is interrupted.
+	 */
+	private void iterate(final float lambda, final float mu, final int steps) {
+		if (steps <= 0 || nVertices == 0) return;
+		if (nThreads == 1) {
+			for (int s = 0; s < steps; s++) {
+				if (Thread.currentThread().isInterrupted()) return;
+				step(s % 2 == 0 ? lambda : mu, 0, nVertices);
+				swap();
+			}
+			return;
+		}
+
+		final Thread caller = Thread.currentThread();
+		final int[] done = new int[1];
+		final boolean[] stop = new boolean[1];
+		final CyclicBarrier barrier = new CyclicBarrier(nThreads, new Runnable() {
+
+			@Override
+			public void run() {
+				swap();
+				done[0]++;
+				if (caller.isInterrupted()) stop[0] = true;
+			}
+		});
+
+		final Thread[] threads = new Thread[nThreads - 1];
+		for (int t = 1; t < nThreads; t++) {
+			final int from = (int) ((long) t * nVertices / nThreads);
+			final int to = (int) ((long) (t + 1) * nVertices / nThreads);
+			threads[t - 1] = new Thread() {
+
+				{
+					setPriority(Thread.NORM_PRIORITY);
+				}
+
+				@Override
+				public void run() {
+					work(barrier, done, stop, steps, lambda, mu, from, to);
+				}
+			};
+			threads[t - 1].start();
+		}
+		work(barrier, done, stop, steps, lambda, mu, 0, nVertices / nThreads);
+
+		boolean interrupted = false;
+		for (final Thread t : threads) {
+			while (t.isAlive()) {
+				try {
+					t.join();
+				}
+				catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) caller.interrupt();
+	}
+
+	private void work(final CyclicBarrier barrier, final int[] done,
+		final boolean[] stop, final int steps, final float lambda, final float mu,
+		final int from, final int to)
+	{
+		try {
+			while (!stop[0] && done[0] < steps) {
+				step(done[0] % 2 == 0 ? lambda : mu, from, to);
+				barrier.await();
+			}
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (final BrokenBarrierException e) {
+			// another thread was interrupted
+		}
+	}
+
+	private void step(final float f, final int from, final int to) {
+		final float[] src = coords;
+		final float[] dst = buffer;
+		for (int v = from; v < to; v++) {
+			final int o = 3 * v;
+			final int start = offsets[v], end = offsets[v + 1];
+			if (start == end) {
+				dst[o] = src[o];
+				dst[o + 1] = src[o + 1];
+				dst[o + 2] = src[o + 2];
+				continue;
+			}
+			float sx = 0, sy = 0, sz = 0;
+			for (int k = start; k < end; k++) {
+				final int n = 3 * neighbors[k];
+				sx += src[n];
+				sy += src[n + 1];
+				sz += src[n + 2];
+			}
+			final float inv = 1f / (end - start);
+			dst[o] = src[o] + f * (sx * inv - src[o]);
+			dst[o + 1] = src[o + 1] + f * (sy * inv - src[o + 1]);
+			dst[o + 2] = src[o + 2] + f * (sz * inv - src[o + 2]);
+		}
+	}
+
+	private void swap() {
+		final float[] tmp = coords;
+		coords = buffer;
+		buffer = tmp;
+	}
+
+	/**
+	 * Writes the current coordinates into the given triangle list, which must
+	 * be the one this smoother was created from. If the list belongs to a
+	 * CustomMesh, its update() method needs to be called afterwards.
+	 */
+	public void apply(final List<Point3f> triangles) {
+		if (triangles.size() != vertexOf.length) throw new IllegalArgumentException(
+			"Mesh has changed since the smoother was created");
+		for (int i = 0; i < vertexOf.length; i++) {
+			final int o = 3 * vertexOf[i];
+			triangles.get(i).set(coords[o], coords[o + 1], coords[o + 2]);
+		}
+	}
+
+	/**
+	 * Writes the current coordinates and the corresponding vertex normals into
+	 * the given mesh, which must be the one this smoother was created from.
+	 * The geometry is updated in place instead of being re-created.
+	 */
+	public void apply(final CustomTriangleMesh mesh) {
+		if (listCoords == null) {
+			listCoords = new float[3 * vertexOf.length];
+			listNormals = new float[3 * vertexOf.length];
+		}
+		final float[] normals = computeNormals();
+		for (int i = 0, j = 0; i < vertexOf.length; i++, j += 3) {
+			final int o = 3 * vertexOf[i];
+			listCoords[j] = coords[o];
+			listCoords[j + 1] = coords[o + 1];
+			listCoords[j + 2] = coords[o + 2];
+			listNormals[j] = normals[o];
+			listNormals[j + 1] = normals[o + 1];
+			listNormals[j + 2] = normals[o + 2];
+		}
+		mesh.setCoordinates(listCoords, listNormals);
+	}
+
+	/**
+	 * Computes area-weighted vertex normals of the current coordinates.
+	 */
+	private float[] computeNormals() {
+		// reuse the back buffer, it is overwritten by the next step anyway
+		final float[] n = buffer;
+		Arrays.fill(n, 0);
+		final float[] c = coords;
+		for (int i = 0; i < vertexOf.length; i += 3) {
+			final int a = 3 * vertexOf[i];
+			final int b = 3 * vertexOf[i + 1];
+			final int d = 3 * vertexOf[i + 2];
+			final float ux = c[b] - c[a], uy = c[b + 1] - c[a + 1],
+					uz = c[b + 2] - c[a + 2];
+			final float vx = c[d] - c[a], vy = c[d + 1] - c[a + 1],
+					vz = c[d + 2] - c[a + 2];
+			final float nx = uy * vz - uz * vy;
+			final float ny = uz * vx - ux * vz;
+			final float nz = ux * vy - uy * vx;
+			n[a] += nx; n[a + 1] += ny; n[a + 2] += nz;
+			n[b] += nx; n[b + 1] += ny; n[b + 2] += nz;
+			n[d] += nx; n[d + 1] += ny; n[d + 2] += nz;
+		}
+		for (int o = 0; o < n.length; o += 3) {
+			final float l =
+				(float) Math.sqrt(n[o] * n[o] + n[o + 1] * n[o + 1] + n[o + 2] *
+					n[o + 2]);
+			if (l > 0) {
+				n[o] /= l;
+				n[o + 1] /= l;
+				n[o + 2] /= l;
+			}
+		}
+		return n;
+	}
+}
@@ -29,16 +29,11 @@ import java.awt.event.AdjustmentListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.event.WindowEvent;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.scijava.vecmath.Point3f;
-
 import customnode.CustomMesh;
 import customnode.CustomMeshNode;
 import customnode.CustomMultiMesh;
@@ -52,46 +47,40 @@ import ij3d.Image3DUniverse;
 
 public class SmoothControl {
 
-	static private final void apply(final CustomTriangleMesh m,
-		final List<Point3f> triangles)
-	{
-		final List<Point3f> current = m.getMesh(); // the triangles, specified as
-																								// triplets of vertices
-		for (int i = 0; i < current.size(); ++i) {
-			current.get(i).set(triangles.get(i));
-		}
-		m.update();
-	}
-
 	static private final class Originals {
 
-		final private Map<CustomTriangleMesh, List<Point3f>> data =
-			new HashMap<CustomTriangleMesh, List<Point3f>>();
+		final private Map<CustomTriangleMesh, MeshSmoother> data =
+			new HashMap<CustomTriangleMesh, MeshSmoother>();
 
 		private Originals() {}
 
 		/** Restore the coordinates of the points in all meshes. */
 		private void restore(final Content except) {
 			final Set<CustomTriangleMesh> avoid = findMeshes(except);
-			for (final Map.Entry<CustomTriangleMesh, List<Point3f>> e : data
+			for (final Map.Entry<CustomTriangleMesh, MeshSmoother> e : data
 				.entrySet())
 			{
 				if (avoid.contains(e.getKey())) continue;
-				apply(e.getKey(), e.getValue());
+				final MeshSmoother smoother = e.getValue();
+				smoother.reset();
+				smoother.apply(e.getKey());
 			}
 			IJ.showStatus("Restored meshes");
 		}
 
 		/** Add meshes to the internal list of copies when appropriate. */
 		private void copy(final Image3DUniverse univ, final boolean all) {
-			if (all) for (final Content c : (Collection<Content>) univ.getContents())
+			if (all) for (final Content c : univ.getContents())
 				add(c);
 			else add(univ.getSelected());
 		}
 
-		private final List<Point3f> getCopyOfOriginals(final CustomTriangleMesh tm)
-		{
-			return deepCopy(data.get(tm));
+		/**
+		 * Returns the smoother of the given mesh, which holds a copy of its
+		 * original coordinates.
+		 */
+		private final MeshSmoother getSmoother(final CustomTriangleMesh tm) {
+			return data.get(tm);
 		}
 
 		/**
@@ -102,16 +91,9 @@ public class SmoothControl {
 		private void add(final Content content) {
 			for (final CustomTriangleMesh tm : findMeshes(content)) {
 				if (data.containsKey(tm)) continue; // already stored
-				data.put(tm, deepCopy(tm.getMesh()));
+				data.put(tm, new MeshSmoother(tm.getMesh()));
 			}
 		}
-
-		private final List<Point3f> deepCopy(final List<Point3f> t) {
-			final ArrayList<Point3f> list = new ArrayList<Point3f>(t.size());
-			for (final Point3f p : t)
-				list.add(new Point3f(p));
-			return list;
-		}
 	}
 
 	static public final Set<CustomTriangleMesh> findMeshes(final Content content)
@@ -149,16 +131,18 @@ public class SmoothControl {
 	}
 
 	static private final void smooth(final CustomTriangleMesh tm,
-		final int iterations, final Originals originals)
+		final int iterations, final boolean taubin, final Originals originals)
 	{
 		// Start always from the original mesh
-		final List<Point3f> triangles = originals.getCopyOfOriginals(tm);
-		MeshEditor.smooth2(triangles, iterations);
-		apply(tm, triangles);
+		final MeshSmoother smoother = originals.getSmoother(tm);
+		smoother.reset();
+		if (taubin) smoother.taubin(0.5f, -0.53f, iterations);
+		else smoother.laplacian(0.25f, iterations);
+		smoother.apply(tm);
 	}
 
 	static private final void smooth(final Content c, final int iterations,
-		final Originals originals)
+		final boolean taubin, final Originals originals)
 	{
 		if (null == c) return;
 		final ContentNode cn = c.getContent();
@@ -169,7 +153,7 @@ public class SmoothControl {
 		}
 		originals.add(c); // ensure it's there
 		for (final CustomTriangleMesh tm : meshes) {
-			smooth(tm, iterations, originals);
+			smooth(tm, iterations, taubin, originals);
 		}
 	}
 
@@ -270,6 +254,10 @@ public class SmoothControl {
 		gd.addChoice("Process", c, c[0]);
 		final Choice choice = (Choice) gd.getChoices().get(0);
 
+		final String[] m = new String[] { "Laplacian", "Taubin" };
+		gd.addChoice("Method", m, m[0]);
+		final Choice method = (Choice) gd.getChoices().get(1);
+
 		final int[] all = new int[1]; // zero by default, meaning selected mesh only
 		final int[] lastValue = new int[1];
 
@@ -314,6 +302,7 @@ public class SmoothControl {
 					@Override
 					public void run() {
 						final int choiceValue = choice.getSelectedIndex();
+						final boolean taubin = 1 == method.getSelectedIndex();
 						// Restore if nothing should be smoothed (zero iterations)
 						if (0 == iterations) {
 							originals.restore(null);
@@ -328,7 +317,7 @@ public class SmoothControl {
 						// Smooth meshes
 						if (1 == choiceValue) {
 							// All meshes
-							for (final Content c : (Collection<Content>) univ.getContents()) {
+							for (final Content c : univ.getContents()) {
 								if (0 == all[0] && 1 == choiceValue && c == univ.getSelected()) continue; // skip
 																																													// selected
 																																													// when
@@ -337,11 +326,11 @@ public class SmoothControl {
 																																													// selected
 																																													// to
 																																													// all.
-								smooth(c, iterations, originals);
+								smooth(c, iterations, taubin, originals);
 							}
 						}
 						else {
-							smooth(univ.getSelected(), iterations, originals);
+							smooth(univ.getSelected(), iterations, taubin, originals);
 						}
 						all[0] = choiceValue;
 					}
@@ -351,6 +340,7 @@ public class SmoothControl {
 
 		slider.addAdjustmentListener(listener);
 		choice.addItemListener(listener);
+		method.addItemListener(listener);
 
 		gd.setModal(false);
 
@@ -52,12 +52,23 @@ public class AppearanceCreator implements AxisConstants {
 	private ColoringAttributes colAttr;
 	private RenderingAttributes rendAttr;
 
+	private float transparency = 0.1f, threshold = 0f;
+
 	private static AppearanceCreator instance;
 
-	private AppearanceCreator() {
+	/**
+	 * Creates an appearance creator with its own attributes, so that the
+	 * color, threshold and transparency can be set independently of other
+	 * octrees.
+	 */
+	AppearanceCreator() {
 		initAttributes(null, 0.1f);
 	}
 
+	/**
+	 * Returns the default appearance creator, used for cubes which are not
+	 * displayed by a particular {@link VolumeOctree}.
+	 */
 	public static AppearanceCreator instance() {
 		if (instance == null) instance = new AppearanceCreator();
 		return instance;
@@ -78,13 +89,33 @@ public class AppearanceCreator implements AxisConstants {
 	}
 
 	public void setTransparency(final float f) {
+		transparency = f;
 		transAttr.setTransparency(f);
 	}
 
 	public void setThreshold(final float f) {
+		threshold = f;
 		rendAttr.setAlphaTestValue(f);
 	}
 
+	public float getTransparency() {
+		return transparency;
+	}
+
+	public float getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Returns the largest voxel value which is not rendered at all with the
+	 * current threshold and transparency: Voxels are only drawn if their
+	 * alpha, i.e. their intensity, is greater than the threshold.
+	 */
+	public int getMaxInvisible() {
+		if (transparency >= 1) return 255;
+		return Math.min(255, (int) Math.floor(threshold * 255));
+	}
+
 	public void setColor(final Color3f c) {
 		colAttr.setColor(c);
 	}
@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package octree;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of the decoded slice images of bricks, keyed by
+ * octree directory, brick name and axis. The cache is limited by the number
+ * of bytes of the cached images; when it is exceeded, the least recently used
+ * bricks are dropped. Cached images are shared and must not be modified.
+ */
+public class BrickCache {
+
+	private static BrickCache shared;
+
+	private final LinkedHashMap<String, BufferedImage[]> cache =
+		new LinkedHashMap<String, BufferedImage[]>(16, 0.75f, true);
+	private long budget;
+	private long bytes = 0;
+	private long hits = 0, misses = 0;
+
+	public BrickCache(final long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns the cache shared by all octrees. Its budget defaults to a quarter
+	 * of the maximum heap size, but at most 1 GB.
+	 */
+	public static synchronized BrickCache getShared() {
+		if (shared == null) shared =
+			new BrickCache(Math.min(1L << 30, Runtime.getRuntime().maxMemory() / 4));
+		return shared;
+	}
+
+	static String getKey(final String dir, final String name, final int axis) {
+		return dir + name + "#" + axis;
+	}
+
+	/**
+	 * Returns the cached images of the given brick, or null.
+	 */
+	public synchronized BufferedImage[] get(final String dir,
+		final String name, final int axis)
+	{
+		final BufferedImage[] images = cache.get(getKey(dir, name, axis));
+		if (images == null) misses++;
+		else hits++;
+		return images;
+	}
+
+	/**
+	 * Returns the cached images of the given brick, or null, without counting
+	 * a hit or miss. The brick still counts as recently used.
+	 */
+	public synchronized BufferedImage[] peek(final String dir,
+		final String name, final int axis)
+	{
+		return cache.get(getKey(dir, name, axis));
+	}
+
+	/**
+	 * Returns whether the given brick is cached, without counting this as an
+	 * access.
+	 */
+	public synchronized boolean contains(final String dir, final String name,
+		final int axis)
+	{
+		return cache.containsKey(getKey(dir, name, axis));
+	}
+
+	public synchronized void put(final String dir, final String name,
+		final int axis, final BufferedImage[] images)
+	{
+		final BufferedImage[] old = cache.put(getKey(dir, name, axis), images);
+		if (old != null) bytes -= sizeOf(old);
+		bytes += sizeOf(images);
+		evict();
+	}
+
+	/**
+	 * Drops all cached bricks of the octree in the given directory, but not
+	 * those of octrees in its subdirectories.
+	 */
+	public synchronized void removeAll(final String dir) {
+		final Iterator<Map.Entry<String, BufferedImage[]>> it =
+			cache.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<String, BufferedImage[]> e = it.next();
+			if (isInDir(e.getKey(), dir)) {
+				bytes -= sizeOf(e.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the given key belongs to a brick directly in the given
+	 * directory.
+	 */
+	private static boolean isInDir(final String key, final String dir) {
+		if (!key.startsWith(dir)) return false;
+		final int start = dir.length();
+		return key.indexOf('/', start) < 0 &&
+			key.indexOf(File.separatorChar, start) < 0;
+	}
+
+	public synchronized void clear() {
+		cache.clear();
+		bytes = 0;
+	}
+
+	public synchronized void setBudget(final long budget) {
+		this.budget = budget;
+		evict();
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/** Returns the number of bytes of the cached images */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized void resetStatistics() {
+		hits = misses = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BrickCache: " + cache.size() + " bricks, " + (bytes >> 20) +
+			" of " + (budget >> 20) + " MB, " + hits + " hits, " + misses +
+			" misses";
+	}
+
+	private void evict() {
+		final Iterator<BufferedImage[]> it = cache.values().iterator();
+		while (bytes > budget && it.hasNext()) {
+			bytes -= sizeOf(it.next());
+			it.remove();
+		}
+	}
+
+	private static long sizeOf(final BufferedImage[] images) {
+		long size = 0;
+		for (final BufferedImage image : images)
+			if (image != null) size +=
+				((DataBufferByte) image.getRaster().getDataBuffer()).getSize();
+		return size;
+	}
+}
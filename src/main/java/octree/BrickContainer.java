@@ -0,0 +1,487 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package octree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ij3d.AxisConstants;
+
+/**
+ * A single file holding all bricks of a {@link VolumeOctree}, together with
+ * their calibration. Each brick is stored once, in z order, and optionally
+ * compressed; the x and y ordered data which is needed for displaying a brick
+ * along the other axes is created by transposition when it is read.
+ * <p>
+ * The file starts with a header of {@link #HEADER_SIZE} bytes: magic, version,
+ * brick size, flags, number of bricks and the offset of the index. The index
+ * is written after the bricks, and contains position, level, calibration,
+ * offset and stored length of each brick, followed by its minimum and maximum
+ * value, the maximum value of the brick and all finer bricks it covers, and
+ * the number of non-zero voxels. All numbers are little endian. A brick whose
+ * stored length equals the size of its raw data is not compressed; empty
+ * bricks, which contain only zeros, are not stored at all and have length 0.
+ * Containers of version 1 have no value statistics.
+ * <p>
+ * Bricks may be added and read concurrently.
+ */
+public class BrickContainer implements AxisConstants {
+
+	public static final String FILE_NAME = "bricks.oct";
+
+	private static final byte[] MAGIC = { '3', 'D', 'V', 'O', 'C', 'T', 'R', 0 };
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 32;
+	private static final int ENTRY_SIZE = 48;
+	private static final int ENTRY_SIZE_V1 = 40;
+
+	private static final int COMPRESSED = 1;
+
+	private static final class Entry {
+
+		final int x, y, z, level;
+		final float pw, ph, pd;
+		final long offset;
+		final int length;
+		int min = 0, max = 255, subtreeMax = 255;
+		int occupied;
+
+		Entry(final int x, final int y, final int z, final int level,
+			final float pw, final float ph, final float pd, final long offset,
+			final int length)
+		{
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.level = level;
+			this.pw = pw;
+			this.ph = ph;
+			this.pd = pd;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final boolean writable;
+	private final int brickSize;
+	private final boolean compressed;
+	private final LinkedHashMap<String, Entry> entries =
+		new LinkedHashMap<String, Entry>();
+	private long position = HEADER_SIZE;
+
+	private BrickContainer(final File file, final boolean writable,
+		final int brickSize, final boolean compressed) throws IOException
+	{
+		this.raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		this.channel = raf.getChannel();
+		this.writable = writable;
+		this.brickSize = brickSize;
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Returns whether the given octree directory contains a brick container.
+	 */
+	public static boolean exists(final String dir) {
+		return new File(dir, FILE_NAME).exists();
+	}
+
+	/**
+	 * Creates a new, empty container in the given file. Bricks are added with
+	 * {@link #add}, and the container must be closed to be readable.
+	 */
+	public static BrickContainer create(final File file, final int brickSize,
+		final boolean compress) throws IOException
+	{
+		final BrickContainer bc =
+			new BrickContainer(file, true, brickSize, compress);
+		bc.raf.setLength(0);
+		return bc;
+	}
+
+	/**
+	 * Opens the given container for reading.
+	 */
+	public static BrickContainer open(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final ByteBuffer header;
+		try {
+			header = read(raf.getChannel(), 0, HEADER_SIZE);
+		}
+		finally {
+			raf.close();
+		}
+		final byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) throw new IOException(file +
+			" is not a brick container");
+		final int version = header.getInt();
+		if (version != VERSION && version != 1) throw new IOException(
+			"Unsupported brick container version: " + version);
+		final int brickSize = header.getInt();
+		final int flags = header.getInt();
+		final int nBricks = header.getInt();
+		final long indexOffset = header.getLong();
+
+		final BrickContainer bc = new BrickContainer(file, false, brickSize,
+			(flags & COMPRESSED) != 0);
+		try {
+			final int entrySize = version == 1 ? ENTRY_SIZE_V1 : ENTRY_SIZE;
+			final ByteBuffer index =
+				read(bc.channel, indexOffset, nBricks * entrySize);
+			for (int i = 0; i < nBricks; i++) {
+				index.position(i * entrySize);
+				final Entry e =
+					new Entry(index.getInt(), index.getInt(), index.getInt(), index
+						.getInt(), index.getFloat(), index.getFloat(), index.getFloat(),
+						index.getLong(), index.getInt());
+				if (version == 1) {
+					e.occupied = brickSize * brickSize * brickSize;
+				}
+				else {
+					e.min = 0xff & index.get();
+					e.max = 0xff & index.get();
+					e.subtreeMax = 0xff & index.get();
+					index.get();
+					e.occupied = index.getInt();
+				}
+				bc.entries.put(getName(e.x, e.y, e.z, e.level), e);
+			}
+		}
+		catch (final IOException e) {
+			bc.close();
+			throw e;
+		}
+		return bc;
+	}
+
+	/**
+	 * Returns the name of a brick, as used by {@link Cube}.
+	 */
+	public static String getName(final int x, final int y, final int z,
+		final int level)
+	{
+		return x + "_" + y + "_" + z + "_" + level;
+	}
+
+	public int getBrickSize() {
+		return brickSize;
+	}
+
+	/**
+	 * Adds a brick at the given position (in pixels of the original volume)
+	 * and level. The data is given in z order and is compressed on the calling
+	 * thread. The value statistics are computed here; an empty brick is only
+	 * recorded in the index.
+	 */
+	public void add(final int x, final int y, final int z, final int level,
+		final float pw, final float ph, final float pd, final byte[] brick)
+		throws IOException
+	{
+		if (!writable) throw new IOException("Container is read-only");
+		if (brick.length != brickSize * brickSize * brickSize) throw new IllegalArgumentException(
+			"Brick has wrong size: " + brick.length);
+		int min = 255, max = 0, occupied = 0;
+		for (final byte b : brick) {
+			final int v = 0xff & b;
+			if (v < min) min = v;
+			if (v > max) max = v;
+			if (v != 0) occupied++;
+		}
+
+		byte[] data = brick;
+		int length = max == 0 ? 0 : brick.length;
+		if (compressed && length > 0) {
+			final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(brick);
+				deflater.finish();
+				final byte[] buf = new byte[brick.length];
+				final int n = deflater.deflate(buf);
+				if (deflater.finished() && n < brick.length) {
+					data = buf;
+					length = n;
+				}
+			}
+			finally {
+				deflater.end();
+			}
+		}
+
+		final long offset;
+		synchronized (this) {
+			offset = position;
+			position += length;
+			final Entry e =
+				new Entry(x, y, z, level, pw, ph, pd, offset, length);
+			e.min = min;
+			e.max = max;
+			e.occupied = occupied;
+			entries.put(getName(x, y, z, level), e);
+		}
+		if (length == 0) return;
+		final ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+		long pos = offset;
+		while (buffer.hasRemaining())
+			pos += channel.write(buffer, pos);
+	}
+
+	public boolean contains(final String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * Returns the calibration of the given brick, or null if there is no such
+	 * brick.
+	 */
+	public float[] getCalibration(final String name, float[] ret) {
+		final Entry e = entries.get(name);
+		if (e == null) return null;
+		if (ret == null) ret = new float[3];
+		ret[0] = e.pw;
+		ret[1] = e.ph;
+		ret[2] = e.pd;
+		return ret;
+	}
+
+	/**
+	 * Returns the minimum value of the given brick; 0 for unknown bricks.
+	 */
+	public int getMin(final String name) {
+		final Entry e = entries.get(name);
+		return e == null ? 0 : e.min;
+	}
+
+	/**
+	 * Returns the maximum value of the given brick; 0 for unknown bricks.
+	 */
+	public int getMax(final String name) {
+		final Entry e = entries.get(name);
+		return e == null ? 0 : e.max;
+	}
+
+	/**
+	 * Returns the maximum value of the given brick and of all bricks of finer
+	 * levels which it covers; 0 for unknown bricks.
+	 */
+	public int getSubtreeMax(final String name) {
+		final Entry e = entries.get(name);
+		return e == null ? 0 : e.subtreeMax;
+	}
+
+	/**
+	 * Returns the fraction of non-zero voxels of the given brick.
+	 */
+	public float getOccupancy(final String name) {
+		final Entry e = entries.get(name);
+		return e == null ? 0 : e.occupied / (float) (brickSize * brickSize *
+			brickSize);
+	}
+
+	/**
+	 * Returns the number of bytes the given brick occupies in the file.
+	 */
+	public int getStoredLength(final String name) {
+		final Entry e = entries.get(name);
+		return e == null ? 0 : e.length;
+	}
+
+	/**
+	 * Reads the given brick in z order.
+	 */
+	public byte[] read(final String name) throws IOException {
+		final Entry e = entries.get(name);
+		if (e == null) throw new IOException("No brick " + name);
+		final int size = brickSize * brickSize * brickSize;
+		if (e.length == 0) return new byte[size];
+		final ByteBuffer data = read(channel, e.offset, e.length);
+		if (e.length == size) return data.array();
+
+		final byte[] brick = new byte[size];
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data.array());
+			final int n = inflater.inflate(brick);
+			if (n != size) throw new IOException("Brick " + name + " is corrupt");
+		}
+		catch (final DataFormatException ex) {
+			throw new IOException("Brick " + name + " is corrupt", ex);
+		}
+		finally {
+			inflater.end();
+		}
+		return brick;
+	}
+
+	/**
+	 * Reads the given brick, ordered for displaying it along the given axis.
+	 */
+	public byte[] read(final String name, final int axis) throws IOException {
+		final byte[] brick = read(name);
+		switch (axis) {
+			case X_AXIS:
+				return createXBlobFromZ(brick, brickSize);
+			case Y_AXIS:
+				return createYBlobFromZ(brick, brickSize);
+			default:
+				return brick;
+		}
+	}
+
+	/**
+	 * Writes the index of a new container, or releases the file of an opened
+	 * one.
+	 */
+	public void close() throws IOException {
+		try {
+			if (writable) writeIndex();
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private synchronized void writeIndex() throws IOException {
+		computeSubtreeMax();
+		final ByteBuffer index =
+			ByteBuffer.allocate(entries.size() * ENTRY_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		for (final Entry e : entries.values()) {
+			index.putInt(e.x);
+			index.putInt(e.y);
+			index.putInt(e.z);
+			index.putInt(e.level);
+			index.putFloat(e.pw);
+			index.putFloat(e.ph);
+			index.putFloat(e.pd);
+			index.putLong(e.offset);
+			index.putInt(e.length);
+			index.put((byte) e.min);
+			index.put((byte) e.max);
+			index.put((byte) e.subtreeMax);
+			index.put((byte) 0);
+			index.putInt(e.occupied);
+		}
+		index.flip();
+		final long indexOffset = position;
+		long pos = indexOffset;
+		while (index.hasRemaining())
+			pos += channel.write(index, pos);
+
+		final ByteBuffer header =
+			ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(brickSize);
+		header.putInt(compressed ? COMPRESSED : 0);
+		header.putInt(entries.size());
+		header.putLong(indexOffset);
+		header.flip();
+		pos = 0;
+		while (header.hasRemaining())
+			pos += channel.write(header, pos);
+	}
+
+	/*
+	 * Propagates the maximum values from the finest to the coarsest level.
+	 * The children of a brick are the bricks of half its level within its
+	 * extent, as in Cube.
+	 */
+	private void computeSubtreeMax() {
+		final List<Entry> sorted = new ArrayList<Entry>(entries.values());
+		Collections.sort(sorted, new Comparator<Entry>() {
+
+			@Override
+			public int compare(final Entry e1, final Entry e2) {
+				return e1.level < e2.level ? -1 : e1.level > e2.level ? 1 : 0;
+			}
+		});
+		for (final Entry e : sorted) {
+			e.subtreeMax = e.max;
+			if (e.level == 1) continue;
+			final int l = e.level >> 1;
+			final int s = l * brickSize;
+			for (int i = 0; i < 8; i++) {
+				final Entry c =
+					entries.get(getName(e.x + (i & 1) * s, e.y + ((i >> 1) & 1) * s,
+						e.z + ((i >> 2) & 1) * s, l));
+				if (c != null && c.subtreeMax > e.subtreeMax) e.subtreeMax =
+					c.subtreeMax;
+			}
+		}
+	}
+
+	private static ByteBuffer read(final FileChannel channel, final long offset,
+		final int length) throws IOException
+	{
+		final ByteBuffer buffer =
+			ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) throw new IOException(
+				"Unexpected end of brick container");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	static final byte[] createYBlobFromZ(final byte[] blob, final int size) {
+		final byte[] ret = new byte[blob.length];
+		final int s2 = size * size;
+		for (int y = 0; y < size; y++) {
+			for (int z = 0; z < size; z++) {
+				System.arraycopy(blob, z * s2 + y * size, ret, y * s2 + z * size,
+					size);
+			}
+		}
+		return ret;
+	}
+
+	static final byte[] createXBlobFromZ(final byte[] blob, final int size) {
+		final byte[] ret = new byte[blob.length];
+		final int s2 = size * size;
+		for (int z = 0; z < size; z++) {
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					ret[x * s2 + z * size + y] = blob[z * s2 + y * size + x];
+				}
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,395 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package octree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads bricks into the shared {@link BrickCache} on a pool of threads. The
+ * pending requests are kept in a priority queue. Several clients, e.g. the
+ * schedulers of several octrees, may share one loader; whenever a client
+ * submits a new view, its previous requests are replaced, so requests which
+ * are not needed anymore are cancelled before they are started.
+ *
+ * The requests of all clients are admitted by their contribution to the
+ * screen until the bricks would exceed the budget of the cache; the others
+ * are not loaded, as they would only evict each other.
+ */
+public class BrickLoader {
+
+	/**
+	 * A request to load one brick along one axis. Requests are ordered by
+	 * their contribution to the screen first, i.e. the squared projected size
+	 * of the brick in pixels times the fraction of its non-empty voxels, and
+	 * then by their distance to the eye; prefetch requests come after all
+	 * others.
+	 */
+	public static class Request implements Comparable<Request> {
+
+		final Cube cube;
+		final int axis;
+		final double screenSize;
+		final double distSqFromEye;
+		final boolean prefetch;
+		final double contribution;
+		final String key;
+
+		Request(final Cube cube, final int axis, final double screenSize,
+			final double distSqFromEye, final boolean prefetch)
+		{
+			this.cube = cube;
+			this.axis = axis;
+			this.screenSize = screenSize;
+			this.distSqFromEye = distSqFromEye;
+			this.prefetch = prefetch;
+			this.contribution =
+				screenSize * screenSize * cube.store.getOccupancy(cube.name);
+			this.key = BrickCache.getKey(cube.dir, cube.name, axis);
+		}
+
+		public Cube getCube() {
+			return cube;
+		}
+
+		public boolean isPrefetch() {
+			return prefetch;
+		}
+
+		public double getContribution() {
+			return contribution;
+		}
+
+		@Override
+		public int compareTo(final Request other) {
+			if (prefetch != other.prefetch) return prefetch ? +1 : -1;
+			if (contribution > other.contribution) return -1;
+			if (contribution < other.contribution) return +1;
+			if (distSqFromEye < other.distSqFromEye) return -1;
+			if (distSqFromEye > other.distSqFromEye) return +1;
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return key + (prefetch ? " (prefetch)" : "");
+		}
+	}
+
+	/**
+	 * Is notified on the loading thread when a brick was loaded.
+	 */
+	public interface Listener {
+
+		public void brickLoaded(Request request);
+	}
+
+	/* The number of bytes of the images of one brick along one axis */
+	private static final long BRICK_BYTES =
+		(long) VolumeOctree.SIZE * VolumeOctree.SIZE * VolumeOctree.SIZE;
+
+	/* The time in milliseconds before a brick which failed is tried again */
+	private static final long RETRY_DELAY = 5000;
+
+	private static BrickLoader shared;
+
+	private final PriorityQueue<Request> queue = new PriorityQueue<Request>();
+	private final Set<String> running = new HashSet<String>();
+	/* The time of the last failure of each brick which failed to load */
+	private final Map<String, Long> failed = new HashMap<String, Long>();
+	private final ExecutorService exec;
+	private final int nThreads;
+
+	/* The current requests of each client, by key */
+	private final Map<Listener, Map<String, Request>> clients =
+		new LinkedHashMap<Listener, Map<String, Request>>();
+
+	/* The number of workers which are currently submitted to the pool */
+	private int workers = 0;
+
+	private long requested = 0, cached = 0;
+	private long loaded = 0, prefetched = 0, cancelled = 0, overBudget = 0;
+
+	public BrickLoader(final int nThreads) {
+		this.nThreads = nThreads;
+		this.exec = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "Brick loader");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Returns the loader shared by all octrees, which uses one thread per
+	 * processor.
+	 */
+	public static synchronized BrickLoader getShared() {
+		if (shared == null) shared =
+			new BrickLoader(Runtime.getRuntime().availableProcessors());
+		return shared;
+	}
+
+	/**
+	 * Replaces the requests of the given client by the given ones. Requests
+	 * for bricks which are already cached or currently loading are skipped.
+	 * The client is notified about each of its requested bricks which is
+	 * loaded.
+	 */
+	public synchronized void submit(final Listener client,
+		final Collection<Request> requests)
+	{
+		if (exec.isShutdown()) return;
+		final Map<String, Request> map = new LinkedHashMap<String, Request>();
+		for (final Request r : requests) {
+			if (map.containsKey(r.key)) continue;
+			map.put(r.key, r);
+			if (!r.prefetch) {
+				requested++;
+				if (r.cube.store.isCached(r.cube.name, r.axis)) cached++;
+			}
+		}
+		clients.put(client, map);
+		rebuildQueue(map);
+	}
+
+	/**
+	 * Cancels the pending requests of the given client, which is not notified
+	 * anymore afterwards.
+	 */
+	public synchronized void cancel(final Listener client) {
+		final Map<String, Request> map = clients.remove(client);
+		if (map == null) return;
+		failed.keySet().removeAll(map.keySet());
+		rebuildQueue(null);
+	}
+
+	/**
+	 * Fills the queue with the requests of all clients, most important first,
+	 * as long as their bricks fit into the budget of the cache. Bricks which
+	 * are already cached count towards the budget as well. Only the dropped
+	 * requests of the given, newly submitted ones are counted.
+	 */
+	private void rebuildQueue(final Map<String, Request> submitted) {
+		final List<Request> all = new ArrayList<Request>();
+		for (final Map<String, Request> map : clients.values())
+			all.addAll(map.values());
+		Collections.sort(all);
+
+		final Set<String> old = new HashSet<String>();
+		for (final Request r : queue)
+			old.add(r.key);
+		queue.clear();
+
+		final long now = System.currentTimeMillis();
+		final Iterator<Long> it = failed.values().iterator();
+		while (it.hasNext())
+			if (now - it.next() >= RETRY_DELAY) it.remove();
+
+		final long budget = BrickCache.getShared().getBudget();
+		final Set<String> keys = new HashSet<String>();
+		long bytes = 0;
+		for (final Request r : all) {
+			if (!keys.add(r.key)) continue;
+			if (bytes + BRICK_BYTES > budget) {
+				if (!r.prefetch && submitted != null &&
+					submitted.get(r.key) == r) overBudget++;
+				continue;
+			}
+			bytes += BRICK_BYTES;
+			if (r.cube.store.isCached(r.cube.name, r.axis)) continue;
+			if (running.contains(r.key) || failed.containsKey(r.key)) continue;
+			queue.add(r);
+			old.remove(r.key);
+		}
+		cancelled += old.size();
+		while (workers < nThreads && workers < queue.size()) {
+			workers++;
+			exec.execute(new Worker());
+		}
+	}
+
+	/**
+	 * Cancels all pending requests of all clients.
+	 */
+	public synchronized void cancelAll() {
+		clients.clear();
+		failed.clear();
+		cancelled += queue.size();
+		queue.clear();
+	}
+
+	/**
+	 * Returns whether the given brick is currently loading.
+	 */
+	public synchronized boolean isLoading(final Cube cube, final int axis) {
+		return running.contains(BrickCache.getKey(cube.dir, cube.name, axis));
+	}
+
+	/**
+	 * Returns whether there are neither pending nor running requests.
+	 */
+	public synchronized boolean isIdle() {
+		return queue.isEmpty() && running.isEmpty();
+	}
+
+	/**
+	 * Returns whether none of the requests of the given client are pending or
+	 * running.
+	 */
+	public synchronized boolean isIdle(final Listener client) {
+		final Map<String, Request> map = clients.get(client);
+		if (map == null) return true;
+		for (final Request r : queue)
+			if (map.containsKey(r.key)) return false;
+		for (final String key : running)
+			if (map.containsKey(key)) return false;
+		return true;
+	}
+
+	public synchronized int getPendingCount() {
+		return queue.size();
+	}
+
+	/** Returns the number of bricks requested for the submitted views */
+	public synchronized long getRequestedCount() {
+		return requested;
+	}
+
+	/** Returns the number of requested bricks which were already cached */
+	public synchronized long getCachedCount() {
+		return cached;
+	}
+
+	/** Returns the number of bricks loaded on request of the current view */
+	public synchronized long getLoadedCount() {
+		return loaded;
+	}
+
+	/** Returns the number of bricks loaded because of a prefetch request */
+	public synchronized long getPrefetchedCount() {
+		return prefetched;
+	}
+
+	/** Returns the number of requests which were dropped before loading */
+	public synchronized long getCancelledCount() {
+		return cancelled;
+	}
+
+	/**
+	 * Returns the number of requested bricks which were not loaded because
+	 * they did not fit into the budget of the cache.
+	 */
+	public synchronized long getOverBudgetCount() {
+		return overBudget;
+	}
+
+	public synchronized void resetStatistics() {
+		requested = cached = loaded = prefetched = cancelled = overBudget = 0;
+		failed.clear();
+	}
+
+	/**
+	 * Cancels all pending requests and stops the threads.
+	 */
+	public void shutdown() {
+		cancelAll();
+		exec.shutdownNow();
+	}
+
+	private synchronized Request next() {
+		final Request r = queue.poll();
+		if (r == null) workers--;
+		else running.add(r.key);
+		return r;
+	}
+
+	/**
+	 * Returns the clients which currently request the given brick, each with
+	 * its own request.
+	 */
+	private synchronized List<Map.Entry<Listener, Request>> getClients(
+		final String key)
+	{
+		final List<Map.Entry<Listener, Request>> ret =
+			new ArrayList<Map.Entry<Listener, Request>>();
+		for (final Map.Entry<Listener, Map<String, Request>> e : clients
+			.entrySet())
+		{
+			final Request r = e.getValue().get(key);
+			if (r != null) ret.add(new AbstractMap.SimpleEntry<Listener,
+				Request>(e.getKey(), r));
+		}
+		return ret;
+	}
+
+	private synchronized void done(final Request r, final boolean success) {
+		running.remove(r.key);
+		if (!success) failed.put(r.key, System.currentTimeMillis());
+		else if (r.prefetch) prefetched++;
+		else loaded++;
+	}
+
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			Request r;
+			while ((r = next()) != null) {
+				boolean success = false;
+				try {
+					r.cube.store.getImages(r.cube.name, r.axis);
+					success = true;
+					for (final Map.Entry<Listener, Request> e : getClients(r.key))
+						e.getKey().brickLoaded(e.getValue());
+				}
+				catch (final Exception e) {
+					e.printStackTrace();
+				}
+				finally {
+					// after notifying, so that the loader only becomes idle once
+					// the listener knows about the brick
+					done(r, success);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,367 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package octree;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which cubes of an octree are displayed. For each submitted view,
+ * the octree is traversed to find the cubes with sufficient resolution, whose
+ * bricks are then requested from a {@link BrickLoader}, most important
+ * first. Additionally, the bricks needed for the view predicted from the
+ * recent camera motion are prefetched. A cube is displayed as soon as its
+ * brick is loaded; the cubes it replaces stay displayed until all their
+ * replacements are, to avoid holes. Subtrees which were not traversed for a
+ * while are dropped from the octree.
+ *
+ * All calls to the {@link Display} are made from a single thread. Since the
+ * scheduler does not depend on the scene graph itself, it can be driven
+ * headless by synthetic views.
+ */
+public class BrickScheduler {
+
+	/* Views older than this are not used to extrapolate the camera motion */
+	private static final long MAX_MOTION_AGE = 500;
+
+	/**
+	 * Does the actual displaying of the cubes.
+	 */
+	public interface Display {
+
+		public void show(Cube cube);
+
+		public void hide(Cube cube);
+
+		/**
+		 * Called after all cubes were hidden because the axis or direction
+		 * along which the slices are displayed changed.
+		 */
+		public void axisChanged(ViewProjection view, int axis, int dir);
+
+		/**
+		 * Called after each update; complete is true if each wanted cube is
+		 * displayed itself or covered by a displayed coarser cube.
+		 */
+		public void updated(boolean complete);
+	}
+
+	private final Cube rootCube;
+	private final Display display;
+	private final BrickLoader loader;
+	private final BrickLoader.Listener listener;
+	private final boolean ownsLoader;
+	private final Thread thread;
+
+	/* Only accessed by the scheduler thread */
+	private final Set<Cube> visible = new LinkedHashSet<Cube>();
+	private List<Cube> wanted = new ArrayList<Cube>();
+	private ViewProjection current, previous;
+	private int axis, dir;
+	private int invisible;
+	private boolean updateAxis;
+
+	/* The next view to process, guarded by this */
+	private ViewProjection next;
+	private int nextAxis, nextDir;
+	private boolean axisChanged = false;
+	private boolean brickLoaded = false;
+	private boolean busy = false;
+	private boolean closed = false;
+
+	private boolean prefetch = true;
+	private int maxInvisible = 0;
+	private ViewProjection last;
+	private long evictionAge = 30000;
+
+	/**
+	 * Creates a scheduler with its own loader, using the given number of
+	 * threads.
+	 */
+	public BrickScheduler(final Cube rootCube, final int nThreads,
+		final Display display)
+	{
+		this(rootCube, new BrickLoader(nThreads), true, display);
+	}
+
+	/**
+	 * Creates a scheduler which requests the bricks from the given loader,
+	 * which may be shared with other schedulers, e.g. the
+	 * {@link BrickLoader#getShared() shared loader}.
+	 */
+	public BrickScheduler(final Cube rootCube, final BrickLoader loader,
+		final Display display)
+	{
+		this(rootCube, loader, false, display);
+	}
+
+	private BrickScheduler(final Cube rootCube, final BrickLoader loader,
+		final boolean ownsLoader, final Display display)
+	{
+		this.rootCube = rootCube;
+		this.display = display;
+		this.loader = loader;
+		this.ownsLoader = ownsLoader;
+		this.listener = new BrickLoader.Listener() {
+
+			@Override
+			public void brickLoaded(final BrickLoader.Request request) {
+				if (!request.isPrefetch()) notifyLoaded();
+			}
+		};
+		this.thread = new Thread("Octree updater") {
+
+			@Override
+			public void run() {
+				try {
+					while (fetchNext())
+						update();
+				}
+				catch (final InterruptedException e) {
+					// closed
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Submits a new view. If the previous one is still being processed, only
+	 * the most recent one is processed afterwards.
+	 *
+	 * @param axis the axis along which the slices are displayed
+	 * @param dir the direction in which the slices are displayed
+	 * @param axisChanged whether the axis or the direction changed
+	 */
+	public synchronized void submit(final ViewProjection view, final int axis,
+		final int dir, final boolean axisChanged)
+	{
+		next = view;
+		nextAxis = axis;
+		nextDir = dir;
+		if (axisChanged) this.axisChanged = true;
+		notifyAll();
+	}
+
+	/**
+	 * Sets the largest voxel value which is not visible, given the current
+	 * threshold and transparency; cubes without larger values are not loaded
+	 * nor displayed. The last view is processed again.
+	 */
+	public synchronized void setMaxInvisible(final int maxInvisible) {
+		if (maxInvisible == this.maxInvisible) return;
+		this.maxInvisible = maxInvisible;
+		if (next == null && last != null) {
+			next = last;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Enables or disables prefetching of the bricks predicted from the camera
+	 * motion.
+	 */
+	public synchronized void setPrefetch(final boolean prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which subtrees of the octree which
+	 * were not traversed are dropped.
+	 */
+	public synchronized void setEvictionAge(final long millis) {
+		this.evictionAge = millis;
+	}
+
+	public BrickLoader getLoader() {
+		return loader;
+	}
+
+	/**
+	 * Waits until all submitted views are processed and all requested bricks
+	 * are loaded and displayed. Returns false if this took longer than the
+	 * given timeout.
+	 */
+	public synchronized boolean awaitIdle(final long timeoutMillis)
+		throws InterruptedException
+	{
+		final long end = System.currentTimeMillis() + timeoutMillis;
+		while (next != null || brickLoaded || busy ||
+			!loader.isIdle(listener))
+		{
+			final long left = end - System.currentTimeMillis();
+			if (left <= 0) return false;
+			// the loader does not notify us when it becomes idle
+			wait(Math.min(left, 10));
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the scheduler thread and cancels its requests; its own loader is
+	 * shut down, a shared one keeps running. Cubes are not hidden.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		if (ownsLoader) loader.shutdown();
+		else loader.cancel(listener);
+		thread.interrupt();
+	}
+
+	private synchronized void notifyLoaded() {
+		brickLoaded = true;
+		notifyAll();
+	}
+
+	private synchronized boolean fetchNext() throws InterruptedException {
+		busy = false;
+		notifyAll();
+		while (!closed && next == null && !brickLoaded)
+			wait();
+		if (closed) return false;
+		busy = true;
+		brickLoaded = false;
+		if (next != null) {
+			previous = last;
+			current = next;
+			last = next;
+			next = null;
+			invisible = maxInvisible;
+			axis = nextAxis;
+			dir = nextDir;
+			updateAxis = axisChanged;
+			axisChanged = false;
+			return true;
+		}
+		// only bricks were loaded
+		current = null;
+		updateAxis = false;
+		return true;
+	}
+
+	private void update() {
+		if (updateAxis) {
+			for (final Cube c : visible)
+				display.hide(c);
+			visible.clear();
+			display.axisChanged(current, axis, dir);
+		}
+		if (current != null) {
+			final List<BrickLoader.Request> requests =
+				new ArrayList<BrickLoader.Request>();
+			rootCube.collect(current, axis, invisible, false, requests);
+			wanted = new ArrayList<Cube>(requests.size());
+			for (final BrickLoader.Request r : requests)
+				wanted.add(r.cube);
+			final ViewProjection predicted = predict();
+			if (predicted != null) {
+				final int n = requests.size();
+				rootCube.collect(predicted, axis, invisible, true, requests);
+				// prefetching the currently wanted bricks again is not needed
+				final Set<Cube> w = new HashSet<Cube>(wanted);
+				for (int i = requests.size() - 1; i >= n; i--)
+					if (w.contains(requests.get(i).cube)) requests.remove(i);
+			}
+			loader.submit(listener, requests);
+			rootCube.evict(current.getTime() - getEvictionAge(), visible);
+		}
+		reconcile();
+	}
+
+	private synchronized long getEvictionAge() {
+		return evictionAge;
+	}
+
+	private synchronized ViewProjection predict() {
+		if (!prefetch || previous == null) return null;
+		final long dt = current.getTime() - previous.getTime();
+		if (dt <= 0 || dt > MAX_MOTION_AGE) return null;
+		return current.extrapolate(previous, current.getTime() + dt);
+	}
+
+	/**
+	 * Shows the wanted cubes whose bricks are loaded, and hides the displayed
+	 * cubes which are not wanted anymore, once the wanted cubes they overlap
+	 * with are all displayed.
+	 */
+	private void reconcile() {
+		for (final Cube c : wanted) {
+			if (!visible.contains(c) && c.store.isCached(c.name, axis)) {
+				display.show(c);
+				visible.add(c);
+			}
+		}
+
+		final Set<Cube> w = new HashSet<Cube>(wanted);
+		final List<Cube> obsolete = new ArrayList<Cube>();
+		for (final Cube v : visible) {
+			if (w.contains(v)) continue;
+			boolean covered = true;
+			for (final Cube c : wanted) {
+				if ((v.contains(c) || c.contains(v)) && !visible.contains(c)) {
+					covered = false;
+					break;
+				}
+			}
+			if (covered) obsolete.add(v);
+		}
+		for (final Cube v : obsolete) {
+			display.hide(v);
+			visible.remove(v);
+		}
+
+		boolean complete = true;
+		for (final Cube c : wanted) {
+			if (visible.contains(c)) continue;
+			boolean covered = false;
+			for (final Cube v : visible) {
+				if (v.contains(c)) {
+					covered = true;
+					break;
+				}
+			}
+			if (!covered) {
+				complete = false;
+				break;
+			}
+		}
+		display.updated(complete);
+	}
+
+	/**
+	 * Returns the cubes which are currently displayed. Must only be called
+	 * when the scheduler is idle.
+	 */
+	public synchronized List<Cube> getVisibleCubes() {
+		return new ArrayList<Cube>(visible);
+	}
+}
@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package octree;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import ij3d.AxisConstants;
+
+/**
+ * Gives access to the bricks of an octree prepared by {@link FilePreparer}
+ * or {@link OctreeBuilder}, stored either in a {@link BrickContainer} or in
+ * separate files, and to the properties of the original volume. Unlike
+ * {@link VolumeOctree}, this class does not depend on the scene graph and
+ * can be used headless.
+ */
+public class BrickStore implements AxisConstants {
+
+	private static final int SIZE = VolumeOctree.SIZE;
+	private static final int B_IMG_TYPE = BufferedImage.TYPE_BYTE_GRAY;
+
+	/* The directory, with trailing slash, as used in the BrickCache keys */
+	final String dir;
+
+	/* The bricks, or null if they are stored in separate files */
+	private final BrickContainer bricks;
+
+	final int xdim, ydim, zdim;
+	final int maxLevel;
+	final float pw, ph, pd;
+
+	private long bricksRead = 0, bytesRead = 0;
+
+	public BrickStore(final String imageDir) throws IOException {
+		this.dir = imageDir + "/";
+
+		final Properties props = new Properties();
+		final InputStream in =
+			new FileInputStream(new File(imageDir, "props.txt"));
+		try {
+			props.load(in);
+		}
+		finally {
+			in.close();
+		}
+		try {
+			xdim = Integer.parseInt(props.getProperty("width"));
+			ydim = Integer.parseInt(props.getProperty("height"));
+			zdim = Integer.parseInt(props.getProperty("depth"));
+			maxLevel = Integer.parseInt(props.getProperty("level"));
+
+			pw = Float.parseFloat(props.getProperty("pixelWidth"));
+			ph = Float.parseFloat(props.getProperty("pixelHeight"));
+			pd = Float.parseFloat(props.getProperty("pixelDepth"));
+		}
+		catch (final RuntimeException e) {
+			throw new IOException("Error in property file.", e);
+		}
+
+		bricks =
+			BrickContainer.exists(imageDir) ? BrickContainer.open(new File(
+				imageDir, BrickContainer.FILE_NAME)) : null;
+	}
+
+	/**
+	 * Returns whether the brick with the given name exists.
+	 */
+	public boolean hasBrick(final String name) {
+		if (bricks != null) return bricks.contains(name);
+		return new File(dir + name + ".info").exists();
+	}
+
+	public float[] readCalibration(final String name, final float[] ret) {
+		if (bricks != null) return bricks.getCalibration(name, ret);
+		return CubeData.readCalibration(dir + name + ".info", ret);
+	}
+
+	/**
+	 * Returns the maximum value of the given brick, or 255 if it is unknown.
+	 */
+	public int getMax(final String name) {
+		return bricks != null ? bricks.getMax(name) : 255;
+	}
+
+	/**
+	 * Returns the maximum value of the given brick and all finer bricks which
+	 * it covers, or 255 if it is unknown.
+	 */
+	public int getSubtreeMax(final String name) {
+		return bricks != null ? bricks.getSubtreeMax(name) : 255;
+	}
+
+	/**
+	 * Returns the fraction of non-zero voxels of the given brick, or 1 if it
+	 * is unknown.
+	 */
+	public float getOccupancy(final String name) {
+		return bricks != null ? bricks.getOccupancy(name) : 1;
+	}
+
+	/**
+	 * Reads the data of the given brick, ordered for displaying it along the
+	 * given axis.
+	 */
+	public byte[] readBrick(final String name, final int axis)
+		throws IOException
+	{
+		if (bricks != null) {
+			final byte[] data = bricks.read(name, axis);
+			countRead(bricks.getStoredLength(name));
+			return data;
+		}
+		final String sub = axis == X_AXIS ? "x" : axis == Y_AXIS ? "y" : "z";
+		final byte[] data = new byte[SIZE * SIZE * SIZE];
+		final DataInputStream in =
+			new DataInputStream(new FileInputStream(dir + sub + "/" + name));
+		try {
+			in.readFully(data);
+		}
+		finally {
+			in.close();
+		}
+		countRead(data.length);
+		return data;
+	}
+
+	private synchronized void countRead(final long bytes) {
+		bricksRead++;
+		bytesRead += bytes;
+	}
+
+	/** Returns the number of bricks read from disk */
+	public synchronized long getBricksRead() {
+		return bricksRead;
+	}
+
+	/** Returns the number of bytes read from disk, before decompression */
+	public synchronized long getBytesRead() {
+		return bytesRead;
+	}
+
+	public synchronized void resetStatistics() {
+		bricksRead = bytesRead = 0;
+	}
+
+	/**
+	 * Returns whether the slice images of the given brick are in the shared
+	 * {@link BrickCache}.
+	 */
+	public boolean isCached(final String name, final int axis) {
+		return BrickCache.getShared().contains(dir, name, axis);
+	}
+
+	/**
+	 * Returns the slice images of the given brick along the given axis, from
+	 * the shared {@link BrickCache} if possible; otherwise the brick is read,
+	 * decoded and put into the cache. This may be called from several threads.
+	 */
+	public BufferedImage[] getImages(final String name, final int axis)
+		throws IOException
+	{
+		return getImages(name, axis, true);
+	}
+
+	/**
+	 * Like {@link #getImages(String, int)}, but counts the access as a hit or
+	 * miss of the cache only if <code>count</code> is true. Displaying a brick
+	 * which was loaded on request is not counted, so that the statistics of
+	 * the cache reflect the requests.
+	 */
+	public BufferedImage[] getImages(final String name, final int axis,
+		final boolean count) throws IOException
+	{
+		final BrickCache cache = BrickCache.getShared();
+		BufferedImage[] images =
+			count ? cache.get(dir, name, axis) : cache.peek(dir, name, axis);
+		if (images != null) return images;
+		images = createImages(readBrick(name, axis));
+		cache.put(dir, name, axis, images);
+		return images;
+	}
+
+	/**
+	 * Drops the cached bricks and closes the container, if any.
+	 */
+	public void close() throws IOException {
+		BrickCache.getShared().removeAll(dir);
+		if (bricks != null) bricks.close();
+	}
+
+	private static BufferedImage[] createImages(final byte[] data) {
+		final BufferedImage[] images = new BufferedImage[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			images[i] = new BufferedImage(SIZE, SIZE, B_IMG_TYPE);
+			final byte[] pixels =
+				((DataBufferByte) images[i].getRaster().getDataBuffer()).getData();
+			System.arraycopy(data, i * SIZE * SIZE, pixels, 0, SIZE * SIZE);
+		}
+		return images;
+	}
+}
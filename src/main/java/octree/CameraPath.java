@@ -0,0 +1,237 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package octree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.scijava.java3d.Transform3D;
+import org.scijava.vecmath.Matrix4d;
+import org.scijava.vecmath.Point3d;
+import org.scijava.vecmath.Vector3d;
+
+/**
+ * A sequence of views onto an octree, which can be recorded from a live
+ * {@link VolumeOctree}, created synthetically, and replayed headless by the
+ * {@link OctreeSimulator}.
+ * <p>
+ * In the file format, each line after optional comment lines starting with
+ * '#' contains one view: time in milliseconds, canvas width and height, the
+ * eye position, the 16 entries of the volume to image plate transformation
+ * and the 6 entries of the image plate to pixel mapping, all separated by
+ * whitespace.
+ */
+public class CameraPath {
+
+	private final List<ViewProjection> views = new ArrayList<ViewProjection>();
+
+	public synchronized void add(final ViewProjection view) {
+		views.add(view.snapshot());
+	}
+
+	public synchronized List<ViewProjection> getViews() {
+		return new ArrayList<ViewProjection>(views);
+	}
+
+	public synchronized int size() {
+		return views.size();
+	}
+
+	public static CameraPath read(final File file) throws IOException {
+		final CameraPath path = new CameraPath();
+		final BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				final String[] t = line.split("\\s+");
+				if (t.length != 28) throw new IOException(file + ":" + lineNumber +
+					": expected 28 numbers, got " + t.length);
+				try {
+					final long time = Long.parseLong(t[0]);
+					final int width = Integer.parseInt(t[1]);
+					final int height = Integer.parseInt(t[2]);
+					final Point3d eye =
+						new Point3d(Double.parseDouble(t[3]), Double.parseDouble(t[4]),
+							Double.parseDouble(t[5]));
+					final double[] m = new double[16];
+					for (int i = 0; i < 16; i++)
+						m[i] = Double.parseDouble(t[6 + i]);
+					final double[] ipToPixel = new double[6];
+					for (int i = 0; i < 6; i++)
+						ipToPixel[i] = Double.parseDouble(t[22 + i]);
+					path.views.add(ViewProjection.affine(new Transform3D(m), eye, time,
+						ipToPixel, width, height));
+				}
+				catch (final NumberFormatException e) {
+					throw new IOException(file + ":" + lineNumber + ": " +
+						e.getMessage(), e);
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		return path;
+	}
+
+	public synchronized void write(final File file) throws IOException {
+		final PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("# time width height eye[3] volToIP[16] ipToPixel[6]");
+			final double[] m = new double[16];
+			for (final ViewProjection v : views) {
+				final ViewProjection.Affine a = (ViewProjection.Affine) v;
+				final StringBuilder sb = new StringBuilder();
+				sb.append(a.time).append(' ').append(a.getWidth()).append(' ')
+					.append(a.getHeight());
+				sb.append(' ').append(a.eyePosInLocal.x).append(' ').append(
+					a.eyePosInLocal.y).append(' ').append(a.eyePosInLocal.z);
+				a.volToIP.get(m);
+				for (final double d : m)
+					sb.append(' ').append(d);
+				for (final double d : a.m)
+					sb.append(' ').append(d);
+				out.println(sb);
+			}
+		}
+		finally {
+			out.close();
+		}
+		if (out.checkError()) throw new IOException("Could not write " + file);
+	}
+
+	/**
+	 * Creates a path which rotates the volume once around its vertical axis,
+	 * at a scale where the whole volume fits into the canvas, times the given
+	 * zoom factor.
+	 */
+	public static CameraPath orbit(final BrickStore store, final int nFrames,
+		final double zoom, final int width, final int height,
+		final long millisPerFrame)
+	{
+		final CameraPath path = new CameraPath();
+		final double scale = zoom * fitScale(store, width, height);
+		for (int i = 0; i < nFrames; i++) {
+			final double angle = 2 * Math.PI * i / nFrames;
+			path.views.add(createView(store, angle, scale, 0, 0, width, height, i *
+				millisPerFrame));
+		}
+		return path;
+	}
+
+	/**
+	 * Creates a path which zooms exponentially from the whole volume into its
+	 * center, up to the given zoom factor.
+	 */
+	public static CameraPath zoom(final BrickStore store, final int nFrames,
+		final double maxZoom, final int width, final int height,
+		final long millisPerFrame)
+	{
+		final CameraPath path = new CameraPath();
+		final double scale = fitScale(store, width, height);
+		for (int i = 0; i < nFrames; i++) {
+			final double z =
+				Math.pow(maxZoom, nFrames > 1 ? i / (double) (nFrames - 1) : 1);
+			path.views.add(createView(store, 0, scale * z, 0, 0, width, height, i *
+				millisPerFrame));
+		}
+		return path;
+	}
+
+	/**
+	 * Creates a path which pans horizontally across the volume at the given
+	 * zoom factor, from the left to the right border.
+	 */
+	public static CameraPath pan(final BrickStore store, final int nFrames,
+		final double zoom, final int width, final int height,
+		final long millisPerFrame)
+	{
+		final CameraPath path = new CameraPath();
+		final double scale = zoom * fitScale(store, width, height);
+		final double w = store.xdim * store.pw;
+		for (int i = 0; i < nFrames; i++) {
+			final double dx =
+				w * (nFrames > 1 ? i / (double) (nFrames - 1) : 0.5) - w / 2;
+			path.views.add(createView(store, 0, scale, dx, 0, width, height, i *
+				millisPerFrame));
+		}
+		return path;
+	}
+
+	private static double fitScale(final BrickStore store, final int width,
+		final int height)
+	{
+		final double w = store.xdim * store.pw;
+		final double h = store.ydim * store.ph;
+		final double d = store.zdim * store.pd;
+		final double diag = Math.sqrt(w * w + h * h + d * d);
+		return Math.min(width, height) / diag;
+	}
+
+	/*
+	 * Creates an orthographic view onto the given point relative to the
+	 * center of the volume, rotated around the y axis. Image plate units are
+	 * pixels.
+	 */
+	private static ViewProjection createView(final BrickStore store,
+		final double angle, final double scale, final double dx,
+		final double dy, final int width, final int height, final long time)
+	{
+		final Vector3d center =
+			new Vector3d(store.xdim * store.pw / 2 + dx, store.ydim * store.ph /
+				2 + dy, store.zdim * store.pd / 2);
+		final Transform3D toCenter = new Transform3D();
+		toCenter.setTranslation(new Vector3d(-center.x, -center.y, -center.z));
+		final Transform3D rot = new Transform3D();
+		rot.rotY(angle);
+		final Transform3D scaleT = new Transform3D();
+		scaleT.setScale(scale);
+		final Transform3D toCanvas = new Transform3D();
+		toCanvas.setTranslation(new Vector3d(width / 2.0, height / 2.0, 0));
+
+		final Transform3D volToIP = new Transform3D(toCanvas);
+		volToIP.mul(scaleT);
+		volToIP.mul(rot);
+		volToIP.mul(toCenter);
+
+		// the eye is far in front of the canvas center
+		final Matrix4d inv = new Matrix4d();
+		volToIP.get(inv);
+		inv.invert();
+		final Point3d eye = new Point3d(width / 2.0, height / 2.0, 10 * width);
+		new Transform3D(inv).transform(eye);
+
+		return ViewProjection.orthographic(volToIP, eye, time, 1, width, height);
+	}
+}
@@ -22,11 +22,9 @@
 
 package octree;
 
-import java.io.File;
 import java.util.List;
+import java.util.Set;
 
-import org.scijava.java3d.Canvas3D;
-import org.scijava.java3d.Transform3D;
 import org.scijava.vecmath.Point2d;
 import org.scijava.vecmath.Point3d;
 
@@ -40,161 +38,177 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 
 	public static final double RES_THRESHOLD = VolumeOctree.SIZE * 4;// Math.sqrt(3);
 
+	/* The projected size above which cubes are refined */
+	private static double resThreshold = RES_THRESHOLD;
+
 	final int x, y, z, level;
 	final String name;
 	final String dir;
 
+	/* The maximum value of the brick, and of the whole subtree */
+	final int maxValue, subtreeMaxValue;
+
+	final float[] cal = new float[3];
+	final float[] min = new float[3];
+	final float[] max = new float[3];
+
 	private Cube[] children;
 	private final Point3d midp;
 	private final Point3d[] corners;
-	private Point2d[] cornersInCanvas;
-	private boolean visible = false;
-	private boolean subtreeVisible = false;
+	private final Point2d[] cornersInCanvas;
+
+	/* The projected size of the last call to checkResolution() */
+	private double screenSize;
 
-	final CubeData cdata;
+	/* The time of the last view for which this cube was traversed */
+	private long lastVisited;
 
-	final VolumeOctree octree;
+	/* Only created while the cube is displayed */
+	CubeData cdata;
+
+	final BrickStore store;
 	private double distSqFromEye;
 
-	public Cube(final VolumeOctree oct, final String dir, final int x,
-		final int y, final int z, final int l)
+	/**
+	 * Creates a cube for the brick with the given position and level, which
+	 * must exist in the given store. Children are created lazily, when the
+	 * cube is refined for the first time.
+	 */
+	public Cube(final BrickStore store, final int x, final int y, final int z,
+		final int l)
 	{
-		this.dir = dir + "/";
-		this.octree = oct;
+		this.store = store;
+		this.dir = store.dir;
 		this.x = x;
 		this.y = y;
 		this.z = z;
 		this.level = l;
-		this.name = x + "_" + y + "_" + z + "_" + l;
-		if (new File(this.dir + name + ".info").exists()) {
-			this.cdata = new CubeData(this);
-
-			corners = new Point3d[8];
-			cornersInCanvas = new Point2d[8];
-			for (int i = 0; i < 8; i++) {
-				cornersInCanvas[i] = new Point2d();
-				corners[i] = new Point3d();
-			}
-
-			final float[] min = cdata.min;
-			final float[] max = cdata.max;
-
-			corners[0].set(min[0], min[1], min[2]);
-			corners[7].set(max[0], max[1], max[2]);
-			corners[1].set(max[0], min[1], min[2]);
-			corners[2].set(min[0], max[1], min[2]);
-			corners[3].set(max[0], max[1], min[2]);
-			corners[4].set(min[0], min[1], max[2]);
-			corners[5].set(max[0], min[1], max[2]);
-			corners[6].set(min[0], max[1], max[2]);
-			this.midp =
-				new Point3d(min[0] + (max[0] - min[0]) / 2, min[1] + (max[1] - min[1]) /
-					2, min[2] + (max[2] - min[2]) / 2);
-		}
-		else {
-			// such an object is hopefully never used.
-			corners = null;
-			this.cdata = null;
-			this.midp = null;
+		this.name = BrickContainer.getName(x, y, z, l);
+
+		store.readCalibration(name, cal);
+		maxValue = store.getMax(name);
+		subtreeMaxValue = store.getSubtreeMax(name);
+		min[0] = x * store.pw;
+		min[1] = y * store.ph;
+		min[2] = z * store.pd;
+		for (int i = 0; i < 3; i++)
+			max[i] = min[i] + VolumeOctree.SIZE * cal[i];
+
+		corners = new Point3d[8];
+		cornersInCanvas = new Point2d[8];
+		for (int i = 0; i < 8; i++) {
+			cornersInCanvas[i] = new Point2d();
+			corners[i] = new Point3d();
 		}
+
+		corners[0].set(min[0], min[1], min[2]);
+		corners[7].set(max[0], max[1], max[2]);
+		corners[1].set(max[0], min[1], min[2]);
+		corners[2].set(min[0], max[1], min[2]);
+		corners[3].set(max[0], max[1], min[2]);
+		corners[4].set(min[0], min[1], max[2]);
+		corners[5].set(max[0], min[1], max[2]);
+		corners[6].set(min[0], max[1], max[2]);
+		this.midp =
+			new Point3d(min[0] + (max[0] - min[0]) / 2, min[1] + (max[1] - min[1]) /
+				2, min[2] + (max[2] - min[2]) / 2);
 	}
 
-	public Cube createCube(final VolumeOctree oct, final String dir, final int x,
-		final int y, final int z, final int l)
-	{
-		final String name = x + "_" + y + "_" + z + "_" + l;
-		if (new File(dir, name + ".info").exists()) return new Cube(oct, dir, x, y,
-			z, l);
+	/**
+	 * Sets the projected size in pixels of the diagonal of a cube above which
+	 * it is replaced by its children; defaults to {@link #RES_THRESHOLD}. This
+	 * applies to all octrees.
+	 */
+	public static void setResolutionThreshold(final double pixels) {
+		resThreshold = pixels;
+	}
+
+	public static double getResolutionThreshold() {
+		return resThreshold;
+	}
+
+	public Cube createCube(final int x, final int y, final int z, final int l) {
+		final String name = BrickContainer.getName(x, y, z, l);
+		if (store.hasBrick(name)) return new Cube(store, x, y, z, l);
 		return null;
 	}
 
+	/**
+	 * Returns the children of this cube, creating them if necessary. Entries
+	 * are null where no brick exists; returns null for cubes of level 1.
+	 */
 	public Cube[] getChildren() {
+		if (children == null && level > 1) createChildren();
 		return children;
 	}
 
-	public void prepareForAxis(final int axis, final Point3d eyePosInLocal) {
-		cdata.prepareForAxis(axis);
-		if (children == null) return;
-
-		for (final Cube c : children) {
-			if (c != null) {
-				c.prepareForAxis(axis, eyePosInLocal);
-				c.calcDistSqFromEye(eyePosInLocal);
-			}
-		}
+	public String getName() {
+		return name;
 	}
 
-	private void calcDistSqFromEye(final Point3d eyePosInLocal) {
-		distSqFromEye = eyePosInLocal.distanceSquared(midp);
+	public int getLevel() {
+		return level;
 	}
 
 	/**
-	 * axis One of X_AXIS, Y_AXIS or Z_AXIS
+	 * Returns whether the given cube lies within this one, at a finer level.
 	 */
-	public void collectCubes(final List<Cube> cubes, final int axis) {
-		cdata.prepareForAxis(axis);
-		cubes.add(this);
-		if (children == null) return;
-		for (final Cube c : children)
-			if (c != null) c.collectCubes(cubes, axis);
-	}
-
-	public void hideSelf() {
-		if (this.visible) {
-			this.cdata.hide();
-			this.visible = false;
-		}
+	public boolean contains(final Cube c) {
+		if (c.level >= level) return false;
+		final int s = level * VolumeOctree.SIZE;
+		return c.x >= x && c.x < x + s && c.y >= y && c.y < y + s && c.z >= z &&
+			c.z < z + s;
 	}
 
-	public void hideSubtree() {
-		if (this.subtreeVisible) {
-			this.subtreeVisible = false;
-			if (this.children == null) return;
-			for (final Cube localCube : this.children)
-				if (localCube != null) {
-					localCube.hideSelf();
-					localCube.hideSubtree();
-				}
-		}
+	/**
+	 * Creates the scene graph data for displaying the cube along the given
+	 * axis with the given appearance, reading the brick if it is not cached.
+	 */
+	void show(final int axis, final AppearanceCreator appearance) {
+		cdata = new CubeData(this, appearance);
+		cdata.prepareForAxis(axis);
+		cdata.show();
 	}
 
-	private void showSelf() {
-		if (!(this.visible)) {
-			this.cdata.show();
-			this.visible = true;
-		}
+	void hide() {
+		cdata.hide();
+		cdata = null;
 	}
 
-	public void update(final Canvas3D canvas, final Transform3D volToIP) {
-		if (octree.stopUpdating) return;
-
-		// give the renderer a chance
-// 		try {
-// 			Thread.sleep(50);
-// 		} catch(InterruptedException e) {}
-		final int i = checkResolution(canvas, volToIP);
-		if (i == OUTSIDE_CANVAS) {
-			hideSelf();
-			hideSubtree();
-			return;
-		}
-		if ((i == RESOLUTION_UNSUFFICIENT) && (this.children != null)) {
-			this.subtreeVisible = true;
-			hideSelf();
-			for (final Cube localCube : this.children)
-				if (localCube != null) localCube.update(canvas, volToIP);
+	/**
+	 * Collects the cubes which should be displayed for the given view: Cubes
+	 * outside the canvas are skipped, and cubes whose resolution is not
+	 * sufficient are replaced by their children. For each collected cube, a
+	 * load request is added to the given list, which is prioritized by the
+	 * projected size of the cube and its distance to the eye. This does not
+	 * change what is displayed, but creates the children of refined cubes.
+	 * Cubes whose values are all below or equal to maxInvisible, like empty
+	 * bricks, are skipped, as well as subtrees which contain only such cubes.
+	 */
+	public void collect(final ViewProjection view, final int axis,
+		final int maxInvisible, final boolean prefetch,
+		final List<BrickLoader.Request> ret)
+	{
+		if (subtreeMaxValue <= maxInvisible) return;
+		lastVisited = Math.max(lastVisited, view.getTime());
+		final int i = checkResolution(view);
+		if (i == OUTSIDE_CANVAS) return;
+		if ((i == RESOLUTION_UNSUFFICIENT) && (level > 1)) {
+			for (final Cube localCube : getChildren())
+				if (localCube != null) localCube.collect(view, axis, maxInvisible,
+					prefetch, ret);
 		}
-		else {
-			hideSubtree();
-			showSelf();
+		else if (maxValue > maxInvisible) {
+			distSqFromEye = view.getEyePosInLocal().distanceSquared(midp);
+			ret.add(new BrickLoader.Request(this, axis, screenSize, distSqFromEye,
+				prefetch));
 		}
 	}
 
-	public int checkResolution(final Canvas3D canvas, final Transform3D volToIP) {
+	public int checkResolution(final ViewProjection view) {
 		for (int i = 0; i < this.corners.length; ++i)
-			volumePointInCanvas(canvas, volToIP, this.corners[i],
-				this.cornersInCanvas[i]);
-		if (outsideCanvas(canvas)) return OUTSIDE_CANVAS;
+			view.project(this.corners[i], this.cornersInCanvas[i]);
+		if (outsideCanvas(view)) return OUTSIDE_CANVAS;
 
 		double d2 = this.cornersInCanvas[0].distance(this.cornersInCanvas[7]);
 		double d1 = this.cornersInCanvas[1].distance(this.cornersInCanvas[6]);
@@ -203,41 +217,70 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 		if (d1 > d2) d2 = d1;
 		d1 = this.cornersInCanvas[3].distance(this.cornersInCanvas[4]);
 		if (d1 > d2) d2 = d1;
+		screenSize = d2;
 
-		return ((d2 <= RES_THRESHOLD) ? RESOLUTION_SUFFICIENT
+		return ((d2 <= resThreshold) ? RESOLUTION_SUFFICIENT
 			: RESOLUTION_UNSUFFICIENT);
 	}
 
-	public void createChildren() {
-		if (level == 1) return;
+	private void createChildren() {
 		final int l = level >> 1;
 		final int s = VolumeOctree.SIZE;
 		children = new Cube[8];
-		children[0] = createCube(octree, dir, x, y, z, l);
-		children[1] = createCube(octree, dir, x + l * s, y, z, l);
-		children[2] = createCube(octree, dir, x, y + l * s, z, l);
-		children[3] = createCube(octree, dir, x + l * s, y + l * s, z, l);
-		children[4] = createCube(octree, dir, x, y, z + l * s, l);
-		children[5] = createCube(octree, dir, x + l * s, y, z + l * s, l);
-		children[6] = createCube(octree, dir, x, y + l * s, z + l * s, l);
-		children[7] = createCube(octree, dir, x + l * s, y + l * s, z + l * s, l);
-		// children should create their children too
-		for (final Cube cube : children)
-			if (cube != null) cube.createChildren();
+		children[0] = createCube(x, y, z, l);
+		children[1] = createCube(x + l * s, y, z, l);
+		children[2] = createCube(x, y + l * s, z, l);
+		children[3] = createCube(x + l * s, y + l * s, z, l);
+		children[4] = createCube(x, y, z + l * s, l);
+		children[5] = createCube(x + l * s, y, z + l * s, l);
+		children[6] = createCube(x, y + l * s, z + l * s, l);
+		children[7] = createCube(x + l * s, y + l * s, z + l * s, l);
 	}
 
-	Point3d ptmp = new Point3d();
-
-	private final void volumePointInCanvas(final Canvas3D canvas,
-		final Transform3D volToIP, final Point3d p, final Point2d ret)
-	{
+	/**
+	 * Drops the children of the cubes in this subtree which were not
+	 * traversed since the given time, unless they contain one of the given
+	 * cubes, which are usually the displayed ones. Dropped cubes are created
+	 * again when needed.
+	 *
+	 * @return the number of dropped cubes
+	 */
+	public int evict(final long time, final Set<Cube> keep) {
+		if (children == null) return 0;
+		boolean stale = true;
+		for (final Cube c : children) {
+			if (c != null && c.lastVisited >= time) {
+				stale = false;
+				break;
+			}
+		}
+		if (stale) {
+			for (final Cube k : keep)
+				if (contains(k)) stale = false;
+		}
+		if (stale) {
+			final int n = countCubes() - 1;
+			children = null;
+			return n;
+		}
+		int n = 0;
+		for (final Cube c : children)
+			if (c != null) n += c.evict(time, keep);
+		return n;
+	}
 
-		ptmp.set(p);
-		volToIP.transform(ptmp);
-		canvas.getPixelLocationFromImagePlate(ptmp, ret);
+	/**
+	 * Returns the number of cubes in this subtree which are currently created.
+	 */
+	public int countCubes() {
+		int n = 1;
+		if (children == null) return n;
+		for (final Cube c : children)
+			if (c != null) n += c.countCubes();
+		return n;
 	}
 
-	private final boolean outsideCanvas(final Canvas3D canvas) {
+	private final boolean outsideCanvas(final ViewProjection view) {
 		// check if left
 		boolean found = true;
 		for (int i = 0; i < 8; i++) {
@@ -257,7 +300,7 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 		}
 		if (found) return true;
 
-		final int cw = canvas.getWidth(), ch = canvas.getHeight();
+		final int cw = view.getWidth(), ch = view.getHeight();
 		// right
 		found = true;
 		for (int i = 0; i < 8; i++) {
@@ -23,7 +23,6 @@
 package octree;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -37,12 +36,12 @@ import ij3d.AxisConstants;
 public class CubeData implements AxisConstants {
 
 	private static final int SIZE = VolumeOctree.SIZE;
-	private static final int B_IMG_TYPE = BufferedImage.TYPE_BYTE_GRAY;
 
 	final float[] cal = new float[3];
 	final float[] min = new float[3];
 	final float[] max = new float[3];
 
+	/* The slice images while shown; shared with the BrickCache */
 	BufferedImage[] images;
 
 	private final TexCoordGeneration tgx, tgy, tgz;
@@ -52,18 +51,18 @@ public class CubeData implements AxisConstants {
 	TexCoordGeneration tg;
 	ShapeGroup[] shapes;
 	Cube cube;
+	final AppearanceCreator appearance;
 
 	public CubeData(final Cube c) {
-		this.cube = c;
-		readCalibration(c.dir + c.name + ".info", cal);
-
-		min[0] = c.x * c.octree.pw;
-		min[1] = c.y * c.octree.ph;
-		min[2] = c.z * c.octree.pd;
+		this(c, AppearanceCreator.instance());
+	}
 
-		max[0] = min[0] + SIZE * cal[0];
-		max[1] = min[1] + SIZE * cal[1];
-		max[2] = min[2] + SIZE * cal[2];
+	public CubeData(final Cube c, final AppearanceCreator appearance) {
+		this.cube = c;
+		this.appearance = appearance;
+		System.arraycopy(c.cal, 0, cal, 0, 3);
+		System.arraycopy(c.min, 0, min, 0, 3);
+		System.arraycopy(c.max, 0, max, 0, 3);
 
 		final float xTexGenScale = (float) (1.0 / (cal[0] * SIZE));
 		final float yTexGenScale = (float) (1.0 / (cal[1] * SIZE));
@@ -85,7 +84,6 @@ public class CubeData implements AxisConstants {
 		for (int i = 0; i < SIZE; i++)
 			shapes[i] = new ShapeGroup();
 
-		images = new BufferedImage[SIZE];
 	}
 
 	public void prepareForAxis(final int axis) {
@@ -123,22 +121,11 @@ public class CubeData implements AxisConstants {
 	}
 
 	private void createData() throws IOException {
-		switch (axis) {
-			case X_AXIS:
-				createImages(cube.dir + "/x/" + cube.name);
-				break;
-			case Y_AXIS:
-				createImages(cube.dir + "/y/" + cube.name);
-				break;
-			case Z_AXIS:
-				createImages(cube.dir + "/z/" + cube.name);
-				break;
-		}
+		images = cube.store.getImages(cube.name, axis, false);
 	}
 
 	private void releaseData() {
-		for (int i = 0; i < SIZE; i++)
-			images[i] = null;
+		images = null;
 		tg = null;
 	}
 
@@ -160,15 +147,4 @@ public class CubeData implements AxisConstants {
 		}
 		return ret;
 	}
-
-	private void createImages(final String path) throws IOException {
-		final DataInputStream is = new DataInputStream(new FileInputStream(path));
-		for (int i = 0; i < SIZE; i++) {
-			images[i] = new BufferedImage(SIZE, SIZE, B_IMG_TYPE);
-			final byte[] pixels =
-				((DataBufferByte) images[i].getRaster().getDataBuffer()).getData();
-			is.readFully(pixels);
-		}
-		is.close();
-	}
 }
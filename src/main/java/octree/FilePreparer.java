@@ -22,20 +22,37 @@
 
 package octree;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import ij.IJ;
 import vib.NaiveResampler;
 
+/**
+ * Cuts a raw 8-bit volume into the bricks of a {@link VolumeOctree}, which are
+ * stored in a {@link BrickContainer}. The volume is memory-mapped; the bricks
+ * of a level, and the slices of the next, downsampled level are processed by
+ * a pool of threads.
+ */
 public class FilePreparer {
 
-	private static final NaiveResampler.Averager accu =
-		new NaiveResampler.Averager();
+	/** Maximum number of bytes mapped at once */
+	private static final long MAX_MAP_SIZE = Integer.MAX_VALUE;
 
 	private static final class Volume {
 
@@ -43,202 +60,266 @@ public class FilePreparer {
 		private final double pw, ph, pd;
 		private final long wh;
 		private final RandomAccessFile ra;
+		private final MappedByteBuffer[] maps;
+		private final int slicesPerMap;
 
 		Volume(final File file, final int w, final int h, final int d,
 			final double pw, final double ph, final double pd) throws IOException
 		{
 
-			ra = new RandomAccessFile(file, "rw");
+			ra = new RandomAccessFile(file, "r");
 			this.w = w;
 			this.h = h;
 			this.d = d;
 			this.pw = pw;
 			this.ph = ph;
 			this.pd = pd;
-			this.wh = w * h;
+			this.wh = (long) w * h;
+			if (wh > MAX_MAP_SIZE) throw new IOException("Slices of " + w + "x" +
+				h + " pixels are too large");
+			if (ra.length() < wh * d) throw new IOException(file +
+				" is too short for " + w + "x" + h + "x" + d + " pixels");
+
+			// map whole slices, as many as fit into one buffer
+			slicesPerMap = (int) Math.min(d, MAX_MAP_SIZE / wh);
+			maps = new MappedByteBuffer[(d + slicesPerMap - 1) / slicesPerMap];
+			final FileChannel channel = ra.getChannel();
+			for (int i = 0; i < maps.length; i++) {
+				final int z = i * slicesPerMap;
+				final int n = Math.min(slicesPerMap, d - z);
+				maps[i] =
+					channel.map(FileChannel.MapMode.READ_ONLY, z * wh, n * wh);
+			}
 		}
 
+		/**
+		 * Closes the file and drops the mapped buffers, which keep the file
+		 * mapped until they are garbage collected.
+		 */
 		final void close() throws IOException {
+			Arrays.fill(maps, null);
 			ra.close();
 		}
 
-		final int get(final int x, final int y, final int z) throws IOException {
+		final int get(final int x, final int y, final int z) {
 			if (x < 0 || x >= w || y < 0 || y >= h || z < 0 || z >= d) return 0;
-			final long i = z * wh + y * w + x;
-			ra.seek(i);
-			return 0xff & ra.readByte();
+			final long i = (z % slicesPerMap) * wh + (long) y * w + x;
+			return 0xff & maps[z / slicesPerMap].get((int) i);
+		}
+
+		/** Reads <code>n</code> pixels of a row; safe to call concurrently */
+		final void readRow(final int x, final int y, final int z,
+			final byte[] dst, final int off, final int n)
+		{
+			final ByteBuffer map = maps[z / slicesPerMap].duplicate();
+			map.position((int) ((z % slicesPerMap) * wh + (long) y * w + x));
+			map.get(dst, off, n);
 		}
 
 		final void createBlock(final int x, final int y, final int z,
-			final String dir, final String file, final int size) throws IOException
+			final int level, final int size, final BrickContainer bricks)
+			throws IOException
 		{
 			final byte[] blob = new byte[size * size * size];
-			int i = 0;
+			final int n = Math.min(size, w - x);
 			for (int iz = 0; iz < size && z + iz < d; iz++) {
-				for (int iy = 0; iy < size && y + iy < h; iy++, i += size) {
-					final int n = Math.min(size, w - x);
-					final long pos = (z + iz) * wh + (y + iy) * w + x;
-					ra.seek(pos);
-					ra.readFully(blob, i, n);
-				}
+				for (int iy = 0; iy < size && y + iy < h; iy++)
+					readRow(x, y + iy, z + iz, blob, (iz * size + iy) * size, n);
 			}
-
-			final DataOutputStream fos =
-				new DataOutputStream(new FileOutputStream(dir + "/" + file + ".info"));
-			fos.writeFloat((float) pw);
-			fos.writeFloat((float) ph);
-			fos.writeFloat((float) pd);
-			fos.close();
-
-			writeBlob(blob, dir + "/z/" + file);
-
-			byte[] b = createYBlobFromZ(blob, size);
-			writeBlob(b, dir + "/y/" + file);
-
-			b = createXBlobFromZ(blob, size);
-			writeBlob(b, dir + "/x/" + file);
+			bricks.add(x * level, y * level, z * level, level, (float) pw,
+				(float) ph, (float) pd, blob);
 		}
 
-		final void writeBlob(final byte[] blob, final String file)
-			throws IOException
+		/**
+		 * Creates the blocks of this volume concurrently.
+		 */
+		final void createBlocks(final BrickContainer bricks, final int size,
+			final int level, final ExecutorService exec) throws IOException
 		{
-			final DataOutputStream fos =
-				new DataOutputStream(new FileOutputStream(file));
-			fos.write(blob, 0, blob.length);
-			fos.close();
-		}
-
-		static final byte[] createYBlobFromZ(final byte[] blob, final int size) {
-			final byte[] ret = new byte[blob.length];
-			final int s2 = size * size;
-			for (int y = 0; y < size; y++) {
-				for (int z = 0; z < size; z++) {
-					System.arraycopy(blob, z * s2 + y * size, ret, y * s2 + z * size,
-						size);
-				}
-			}
-			return ret;
-		}
+			final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int z = 0; z < d; z += size) {
+				for (int y = 0; y < h; y += size) {
+					for (int x = 0; x < w; x += size) {
+						final int bx = x, by = y, bz = z;
+						tasks.add(new Callable<Void>() {
 
-		static final byte[] createXBlobFromZ(final byte[] blob, final int size) {
-			final byte[] ret = new byte[blob.length];
-			final int s2 = size * size;
-			for (int z = 0; z < size; z++) {
-				for (int y = 0; y < size; y++) {
-					for (int x = 0; x < size; x++) {
-						ret[x * s2 + z * size + y] = blob[z * s2 + y * size + x];
+							@Override
+							public Void call() throws IOException {
+								createBlock(bx, by, bz, level, size, bricks);
+								return null;
+							}
+						});
 					}
 				}
 			}
-			return ret;
+			runAll(exec, tasks);
 		}
 
+		/**
+		 * Writes this volume, padded with zeros to the next power of two in each
+		 * dimension and downsampled by the given factors, to the given file. The
+		 * slices of the result are computed concurrently.
+		 */
 		final void downsample(final String file, final int fx, final int fy,
-			final int fz) throws IOException
+			final int fz, final ExecutorService exec) throws IOException
 		{
-			final FileOutputStream out = new FileOutputStream(file);
-
 			final int ws = nextPow2(w), hs = nextPow2(h), ds = nextPow2(d);
 			final int wn = ws / fx, hn = hs / fy, dn = ds / fz;
-			final byte[] bytes = new byte[wn];
-			final byte[][] cache = new byte[fz * fy][ws];
-			for (int tmp = 0; tmp < fz * fy; tmp++)
-				Arrays.fill(cache[tmp], (byte) 0);
-			int z = 0, y = 0;
-			for (z = 0; z < ds; z += fz) {
-				// update cache
-				System.arraycopy(cache, fy, cache, 0, (fz - 1) * fy);
-				for (int ytmp = 0; ytmp < fy; ytmp++) {
-					Arrays.fill(cache[(fz - 1) * fy], (byte) 0);
-					if (y + ytmp < h) {
-						final long pos = z * wh + (y + ytmp) * w;
-						ra.seek(pos);
-						ra.readFully(cache[(fz - 1) * fy]);
-					}
-				}
-
-				for (y = 0; y < hs; y += fy) {
-					// update cache
-					for (int ztmp = 0; ztmp < fz; ztmp++) {
-						System.arraycopy(cache, ztmp * fy + 1, cache, ztmp * fy, fy - 1);
-						Arrays.fill(cache[ztmp + fy - 1], (byte) 0);
-						if (z + ztmp < d) {
-							final long pos = (z + ztmp) * wh + (y + fy - 1) * w;
-							ra.seek(pos);
-							ra.readFully(cache[ztmp + fy - 1]);
+			final RandomAccessFile out = new RandomAccessFile(file, "rw");
+			try {
+				out.setLength((long) wn * hn * dn);
+				final FileChannel channel = out.getChannel();
+				final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for (int z = 0; z < dn; z++) {
+					final int zn = z;
+					tasks.add(new Callable<Void>() {
+
+						@Override
+						public Void call() throws IOException {
+							downsampleSlice(channel, zn, fx, fy, fz, ws, wn, hn);
+							return null;
 						}
-					}
+					});
+				}
+				runAll(exec, tasks);
+			}
+			finally {
+				out.close();
+			}
+		}
 
-					for (int x = 0; x < ws; x += fx) {
-						accu.reset();
-						for (int k = 0; k < fz; k++) {
-							final int iz = z + k;
-							for (int j = 0; j < fy; j++) {
-								final int iy = y + j;
-								for (int i = 0; i < fx; i++) {
-									final int ix = x + i;
-									accu.add(0xff & cache[k * fy + j][ix]);
-								}
-							}
-						}
-						bytes[x / fx] = (byte) accu.get();
+		private void downsampleSlice(final FileChannel out, final int zn,
+			final int fx, final int fy, final int fz, final int ws, final int wn,
+			final int hn) throws IOException
+		{
+			final NaiveResampler.Averager accu = new NaiveResampler.Averager();
+			final byte[][] rows = new byte[fz * fy][ws];
+			final ByteBuffer slice = ByteBuffer.allocate(wn * hn);
+			for (int yn = 0; yn < hn; yn++) {
+				for (int k = 0; k < fz; k++) {
+					for (int j = 0; j < fy; j++) {
+						final int z = zn * fz + k, y = yn * fy + j;
+						final byte[] row = rows[k * fy + j];
+						if (z < d && y < h) readRow(0, y, z, row, 0, w);
+						else Arrays.fill(row, 0, w, (byte) 0);
 					}
-					out.write(bytes, 0, wn);
+				}
+				for (int x = 0; x < ws; x += fx) {
+					accu.reset();
+					for (final byte[] row : rows)
+						for (int i = 0; i < fx; i++)
+							accu.add(0xff & row[x + i]);
+					slice.put((byte) accu.get());
 				}
 			}
+			slice.flip();
+			long pos = (long) zn * wn * hn;
+			while (slice.hasRemaining())
+				pos += out.write(slice, pos);
 		}
 	}
 
+	public static final void createFiles(final String path, final int size,
+		final String dir, final int w, final int h, final int d, final double pw,
+		final double ph, final double pd) throws IOException
+	{
+		createFiles(path, size, dir, w, h, d, pw, ph, pd, true, Runtime
+			.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param compress whether the bricks are stored compressed.
+	 * @param nThreads the number of threads to use.
+	 */
 	public static final void createFiles(String path, final int size,
-		final String dir, int w, int h, int d, double pw, double ph, double pd)
-		throws IOException
+		final String dir, int w, int h, int d, double pw, double ph, double pd,
+		final boolean compress, final int nThreads) throws IOException
 	{
 
 		final int wOrg = w, hOrg = h, dOrg = d;
 		final double pwOrg = pw, phOrg = ph, pdOrg = pd;
 		int level = 1;
 
-		new File(dir, "x").mkdir();
-		new File(dir, "y").mkdir();
-		new File(dir, "z").mkdir();
-
-		while (true) {
-			final File file = new File(path);
-			final Volume v = new Volume(file, w, h, d, pw, ph, pd);
-			for (int z = 0; z < d; z += size) {
-				for (int y = 0; y < h; y += size) {
-					for (int x = 0; x < w; x += size) {
-						final String n =
-							(x * level) + "_" + (y * level) + "_" + (z * level) + "_" + level;
-						v.createBlock(x, y, z, dir, n, size);
-					}
+		final BrickContainer bricks =
+			BrickContainer.create(new File(dir, BrickContainer.FILE_NAME), size,
+				compress);
+		final ExecutorService exec =
+			Executors.newFixedThreadPool(Math.max(1, nThreads));
+		try {
+			while (true) {
+				final File file = new File(path);
+				final Volume v = new Volume(file, w, h, d, pw, ph, pd);
+				try {
+					v.createBlocks(bricks, size, level, exec);
+					final int fx = w > size ? 2 : 1;
+					final int fy = h > size ? 2 : 1;
+					final int fz = d > size ? 2 : 1;
+
+					if (fx == 1 && fy == 1 && fz == 1) break;
+
+					final File downs = new File(dir, file.getName() + ".l" + level);
+					v.downsample(downs.getPath(), fx, fy, fz, exec);
+					pw *= fx;
+					ph *= fy;
+					pd *= fz;
+					w = nextPow2(w) / fx;
+					h = nextPow2(h) / fy;
+					d = nextPow2(d) / fz;
+					path = downs.getPath();
+				}
+				finally {
+					v.close();
+					// the downsampled copies are only needed for the next level
+					if (level > 1) deleteTemporary(file);
 				}
+				level <<= 1;
 			}
-			final int fx = w > size ? 2 : 1;
-			final int fy = h > size ? 2 : 1;
-			final int fz = d > size ? 2 : 1;
-
-			if (fx == 1 && fy == 1 && fz == 1) break;
-
-			final File downs = new File(dir, file.getName() + ".l" + level);
-			v.downsample(downs.getPath(), fx, fy, fz);
-			v.close();
-			pw *= fx;
-			ph *= fy;
-			pd *= fz;
-			w = nextPow2(w) / fx;
-			h = nextPow2(h) / fy;
-			d = nextPow2(d) / fz;
-
-			if (level > 1) file.delete();
-			path = downs.getPath();
-			level <<= 1;
+		}
+		finally {
+			exec.shutdown();
+			bricks.close();
 		}
 		writeProperties(wOrg, hOrg, dOrg, pwOrg, phOrg, pdOrg, level, dir +
 			"/props.txt");
 	}
 
-	private static final void writeProperties(final int w, final int h,
+	/**
+	 * Deletes the given temporary file. Its mapped buffers may not have been
+	 * garbage collected yet, which prevents deletion on some platforms; in
+	 * that case, the file is deleted on exit.
+	 */
+	private static void deleteTemporary(final File file) {
+		if (file.delete() || !file.exists()) return;
+		System.gc();
+		if (file.delete() || !file.exists()) return;
+		file.deleteOnExit();
+		IJ.log("Could not delete " + file + "; it will be deleted on exit");
+	}
+
+	/**
+	 * Runs the given tasks and waits for them to finish, rethrowing the first
+	 * exception which occurred.
+	 */
+	static void runAll(final ExecutorService exec,
+		final List<Callable<Void>> tasks) throws IOException
+	{
+		try {
+			for (final Future<Void> f : exec.invokeAll(tasks))
+				f.get();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while preparing files");
+		}
+		catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	static final void writeProperties(final int w, final int h,
 		final int d, final double pw, final double ph, final double pd,
 		final int l, final String path) throws IOException
 	{
@@ -253,10 +334,15 @@ public class FilePreparer {
 		props.setProperty("pixelDepth", Float.toString((float) pd));
 
 		final FileOutputStream fw = new FileOutputStream(new File(path));
-		props.store(fw, "octree");
+		try {
+			props.store(fw, "octree");
+		}
+		finally {
+			fw.close();
+		}
 	}
 
-	private static final int nextPow2(final int n) {
+	static final int nextPow2(final int n) {
 		int retval = 2;
 		while (retval < n) {
 			retval = retval << 1;
@@ -0,0 +1,323 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package octree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/**
+ * Builds the bricks of a {@link VolumeOctree} in a single pass over the
+ * slices of a volume, e.g. an {@link ImagePlus} or a virtual stack, which is
+ * read slice by slice. In contrast to {@link FilePreparer}, no raw file is
+ * needed and no downsampled copies are written: All levels of the pyramid
+ * are accumulated in memory at the same time, and their bricks are written
+ * as soon as a slab of {@link VolumeOctree#SIZE} slices is complete. The
+ * result is the same as the one of {@link FilePreparer}.
+ *
+ * Memory is needed for about 1.2 times a slab of the input, i.e.
+ * <code>SIZE</code> slices.
+ */
+public class OctreeBuilder {
+
+	private final String dir;
+	private final int size;
+	private final int w, h, d;
+	private final double pw, ph, pd;
+	private final BrickContainer bricks;
+	private final ExecutorService exec;
+	private final Level first;
+
+	private int nSlices = 0;
+	private boolean closed = false;
+
+	/**
+	 * One level of the pyramid: collects the slices of the current slab, and
+	 * accumulates the slices of the next, downsampled level.
+	 */
+	private final class Level {
+
+		final int w, h, d;
+		final double pw, ph, pd;
+		final int level;
+
+		/* The factors to the next level, and the next level, or null */
+		final int fx, fy, fz;
+		final int sx, sy;
+		final Level next;
+
+		final byte[][] slab;
+		int slabStart = 0, nInSlab = 0;
+
+		final int wn, hn;
+		final int[] sum;
+		int nSummed = 0;
+		int z = 0;
+
+		Level(final int w, final int h, final int d, final double pw,
+			final double ph, final double pd, final int level)
+		{
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			this.pw = pw;
+			this.ph = ph;
+			this.pd = pd;
+			this.level = level;
+			this.slab = new byte[size][];
+
+			if (w <= size && h <= size && d <= size) {
+				fx = fy = fz = 1;
+				sx = sy = 0;
+				wn = hn = 0;
+				sum = null;
+				next = null;
+			}
+			else {
+				// the same as in FilePreparer
+				fx = w > size ? 2 : 1;
+				fy = h > size ? 2 : 1;
+				fz = d > size ? 2 : 1;
+				sx = fx >> 1;
+				sy = fy >> 1;
+				wn = FilePreparer.nextPow2(w) / fx;
+				hn = FilePreparer.nextPow2(h) / fy;
+				sum = new int[wn * hn];
+				next =
+					new Level(wn, hn, FilePreparer.nextPow2(d) / fz, pw * fx, ph * fy,
+						pd * fz, level << 1);
+			}
+		}
+
+		/**
+		 * Adds the next slice of this level; null stands for a slice of zeros,
+		 * as used for padding.
+		 */
+		void add(final byte[] slice) throws IOException {
+			if (z < d) {
+				slab[nInSlab++] = slice;
+				if (nInSlab == size) flushSlab();
+			}
+			z++;
+			if (next == null) return;
+
+			if (slice != null) {
+				for (int y = 0; y < h; y++) {
+					final int offs = (y >> sy) * wn;
+					for (int x = 0; x < w; x++)
+						sum[offs + (x >> sx)] += 0xff & slice[y * w + x];
+				}
+			}
+			if (++nSummed == fz) {
+				final int n = fx * fy * fz;
+				final byte[] down = new byte[wn * hn];
+				for (int i = 0; i < down.length; i++) {
+					down[i] = (byte) (sum[i] / n);
+					sum[i] = 0;
+				}
+				nSummed = 0;
+				next.add(down);
+			}
+		}
+
+		/**
+		 * Writes the bricks of the remaining slices, pads this level to the next
+		 * power of two, and finishes the next level.
+		 */
+		void finish() throws IOException {
+			if (nInSlab > 0) flushSlab();
+			if (next == null) return;
+			final int ds = FilePreparer.nextPow2(d);
+			while (z < ds)
+				add(null);
+			next.finish();
+		}
+
+		private void flushSlab() throws IOException {
+			final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int y = 0; y < h; y += size) {
+				for (int x = 0; x < w; x += size) {
+					final int bx = x, by = y;
+					tasks.add(new Callable<Void>() {
+
+						@Override
+						public Void call() throws IOException {
+							createBlock(bx, by);
+							return null;
+						}
+					});
+				}
+			}
+			FilePreparer.runAll(exec, tasks);
+			for (int i = 0; i < nInSlab; i++)
+				slab[i] = null;
+			slabStart += size;
+			nInSlab = 0;
+		}
+
+		private void createBlock(final int x, final int y) throws IOException {
+			final byte[] blob = new byte[size * size * size];
+			final int n = Math.min(size, w - x);
+			for (int iz = 0; iz < nInSlab; iz++) {
+				final byte[] slice = slab[iz];
+				if (slice == null) continue;
+				for (int iy = 0; iy < size && y + iy < h; iy++)
+					System.arraycopy(slice, (y + iy) * w + x, blob, (iz * size + iy) *
+						size, n);
+			}
+			bricks.add(x * level, y * level, slabStart * level, level, (float) pw,
+				(float) ph, (float) pd, blob);
+		}
+
+		int getMaxLevel() {
+			return next == null ? level : next.getMaxLevel();
+		}
+	}
+
+	/**
+	 * Creates a builder for a volume of the given dimensions and calibration,
+	 * which writes its bricks to the given directory.
+	 *
+	 * @param compress whether the bricks are stored compressed.
+	 * @param nThreads the number of threads used to create the bricks.
+	 */
+	public OctreeBuilder(final String dir, final int w, final int h,
+		final int d, final double pw, final double ph, final double pd,
+		final boolean compress, final int nThreads) throws IOException
+	{
+		this.dir = dir;
+		this.size = VolumeOctree.SIZE;
+		this.w = w;
+		this.h = h;
+		this.d = d;
+		this.pw = pw;
+		this.ph = ph;
+		this.pd = pd;
+		this.first = new Level(w, h, d, pw, ph, pd, 1);
+		this.bricks =
+			BrickContainer.create(new File(dir, BrickContainer.FILE_NAME), size,
+				compress);
+		this.exec = Executors.newFixedThreadPool(Math.max(1, nThreads));
+	}
+
+	/**
+	 * Adds the next slice, as 8-bit pixels in row-major order. The array is
+	 * kept until the bricks of its slab are written and must not be modified
+	 * meanwhile.
+	 */
+	public void addSlice(final byte[] pixels) throws IOException {
+		if (nSlices == d) throw new IllegalStateException("All " + d +
+			" slices were added already");
+		if (pixels.length != w * h) throw new IllegalArgumentException(
+			"Expected " + w + "x" + h + " pixels, got " + pixels.length);
+		first.add(pixels);
+		nSlices++;
+	}
+
+	/**
+	 * Adds the next slice; it is converted to 8-bit, scaled with its current
+	 * display range, if necessary.
+	 */
+	public void addSlice(ImageProcessor ip) throws IOException {
+		if (ip.getBitDepth() != 8) ip = ip.convertToByte(true);
+		addSlice((byte[]) ip.getPixels());
+	}
+
+	/**
+	 * Writes the remaining bricks and the properties of the octree, and
+	 * releases all resources. Missing slices are treated as zeros.
+	 */
+	public void finish() throws IOException {
+		try {
+			while (nSlices < d) {
+				first.add(null);
+				nSlices++;
+			}
+			first.finish();
+		}
+		finally {
+			close();
+		}
+		FilePreparer.writeProperties(w, h, d, pw, ph, pd, first.getMaxLevel(),
+			dir + "/props.txt");
+	}
+
+	/**
+	 * Releases all resources without finishing the octree, e.g. when building
+	 * it failed.
+	 */
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		exec.shutdown();
+		bricks.close();
+	}
+
+	/**
+	 * Builds the octree of the given image in the given directory. Virtual
+	 * stacks are read slice by slice. Images which are not 8-bit are
+	 * converted using the display range of the image.
+	 */
+	public static void createFiles(final ImagePlus imp, final String dir)
+		throws IOException
+	{
+		final ImageStack stack = imp.getStack();
+		final Calibration cal = imp.getCalibration();
+		final int w = imp.getWidth(), h = imp.getHeight();
+		final int d = imp.getNSlices();
+		final double min = imp.getDisplayRangeMin();
+		final double max = imp.getDisplayRangeMax();
+		final OctreeBuilder builder =
+			new OctreeBuilder(dir, w, h, d, cal.pixelWidth, cal.pixelHeight,
+				cal.pixelDepth, true, Runtime.getRuntime().availableProcessors());
+		boolean finished = false;
+		try {
+			final int c = imp.getChannel(), t = imp.getFrame();
+			for (int z = 1; z <= d; z++) {
+				IJ.showProgress(z - 1, d);
+				final ImageProcessor ip =
+					stack.getProcessor(imp.getStackIndex(c, z, t));
+				final int bd = ip.getBitDepth();
+				if (bd == 16 || bd == 32) ip.setMinAndMax(min, max);
+				builder.addSlice(ip);
+			}
+			builder.finish();
+			finished = true;
+		}
+		finally {
+			if (!finished) builder.close();
+			IJ.showProgress(1);
+		}
+	}
+}
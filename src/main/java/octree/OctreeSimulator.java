@@ -0,0 +1,358 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package octree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+
+import org.scijava.vecmath.Point3d;
+
+import ij3d.AxisConstants;
+
+/**
+ * Replays a {@link CameraPath} over a prepared octree without any scene
+ * graph, using the same traversal, scheduling, loading and caching as
+ * {@link VolumeOctree}, and reports per frame how many bricks were requested
+ * and read, the cache hit rate and how long it took until the view was
+ * completely refined. This allows to benchmark loader and cache changes, or
+ * to tune the resolution threshold, headless.
+ * <p>
+ * By default, each frame is refined completely before the next one is
+ * submitted. In paced mode, frames are submitted in real time, according to
+ * their time stamps, and for each frame it is reported whether it was
+ * complete when the next one was submitted.
+ */
+public class OctreeSimulator implements AxisConstants {
+
+	/**
+	 * The statistics of one frame.
+	 */
+	public static class Frame {
+
+		public int index;
+		public long requested, cached, loaded, prefetched, cancelled;
+		public long bricksRead, bytesRead;
+		public int visible;
+		public long latency;
+		public boolean complete;
+
+		/**
+		 * Returns the fraction of the requested bricks which were cached when
+		 * they were requested.
+		 */
+		public double getHitRate() {
+			return requested == 0 ? 1 : cached / (double) requested;
+		}
+
+		@Override
+		public String toString() {
+			return index + "\t" + requested + "\t" + cached + "\t" + loaded + "\t" +
+				prefetched + "\t" + cancelled + "\t" + bricksRead + "\t" +
+				bytesRead + "\t" + String.format("%.3f", getHitRate()) + "\t" +
+				visible + "\t" + latency + "\t" + complete;
+		}
+
+		public static final String HEADER =
+			"frame\trequested\tcached\tloaded\tprefetched\tcancelled\tread\t"
+				+ "bytes\thitrate\tvisible\tlatency_ms\tcomplete";
+	}
+
+	private final BrickStore store;
+	private final Cube rootCube;
+	private final BrickScheduler scheduler;
+	private final Point3d center;
+
+	private boolean paced = false;
+	private long timeout = 60000;
+
+	/* Set by the display */
+	private volatile boolean complete = false;
+	private int displayAxis = Z_AXIS;
+
+	public OctreeSimulator(final String octreeDir, final int nThreads)
+		throws IOException
+	{
+		store = new BrickStore(octreeDir);
+		rootCube = new Cube(store, 0, 0, 0, store.maxLevel);
+		center =
+			new Point3d(store.xdim * store.pw / 2, store.ydim * store.ph / 2,
+				store.zdim * store.pd / 2);
+		scheduler =
+			new BrickScheduler(rootCube, nThreads, new BrickScheduler.Display() {
+
+				@Override
+				public void show(final Cube cube) {
+					// access the cache like CubeData does, without counting hits
+					try {
+						store.getImages(cube.name, displayAxis, false);
+					}
+					catch (final IOException e) {
+						e.printStackTrace();
+					}
+				}
+
+				@Override
+				public void hide(final Cube cube) {}
+
+				@Override
+				public void axisChanged(final ViewProjection view, final int axis,
+					final int dir)
+				{
+					displayAxis = axis;
+				}
+
+				@Override
+				public void updated(final boolean c) {
+					complete = c;
+				}
+			});
+	}
+
+	public BrickStore getBrickStore() {
+		return store;
+	}
+
+	public BrickScheduler getScheduler() {
+		return scheduler;
+	}
+
+	public void setPaced(final boolean paced) {
+		this.paced = paced;
+	}
+
+	/**
+	 * Sets the maximum time to wait for a frame to be refined completely.
+	 */
+	public void setTimeout(final long millis) {
+		this.timeout = millis;
+	}
+
+	/**
+	 * Replays the given path, printing the statistics of each frame to the
+	 * given stream, if not null.
+	 */
+	public Frame[] run(final CameraPath path, final PrintStream out)
+		throws InterruptedException
+	{
+		final BrickLoader loader = scheduler.getLoader();
+		final List<ViewProjection> views = path.getViews();
+		final Frame[] frames = new Frame[views.size()];
+		if (out != null) out.println(Frame.HEADER);
+
+		int lastOrientation = -1;
+		final long start = System.currentTimeMillis();
+		final long t0 = views.isEmpty() ? 0 : views.get(0).getTime();
+		for (int i = 0; i < frames.length; i++) {
+			final ViewProjection view = views.get(i);
+			final Frame f = frames[i] = new Frame();
+			f.index = i;
+			final long requested = loader.getRequestedCount();
+			final long cached = loader.getCachedCount();
+			final long loaded = loader.getLoadedCount();
+			final long prefetched = loader.getPrefetchedCount();
+			final long cancelled = loader.getCancelledCount();
+			final long bricksRead = store.getBricksRead();
+			final long bytesRead = store.getBytesRead();
+
+			final int orientation = getOrientation(view.getEyePosInLocal());
+			final long submitted = System.currentTimeMillis();
+			scheduler.submit(view, orientation / 2, orientation % 2,
+				orientation != lastOrientation);
+			lastOrientation = orientation;
+
+			if (paced) {
+				// the last frame lasts as long as the one before
+				final long nextTime =
+					i + 1 < frames.length ? views.get(i + 1).getTime() - t0 : 2 *
+						view.getTime() - (i > 0 ? views.get(i - 1).getTime() : view
+							.getTime()) - t0;
+				final long wait = start + nextTime - System.currentTimeMillis();
+				if (wait > 0) Thread.sleep(wait);
+				f.complete = complete && loader.getPendingCount() == 0;
+				f.latency = System.currentTimeMillis() - submitted;
+			}
+			else {
+				f.complete = scheduler.awaitIdle(timeout) && complete;
+				f.latency = System.currentTimeMillis() - submitted;
+			}
+
+			f.requested = loader.getRequestedCount() - requested;
+			f.cached = loader.getCachedCount() - cached;
+			f.loaded = loader.getLoadedCount() - loaded;
+			f.prefetched = loader.getPrefetchedCount() - prefetched;
+			f.cancelled = loader.getCancelledCount() - cancelled;
+			f.bricksRead = store.getBricksRead() - bricksRead;
+			f.bytesRead = store.getBytesRead() - bytesRead;
+			f.visible = paced ? -1 : scheduler.getVisibleCubes().size();
+			if (out != null) out.println(f);
+		}
+		return frames;
+	}
+
+	/**
+	 * Prints the totals of the given frames.
+	 */
+	public static void printSummary(final Frame[] frames, final PrintStream out)
+	{
+		long requested = 0, cached = 0, loaded = 0, prefetched = 0;
+		long cancelled = 0, bricksRead = 0, bytesRead = 0;
+		long latency = 0, maxLatency = 0;
+		int complete = 0;
+		for (final Frame f : frames) {
+			requested += f.requested;
+			cached += f.cached;
+			loaded += f.loaded;
+			prefetched += f.prefetched;
+			cancelled += f.cancelled;
+			bricksRead += f.bricksRead;
+			bytesRead += f.bytesRead;
+			latency += f.latency;
+			maxLatency = Math.max(maxLatency, f.latency);
+			if (f.complete) complete++;
+		}
+		final int n = Math.max(1, frames.length);
+		out.println("frames: " + frames.length + ", complete: " + complete);
+		out.println("bricks requested: " + requested + " (" + cached +
+			" cached), loaded: " + loaded + ", prefetched: " + prefetched +
+			", cancelled: " + cancelled);
+		out.println("bricks read: " + bricksRead + ", MB read: " +
+			String.format("%.1f", bytesRead / (double) (1 << 20)));
+		out.println("cache hit rate: " +
+			String.format("%.3f", requested == 0 ? 1 : cached /
+				(double) requested));
+		out.println("latency per frame: " + latency / n + " ms mean, " +
+			maxLatency + " ms max");
+	}
+
+	/**
+	 * Stops the threads and releases the octree.
+	 */
+	public void close() throws IOException {
+		scheduler.close();
+		store.close();
+	}
+
+	/*
+	 * Returns axisIndex * 2 + direction, selected as in VolumeOctree.
+	 */
+	private int getOrientation(final Point3d eye) {
+		final double dx = eye.x - center.x;
+		final double dy = eye.y - center.y;
+		final double dz = eye.z - center.z;
+		int axis = X_AXIS;
+		double value = dx;
+		if (Math.abs(dy) > Math.abs(value)) {
+			axis = Y_AXIS;
+			value = dy;
+		}
+		if (Math.abs(dz) > Math.abs(value)) {
+			axis = Z_AXIS;
+			value = dz;
+		}
+		return axis * 2 + (value > 0.0 ? FRONT : BACK);
+	}
+
+	private static void usage() {
+		System.err.println("Usage: OctreeSimulator <octree directory> "
+			+ "<path file | orbit | zoom | pan> [options]\n"
+			+ "  -frames <n>        number of frames of synthetic paths (60)\n"
+			+ "  -zoom <f>          zoom factor of synthetic paths (4)\n"
+			+ "  -size <w>x<h>      canvas size of synthetic paths (800x600)\n"
+			+ "  -interval <ms>     time between frames of synthetic paths (40)\n"
+			+ "  -threads <n>       number of loading threads\n"
+			+ "  -cache <MB>        budget of the brick cache\n"
+			+ "  -threshold <px>    resolution threshold of the cubes\n"
+			+ "  -invisible <v>     largest voxel value which is invisible (0)\n"
+			+ "  -noprefetch        disable prefetching\n"
+			+ "  -paced             submit frames in real time\n"
+			+ "  -save <file>       save the camera path");
+		System.exit(2);
+	}
+
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 2) usage();
+		final String dir = args[0];
+		final String pathName = args[1];
+		int nFrames = 60, width = 800, height = 600, invisible = 0;
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		double zoom = 4;
+		long interval = 40, cacheMB = -1;
+		boolean prefetch = true, paced = false;
+		String save = null;
+		for (int i = 2; i < args.length; i++) {
+			final String a = args[i];
+			if (a.equals("-noprefetch")) prefetch = false;
+			else if (a.equals("-paced")) paced = true;
+			else if (i + 1 >= args.length) usage();
+			else if (a.equals("-frames")) nFrames = Integer.parseInt(args[++i]);
+			else if (a.equals("-zoom")) zoom = Double.parseDouble(args[++i]);
+			else if (a.equals("-size")) {
+				final String[] wh = args[++i].split("x");
+				width = Integer.parseInt(wh[0]);
+				height = Integer.parseInt(wh[1]);
+			}
+			else if (a.equals("-interval")) interval = Long.parseLong(args[++i]);
+			else if (a.equals("-threads")) nThreads = Integer.parseInt(args[++i]);
+			else if (a.equals("-cache")) cacheMB = Long.parseLong(args[++i]);
+			else if (a.equals("-threshold")) Cube.setResolutionThreshold(Double
+				.parseDouble(args[++i]));
+			else if (a.equals("-invisible")) invisible =
+				Integer.parseInt(args[++i]);
+			else if (a.equals("-save")) save = args[++i];
+			else usage();
+		}
+
+		if (cacheMB >= 0) BrickCache.getShared().setBudget(cacheMB << 20);
+		final OctreeSimulator sim = new OctreeSimulator(dir, nThreads);
+		boolean converged = true;
+		try {
+			final BrickStore store = sim.getBrickStore();
+			final CameraPath path;
+			if (pathName.equals("orbit")) path =
+				CameraPath.orbit(store, nFrames, zoom, width, height, interval);
+			else if (pathName.equals("zoom")) path =
+				CameraPath.zoom(store, nFrames, zoom, width, height, interval);
+			else if (pathName.equals("pan")) path =
+				CameraPath.pan(store, nFrames, zoom, width, height, interval);
+			else path = CameraPath.read(new File(pathName));
+			if (save != null) path.write(new File(save));
+
+			sim.setPaced(paced);
+			sim.getScheduler().setPrefetch(prefetch);
+			sim.getScheduler().setMaxInvisible(invisible);
+			final Frame[] frames = sim.run(path, System.out);
+			printSummary(frames, System.out);
+			System.out.println(BrickCache.getShared());
+			for (final Frame f : frames)
+				if (!f.complete && !paced) converged = false;
+		}
+		finally {
+			sim.close();
+		}
+		// for use in scripts: fail if a frame did not converge in time
+		if (!converged) System.exit(1);
+	}
+}
@@ -35,11 +35,6 @@ public class ShapeGroup implements Comparable {
 	BranchGroup group;
 	BranchGroup child;
 
-	/* This is only used for creating the sorting indices for
-	 * the parent OrderedGroup. Not very nice...
-	 */
-	int indexInParent;
-
 	public ShapeGroup() {
 		group = new BranchGroup();
 		group.setCapability(Group.ALLOW_CHILDREN_WRITE);
@@ -75,7 +70,7 @@ public class ShapeGroup implements Comparable {
 	private static Appearance createAppearance(final CubeData cdata,
 		final int index)
 	{
-		return AppearanceCreator.instance().getAppearance(cdata, index);
+		return cdata.appearance.getAppearance(cdata, index);
 	}
 
 	@Override
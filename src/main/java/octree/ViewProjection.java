@@ -0,0 +1,252 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package octree;
+
+import org.scijava.java3d.Canvas3D;
+import org.scijava.java3d.Transform3D;
+import org.scijava.vecmath.Matrix4d;
+import org.scijava.vecmath.Point2d;
+import org.scijava.vecmath.Point3d;
+
+/**
+ * Maps points in the local coordinates of an octree to pixels of the canvas,
+ * for one view. The traversal of the octree only depends on this class, so
+ * it can be driven by synthetic views, without a canvas.
+ */
+public abstract class ViewProjection {
+
+	final Transform3D volToIP = new Transform3D();
+	final Point3d eyePosInLocal = new Point3d();
+	final long time;
+
+	private final Point3d ptmp = new Point3d();
+
+	/**
+	 * @param volToIP the transformation from the octree's local coordinates
+	 *          to the image plate
+	 * @param eyePosInLocal the eye position in the octree's local coordinates
+	 * @param time the time of the view in milliseconds, used to extrapolate
+	 *          the camera motion
+	 */
+	protected ViewProjection(final Transform3D volToIP,
+		final Point3d eyePosInLocal, final long time)
+	{
+		this.volToIP.set(volToIP);
+		this.eyePosInLocal.set(eyePosInLocal);
+		this.time = time;
+	}
+
+	public abstract int getWidth();
+
+	public abstract int getHeight();
+
+	/**
+	 * Converts a point on the image plate to pixel coordinates.
+	 */
+	protected abstract void imagePlateToPixel(Point3d p, Point2d ret);
+
+	/**
+	 * Returns a projection onto the same canvas, but with a different view.
+	 */
+	protected abstract ViewProjection create(Transform3D volToIP,
+		Point3d eyePosInLocal, long time);
+
+	public Point3d getEyePosInLocal() {
+		return eyePosInLocal;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Projects a point in the octree's local coordinates into the canvas.
+	 * Not thread-safe.
+	 */
+	public void project(final Point3d p, final Point2d ret) {
+		ptmp.set(p);
+		volToIP.transform(ptmp);
+		imagePlateToPixel(ptmp, ret);
+	}
+
+	/**
+	 * Linearly extrapolates the camera motion from the given previous view
+	 * to this one, to the given time. The extrapolated transformation is not
+	 * necessarily rigid anymore, but close enough for predicting which
+	 * bricks will be needed.
+	 */
+	public ViewProjection extrapolate(final ViewProjection previous,
+		final long toTime)
+	{
+		final double f = (toTime - time) / (double) (time - previous.time);
+		final Matrix4d cur = new Matrix4d();
+		final Matrix4d prev = new Matrix4d();
+		volToIP.get(cur);
+		previous.volToIP.get(prev);
+		prev.sub(cur, prev);
+		prev.mul(f);
+		cur.add(prev);
+
+		final Point3d eye = new Point3d();
+		eye.sub(eyePosInLocal, previous.eyePosInLocal);
+		eye.scaleAdd(f, eyePosInLocal);
+		return create(new Transform3D(cur), eye, toTime);
+	}
+
+	/**
+	 * Returns an equivalent projection which does not depend on a canvas, and
+	 * can therefore be stored in a {@link CameraPath}. This assumes that the
+	 * mapping from the image plate to pixels is affine, as it is for a
+	 * Canvas3D.
+	 */
+	public ViewProjection snapshot() {
+		final Point3d p = new Point3d();
+		final Point2d o = new Point2d(), px = new Point2d(), py = new Point2d();
+		imagePlateToPixel(p, o);
+		p.set(1, 0, 0);
+		imagePlateToPixel(p, px);
+		p.set(0, 1, 0);
+		imagePlateToPixel(p, py);
+		final double[] m =
+			{ px.x - o.x, py.x - o.x, o.x, px.y - o.y, py.y - o.y, o.y };
+		return new Affine(volToIP, eyePosInLocal, time, m, getWidth(),
+			getHeight());
+	}
+
+	/**
+	 * Returns the projection onto the given canvas.
+	 */
+	public static ViewProjection forCanvas(final Canvas3D canvas,
+		final Transform3D volToIP, final Point3d eyePosInLocal)
+	{
+		return new CanvasProjection(canvas, volToIP, eyePosInLocal, System
+			.currentTimeMillis());
+	}
+
+	/**
+	 * Returns a projection onto a synthetic canvas of the given size, where
+	 * the image plate coordinates are scaled by the given pixel size, with
+	 * the origin in the lower left corner as for a Canvas3D.
+	 */
+	public static ViewProjection orthographic(final Transform3D volToIP,
+		final Point3d eyePosInLocal, final long time, final double pixelSize,
+		final int width, final int height)
+	{
+		return new Affine(volToIP, eyePosInLocal, time, new double[] {
+			1 / pixelSize, 0, 0, 0, -1 / pixelSize, height - 1 }, width, height);
+	}
+
+	/**
+	 * Returns a projection onto a synthetic canvas of the given size, where
+	 * image plate coordinates are mapped to pixels by the given 2x3 matrix,
+	 * in row-major order.
+	 */
+	public static ViewProjection affine(final Transform3D volToIP,
+		final Point3d eyePosInLocal, final long time, final double[] ipToPixel,
+		final int width, final int height)
+	{
+		return new Affine(volToIP, eyePosInLocal, time, ipToPixel.clone(),
+			width, height);
+	}
+
+	private static class CanvasProjection extends ViewProjection {
+
+		private final Canvas3D canvas;
+		private final int width, height;
+
+		CanvasProjection(final Canvas3D canvas, final Transform3D volToIP,
+			final Point3d eyePosInLocal, final long time)
+		{
+			super(volToIP, eyePosInLocal, time);
+			this.canvas = canvas;
+			this.width = canvas.getWidth();
+			this.height = canvas.getHeight();
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		protected void imagePlateToPixel(final Point3d p, final Point2d ret) {
+			canvas.getPixelLocationFromImagePlate(p, ret);
+		}
+
+		@Override
+		protected ViewProjection create(final Transform3D volToIP,
+			final Point3d eyePosInLocal, final long time)
+		{
+			return new CanvasProjection(canvas, volToIP, eyePosInLocal, time);
+		}
+	}
+
+	static class Affine extends ViewProjection {
+
+		final double[] m;
+		private final int width, height;
+
+		Affine(final Transform3D volToIP, final Point3d eyePosInLocal,
+			final long time, final double[] m, final int width, final int height)
+		{
+			super(volToIP, eyePosInLocal, time);
+			this.m = m;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		protected void imagePlateToPixel(final Point3d p, final Point2d ret) {
+			ret.x = m[0] * p.x + m[1] * p.y + m[2];
+			ret.y = m[3] * p.x + m[4] * p.y + m[5];
+		}
+
+		@Override
+		public ViewProjection snapshot() {
+			return this;
+		}
+
+		@Override
+		protected ViewProjection create(final Transform3D volToIP,
+			final Point3d eyePosInLocal, final long time)
+		{
+			return new Affine(volToIP, eyePosInLocal, time, m, width, height);
+		}
+	}
+}
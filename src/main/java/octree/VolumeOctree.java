@@ -22,13 +22,11 @@
 
 package octree;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
-import java.util.Properties;
 
 import org.scijava.java3d.BranchGroup;
 import org.scijava.java3d.Canvas3D;
@@ -38,6 +36,7 @@ import org.scijava.java3d.OrderedGroup;
 import org.scijava.java3d.Switch;
 import org.scijava.java3d.Transform3D;
 import org.scijava.java3d.View;
+import org.scijava.vecmath.Color3f;
 import org.scijava.vecmath.Point3d;
 import org.scijava.vecmath.Vector3d;
 
@@ -45,6 +44,15 @@ import ij3d.AxisConstants;
 import ij3d.Content;
 import ij3d.UniverseListener;
 
+/**
+ * Displays a large volume which is stored as an octree of bricks. Several
+ * octrees can be displayed at the same time; they all load their bricks with
+ * the {@link BrickLoader#getShared() shared loader} into the
+ * {@link BrickCache#getShared() shared cache}, so that the bricks which
+ * contribute most to the screen are loaded first, whichever octree they
+ * belong to, and all octrees together stay within the memory budget of the
+ * cache. Each octree has its own appearance.
+ */
 public class VolumeOctree implements UniverseListener, AxisConstants {
 
 	public static final int SIZE = 128;
@@ -53,34 +61,25 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 
 	private static final int[][] axisIndex = new int[3][2];
 
-	private int[][] sortingIndices;
-
 	private final Switch axisSwitch;
 
-	private final String imageDir;
+	private final BrickStore store;
 
 	private final Cube rootCube;
 	private final BranchGroup rootBranchGroup;
-	private final UpdaterThread updater;
+	private final BrickScheduler scheduler;
+	private final AppearanceCreator appearance = new AppearanceCreator();
 
 	int curAxis = Z_AXIS;
 	int curDir = BACK;
 
-	private final int maxLevel;
-	private final int xdim, ydim, zdim;
-	final float pw, ph, pd;
 	private final Point3d refPt;
 
-	/* This flag is set here and the cubes check it repeatedly
-	 * when they are updating, to be able to cancel.
-	 */
-	boolean stopUpdating = false;
+	private volatile CameraPath recorder;
 
 	public VolumeOctree(final String imageDir, final Canvas3D canvas)
 		throws RuntimeException
 	{
-		this.imageDir = imageDir;
-
 		axisIndex[X_AXIS][FRONT] = 0;
 		axisIndex[X_AXIS][BACK] = 1;
 		axisIndex[Y_AXIS][FRONT] = 2;
@@ -101,34 +100,22 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 		rootBranchGroup.setCapability(BranchGroup.ALLOW_DETACH);
 		rootBranchGroup.setCapability(Node.ALLOW_LOCAL_TO_VWORLD_READ);
 
-		final Properties props = new Properties();
-
 		try {
-			props.load(new FileInputStream(new File(imageDir, "props.txt")));
-
-			xdim = Integer.parseInt(props.getProperty("width"));
-			ydim = Integer.parseInt(props.getProperty("height"));
-			zdim = Integer.parseInt(props.getProperty("depth"));
-			maxLevel = Integer.parseInt(props.getProperty("level"));
-
-			pw = Float.parseFloat(props.getProperty("pixelWidth"));
-			ph = Float.parseFloat(props.getProperty("pixelHeight"));
-			pd = Float.parseFloat(props.getProperty("pixelDepth"));
-
-			rootCube = new Cube(this, imageDir, 0, 0, 0, maxLevel);
-			rootCube.createChildren();
-
-			refPt = new Point3d(xdim * pw / 2, ydim * ph / 2, zdim * pd / 2);
+			store = new BrickStore(imageDir);
 		}
-		catch (final Exception e) {
-			throw new RuntimeException("Error in property file.", e);
+		catch (final IOException e) {
+			throw new RuntimeException("Cannot open octree.", e);
 		}
 
-		addEmptyGroups(curAxis, curDir);
-		createSortingIndices();
+		rootCube = new Cube(store, 0, 0, 0, store.maxLevel);
+
+		refPt =
+			new Point3d(store.xdim * store.pw / 2, store.ydim * store.ph / 2,
+				store.zdim * store.pd / 2);
 
-		updater = new UpdaterThread(canvas);
-		updater.run();
+		scheduler =
+			new BrickScheduler(rootCube, BrickLoader.getShared(), new Display());
+		scheduler.setMaxInvisible(appearance.getMaxInvisible());
 	}
 
 // 	public void update() {
@@ -145,23 +132,61 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 		return rootCube;
 	}
 
+	/**
+	 * Sets the threshold below which voxels are not rendered; bricks which
+	 * become invisible are neither loaded nor displayed anymore.
+	 */
+	public void setThreshold(final float threshold) {
+		appearance.setThreshold(threshold);
+		scheduler.setMaxInvisible(appearance.getMaxInvisible());
+	}
+
+	public void setTransparency(final float transparency) {
+		appearance.setTransparency(transparency);
+		scheduler.setMaxInvisible(appearance.getMaxInvisible());
+	}
+
+	public void setColor(final Color3f color) {
+		appearance.setColor(color);
+	}
+
+	public AppearanceCreator getAppearanceCreator() {
+		return appearance;
+	}
+
+	/**
+	 * Records all following views into the given path, e.g. for replaying
+	 * them with the {@link OctreeSimulator}; null stops recording.
+	 */
+	public void setCameraPathRecorder(final CameraPath path) {
+		recorder = path;
+	}
+
+	public BrickStore getBrickStore() {
+		return store;
+	}
+
+	public BrickScheduler getScheduler() {
+		return scheduler;
+	}
+
 	public float realWorldXDim() {
-		return xdim * pw;
+		return store.xdim * store.pw;
 	}
 
 	public float realWorldYDim() {
-		return ydim * ph;
+		return store.ydim * store.ph;
 	}
 
 	public float realWorldZDim() {
-		return zdim * pd;
+		return store.zdim * store.pd;
 	}
 
 	public void displayInitial() {
 		final int[] axis = new int[] { X_AXIS, Y_AXIS, Z_AXIS };
 
 		for (int ai = 0; ai < 3; ai++) {
-			final CubeData cdata = new CubeData(rootCube);
+			final CubeData cdata = new CubeData(rootCube, appearance);
 			cdata.prepareForAxis(axis[ai]);
 			cdata.show();
 
@@ -178,70 +203,62 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 		System.out.println("# shapes: " + countInitialShapes());
 	}
 
-	final void removeAllCubes() {
-		// remove the old data
-		final OrderedGroup og = getOrderedGroup(DETAIL_AXIS);
-		for (int i = og.numChildren() - 1; i >= 0; i--) {
-			final BranchGroup child = (BranchGroup) og.getChild(i);
-			child.detach();
-			child.removeAllChildren();
-		}
+	/* The shapes in the detail group, in the same order */
+	private final List<ShapeGroup> detailShapes = new ArrayList<ShapeGroup>();
+	private int detailAxis = curAxis, detailDir = curDir;
+
+	final void axisChanged(final int axis, final int dir) {
+		// all cubes are hidden at this point
+		detailAxis = axis;
+		detailDir = dir;
 	}
 
-	private final void createSortingIndices() {
-		final int[] axis = new int[] { X_AXIS, Y_AXIS, Z_AXIS };
-		final int[] dir = new int[] { FRONT, BACK };
-		sortingIndices = new int[6][];
-
-		final List<Cube> cubes = new ArrayList<Cube>();
-		for (final int a : axis) {
-			cubes.clear();
-			rootCube.collectCubes(cubes, a);
-			final ShapeGroup[] shapes = new ShapeGroup[cubes.size() * SIZE];
-			int i = 0;
-			for (final Cube c : cubes) {
-				for (final ShapeGroup sg : c.cdata.shapes) {
-					shapes[i] = sg;
-					shapes[i].indexInParent = i;
-					i++;
-				}
-			}
-			Arrays.sort(shapes);
-
-			final int aif = axisIndex[a][FRONT];
-			final int aib = axisIndex[a][BACK];
-			sortingIndices[aif] = new int[shapes.length];
-			sortingIndices[aib] = new int[shapes.length];
-			for (i = 0; i < shapes.length; i++) {
-				final int j = shapes.length - 1 - i;
-				sortingIndices[aif][i] = shapes[i].indexInParent;
-				sortingIndices[aib][j] = shapes[i].indexInParent;
+	/*
+	 * Adds the shapes of the given cube to the detail group, keeping the
+	 * group sorted along the current axis and direction.
+	 */
+	private final void addDetailShapes(final Cube cube) {
+		final OrderedGroup og = getOrderedGroup(DETAIL_AXIS);
+		for (final ShapeGroup sg : cube.cdata.shapes) {
+			int lo = 0, hi = detailShapes.size();
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				final int c = detailShapes.get(mid).compareTo(sg);
+				if (detailDir == FRONT ? c <= 0 : c >= 0) lo = mid + 1;
+				else hi = mid;
 			}
+			detailShapes.add(lo, sg);
+			og.insertChild(sg.group, lo);
 		}
 	}
 
-	private final void addEmptyGroups(final int axis, final int dir) {
-		final List<Cube> cubes = new ArrayList<Cube>();
-		rootCube.collectCubes(cubes, axis);
-
-		final ShapeGroup[] shapes = new ShapeGroup[cubes.size() * SIZE];
-		int i = 0;
-		for (final Cube c : cubes)
-			for (final ShapeGroup sg : c.cdata.shapes)
-				shapes[i++] = sg;
+	private final void removeDetailShapes(final Cube cube) {
 		final OrderedGroup og = getOrderedGroup(DETAIL_AXIS);
-		for (i = 0; i < shapes.length; i++)
-			og.addChild(shapes[i].group);
+		for (final ShapeGroup sg : cube.cdata.shapes) {
+			final int i = indexOfDetailShape(sg);
+			detailShapes.remove(i);
+			og.removeChild(i);
+		}
 	}
 
-	final void axisChanged(final Point3d eyePosInLocal) {
-		System.out.println("**** AXIS CHANGED ****");
-		rootCube.hideSelf();
-		rootCube.hideSubtree();
-		rootCube.prepareForAxis(curAxis, eyePosInLocal);
-		getOrderedGroup(DETAIL_AXIS).setChildIndexOrder(
-			sortingIndices[axisIndex[curAxis][curDir]]);
-		System.out.println("**** AXIS CHANGED DONE ****");
+	/*
+	 * Finds the given shape in the detail group by binary search, and then
+	 * among the shapes at the same position.
+	 */
+	private final int indexOfDetailShape(final ShapeGroup sg) {
+		int lo = 0, hi = detailShapes.size();
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int c = detailShapes.get(mid).compareTo(sg);
+			if (detailDir == FRONT ? c < 0 : c > 0) lo = mid + 1;
+			else hi = mid;
+		}
+		for (int i = lo; i < detailShapes.size(); i++) {
+			final ShapeGroup other = detailShapes.get(i);
+			if (other == sg) return i;
+			if (other.compareTo(sg) != 0) break;
+		}
+		throw new IllegalArgumentException("Shape not displayed");
 	}
 
 	private final Transform3D toVWorld = new Transform3D();
@@ -259,8 +276,12 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 		final boolean axisChanged)
 	{
 		volumeToIP(canvas, volToIP);
+		final ViewProjection view =
+			ViewProjection.forCanvas(canvas, volToIP, eyePosInLocal);
+		final CameraPath rec = recorder;
+		if (rec != null) rec.add(view);
 		// update cubes
-		updater.submit(volToIP, eyePosInLocal, axisChanged);
+		scheduler.submit(view, curAxis, curDir, axisChanged);
 	}
 
 	private final BitSet bitset = new BitSet(6);
@@ -373,13 +394,30 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 	public void canvasResized() {}
 
 	@Override
-	public void universeClosed() {}
+	public void universeClosed() {
+		close();
+	}
+
+	/**
+	 * Stops loading bricks and releases the octree; its cached bricks are
+	 * dropped from the shared cache. Cubes are not hidden.
+	 */
+	public void close() {
+		scheduler.close();
+		try {
+			store.close();
+		}
+		catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-	private static Transform3D parentInv = new Transform3D();
-	private static Point3d viewPosition = new Point3d();
-	private static Transform3D t = new Transform3D();
+	/* Not static, since several octrees may be updated concurrently */
+	private final Transform3D parentInv = new Transform3D();
+	private final Point3d viewPosition = new Point3d();
+	private final Transform3D t = new Transform3D();
 
-	private static Point3d getViewPosInLocal(final View view, final Node node) {
+	private Point3d getViewPosInLocal(final View view, final Node node) {
 		if (node == null) return null;
 		if (!node.isLive()) return null;
 		// get viewplatforms's location in virutal world
@@ -398,85 +436,34 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 		return viewPosition;
 	}
 
-	private class UpdaterThread {
-
-		private final Canvas3D canvas;
-
-		private final Transform3D nextT = new Transform3D();
-		private final Point3d nextEyePosInLocal = new Point3d();
-
-		private final Transform3D runningT = new Transform3D();
-		private final Point3d runningEyePosInLocal = new Point3d();
-
-		private Thread thread;
-
-		/* This flag is set to true if a new update was submitted */
-		private boolean available = false;
-
-		/* This flag is set when a axis-change task was submitted */
-		private boolean axisChanged = false;
+	/*
+	 * Shows and hides the cubes as decided by the scheduler, in the scheduler
+	 * thread.
+	 */
+	private class Display implements BrickScheduler.Display {
 
-		public UpdaterThread(final Canvas3D canvas) {
-			this.canvas = canvas;
+		@Override
+		public void show(final Cube cube) {
+			cube.show(detailAxis, appearance);
+			addDetailShapes(cube);
 		}
 
-		/*
-		 * Should be called when the transformation was changed
-		 * but the axis stay the same.
-		 */
-		public synchronized void submit(final Transform3D t,
-			final Point3d eyePosInLocal, final boolean axisChanged)
-		{
-			if (axisChanged) {
-				this.axisChanged = axisChanged;
-				System.out.println("SUBMIT AXIS CHANGE");
-			}
-			nextT.set(t);
-			nextEyePosInLocal.set(eyePosInLocal);
-			available = true;
-			stopUpdating = true;
-			notify();
+		@Override
+		public void hide(final Cube cube) {
+			removeDetailShapes(cube);
+			cube.hide();
 		}
 
-		private synchronized void fetchNext() {
-			if (!available) {
-				try {
-					wait();
-				}
-				catch (final InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-			runningT.set(nextT);
-			runningEyePosInLocal.set(nextEyePosInLocal);
-			available = false;
+		@Override
+		public void axisChanged(final ViewProjection view, final int axis,
+			final int dir)
+		{
+			VolumeOctree.this.axisChanged(axis, dir);
 		}
 
-		public void run() {
-			thread = new Thread() {
-
-				@Override
-				public void run() {
-					while (true) {
-						fetchNext();
-						setWhichChild(axisIndex[curAxis][curDir]);
-						if (axisChanged) {
-							axisChanged = false;
-							axisChanged(runningEyePosInLocal);
-							setWhichChild(DETAIL_AXIS);
-						}
-						System.out.println("updateCubes");
-						stopUpdating = false;
-						rootCube.update(canvas, runningT);
-						setWhichChild(DETAIL_AXIS);
-						System.out.println("updateCubes finished");
-					}
-				}
-			};
-			thread.setPriority(Thread.MIN_PRIORITY);
-			thread.start();
+		@Override
+		public void updated(final boolean complete) {
+			setWhichChild(complete ? DETAIL_AXIS : axisIndex[curAxis][curDir]);
 		}
-
-		// TODO cancel thread
 	}
 }
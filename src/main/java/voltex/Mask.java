@@ -26,7 +26,6 @@ import java.awt.Choice;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Label;
-import java.awt.Polygon;
 import java.awt.Scrollbar;
 import java.awt.event.AdjustmentEvent;
 import java.awt.event.AdjustmentListener;
@@ -39,9 +38,6 @@ import org.scijava.java3d.Canvas3D;
 import org.scijava.java3d.TextureAttributes;
 import org.scijava.java3d.Transform3D;
 import org.scijava.vecmath.Color4f;
-import org.scijava.vecmath.Point2d;
-import org.scijava.vecmath.Point3d;
-import org.scijava.vecmath.Point3i;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -127,25 +123,13 @@ public class Mask extends VoltexVolume {
 	}
 
 	public void subtractInverse(final Canvas3D canvas, final Roi roi) {
-		final Polygon p = roi.getPolygon();
-
 		final Transform3D volToIP = new Transform3D();
 		volumeToImagePlate(canvas, volToIP);
 
-		final Point2d onCanvas = new Point2d();
-		final Point3i pos = new Point3i(0, 0, 0);
-		for (int z = 0; z < zDim; z++) {
-			for (int y = 0; y < yDim; y++) {
-				for (int x = 0; x < xDim; x++) {
-					volumePointInCanvas(canvas, volToIP, x, y, z, onCanvas);
-					if (!p.contains(onCanvas.x, onCanvas.y)) {
-						setNoCheckNoUpdate(x, y, z, BG);
-					}
-				}
-			}
-			IJ.showStatus("Filling...");
-			IJ.showProgress(z, zDim);
-		}
+		final RoiProjection projection =
+			new RoiProjection(canvas, volToIP, roi.getPolygon(), pw, ph, pd);
+		IJ.showStatus("Filling...");
+		projection.fill(this, 1, false, BG);
 		updateData();
 	}
 
@@ -422,18 +406,6 @@ public class Mask extends VoltexVolume {
 	/* ***************************************************************
 	 * Private helpher functions.
 	 * **************************************************************/
-	private final Point3d locInImagePlate = new Point3d();
-
-	private void volumePointInCanvas(final Canvas3D canvas,
-		final Transform3D volToIP, final int x, final int y, final int z,
-		final Point2d out)
-	{
-
-		locInImagePlate.set(x * pw, y * ph, z * pd);
-		volToIP.transform(locInImagePlate);
-		canvas.getPixelLocationFromImagePlate(locInImagePlate, out);
-	}
-
 	private void volumeToImagePlate(final Canvas3D canvas,
 		final Transform3D volToIP)
 	{
@@ -0,0 +1,315 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package voltex;
+
+import java.awt.Polygon;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.java3d.Canvas3D;
+import org.scijava.java3d.Transform3D;
+import org.scijava.java3d.View;
+import org.scijava.vecmath.Point2d;
+import org.scijava.vecmath.Point3d;
+
+import ij.IJ;
+import ij3d.Volume;
+
+/**
+ * Projects a polygon on the canvas back into a volume, to determine which
+ * voxels are displayed within the polygon.
+ * <p>
+ * The mapping from voxel indices to canvas pixels is a projective transform,
+ * both for perspective and parallel projection, and is computed once.
+ * Each row of voxels is thus projected onto a straight line on the canvas;
+ * the row is split at the voxels where this line crosses the edges of the
+ * polygon, and the spans in between are alternately inside and outside of
+ * it. Only one point per row needs to be tested against the polygon. The
+ * spans are filled slice by slice, in parallel.
+ */
+public class RoiProjection {
+
+	private final Polygon polygon;
+
+	/* The lines through the edges of the polygon, as homogeneous vectors */
+	private final double[][] edges;
+
+	/*
+	 * The projective transform from voxel indices to pixels: rows are the
+	 * homogeneous coordinates u, v, w; columns are x, y, z and the constant.
+	 */
+	private final double[][] m = new double[3][4];
+
+	/**
+	 * @param canvas the canvas on which the polygon is drawn.
+	 * @param volToIP the transform from the volume to the image plate.
+	 * @param polygon the polygon, in canvas pixels.
+	 * @param pw the pixel width of the volume.
+	 * @param ph the pixel height of the volume.
+	 * @param pd the pixel depth of the volume.
+	 */
+	public RoiProjection(final Canvas3D canvas, final Transform3D volToIP,
+		final Polygon polygon, final double pw, final double ph, final double pd)
+	{
+		this.polygon = polygon;
+
+		final int n = polygon.npoints;
+		edges = new double[n][];
+		for (int i = 0; i < n; i++) {
+			final int j = (i + 1) % n;
+			edges[i] =
+				cross(polygon.xpoints[i], polygon.ypoints[i], 1, polygon.xpoints[j],
+					polygon.ypoints[j], 1);
+		}
+
+		// the image plate to pixel mapping is affine within the image plate
+		final Point2d o = new Point2d(), ex = new Point2d(), ey = new Point2d();
+		canvas.getPixelLocationFromImagePlate(new Point3d(0, 0, 0), o);
+		canvas.getPixelLocationFromImagePlate(new Point3d(1, 0, 0), ex);
+		canvas.getPixelLocationFromImagePlate(new Point3d(0, 1, 0), ey);
+		ex.sub(o);
+		ey.sub(o);
+
+		// points outside the image plate are projected through the eye
+		final boolean perspective =
+			canvas.getView().getProjectionPolicy() == View.PERSPECTIVE_PROJECTION;
+		final Point3d eye = new Point3d();
+		canvas.getCenterEyeInImagePlate(eye);
+
+		// the transform is affine in the voxel indices, so it is determined by
+		// the origin and the unit steps
+		final double[] h0 = new double[3], h = new double[3];
+		final Point3d p = new Point3d(0, 0, 0);
+		volToIP.transform(p);
+		toPixel(p, perspective, eye, o, ex, ey, h0);
+		final double[] cal = { pw, ph, pd };
+		for (int c = 0; c < 3; c++) {
+			p.set(c == 0 ? cal[0] : 0, c == 1 ? cal[1] : 0, c == 2 ? cal[2] : 0);
+			volToIP.transform(p);
+			toPixel(p, perspective, eye, o, ex, ey, h);
+			for (int r = 0; r < 3; r++)
+				m[r][c] = h[r] - h0[r];
+		}
+		for (int r = 0; r < 3; r++)
+			m[r][3] = h0[r];
+	}
+
+	/*
+	 * Stores the homogeneous pixel coordinates of the given image plate point,
+	 * as Canvas3D.getPixelLocationFromImagePlate() computes them.
+	 */
+	private static void toPixel(final Point3d p, final boolean perspective,
+		final Point3d eye, final Point2d o, final Point2d ex, final Point2d ey,
+		final double[] ret)
+	{
+		final double hx, hy, hw;
+		if (perspective) {
+			hx = eye.z * p.x - eye.x * p.z;
+			hy = eye.z * p.y - eye.y * p.z;
+			hw = eye.z - p.z;
+		}
+		else {
+			hx = p.x;
+			hy = p.y;
+			hw = 1;
+		}
+		ret[0] = o.x * hw + ex.x * hx + ey.x * hy;
+		ret[1] = o.y * hw + ex.y * hx + ey.y * hy;
+		ret[2] = hw;
+	}
+
+	/**
+	 * Returns the spans of the specified row of voxels, from x = 0 to nx - 1,
+	 * which are projected into the polygon, as pairs of start (inclusive) and
+	 * end (exclusive) x coordinates.
+	 */
+	public int[] getSpans(final int y, final int z, final int nx) {
+		final int[] spans = new int[2 * polygon.npoints + 2];
+		final int n = getSpans(y, z, nx, new double[polygon.npoints],
+			new double[polygon.npoints], spans);
+		return Arrays.copyOf(spans, n);
+	}
+
+	/*
+	 * Stores the spans in the given array, which must have room for
+	 * 2 * npoints + 2 values, and returns the number of values. The other two
+	 * arrays are used for temporary storage and must have npoints entries.
+	 */
+	private int getSpans(final int y, final int z, final int nx,
+		final double[] sides, final double[] crossings, final int[] spans)
+	{
+		if (nx <= 0) return 0;
+		// the row is projected onto the points b + x * d
+		final double[] b = new double[3], d = new double[3];
+		for (int r = 0; r < 3; r++) {
+			b[r] = m[r][3] + y * m[r][1] + z * m[r][2];
+			d[r] = m[r][0];
+		}
+		final double[] line = cross(b[0], b[1], b[2], d[0], d[1], d[2]);
+
+		// an edge is crossed if its vertices lie on different sides
+		final int n = polygon.npoints;
+		for (int i = 0; i < n; i++)
+			sides[i] =
+				line[0] * polygon.xpoints[i] + line[1] * polygon.ypoints[i] + line[2];
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			if ((sides[i] > 0) == (sides[(i + 1) % n] > 0)) continue;
+			final double[] e = edges[i];
+			final double denom = e[0] * d[0] + e[1] * d[1] + e[2] * d[2];
+			if (denom == 0) continue;
+			final double x = -(e[0] * b[0] + e[1] * b[1] + e[2] * b[2]) / denom;
+			if (x > 0 && x < nx - 1) crossings[k++] = x;
+		}
+		Arrays.sort(crossings, 0, k);
+
+		// test the middle of the largest gap between crossings
+		int sample = 0;
+		double max = -1, sampleX = 0;
+		for (int j = 0; j <= k; j++) {
+			final double from = j == 0 ? 0 : crossings[j - 1];
+			final double to = j == k ? nx - 1 : crossings[j];
+			if (to - from > max) {
+				max = to - from;
+				sample = j;
+				sampleX = (from + to) / 2;
+			}
+		}
+		final double w = b[2] + sampleX * d[2];
+		final boolean sampleInside =
+			polygon.contains((b[0] + sampleX * d[0]) / w, (b[1] + sampleX * d[1]) /
+				w);
+
+		// voxel x lies in gap j if crossings[j - 1] < x <= crossings[j]
+		int ns = 0;
+		for (int j = 0; j <= k; j++) {
+			if (sampleInside != ((j - sample) % 2 == 0)) continue;
+			final int start = j == 0 ? 0 : (int) Math.floor(crossings[j - 1]) + 1;
+			final int end = j == k ? nx : (int) Math.floor(crossings[j]) + 1;
+			if (start >= end) continue;
+			if (ns > 0 && spans[ns - 1] == start) spans[ns - 1] = end;
+			else {
+				spans[ns++] = start;
+				spans[ns++] = end;
+			}
+		}
+		return ns;
+	}
+
+	/**
+	 * Sets the voxels of the given volume which are projected into the polygon,
+	 * or those which are not, to the given value. The voxel (x, y, z) of the
+	 * volume is projected as the voxel (x / factor, y / factor, z / factor) of
+	 * the volume this projection was created for, e.g. if the given volume is
+	 * the original image of a downsampled one. The slices are processed in
+	 * parallel. Only the image data is changed, like by
+	 * {@link Volume#fillRowNoCheck}.
+	 *
+	 * @param volume the volume to fill.
+	 * @param factor the resampling factor of the projected volume.
+	 * @param inside whether to fill the voxels inside or outside the polygon.
+	 * @param value the new value.
+	 */
+	public void fill(final Volume volume, final int factor,
+		final boolean inside, final int value)
+	{
+		final int nx = (volume.xDim + factor - 1) / factor;
+		final int ny = (volume.yDim + factor - 1) / factor;
+		final int nz = (volume.zDim + factor - 1) / factor;
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		final Thread[] threads =
+			new Thread[Math.max(1, Math.min(nz, Runtime.getRuntime()
+				.availableProcessors()))];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					final int n = polygon.npoints;
+					final double[] sides = new double[n];
+					final double[] crossings = new double[n];
+					final int[] spans = new int[2 * n + 2];
+					for (int z = next.getAndIncrement(); z < nz; z =
+						next.getAndIncrement())
+					{
+						for (int y = 0; y < ny; y++) {
+							final int ns = getSpans(y, z, nx, sides, crossings, spans);
+							for (int zi = z * factor; zi < Math.min(volume.zDim, (z + 1) *
+								factor); zi++)
+							{
+								for (int yi = y * factor; yi < Math.min(volume.yDim, (y + 1) *
+									factor); yi++)
+								{
+									fillRow(volume, spans, ns, factor, yi, zi, inside, value);
+								}
+							}
+						}
+						IJ.showProgress(done.incrementAndGet(), nz);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		join(threads);
+	}
+
+	private static void fillRow(final Volume volume, final int[] spans,
+		final int ns, final int factor, final int y, final int z,
+		final boolean inside, final int value)
+	{
+		int prev = 0;
+		for (int i = 0; i < ns; i += 2) {
+			final int start = spans[i] * factor;
+			final int end = Math.min(volume.xDim, spans[i + 1] * factor);
+			if (inside) volume.fillRowNoCheck(start, end, y, z, value);
+			else if (start > prev) volume.fillRowNoCheck(prev, start, y, z, value);
+			prev = end;
+		}
+		if (!inside && prev < volume.xDim) volume.fillRowNoCheck(prev,
+			volume.xDim, y, z, value);
+	}
+
+	private static void join(final Thread[] threads) {
+		boolean interrupted = false;
+		for (final Thread t : threads) {
+			while (t.isAlive()) {
+				try {
+					t.join();
+				}
+				catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private static double[] cross(final double x1, final double y1,
+		final double z1, final double x2, final double y2, final double z2)
+	{
+		return new double[] { y1 * z2 - z1 * y2, z1 * x2 - x1 * z2,
+			x1 * y2 - y1 * x2 };
+	}
+}
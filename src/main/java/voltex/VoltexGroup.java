@@ -22,13 +22,10 @@
 
 package voltex;
 
-import java.awt.Polygon;
-
 import org.scijava.java3d.Canvas3D;
 import org.scijava.java3d.Transform3D;
 import org.scijava.java3d.View;
 import org.scijava.vecmath.Color3f;
-import org.scijava.vecmath.Point2d;
 import org.scijava.vecmath.Point3d;
 import org.scijava.vecmath.Tuple3d;
 
@@ -254,26 +251,17 @@ public class VoltexGroup extends ContentNode {
 	{
 		if (roi == null) return;
 
-		final Polygon p = roi.getPolygon();
 		final Transform3D volToIP = new Transform3D();
 		canvas.getImagePlateToVworld(volToIP);
 		volToIP.invert();
 		volumeToImagePlate(volToIP);
 
 		final VoltexVolume vol = renderer.getVolume();
-		final Point2d onCanvas = new Point2d();
-		for (int z = 0; z < vol.zDim; z++) {
-			for (int y = 0; y < vol.yDim; y++) {
-				for (int x = 0; x < vol.xDim; x++) {
-					volumePointInCanvas(canvas, volToIP, x, y, z, onCanvas);
-					if (p.contains(onCanvas.x, onCanvas.y)) {
-						vol.setNoCheckNoUpdate(x, y, z, fillValue);
-					}
-				}
-			}
-			IJ.showStatus("Filling...");
-			IJ.showProgress(z, vol.zDim);
-		}
+		final RoiProjection projection =
+			new RoiProjection(canvas, volToIP, roi.getPolygon(), vol.pw, vol.ph,
+				vol.pd);
+		IJ.showStatus("Filling...");
+		projection.fill(vol, 1, true, fillValue);
 		vol.updateData();
 
 		// also fill the original image
@@ -282,45 +270,7 @@ public class VoltexGroup extends ContentNode {
 		if (image == null || factor == 1) return;
 
 		final ij3d.Volume volu = new ij3d.Volume(image);
-		for (int z = 0; z < volu.zDim; z++) {
-			for (int y = 0; y < volu.yDim; y++) {
-				for (int x = 0; x < volu.xDim; x++) {
-					volumePointInCanvas(canvas, volToIP, x / factor, y / factor, z /
-						factor, onCanvas);
-					if (p.contains(onCanvas.x, onCanvas.y)) {
-						volu.set(x, y, z, fillValue);
-					}
-				}
-			}
-			IJ.showStatus("Filling...");
-			IJ.showProgress(z, volu.zDim);
-		}
-	}
-
-	/**
-	 * Returns the 3D coordinates of the given x, y, z position on the 3D canvas.
-	 * 
-	 * @param canvas
-	 * @param volToIP
-	 * @param x
-	 * @param y
-	 * @param z
-	 * @return
-	 */
-	private void volumePointInCanvas(final Canvas3D canvas,
-		final Transform3D volToIP, final int x, final int y, final int z,
-		final Point2d ret)
-	{
-
-		final VoltexVolume vol = renderer.volume;
-		final double px = x * vol.pw;
-		final double py = y * vol.ph;
-		final double pz = z * vol.pd;
-		final Point3d locInImagePlate = new Point3d(px, py, pz);
-
-		volToIP.transform(locInImagePlate);
-
-		canvas.getPixelLocationFromImagePlate(locInImagePlate, ret);
+		projection.fill(volu, factor, true, fillValue);
 	}
 
 	/**